@@ -1,10 +1,40 @@
 package com.bah.iotsap;
 
+import android.app.ActivityManager;
 import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
+import com.bah.iotsap.discovery.SightingBus;
+import com.bah.iotsap.location.LocationTrack;
+import com.bah.iotsap.services.BleSource;
+import com.bah.iotsap.services.ClassicSource;
+import com.bah.iotsap.services.DiscoveryEngine;
+import com.bah.iotsap.services.HttpService;
+import com.bah.iotsap.location.PositionEstimator;
+import com.bah.iotsap.log.RingLog;
+import com.bah.iotsap.metrics.Gauge;
+import com.bah.iotsap.metrics.MetricsRegistry;
+import com.bah.iotsap.spatial.SightingIndex;
+import com.bah.iotsap.storage.SegmentInfo;
+import com.bah.iotsap.storage.SightingLog;
+import com.bah.iotsap.trace.TraceRecorder;
 import com.mapbox.mapboxsdk.Mapbox;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * App class is the base class of the entire app, used for maintaining global application state.
  * This class is instantiated before any other class when the process for the app is created.
@@ -12,6 +42,54 @@ import com.mapbox.mapboxsdk.Mapbox;
 public class App extends Application {
 
     private static final String TAG = "Application";
+    // Preference strings
+    public static final String PREF_TRACE_RECORD = "pref_trace_record";
+    private static final String SIGHTING_LOG_DIR = "sightings";
+    // Saved next to the log directory, never inside it
+    private static final String SIGHTING_INDEX   = "sightings.sgi";
+    // Number of recent sightings kept on the bus for slow subscribers
+    private static final int    BUS_CAPACITY     = 4096;
+    // Memory for device position estimates at most, room for over 100k devices
+    private static final int    ESTIMATOR_BYTES  = 16 << 20;
+    // Nor more than an eighth of the heap, for small heaps
+    private static final int    ESTIMATOR_SHARE  = 8;
+    // Scan traces for replaying, see TraceReplayer
+    private static final String TRACE_DIR        = "traces";
+    // Metrics and log dumps, see dumpDiagnostics()
+    private static final String DIAGNOSTICS_DIR  = "diagnostics";
+    // Entries kept by the ring log, 64 bytes each
+    private static final int    LOG_CAPACITY     = 8192;
+
+    private static volatile SightingLog sightingLog;
+    // Opened on the index executor, before the index is loaded
+    private static volatile Future<SightingLog> sightingLogOpen;
+    // Wall clock at the elapsedRealtime() zero, set in onCreate()
+    private static volatile long        epochOffsetMillis;
+    private static final SightingBus    sightingBus = new SightingBus(BUS_CAPACITY);
+    private static final LocationTrack  locationTrack = new LocationTrack();
+    private static LocationDiscovery    locationDiscovery;
+    private static final SightingIndex  sightingIndex = new SightingIndex();
+    // Opens the log, loads and saves the index off the main thread, one at a time
+    private static final ExecutorService indexExecutor = Executors.newSingleThreadExecutor();
+    private static File                 sightingIndexFile;
+    // Created on first use, see getPositionEstimator()
+    private static PositionEstimator    positionEstimator;
+    private static volatile long        estimatorBytes = ESTIMATOR_BYTES;
+    private static volatile TraceRecorder traceRecorder;
+    private static final MetricsRegistry metrics = new MetricsRegistry();
+    private static final RingLog         ringLog = new RingLog(LOG_CAPACITY, RingLog.DEBUG);
+
+    // Starts and stops trace recording with PREF_TRACE_RECORD. Held here, preferences only keep weak references
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+                    if(PREF_TRACE_RECORD.equals(key)) setTraceRecording(App.this, preferences.getBoolean(key, false));
+                    // The engine stops with its last source, bring it back for the next one
+                    if((ClassicSource.PREF_BT_SERVICE.equals(key) || BleSource.PREF_BLE_SERVICE.equals(key))
+                            && preferences.getBoolean(key, false)) DiscoveryEngine.ensureRunning(App.this);
+                }
+            };
 
     @Override
     public void onCreate() {
@@ -19,5 +97,254 @@ public class App extends Application {
         Log.i(TAG, "onCreate()");
         Mapbox.getInstance(getApplicationContext(), getResources().getString(R.string.mapbox_token));
         Log.i(TAG, "onCreate(): Got mapbox instance");
+        locationDiscovery = new LocationDiscovery(this, locationTrack);
+        epochOffsetMillis = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        int heapMegabytes = ((ActivityManager) getSystemService(ACTIVITY_SERVICE)).getMemoryClass();
+        estimatorBytes = Math.min(ESTIMATOR_BYTES, ((long) heapMegabytes << 20) / ESTIMATOR_SHARE);
+        // Recovery reads the last segment through, keep it off the main thread
+        final File logDir = new File(getFilesDir(), SIGHTING_LOG_DIR);
+        sightingLogOpen = indexExecutor.submit(new Callable<SightingLog>() {
+            @Override
+            public SightingLog call() {
+                return openSightingLog(logDir);
+            }
+        });
+        sightingIndexFile = new File(getFilesDir(), SIGHTING_INDEX);
+        indexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int points = sightingIndex.load(sightingIndexFile);
+                    Log.i(TAG, "onCreate(): Loaded " + points + " points, " + sightingIndex);
+                } catch(IOException e) {
+                    // Rebuilt from the log by the discovery services' index stages
+                    Log.i(TAG, "onCreate(): Could not load sighting index: " + e.getMessage());
+                }
+            }
+        });
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        preferences.registerOnSharedPreferenceChangeListener(preferenceListener);
+        setTraceRecording(this, preferences.getBoolean(PREF_TRACE_RECORD, false));
+
+        metrics.gauge("bus.published", new Gauge() {
+            @Override
+            public long value() {
+                return sightingBus.published();
+            }
+        });
+    }
+
+    /**
+     * Open the sighting log, have sealed segments uploaded and its gauges registered. Index thread.
+     * @return the log, or null if it could not be opened
+     */
+    private SightingLog openSightingLog(File dir) {
+        final SightingLog log;
+        try {
+            log = new SightingLog(dir, epochOffsetMillis);
+        } catch(IOException e) {
+            Log.i(TAG, "openSightingLog(): Could not open sighting log: " + e.getMessage());
+            return null;
+        }
+        Log.i(TAG, "openSightingLog(): Opened sighting log at seq " + log.nextSeq()
+                + ", discarded " + log.recoveredBytes() + " torn bytes");
+        // Every sealed segment goes into the upload queue
+        log.setListener(new SightingLog.Listener() {
+            @Override
+            public void onSegmentSealed(SegmentInfo segment) {
+                Log.i(TAG, "onSegmentSealed(): " + segment);
+                HttpService.requestDrain(App.this, false);
+                saveSightingIndex();
+            }
+        });
+        metrics.gauge("storage.next_seq", new Gauge() {
+            @Override
+            public long value() {
+                return log.nextSeq();
+            }
+        });
+        metrics.gauge("storage.flushes", new Gauge() {
+            @Override
+            public long value() {
+                return log.flushes();
+            }
+        });
+        sightingLog = log;
+        return log;
+    }
+
+    /**
+     * Persistent log that the discovery services append their sightings to. It is opened in the
+     * background when the process starts.
+     * @return the process wide sighting log, or null while it is being opened or if it could not be
+     */
+    public static SightingLog getSightingLog() {
+        return sightingLog;
+    }
+
+    /**
+     * The sighting log as it is being opened, for the pipeline stages to wait on. Its value is null
+     * if the log could not be opened.
+     */
+    public static Future<SightingLog> getSightingLogFuture() {
+        return sightingLogOpen;
+    }
+
+    /**
+     * Wait until the sighting log is open. Not on the main thread.
+     * @return the process wide sighting log, or null if it could not be opened
+     */
+    public static SightingLog awaitSightingLog() {
+        try {
+            return sightingLogOpen.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch(ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return wall clock time at the elapsedRealtime() zero, what sighting timestamps are offset by
+     */
+    public static long getEpochOffsetMillis() {
+        return epochOffsetMillis;
+    }
+
+    /**
+     * Bus the discovery services publish their sightings on, for in-process consumers (the UI).
+     * @return the process wide sighting bus
+     */
+    public static SightingBus getSightingBus() {
+        return sightingBus;
+    }
+
+    /**
+     * Spatial index of the located sightings in the log, for map viewport queries.
+     * @return the process wide sighting index
+     */
+    public static SightingIndex getSightingIndex() {
+        return sightingIndex;
+    }
+
+    /**
+     * Save the sighting index next to the log in the background, so the next start does not
+     * have to rebuild it from the log.
+     */
+    public static void saveSightingIndex() {
+        final File file = sightingIndexFile;
+        if(file == null) return;
+        indexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int points = sightingIndex.save(file);
+                    Log.i(TAG, "saveSightingIndex(): Saved " + points + " points");
+                } catch(IOException e) {
+                    Log.i(TAG, "saveSightingIndex(): " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Positions of the discovered devices, estimated from where and how strongly they were heard.
+     * Created when first asked for, sized to the heap, so processes that never scan or show
+     * devices do not pay for it.
+     * @return the process wide position estimator
+     */
+    public static synchronized PositionEstimator getPositionEstimator() {
+        if(positionEstimator == null) {
+            positionEstimator = new PositionEstimator(PositionEstimator.capacityFor(estimatorBytes));
+            Log.i(TAG, "getPositionEstimator(): " + positionEstimator.capacity() + " devices in "
+                    + (estimatorBytes >> 20) + " MB");
+        }
+        return positionEstimator;
+    }
+
+    /**
+     * Recent fixes of this device, that sightings are tagged from.
+     * @return the process wide location track
+     */
+    public static LocationTrack getLocationTrack() {
+        return locationTrack;
+    }
+
+    /**
+     * Shared location subscription that fills the location track, see LocationDiscovery.acquire().
+     * @return the process wide location discovery
+     */
+    public static LocationDiscovery getLocationDiscovery() {
+        return locationDiscovery;
+    }
+
+    /**
+     * Recorder the discovery services write their raw events to while PREF_TRACE_RECORD is set.
+     * @return the current trace recorder, or null if not recording
+     */
+    public static TraceRecorder getTraceRecorder() {
+        return traceRecorder;
+    }
+
+    /**
+     * Counters, gauges and latency histograms of the discovery, storage and upload paths.
+     * @return the process wide metrics registry
+     */
+    public static MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Events of the discovery and NFC paths, kept in memory instead of going to logcat.
+     * @return the process wide ring log
+     */
+    public static RingLog getLog() {
+        return ringLog;
+    }
+
+    /**
+     * Write the current metrics and the ring log to a new file in the diagnostics directory.
+     * @return the file written
+     */
+    public static File dumpDiagnostics(Context context) throws IOException {
+        File dir = new File(context.getFilesDir(), DIAGNOSTICS_DIR);
+        if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Could not create " + dir);
+        File file = new File(dir, "diagnostics-" + System.currentTimeMillis() + ".txt");
+        StringBuilder out = new StringBuilder();
+        metrics.dump(out);
+        out.append("\n").append(ringLog).append('\n');
+        ringLog.dump(out);
+        try(Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            writer.write(out.toString());
+        }
+        return file;
+    }
+
+    /**
+     * Start recording into a new trace in the traces directory, or close the current one.
+     */
+    static synchronized void setTraceRecording(Context context, boolean record) {
+        TraceRecorder recorder = traceRecorder;
+        if(record == (recorder != null)) return;
+        if(!record) {
+            traceRecorder = null;
+            recorder.close();
+            Log.i(TAG, "setTraceRecording(): Recorded " + recorder.events() + " events, "
+                    + recorder.bytes() + " bytes" + (recorder.failed() ? ", failed" : ""));
+            return;
+        }
+        File dir = new File(context.getFilesDir(), TRACE_DIR);
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            Log.i(TAG, "setTraceRecording(): Could not create " + dir);
+            return;
+        }
+        File file = new File(dir, "trace-" + System.currentTimeMillis() + ".sctr");
+        try {
+            traceRecorder = TraceRecorder.create(file, SystemClock.elapsedRealtimeNanos());
+            Log.i(TAG, "setTraceRecording(): Recording to " + file);
+        } catch(IOException e) {
+            Log.i(TAG, "setTraceRecording(): Could not create trace: " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,423 @@
+package com.bah.iotsap;
+
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.bah.iotsap.cluster.Cluster;
+import com.bah.iotsap.cluster.ClusterDiff;
+import com.bah.iotsap.cluster.ClusterGrid;
+import com.bah.iotsap.cluster.ClusterLayer;
+import com.bah.iotsap.discovery.MacAddress;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.discovery.SightingBus;
+import com.bah.iotsap.location.PositionEstimator;
+import com.bah.iotsap.spatial.SightingIndex;
+import com.mapbox.mapboxsdk.annotations.Marker;
+import com.mapbox.mapboxsdk.annotations.MarkerOptions;
+import com.mapbox.mapboxsdk.annotations.Polygon;
+import com.mapbox.mapboxsdk.annotations.PolygonOptions;
+import com.mapbox.mapboxsdk.geometry.LatLng;
+import com.mapbox.mapboxsdk.geometry.LatLngBounds;
+import com.mapbox.mapboxsdk.maps.MapboxMap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ClusterOverlay draws the located sightings on a MapboxMap through a ClusterGrid: one marker per
+ * cluster at the current zoom level, or in heatmap mode one square per (finer) cell colored by
+ * its mean RSSI.
+ * The grid lives on its own thread. It is filled from the SightingIndex (the last BACKFILL_HOURS)
+ * and then from the SightingBus as sightings stream in, and that thread also works out what
+ * changed (ClusterLayer). The UI thread only adds, updates or removes the annotations a diff
+ * names. Camera moves are coalesced: only the latest viewport is computed.
+ * Zoomed in to street level, the devices heard in the viewport are drawn too, one marker each at
+ * the position the PositionEstimator puts them, its uncertainty radius in the snippet.
+ * Call start() once the map is ready and stop() when the fragment's view goes.
+ */
+public final class ClusterOverlay {
+
+    private static final String TAG = "ClusterOverlay";
+
+    static final  int  BACKFILL_HOURS  = 12;
+    // New sightings redraw at most this often
+    private static final long REFRESH_MILLIS  = 500L;
+    // Clusters just outside the viewport are drawn too, so short pans need no new ones
+    private static final double MARGIN         = 0.25;
+    // Devices are drawn from this zoom on, at most MAX_DEVICES of them
+    static final  int  DEVICE_ZOOM     = 17;
+    private static final int  MAX_DEVICES     = 200;
+
+    /**
+     * A viewport to draw, captured on the UI thread.
+     */
+    private static final class Viewport {
+        final double  zoom, south, west, north, east;
+        final boolean heatmap;
+        final int     epoch;
+
+        Viewport(double zoom, double south, double west, double north, double east, boolean heatmap, int epoch) {
+            this.zoom    = zoom;
+            this.south   = south;
+            this.west    = west;
+            this.north   = north;
+            this.east    = east;
+            this.heatmap = heatmap;
+            this.epoch   = epoch;
+        }
+    }
+
+    private final MapboxMap                 map;
+    private final SightingIndex             index;
+    private final PositionEstimator         estimator;
+    private final SightingBus               bus;
+    private final Handler                   main = new Handler(Looper.getMainLooper());
+    private final HandlerThread             thread = new HandlerThread("clusters");
+    private Handler                         worker;
+    // Worker thread only
+    private final ClusterGrid               grid  = new ClusterGrid();
+    private final ClusterLayer              layer = new ClusterLayer(grid);
+    private SightingBus.Subscription        subscription;
+    private long                            sinceMillis;
+    private long                            epochOffsetMillis;
+    private boolean                         refreshPending;
+    private boolean                         devicesDrawn;
+    // Epoch of the annotations the layer last diffed against
+    private int                             renderedEpoch;
+    // UI thread only
+    private final Map<Long, Marker>         markers  = new HashMap<>();
+    private final Map<Long, Polygon>        polygons = new HashMap<>();
+    private final Map<Long, Marker>         devices  = new HashMap<>();
+    private boolean                         heatmap;
+    private int                             epoch;
+    private boolean                         started;
+
+    private final AtomicReference<Viewport> requested    = new AtomicReference<>();
+    private final AtomicBoolean             renderPosted = new AtomicBoolean();
+
+    private final SightingBus.Consumer consumer = new SightingBus.Consumer() {
+        @Override
+        public void onSighting(long seq, Sighting sighting) {
+            // Expiries only say where a device was last heard, the index skips them too
+            if(!sighting.hasLocation() || sighting.change == Sighting.Change.EXPIRED) return;
+            long timeMillis = epochOffsetMillis + sighting.timestampNanos / 1000000L;
+            // Older ones came from the index
+            if(timeMillis < sinceMillis) return;
+            grid.add(sighting.latitude, sighting.longitude, sighting.rssi, timeMillis);
+        }
+    };
+
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            if(subscription == null) return;
+            long before = grid.sightings();
+            subscription.poll(consumer);
+            if(grid.sightings() != before && !refreshPending) {
+                refreshPending = true;
+                worker.postDelayed(refresh, REFRESH_MILLIS);
+            }
+        }
+    };
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            refreshPending = false;
+            render();
+        }
+    };
+
+    private final Runnable render = new Runnable() {
+        @Override
+        public void run() {
+            renderPosted.set(false);
+            render();
+        }
+    };
+
+    private final MapboxMap.OnCameraMoveListener cameraMoved = new MapboxMap.OnCameraMoveListener() {
+        @Override
+        public void onCameraMove() {
+            requestRender();
+        }
+    };
+
+    private final MapboxMap.OnCameraIdleListener cameraIdle = new MapboxMap.OnCameraIdleListener() {
+        @Override
+        public void onCameraIdle() {
+            requestRender();
+        }
+    };
+
+    /**
+     * @param estimator where to draw devices when zoomed in, may be null not to draw them
+     */
+    public ClusterOverlay(MapboxMap map, SightingIndex index, SightingBus bus, PositionEstimator estimator) {
+        this.map       = map;
+        this.index     = index;
+        this.bus       = bus;
+        this.estimator = estimator;
+    }
+
+    /**
+     * Start filling the grid and following the camera. UI thread.
+     */
+    public void start() {
+        if(started) return;
+        started = true;
+        thread.start();
+        worker = new Handler(thread.getLooper());
+        final long now = System.currentTimeMillis();
+        final long offset = now - SystemClock.elapsedRealtime();
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                // Subscribe first: whatever is published while the index is read is not lost
+                sinceMillis       = now;
+                epochOffsetMillis = offset;
+                subscription      = bus.subscribe(SightingBus.Backpressure.DROP_OLDEST);
+                subscription.setListener(new SightingBus.Listener() {
+                    @Override
+                    public void onAvailable(SightingBus.Subscription subscription) {
+                        worker.post(poll);
+                    }
+                });
+                backfill(now - BACKFILL_HOURS * 3600000L, now - 1);
+                render();
+                worker.post(poll);
+            }
+        });
+        map.setOnCameraMoveListener(cameraMoved);
+        map.setOnCameraIdleListener(cameraIdle);
+        requestRender();
+    }
+
+    /**
+     * Stop following the camera and the bus; the annotations stay. UI thread.
+     */
+    public void stop() {
+        if(!started) return;
+        started = false;
+        map.setOnCameraMoveListener(null);
+        map.setOnCameraIdleListener(null);
+        epoch++;
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                if(subscription != null) subscription.close();
+                subscription = null;
+                Log.i(TAG, "stop(): " + grid.sightings() + " sightings, " + layer.rendered() + " clusters drawn");
+            }
+        });
+        thread.quitSafely();
+    }
+
+    /**
+     * Switch between cluster markers and heatmap cells, redrawing everything. UI thread.
+     */
+    public void setHeatmap(boolean heatmap) {
+        if(this.heatmap == heatmap) return;
+        this.heatmap = heatmap;
+        // Diffs computed for the old mode are dropped by the epoch check in apply(), and render()
+        // starts over for the new epoch
+        clear();
+        requestRender();
+    }
+
+    /**
+     * Capture the viewport and have the worker draw it, unless it already has a viewport to draw
+     * (it then draws this one instead). UI thread.
+     */
+    private void requestRender() {
+        if(!started || map.getCameraPosition() == null) return;
+        LatLngBounds bounds = map.getProjection().getVisibleRegion().latLngBounds;
+        double south = bounds.getLatSouth(), north = bounds.getLatNorth();
+        double west = bounds.getLonWest(), east = bounds.getLonEast();
+        double height = (north - south) * MARGIN;
+        double width  = ((east - west + 360) % 360) * MARGIN;
+        requested.set(new Viewport(map.getCameraPosition().zoom, Math.max(-90, south - height),
+                west - width < -180 ? west - width + 360 : west - width,
+                Math.min(90, north + height),
+                east + width > 180 ? east + width - 360 : east + width, heatmap, epoch));
+        if(renderPosted.compareAndSet(false, true)) worker.post(render);
+    }
+
+    private void render() {
+        Viewport view = requested.get();
+        if(view == null) return;
+        if(view.epoch != renderedEpoch) {
+            // Everything drawn was cleared, diff against nothing
+            renderedEpoch = view.epoch;
+            layer.reset();
+            devicesDrawn = false;
+        }
+        // Heatmap cells are a level finer than clusters
+        int level = grid.level(view.zoom) + (view.heatmap ? 1 : 0);
+        final ClusterDiff diff = layer.update(level, view.south, view.west, view.north, view.east);
+        final Map<Long, PositionEstimator.Estimate> located = locate(view);
+        if(diff.isEmpty() && located == null) return;
+        final int epoch = view.epoch;
+        final boolean cells = view.heatmap;
+        main.post(new Runnable() {
+            @Override
+            public void run() {
+                apply(diff, cells, epoch);
+                if(located != null) apply(located, epoch);
+            }
+        });
+    }
+
+    /**
+     * @return estimated positions of the devices heard in the viewport lately, none when zoomed
+     *         out; null if there is nothing to draw and nothing drawn to remove
+     */
+    private Map<Long, PositionEstimator.Estimate> locate(Viewport view) {
+        final Map<Long, PositionEstimator.Estimate> located = new LinkedHashMap<>();
+        if(estimator != null && view.zoom >= DEVICE_ZOOM) {
+            long now = System.currentTimeMillis();
+            index.query(view.south, view.west, view.north, view.east, now - BACKFILL_HOURS * 3600000L, now,
+                    new SightingIndex.Visitor() {
+                        @Override
+                        public boolean visit(long mac, double latitude, double longitude, long timeMillis, int rssi) {
+                            if(located.containsKey(mac)) return true;
+                            PositionEstimator.Estimate estimate = new PositionEstimator.Estimate();
+                            located.put(mac, estimator.estimate(mac, estimate) ? estimate : null);
+                            return located.size() < MAX_DEVICES;
+                        }
+                    });
+            for(Iterator<PositionEstimator.Estimate> it = located.values().iterator(); it.hasNext(); ) {
+                if(it.next() == null) it.remove();
+            }
+        }
+        if(located.isEmpty() && !devicesDrawn) return null;
+        devicesDrawn = !located.isEmpty();
+        return located;
+    }
+
+    private void backfill(long fromMillis, long toMillis) {
+        long start = SystemClock.elapsedRealtime();
+        int points = index.query(-90, -180, 90, 180, fromMillis, toMillis, new SightingIndex.Visitor() {
+            @Override
+            public boolean visit(long mac, double latitude, double longitude, long timeMillis, int rssi) {
+                grid.add(latitude, longitude, rssi, timeMillis);
+                return true;
+            }
+        });
+        Log.i(TAG, "backfill(): " + points + " sightings in " + (SystemClock.elapsedRealtime() - start)
+                + " ms, " + grid.cells(grid.maxZoom()) + " cells at zoom " + grid.maxZoom());
+    }
+
+    private void apply(ClusterDiff diff, boolean cells, int epoch) {
+        if(epoch != this.epoch || cells != heatmap) return;
+        for(int i = 0; i < diff.removedCount(); ++i) {
+            Long key = diff.removed(i);
+            Marker marker = markers.remove(key);
+            if(marker != null) map.removeMarker(marker);
+            Polygon polygon = polygons.remove(key);
+            if(polygon != null) map.removePolygon(polygon);
+        }
+        for(Cluster cluster : diff.added) {
+            if(cells) {
+                polygons.put(cluster.key, map.addPolygon(new PolygonOptions()
+                        .add(new LatLng(cluster.south, cluster.west), new LatLng(cluster.north, cluster.west),
+                                new LatLng(cluster.north, cluster.east), new LatLng(cluster.south, cluster.east))
+                        .fillColor(color(cluster.meanRssi)).alpha(alpha(cluster.count))
+                        .strokeColor(Color.TRANSPARENT)));
+            } else {
+                markers.put(cluster.key, map.addMarker(new MarkerOptions()
+                        .position(new LatLng(cluster.latitude, cluster.longitude))
+                        .title(title(cluster)).snippet(snippet(cluster))));
+            }
+        }
+        for(Cluster cluster : diff.changed) {
+            if(cells) {
+                Polygon polygon = polygons.get(cluster.key);
+                if(polygon == null) continue;
+                polygon.setFillColor(color(cluster.meanRssi));
+                polygon.setAlpha(alpha(cluster.count));
+                map.updatePolygon(polygon);
+            } else {
+                Marker marker = markers.get(cluster.key);
+                if(marker == null) continue;
+                marker.setPosition(new LatLng(cluster.latitude, cluster.longitude));
+                marker.setTitle(title(cluster));
+                marker.setSnippet(snippet(cluster));
+                map.updateMarker(marker);
+            }
+        }
+    }
+
+    /**
+     * Draw exactly the given devices, moving the markers of those already drawn.
+     */
+    private void apply(Map<Long, PositionEstimator.Estimate> located, int epoch) {
+        if(epoch != this.epoch) return;
+        List<Long> gone = new ArrayList<>();
+        for(Long mac : devices.keySet()) if(!located.containsKey(mac)) gone.add(mac);
+        for(Long mac : gone) map.removeMarker(devices.remove(mac));
+        for(Map.Entry<Long, PositionEstimator.Estimate> entry : located.entrySet()) {
+            PositionEstimator.Estimate estimate = entry.getValue();
+            LatLng position = new LatLng(estimate.latitude, estimate.longitude);
+            Marker marker = devices.get(entry.getKey());
+            if(marker == null) {
+                devices.put(entry.getKey(), map.addMarker(new MarkerOptions().position(position)
+                        .title(MacAddress.toString(entry.getKey())).snippet(snippet(estimate))));
+            } else {
+                marker.setPosition(position);
+                marker.setSnippet(snippet(estimate));
+                map.updateMarker(marker);
+            }
+        }
+    }
+
+    /**
+     * Remove everything this overlay drew. UI thread.
+     */
+    private void clear() {
+        epoch++;
+        for(Marker marker : markers.values()) map.removeMarker(marker);
+        for(Polygon polygon : polygons.values()) map.removePolygon(polygon);
+        for(Marker marker : devices.values()) map.removeMarker(marker);
+        markers.clear();
+        polygons.clear();
+        devices.clear();
+    }
+
+    private static String title(Cluster cluster) {
+        return cluster.count == 1 ? "1 sighting" : cluster.count + " sightings";
+    }
+
+    private static String snippet(Cluster cluster) {
+        return "RSSI " + cluster.meanRssi + " dBm (max " + cluster.maxRssi + ")";
+    }
+
+    private static String snippet(PositionEstimator.Estimate estimate) {
+        return "\u00b1" + Math.round(estimate.radiusMeters) + " m, " + estimate.observations + " observations";
+    }
+
+    /**
+     * @return blue at -100 dBm and below through green to red at -40 dBm and above
+     */
+    static int color(int rssi) {
+        float f = Math.max(0f, Math.min(1f, (rssi + 100) / 60f));
+        return Color.HSVToColor(new float[] { 240f * (1f - f), 1f, 1f });
+    }
+
+    /**
+     * @return more opaque the more sightings a cell has, on a log scale
+     */
+    static float alpha(int count) {
+        return 0.25f + 0.5f * (float) Math.min(1.0, Math.log10(count) / 3);
+    }
+}
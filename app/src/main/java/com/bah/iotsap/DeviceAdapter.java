@@ -0,0 +1,109 @@
+package com.bah.iotsap;
+
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.bah.iotsap.devices.DeviceRow;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DeviceAdapter shows DeviceList snapshots in a RecyclerView, one row per device. Rows come
+ * formatted, so binding only sets two texts.
+ * A new snapshot is handed over together with the DiffUtil result computed against the current
+ * one off the UI thread (see Diff), so only the rows that changed are re-bound.
+ */
+final class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.Holder> {
+
+    static final class Holder extends RecyclerView.ViewHolder {
+        final TextView title;
+        final TextView detail;
+
+        Holder(View view) {
+            super(view);
+            title  = (TextView) view.findViewById(R.id.title);
+            detail = (TextView) view.findViewById(R.id.detail);
+        }
+    }
+
+    /**
+     * Diffs two snapshots. Devices are the same row if they have the same MAC; DeviceList
+     * hands out a new DeviceRow only when a device changed, so identity tells the contents apart.
+     */
+    static final class Diff extends DiffUtil.Callback {
+        private final List<DeviceRow> before;
+        private final List<DeviceRow> after;
+
+        Diff(List<DeviceRow> before, List<DeviceRow> after) {
+            this.before = before;
+            this.after  = after;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return before.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return after.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return before.get(oldPosition).mac == after.get(newPosition).mac;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return before.get(oldPosition) == after.get(newPosition);
+        }
+    }
+
+    private List<DeviceRow> rows = Collections.emptyList();
+
+    DeviceAdapter() {
+        setHasStableIds(true);
+    }
+
+    List<DeviceRow> rows() {
+        return rows;
+    }
+
+    /**
+     * Show a new snapshot. UI thread.
+     * @param diff from rows() to the snapshot, see Diff
+     */
+    void update(List<DeviceRow> rows, DiffUtil.DiffResult diff) {
+        this.rows = rows;
+        diff.dispatchUpdatesTo(this);
+    }
+
+    @Override
+    public Holder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new Holder(LayoutInflater.from(parent.getContext()).inflate(R.layout.device_row, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(Holder holder, int position) {
+        DeviceRow row = rows.get(position);
+        holder.title.setText(row.title);
+        holder.detail.setText(row.detail);
+        holder.itemView.setAlpha(row.gone ? 0.5f : 1f);
+    }
+
+    @Override
+    public int getItemCount() {
+        return rows.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return rows.get(position).mac;
+    }
+}
@@ -0,0 +1,106 @@
+package com.bah.iotsap;
+
+import android.app.Fragment;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.bah.iotsap.discovery.SourceRegistry;
+import com.bah.iotsap.services.DiscoveryEngine;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * DiagnosticsFragment shows the App's metrics and the latest entries of its ring log, refreshed
+ * every second while it is resumed, so counter rates are per second. The button writes the
+ * metrics and the whole log to a file in the diagnostics directory.
+ */
+public class DiagnosticsFragment extends Fragment {
+
+    private static final String TAG = "DiagnosticsFragment";
+    private static final long REFRESH_MILLIS = 1000;
+    // Log entries shown, the dump has all of them
+    private static final int  LOG_ENTRIES    = 100;
+
+    private final Handler       main = new Handler(Looper.getMainLooper());
+    private final StringBuilder text = new StringBuilder();
+    private TextView            metrics;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            text.setLength(0);
+            SourceRegistry sources = DiscoveryEngine.getSourceRegistry();
+            text.append("sources: ").append(sources == null ? "engine not running" : sources.summary()).append("\n\n");
+            App.getMetrics().dump(text);
+            text.append('\n').append(App.getLog()).append('\n');
+            App.getLog().dump(text, LOG_ENTRIES);
+            metrics.setText(text);
+            main.postDelayed(this, REFRESH_MILLIS);
+        }
+    };
+
+    public static DiagnosticsFragment newInstance() {
+        return new DiagnosticsFragment();
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_diagnostics, container, false);
+        metrics = (TextView) view.findViewById(R.id.metrics);
+        view.findViewById(R.id.dump_metrics).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                dump();
+            }
+        });
+        return view;
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        main.post(refresh);
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        main.removeCallbacks(refresh);
+    }
+
+    /**
+     * Write the metrics and log to a file off the main thread and say where.
+     */
+    private void dump() {
+        final Context context = getActivity().getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    File file = App.dumpDiagnostics(context);
+                    message = context.getString(R.string.diagnostics_dumped, file.getPath());
+                } catch(IOException e) {
+                    Log.i(TAG, "dump(): " + e.getMessage());
+                    message = context.getString(R.string.diagnostics_dump_failed);
+                }
+                final String toast = message;
+                main.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(context, toast, Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        }, "diagnostics-dump").start();
+    }
+}
@@ -1,46 +1,210 @@
 package com.bah.iotsap;
 
-import 'android.app.ListFragment;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.content.IntentFilter;
+import android.app.Fragment;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.support.annotation.Nullable;
-import android.support.v4.content.LocalBroadcastManager;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 
-import java.util.ArrayList;
+import com.bah.iotsap.devices.DeviceBackfill;
+import com.bah.iotsap.devices.DeviceList;
+import com.bah.iotsap.devices.DeviceRow;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.discovery.SightingBus;
+import com.bah.iotsap.log.LogEvent;
+import com.bah.iotsap.log.RingLog;
+import com.bah.iotsap.storage.SightingLog;
+
+import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * ItemFragment is a simple fragment that receives messages / data from any intent that it is
- * passed on instantiation.
- * Example: ItemFragment.getInstance(BleDiscoveryService.RECEIVE_JSON)
- * Result : This fragment receives all intents sent from the service with the RECEIVE_JSON action.
+ * ItemFragment is a simple fragment that lists the devices one discovery source sees, one row per
+ * device, from the sightings published on the App's SightingBus.
+ * Example: ItemFragment.newInstance(Sighting.Source.BLE)
+ * Result : This fragment lists every BLE device in the sighting log, the latest first. It
+ * follows the bus while resumed; older devices are read from the log a page at a time as the
+ * list is scrolled down to them, and what was logged while it was paused is read on resume
+ * (see DeviceBackfill).
+ * Sightings are folded into a DeviceList on a worker thread. The UI asks for at most one
+ * snapshot per frame (Choreographer), the worker diffs it against the rows shown and the UI
+ * thread only applies the diff, so the list stays smooth however fast sightings come in.
  */
-public class ItemFragment extends ListFragment {
+public class ItemFragment extends Fragment {
 
     private static final String TAG = "ItemFragment";
+    // Paging and subscription entries per source, see App.getLog()
+    private static final RingLog    LOG          = App.getLog();
+    private static final LogEvent[] HISTORY_DONE = new LogEvent[Sighting.Source.values().length];
+    private static final LogEvent[] FOLLOW       = new LogEvent[HISTORY_DONE.length];
+    private static final LogEvent[] UNFOLLOW     = new LogEvent[HISTORY_DONE.length];
+    static {
+        for(Sighting.Source each : Sighting.Source.values()) {
+            int i = each.ordinal();
+            HISTORY_DONE[i] = LOG.event(RingLog.INFO, TAG,
+                    "loadPage(): " + each + " history done, {} devices, {} evicted, {} records read");
+            FOLLOW[i]       = LOG.event(RingLog.INFO, TAG,
+                    "follow(): Subscribed to " + each + " sightings, {} devices");
+            UNFOLLOW[i]     = LOG.event(RingLog.INFO, TAG,
+                    "unfollow(): " + each + ", {} devices, {} evicted, {} sightings dropped");
+        }
+    }
+
+    // History is loaded when the last row shown is this close to the end of the list
+    private static final int PREFETCH_ROWS = 20;
+
+    private Sighting.Source          source;
+    private long                     epochOffsetMillis;
+    private final Handler            main = new Handler(Looper.getMainLooper());
+    private HandlerThread            thread;
+    private Handler                  worker;
+    // UI thread only
+    private RecyclerView             recycler;
+    private LinearLayoutManager      layout;
+    private DeviceAdapter            adapter;
+    // Worker thread only
+    private SightingLog              log;
+    private DeviceList               devices;
+    private SightingBus.Subscription subscription;
+    private List<DeviceRow>          shown = Collections.emptyList();
+    private DeviceBackfill           backfill;
+    // Sightings logged from then on come from the bus, older ones from the log
+    private long                     liveFromSeq;
+    // Log sequence number after the last sighting the bus delivered
+    private long                     nextLiveSeq;
+    // Where the bus was last let go of, -1 if it never was
+    private long                     pausedAtSeq = -1;
 
-    private String               action;
-    private ArrayAdapter<String> adapter;
-    private List<String>         list;
+    private final AtomicBoolean      pollPosted   = new AtomicBoolean();
+    private final AtomicBoolean      framePending = new AtomicBoolean();
+    private final AtomicBoolean      loadPosted   = new AtomicBoolean();
+    private volatile boolean         historyDone;
 
-    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+    private final SightingBus.Consumer consumer = new SightingBus.Consumer() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            Log.i(TAG, "onReceive()");
-            if(intent.getAction().equals(action)) {
-                Log.i(TAG, "onReceive(): received action " + action);
-                list.add(intent.getStringExtra("json"));
-                Log.i(TAG, "onReceive(): JSON: " + intent.getStringExtra("json"));
-                adapter.notifyDataSetChanged();
+        public void onSighting(long seq, Sighting sighting) {
+            if(sighting.source != source) return;
+            if(sighting.logSeq >= 0) {
+                // Logged before follow() and still on its way to the bus: the log has it
+                if(sighting.logSeq < liveFromSeq) return;
+                nextLiveSeq = sighting.logSeq + 1;
             }
+            devices.add(sighting);
+        }
+    };
+
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            pollPosted.set(false);
+            if(subscription == null) return;
+            subscription.poll(consumer);
+            if(devices.changed()) requestFrame();
+        }
+    };
+
+    // Called on the publishing thread
+    private final SightingBus.Listener listener = new SightingBus.Listener() {
+        @Override
+        public void onAvailable(SightingBus.Subscription subscription) {
+            if(pollPosted.compareAndSet(false, true)) worker.post(poll);
+        }
+    };
+
+    private final Runnable postFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(frame);
+        }
+    };
+
+    private final Choreographer.FrameCallback frame = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if(!worker.post(diff)) framePending.set(false);
+        }
+    };
+
+    private final Runnable diff = new Runnable() {
+        @Override
+        public void run() {
+            final List<DeviceRow> before = shown;
+            final List<DeviceRow> rows = devices.snapshot();
+            if(rows == before) {
+                framePending.set(false);
+                return;
+            }
+            // Rows keep their order, so there are no moves to look for
+            final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DeviceAdapter.Diff(before, rows), false);
+            shown = rows;
+            main.post(new Runnable() {
+                @Override
+                public void run() {
+                    apply(before, rows, result);
+                }
+            });
+        }
+    };
+
+    private final Runnable loadPage = new Runnable() {
+        @Override
+        public void run() {
+            loadPosted.set(false);
+            if(backfill == null || historyDone) return;
+            try {
+                int rows = backfill.loadPage(DeviceBackfill.DEFAULT_PAGE_ROWS, DeviceBackfill.DEFAULT_PAGE_RECORDS);
+                // Only devices listed already: keep reading, between polls
+                if(rows == 0 && !backfill.historyDone() && loadPosted.compareAndSet(false, true)) worker.post(this);
+                historyDone = backfill.historyDone();
+            } catch(IOException e) {
+                // Whatever is listed stays, there just is no more of it
+                Log.i(TAG, "loadPage(): " + e.getMessage());
+                historyDone = true;
+            }
+            if(historyDone) {
+                LOG.log(HISTORY_DONE[source.ordinal()], devices.size(), devices.evictions(), backfill.records());
+            }
+            if(devices.changed()) requestFrame();
+        }
+    };
+
+    private final Runnable catchUp = new Runnable() {
+        @Override
+        public void run() {
+            if(backfill == null) return;
+            try {
+                if(backfill.catchUp(DeviceBackfill.DEFAULT_PAGE_RECORDS)) worker.post(this);
+            } catch(IOException e) {
+                Log.i(TAG, "catchUp(): " + e.getMessage());
+            }
+            if(devices.changed()) requestFrame();
+        }
+    };
+
+    private final RecyclerView.OnScrollListener scrolled = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            if(dy > 0) loadIfNearEnd();
+        }
+    };
+
+    // Whatever came in while a frame was pending did not ask for one
+    private final Runnable recheck = new Runnable() {
+        @Override
+        public void run() {
+            if(devices.changed() || devices.snapshot() != shown) requestFrame();
         }
     };
 
@@ -49,18 +213,16 @@ public class ItemFragment extends ListFragment {
     }
 
     /**
-     * Use this method to instantiate new ItemFragments. It is very useful for
-     * passing in any String to control what the fragment will listen to in
-     * its receiver.
+     * Use this method to instantiate new ItemFragments.
      *
-     * @param action a String that the fragment will listen to in a receiver
+     * @param source the discovery source whose sightings the fragment lists
      * @return new ItemFragment object with passed arguments available
      */
-    public static ItemFragment newInstance(String action) {
+    public static ItemFragment newInstance(Sighting.Source source) {
 
-        Log.i(TAG, "newInstance(): action: " + action);
+        Log.i(TAG, "newInstance(): source: " + source);
         Bundle args = new Bundle();
-        args.putString("action", action);
+        args.putString("source", source.name());
         ItemFragment fragment = new ItemFragment();
         fragment.setArguments(args);
         return fragment;
@@ -69,10 +231,16 @@ public class ItemFragment extends ListFragment {
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        if(savedInstanceState != null && savedInstanceState.get("action") != null) {
-            action = (String) savedInstanceState.get("action");
-            Log.i(TAG, "onCreate(): received: " + action);
+        if(savedInstanceState != null && savedInstanceState.get("source") != null) {
+            source = Sighting.Source.valueOf(savedInstanceState.getString("source"));
+            Log.i(TAG, "onCreate(): received: " + source);
         }
+        // Kept for the life of the fragment, so the rows outlive its view
+        epochOffsetMillis = App.getEpochOffsetMillis();
+        devices = new DeviceList(DeviceList.DEFAULT_MAX_DEVICES, epochOffsetMillis, App.getPositionEstimator());
+        thread = new HandlerThread("devices");
+        thread.start();
+        worker = new Handler(thread.getLooper());
     }
 
     @Override
@@ -94,38 +262,157 @@ public class ItemFragment extends ListFragment {
         super.onViewCreated(view, savedInstanceState);
         Log.i(TAG, "onViewCreated()");
 
-        // Set up adapter with the ListView
-        if(list == null) list = new ArrayList<>();
-        adapter = new ArrayAdapter<>(view.getContext(), R.layout.list_item, list);
-        setListAdapter(adapter);
+        // Set up adapter with the RecyclerView
+        adapter  = new DeviceAdapter();
+        layout   = new LinearLayoutManager(view.getContext());
+        recycler = (RecyclerView) view.findViewById(R.id.devices);
+        recycler.setLayoutManager(layout);
+        recycler.setHasFixedSize(true);
+        // Rows change many times a second: no cross-fading them
+        ((SimpleItemAnimator) recycler.getItemAnimator()).setSupportsChangeAnimations(false);
+        recycler.setAdapter(adapter);
+        recycler.addOnScrollListener(scrolled);
 
         // Check the bundle for saved information or Strings
         Bundle bundle = getArguments();
-        if(bundle != null && bundle.get("action") != null) {
-            action = (String) bundle.get("action");
-            Log.i(TAG, "onViewCreated(): action = " + action);
+        if(bundle != null && bundle.get("source") != null) {
+            source = Sighting.Source.valueOf(bundle.getString("source"));
+            Log.i(TAG, "onViewCreated(): source = " + source);
         }
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                // The new adapter shows nothing yet
+                shown = Collections.emptyList();
+                recheck.run();
+            }
+        });
     }
 
     @Override
     public void onResume() {
         super.onResume();
         Log.i(TAG, "onResume()");
-        if(action != null) {
-            IntentFilter filter = new IntentFilter(action);
-            LocalBroadcastManager.getInstance(getActivity()).registerReceiver(receiver, filter);
-            Log.i(TAG, "onResume(): Registering receiver for action " + action);
-        }
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                follow();
+            }
+        });
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        try {
-            Log.i(TAG, "onPause(): unregister Receiver");
-            LocalBroadcastManager.getInstance(getActivity()).unregisterReceiver(receiver);
-        } catch(Exception e) {
-            Log.i(TAG, "onPause(): Caught exception unregister receiver");
+        Log.i(TAG, "onPause()");
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                unfollow();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        Log.i(TAG, "onDestroyView()");
+        Choreographer.getInstance().removeFrameCallback(frame);
+        recycler.removeOnScrollListener(scrolled);
+        adapter  = null;
+        recycler = null;
+        layout   = null;
+        framePending.set(false);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                if(backfill != null) backfill.close();
+                backfill = null;
+            }
+        });
+        thread.quitSafely();
+    }
+
+    /**
+     * Subscribe to the bus, and have the log fill in what the list missed: all of the history
+     * the first time, what was logged since unfollow() after that. The split is by log sequence
+     * number: a source's pipeline logs its sightings before it publishes them, in order, so
+     * everything logged after subscribing reaches the bus. Worker thread.
+     */
+    private void follow() {
+        if(source == null || subscription != null) return;
+        subscription = App.getSightingBus().subscribe(SightingBus.Backpressure.DROP_OLDEST);
+        // Still being opened when the fragment is created right as the process starts
+        if(log == null) log = App.awaitSightingLog();
+        long liveFrom = log == null ? 0 : log.nextSeq();
+        if(log != null && backfill == null) {
+            backfill = new DeviceBackfill(log, devices, source, liveFrom);
+            // The latest page of history right away
+            if(loadPosted.compareAndSet(false, true)) worker.post(loadPage);
+        } else if(backfill != null && pausedAtSeq >= 0) {
+            try {
+                backfill.startGap(pausedAtSeq, liveFrom);
+                worker.post(catchUp);
+            } catch(IOException e) {
+                Log.i(TAG, "follow(): Could not read the log since record " + pausedAtSeq + ": " + e.getMessage());
+            }
+        }
+        liveFromSeq = liveFrom;
+        nextLiveSeq = liveFrom;
+        LOG.log(FOLLOW[source.ordinal()], devices.size());
+        subscription.setListener(listener);
+        poll.run();
+    }
+
+    /**
+     * Take what the bus has and let go of it; the log has the rest. Worker thread.
+     */
+    private void unfollow() {
+        if(subscription == null) return;
+        poll.run();
+        LOG.log(UNFOLLOW[source.ordinal()], devices.size(), devices.evictions(), subscription.dropped());
+        subscription.close();
+        subscription = null;
+        // This source's sightings logged after the last one delivered are still to come
+        pausedAtSeq  = nextLiveSeq;
+    }
+
+    /**
+     * Load older history if the list is scrolled (nearly) to its end. UI thread.
+     */
+    private void loadIfNearEnd() {
+        if(historyDone || layout == null) return;
+        if(layout.findLastVisibleItemPosition() < adapter.getItemCount() - PREFETCH_ROWS) return;
+        if(loadPosted.compareAndSet(false, true)) worker.post(loadPage);
+    }
+
+    /**
+     * Have the next frame show the latest rows, unless a frame is already on its way. Any thread.
+     */
+    private void requestFrame() {
+        if(framePending.compareAndSet(false, true)) main.post(postFrame);
+    }
+
+    /**
+     * Show a snapshot, keeping the list at the top if that is where it was. UI thread.
+     * @param before rows the diff was computed from
+     */
+    private void apply(List<DeviceRow> before, List<DeviceRow> rows, DiffUtil.DiffResult result) {
+        framePending.set(false);
+        // Computed for a view that is gone
+        if(adapter == null) return;
+        if(adapter.rows() == before) {
+            boolean top = layout.findFirstVisibleItemPosition() <= 0;
+            adapter.update(rows, result);
+            if(top) recycler.scrollToPosition(0);
         }
+        // A short list cannot be scrolled to ask for more
+        loadIfNearEnd();
+        worker.post(recheck);
     }
 }
@@ -1,17 +1,19 @@
 package com.bah.iotsap;
 
-import android.app.Activity;
+import android.content.Context;
 import android.content.pm.PackageManager;
 import android.location.Location;
-import android.os.Bundle;
-import android.support.v4.app.ActivityCompat;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
-import android.view.View;
-import android.widget.Button;
-import android.widget.TextView;
-import android.widget.Toast;
 
+import com.bah.iotsap.location.AdaptiveLocationPolicy;
+import com.bah.iotsap.location.LocationPolicy;
+import com.bah.iotsap.location.LocationSampler;
+import com.bah.iotsap.location.LocationTrack;
+import com.bah.iotsap.trace.TraceRecorder;
+import com.bah.iotsap.util.HandlerTimer;
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
@@ -23,105 +25,160 @@ import com.google.android.gms.tasks.OnSuccessListener;
 // This Sample Application uses the Google Location API
 // You must download the API for the code to work properly
 
-public class LocationDiscovery {
-    private static FusedLocationProviderClient mFusedLocationClient;
-    private static Location mLocation;
-    private static LocationCallback mLocationCallback;
-    private static LocationRequest mLocationRequest;
-    private static LocationRequest currentLocationRequest;
-    private Activity mActivity;
-    private static int count;
-    private static int clickCount;
-
-    //Constructor
-    public LocationDiscovery() {}
-
-    //Call this method to first initialize location discovery
-    public void configureLocationClass(Activity activity) {
-
-        mActivity = activity;
-
-        mFusedLocationClient = LocationServices.getFusedLocationProviderClient(activity);
-
-        createLocationRequest();
-
-        count = 0;
-        clickCount = 0;
-
-
-        if (ContextCompat.checkSelfPermission(activity, android.Manifest.permission.ACCESS_FINE_LOCATION)
-                != PackageManager.PERMISSION_GRANTED) {
-            ActivityCompat.requestPermissions(activity, new String[]{android.Manifest.permission.ACCESS_FINE_LOCATION}, 0);
+/**
+ * LocationDiscovery feeds a LocationTrack from the fused location provider. It holds a single
+ * location subscription for the whole process however many components use it: acquire() starts
+ * it with the first user, release() removes it with the last. Sightings are tagged from the track
+ * (see LocationStage); nothing here ever requests a location per sighting.
+ * How often and how accurately it asks is up to a LocationSampler running an
+ * AdaptiveLocationPolicy: high accuracy while moving or finding new devices, balanced and then
+ * passive while stationary. Changes replace the request on the same client.
+ * Example:
+ *   App.getLocationDiscovery().acquire();   // onCreate() of a discovery service
+ *   App.getLocationDiscovery().release();   // its onDestroy()
+ */
+public final class LocationDiscovery {
+
+    private static final String TAG = "LocationDiscovery";
+
+    private final Context                     context;
+    private final LocationTrack               track;
+    private final Handler                     handler = new Handler(Looper.getMainLooper());
+    private final LocationSampler             sampler;
+    private FusedLocationProviderClient       client;
+    private int                               users;
+    private volatile Location                 location;
+
+    // Called on the main looper, like the sampler's timer
+    private final LocationCallback callback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult result) {
+            for(Location location : result.getLocations()) {
+                if(location == null) continue;
+                LocationDiscovery.this.location = location;
+                float accuracy = location.hasAccuracy() ? location.getAccuracy() : 0f;
+                sampler.onFix(location.getElapsedRealtimeNanos(), location.getLatitude(),
+                        location.getLongitude(), accuracy);
+                TraceRecorder recorder = App.getTraceRecorder();
+                if(recorder != null) {
+                    recorder.fix(location.getElapsedRealtimeNanos(), location.getLatitude(),
+                            location.getLongitude(), accuracy);
+                }
+            }
+        }
+    };
+
+    private final LocationSampler.Client fused = new LocationSampler.Client() {
+        @Override
+        public void request(LocationPolicy.Settings settings) {
+            Log.i(TAG, "request(): " + settings);
+            LocationRequest request = new LocationRequest()
+                    .setPriority(settings.priority)
+                    .setInterval(settings.intervalMillis)
+                    .setFastestInterval(settings.fastestIntervalMillis);
+            try {
+                // Replaces the request registered with the same callback
+                client.requestLocationUpdates(request, callback, Looper.getMainLooper());
+            } catch(SecurityException e) {
+                Log.i(TAG, "request(): " + e.getMessage());
+            }
         }
 
+        @Override
+        public void remove() {
+            client.removeLocationUpdates(callback);
+        }
+    };
 
-        mFusedLocationClient.getLastLocation().addOnSuccessListener(
-                mActivity, new OnSuccessListener<Location>() {
-                    @Override
-                    public void onSuccess(Location location) {
-                        if(location != null) {
-                            mLocation = location;
-                        }
-                        else {
-                            Toast.makeText(mActivity, "Last Known Location is Unknown", Toast.LENGTH_SHORT).show();
-                        }
-                    }
-                }
-            );
+    public LocationDiscovery(Context context, LocationTrack track) {
+        this.context = context.getApplicationContext();
+        this.track   = track;
+        this.sampler = new LocationSampler(fused, new HandlerTimer(handler), new AdaptiveLocationPolicy(), track);
+    }
 
-        mLocationCallback = new LocationCallback() {
-            @Override
-            public void onLocationResult(LocationResult locationResult) {
-                for(Location location : locationResult.getLocations()) {
-                    if(location != null) {
-                        mLocation = location;
-                        count++;
-                    }
-                }
-            }
-        };
+    /**
+     * Start location updates if this is the first user.
+     */
+    public synchronized void acquire() {
+        if(users++ == 0) start();
+    }
 
-        startLocationUpdates();
+    /**
+     * Stop location updates if this was the last user.
+     */
+    public synchronized void release() {
+        if(users == 0) return;
+        if(--users == 0) stop();
     }
 
-    //call this method to receive the location
+    /**
+     * @return the latest fix received, or null. Never asks for a new one.
+     */
     public Location getLocation() {
-        clickCount++;
-        Log.d("Click", Integer.toString(clickCount));
-        currentLocationRequest = new LocationRequest();
-        currentLocationRequest.setInterval(10000);
-        currentLocationRequest.setFastestInterval(5000);
-        currentLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-
-        try {
-            mFusedLocationClient.requestLocationUpdates(currentLocationRequest,
-                    mLocationCallback,
-                    null);
-        } catch (SecurityException e) {
-        }
-
-        return mLocation;
+        return location;
     }
 
+    public LocationTrack getTrack() {
+        return track;
+    }
 
-    protected void createLocationRequest() {
-        mLocationRequest = new LocationRequest();
-        mLocationRequest.setInterval(10000);
-        mLocationRequest.setFastestInterval(5000);
-        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+    /**
+     * Tell the sampling policy that discovery found new devices. Any thread.
+     */
+    public void onNewDevices(final int count) {
+        if(count <= 0) return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                sampler.onNewDevices(count);
+            }
+        });
     }
 
-    public void startLocationUpdates() {
+    private void start() {
+        if(ContextCompat.checkSelfPermission(context, android.Manifest.permission.ACCESS_FINE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            Log.i(TAG, "start(): no FINE LOCATION, sightings will not be tagged");
+            return;
+        }
+        if(client == null) client = LocationServices.getFusedLocationProviderClient(context);
         try {
-            mFusedLocationClient.requestLocationUpdates(mLocationRequest,
-                    mLocationCallback,
-                    null);
-        } catch (SecurityException e) {
-
+            // Seed the track, the first update may take a while
+            client.getLastLocation().addOnSuccessListener(new OnSuccessListener<Location>() {
+                @Override
+                public void onSuccess(Location last) {
+                    if(last == null) return;
+                    if(location == null) location = last;
+                    float accuracy = last.hasAccuracy() ? last.getAccuracy() : 0f;
+                    track.add(last.getElapsedRealtimeNanos(), last.getLatitude(), last.getLongitude(), accuracy);
+                    TraceRecorder recorder = App.getTraceRecorder();
+                    if(recorder != null) {
+                        recorder.fix(last.getElapsedRealtimeNanos(), last.getLatitude(), last.getLongitude(), accuracy);
+                    }
+                }
+            });
+        } catch(SecurityException e) {
+            Log.i(TAG, "start(): " + e.getMessage());
+            return;
         }
+        // acquire() may come from any thread, the sampler lives on the main looper
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                sampler.start();
+            }
+        });
     }
 
-    public void stopLocationUpdates() {
-        mFusedLocationClient.removeLocationUpdates(mLocationCallback);
+    private void stop() {
+        if(client == null) return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(!sampler.isRunning()) return;
+                sampler.stop();
+                Log.i(TAG, "stop(): " + sampler.summary() + ", " + track.snapshot());
+            }
+        });
     }
-}
\ No newline at end of file
+}
@@ -20,9 +20,8 @@ import android.util.Log;
 import android.util.SparseArray;
 import android.widget.Toast;
 
-import com.bah.iotsap.services.BleDiscoveryService;
-import com.bah.iotsap.services.BluetoothDiscoveryService;
-import com.bah.iotsap.services.ServiceManager;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.services.DiscoveryEngine;
 
 /**
  * This activity is basically a container for various fragments. It consists
@@ -32,13 +31,14 @@ import com.bah.iotsap.services.ServiceManager;
 public class MainActivity extends FragmentActivity {
 
     private static final String TAG = "MainActivity";
-    private static final int NUM_FRAGMENTS = 5;
+    private static final int NUM_FRAGMENTS = 6;
     private static final int START_INDEX   = 1;
     private static final int PREF_INDEX    = 0;
     private static final int MAP_INDEX     = 1;
     private static final int BT_INDEX      = 2;
     private static final int BLE_INDEX     = 3;
     private static final int NFC_INDEX     = 4;
+    private static final int DIAG_INDEX    = 5;
 
     PagerAdapter pagerAdapter;
     ViewPager viewPager;
@@ -88,18 +88,11 @@ public class MainActivity extends FragmentActivity {
             ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_FINE_LOCATION}, 0);
         }
 
-        // Service manager handles launching services that are able to run on device
-        startService(new Intent(ServiceManager.START, null, this, ServiceManager.class));
+        // The engine runs the discovery sources that are turned on, and outlives this activity
+        DiscoveryEngine.ensureRunning(this);
 
     }
 
-    @Override
-    protected void onDestroy() {
-        Log.i(TAG, "onDestroy(): stopping ServiceManager");
-        stopService(new Intent(ServiceManager.STOP, null, this, ServiceManager.class));
-        super.onDestroy();
-    }
-
     @Override
     protected void onResume() {
         super.onResume();
@@ -167,10 +160,11 @@ public class MainActivity extends FragmentActivity {
                 case PREF_INDEX: registeredFragments.put(position, new SettingsFragment());    break;
                 case MAP_INDEX : registeredFragments.put(position, MapFragment.newInstance()); break;
                 case BT_INDEX  : registeredFragments.put(position, ItemFragment.newInstance(
-                        BluetoothDiscoveryService.RECEIVE_JSON)); break;
+                        Sighting.Source.BT_CLASSIC)); break;
                 case BLE_INDEX : registeredFragments.put(position, ItemFragment.newInstance(
-                        BleDiscoveryService.RECEIVE_JSON)); break;
+                        Sighting.Source.BLE)); break;
                 case NFC_INDEX : registeredFragments.put(position, new NfcFragment()); break;
+                case DIAG_INDEX: registeredFragments.put(position, DiagnosticsFragment.newInstance()); break;
                 default: break;
             }
             return registeredFragments.get(position);
@@ -1,24 +1,44 @@
 package com.bah.iotsap;
 
 import android.app.Fragment;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
 import com.mapbox.mapboxsdk.maps.MapView;
+import com.mapbox.mapboxsdk.maps.MapboxMap;
+import com.mapbox.mapboxsdk.maps.OnMapReadyCallback;
 
 
 /**
  * MapFragment is used as the primary fragment of the activity. This fragment is used to visualize
- * all data of the app.
+ * all data of the app. Sightings are drawn through a ClusterOverlay: clusters per zoom level, or
+ * an RSSI heatmap when PREF_HEATMAP is set. The overlay lives as long as the fragment's view:
+ * the pager destroys the view of a page two swipes away while keeping the fragment.
  * We will either use a MapFragment or create a MapActivity for the final product.
  */
 public class MapFragment extends Fragment {
 
+    public static final String PREF_HEATMAP = "pref_map_heatmap";
+
     private static final String TAG = "MapFragment";
-    private MapView mapView;
+    private MapView        mapView;
+    private ClusterOverlay overlay;
+
+    // Settings share the pager, so a changed PREF_HEATMAP does not go through onResume()
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+                    if(PREF_HEATMAP.equals(key) && overlay != null) {
+                        overlay.setHeatmap(preferences.getBoolean(key, false));
+                    }
+                }
+            };
 
     public static MapFragment newInstance() {
         return new MapFragment();
@@ -29,8 +49,24 @@ public class MapFragment extends Fragment {
                              Bundle savedInstanceState) {
         Log.i(TAG, "onCreateView()");
         View fragmentLayout = inflater.inflate(R.layout.fragment_map, container, false);
-        mapView = (MapView) fragmentLayout.findViewById(R.id.mapView);
+        final MapView view = (MapView) fragmentLayout.findViewById(R.id.mapView);
+        mapView = view;
         mapView.onCreate(savedInstanceState);
+        mapView.getMapAsync(new OnMapReadyCallback() {
+            @Override
+            public void onMapReady(MapboxMap map) {
+                Log.i(TAG, "onMapReady()");
+                // The view may be gone already
+                if(mapView != view) return;
+                if(overlay != null) overlay.stop();
+                overlay = new ClusterOverlay(map, App.getSightingIndex(), App.getSightingBus(),
+                        App.getPositionEstimator());
+                overlay.setHeatmap(heatmapPreference());
+                overlay.start();
+            }
+        });
+        PreferenceManager.getDefaultSharedPreferences(getActivity())
+                .registerOnSharedPreferenceChangeListener(preferenceListener);
         return fragmentLayout;
     }
 
@@ -46,6 +82,7 @@ public class MapFragment extends Fragment {
         Log.i(TAG, "onResume()");
         super.onResume();
         mapView.onResume();
+        if(overlay != null) overlay.setHeatmap(heatmapPreference());
     }
 
     @Override
@@ -66,20 +103,29 @@ public class MapFragment extends Fragment {
     public void onSaveInstanceState(Bundle outState) {
         Log.i(TAG, "onSaveInstanceState()");
         super.onSaveInstanceState(outState);
-        mapView.onSaveInstanceState(outState);
+        if(mapView != null) mapView.onSaveInstanceState(outState);
     }
 
     @Override
     public void onLowMemory() {
         Log.i(TAG, "onLowMemory");
         super.onLowMemory();
-        mapView.onLowMemory();
+        if(mapView != null) mapView.onLowMemory();
     }
 
     @Override
-    public void onDestroy() {
-        Log.i(TAG, "onDestroy()");
-        super.onDestroy();
+    public void onDestroyView() {
+        Log.i(TAG, "onDestroyView()");
+        super.onDestroyView();
+        PreferenceManager.getDefaultSharedPreferences(getActivity())
+                .unregisterOnSharedPreferenceChangeListener(preferenceListener);
+        if(overlay != null) overlay.stop();
+        overlay = null;
         mapView.onDestroy();
+        mapView = null;
+    }
+
+    private boolean heatmapPreference() {
+        return PreferenceManager.getDefaultSharedPreferences(getActivity()).getBoolean(PREF_HEATMAP, false);
     }
 }
@@ -0,0 +1,49 @@
+package com.bah.iotsap.cluster;
+
+/**
+ * Cluster is what a map draws for one ClusterGrid cell: how many sightings fell into it, their
+ * RSSI and where they are centered, plus the bounds of the cell itself (for heatmap squares).
+ * Immutable; a cell that changes is described by a new Cluster with the same key.
+ */
+public final class Cluster {
+
+    /** Cell key, unique within a zoom level */
+    public final long   key;
+    public final int    zoom;
+    /** Center of the sightings in the cell */
+    public final double latitude;
+    public final double longitude;
+    public final int    count;
+    public final int    meanRssi;
+    public final int    maxRssi;
+    /** Wall clock time of the newest sighting in the cell */
+    public final long   lastMillis;
+    /** Bounds of the cell */
+    public final double south;
+    public final double west;
+    public final double north;
+    public final double east;
+
+    Cluster(long key, int zoom, double latitude, double longitude, int count, int meanRssi,
+            int maxRssi, long lastMillis, double south, double west, double north, double east) {
+        this.key        = key;
+        this.zoom       = zoom;
+        this.latitude   = latitude;
+        this.longitude  = longitude;
+        this.count      = count;
+        this.meanRssi   = meanRssi;
+        this.maxRssi    = maxRssi;
+        this.lastMillis = lastMillis;
+        this.south      = south;
+        this.west       = west;
+        this.north      = north;
+        this.east       = east;
+    }
+
+    @Override
+    public String toString() {
+        return "Cluster{z" + zoom + " " + (key >>> ClusterGrid.KEY_BITS) + "/" + (key & ClusterGrid.KEY_MASK)
+                + ", " + count + " at " + latitude + "," + longitude + ", rssi " + meanRssi + " (max "
+                + maxRssi + ")}";
+    }
+}
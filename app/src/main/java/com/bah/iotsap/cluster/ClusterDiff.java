@@ -0,0 +1,49 @@
+package com.bah.iotsap.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ClusterDiff is what a map has to change to go from the clusters it drew last to the current
+ * ones: clusters to add, clusters to redraw (same key, new values) and keys to remove.
+ * Built by ClusterLayer.update() on a worker thread and applied on the UI thread; not modified
+ * after it is handed over.
+ */
+public final class ClusterDiff {
+
+    /** Zoom level of the added and changed clusters */
+    public final int           zoom;
+    public final List<Cluster> added   = new ArrayList<>();
+    public final List<Cluster> changed = new ArrayList<>();
+    private long[]             removed = new long[16];
+    private int                removedCount;
+
+    ClusterDiff(int zoom) {
+        this.zoom = zoom;
+    }
+
+    public int removedCount() {
+        return removedCount;
+    }
+
+    /**
+     * @return key of the i-th cluster to remove
+     */
+    public long removed(int i) {
+        return removed[i];
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && changed.isEmpty() && removedCount == 0;
+    }
+
+    void remove(long key) {
+        if(removedCount == removed.length) removed = java.util.Arrays.copyOf(removed, removedCount * 2);
+        removed[removedCount++] = key;
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterDiff{z" + zoom + ", +" + added.size() + " ~" + changed.size() + " -" + removedCount + "}";
+    }
+}
@@ -0,0 +1,257 @@
+package com.bah.iotsap.cluster;
+
+import java.util.Arrays;
+
+/**
+ * ClusterGrid aggregates located sightings into square cells of a fixed size on screen at every
+ * zoom level of the map: at zoom z the Web Mercator world is 2^(z + CELL_SHIFT) cells across,
+ * 64 pixels each with 512 pixel tiles. A map drawing the cells of its zoom level shows at most a
+ * few hundred clusters in a viewport, however many sightings there are.
+ * Every level is kept up to date as sightings are added (one cell per level, O(maxZoom)), so
+ * changing the zoom never recomputes anything; and every cell remembers the generation it last
+ * changed in, which is what lets ClusterLayer send a map only the cells that changed.
+ * Not thread safe: the overlay confines the grid to its worker thread.
+ */
+public final class ClusterGrid {
+
+    /** Cells across a tile, as a power of two */
+    public static final int CELL_SHIFT       = 3;
+    public static final int DEFAULT_MAX_ZOOM = 16;
+    public static final int MAX_MAX_ZOOM     = 18;
+
+    static final int  KEY_BITS = MAX_MAX_ZOOM + CELL_SHIFT;
+    static final long KEY_MASK = (1L << KEY_BITS) - 1;
+
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    /**
+     * Receives the cells of a level inside a box, as slots to read with the cell accessors.
+     */
+    interface CellVisitor {
+        void visit(Level level, int slot);
+    }
+
+    private final int     maxZoom;
+    private final Level[] levels;
+    private long          generation;
+    private long          sightings;
+
+    public ClusterGrid() {
+        this(DEFAULT_MAX_ZOOM);
+    }
+
+    /**
+     * @param maxZoom finest level kept; closer zooms reuse its cells
+     */
+    public ClusterGrid(int maxZoom) {
+        if(maxZoom < 0 || maxZoom > MAX_MAX_ZOOM) throw new IllegalArgumentException("maxZoom " + maxZoom);
+        this.maxZoom = maxZoom;
+        levels = new Level[maxZoom + 1];
+        for(int z = 0; z <= maxZoom; ++z) levels[z] = new Level(z);
+    }
+
+    public int maxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * @return the level to draw at a (fractional) map zoom
+     */
+    public int level(double zoom) {
+        return (int) Math.max(0, Math.min(maxZoom, Math.floor(zoom)));
+    }
+
+    /**
+     * @return number of sightings added
+     */
+    public long sightings() {
+        return sightings;
+    }
+
+    /**
+     * @return number of cells at level zoom
+     */
+    public int cells(int zoom) {
+        return levels[zoom].size;
+    }
+
+    /**
+     * @return a counter that goes up with every change, see Cluster generations in ClusterLayer
+     */
+    public long generation() {
+        return generation;
+    }
+
+    Level levelAt(int zoom) {
+        return levels[zoom];
+    }
+
+    /**
+     * Add a sighting to its cell on every level.
+     * @param timeMillis wall clock time of the sighting
+     */
+    public void add(double latitude, double longitude, int rssi, long timeMillis) {
+        double x = mercatorX(longitude), y = mercatorY(latitude);
+        long finest = 1L << (maxZoom + CELL_SHIFT);
+        long cx = Math.min(finest - 1, (long) (x * finest));
+        long cy = Math.min(finest - 1, (long) (y * finest));
+        long gen = ++generation;
+        for(int z = maxZoom; z >= 0; --z) {
+            int shift = maxZoom - z;
+            levels[z].add((cx >> shift) << KEY_BITS | (cy >> shift), x, y, rssi, timeMillis, gen);
+        }
+        sightings++;
+    }
+
+    /**
+     * Visit the cells of level zoom that intersect the box; west greater than east crosses the
+     * antimeridian. Probes the cells the box covers, or walks the whole level when it has fewer.
+     */
+    void cells(int zoom, double south, double west, double north, double east, CellVisitor visitor) {
+        Level level = levels[zoom];
+        if(level.size == 0) return;
+        long n = 1L << (zoom + CELL_SHIFT);
+        long x0 = cell(mercatorX(west), n), x1 = cell(mercatorX(east), n);
+        // Mercator y grows southwards
+        long y0 = cell(mercatorY(north), n), y1 = cell(mercatorY(south), n);
+        if(west > east) {
+            cells(level, x0, n - 1, y0, y1, visitor);
+            cells(level, 0, x1, y0, y1, visitor);
+        } else {
+            cells(level, x0, x1, y0, y1, visitor);
+        }
+    }
+
+    private static void cells(Level level, long x0, long x1, long y0, long y1, CellVisitor visitor) {
+        if((x1 - x0 + 1) * (y1 - y0 + 1) <= level.size) {
+            for(long cx = x0; cx <= x1; ++cx) {
+                for(long cy = y0; cy <= y1; ++cy) {
+                    int slot = level.find(cx << KEY_BITS | cy);
+                    if(slot >= 0) visitor.visit(level, slot);
+                }
+            }
+            return;
+        }
+        for(int slot = 0; slot < level.size; ++slot) {
+            long key = level.keys[slot];
+            long cx = key >>> KEY_BITS, cy = key & KEY_MASK;
+            if(cx >= x0 && cx <= x1 && cy >= y0 && cy <= y1) visitor.visit(level, slot);
+        }
+    }
+
+    /**
+     * @return the cell at slot as a Cluster
+     */
+    static Cluster cluster(Level level, int slot) {
+        long key = level.keys[slot];
+        long n = 1L << (level.zoom + CELL_SHIFT);
+        double cx = key >>> KEY_BITS, cy = key & KEY_MASK;
+        int count = level.counts[slot];
+        return new Cluster(key, level.zoom, latitude(level.sumY[slot] / count), longitude(level.sumX[slot] / count),
+                count, (int) Math.round((double) level.rssiSums[slot] / count), level.maxRssis[slot],
+                level.lastMillis[slot], latitude((cy + 1) / n), longitude(cx / n), latitude(cy / n),
+                longitude((cx + 1) / n));
+    }
+
+    private static long cell(double m, long n) {
+        return Math.max(0, Math.min(n - 1, (long) (m * n)));
+    }
+
+    static double mercatorX(double longitude) {
+        return (longitude + 180) / 360;
+    }
+
+    static double mercatorY(double latitude) {
+        double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude)));
+        return (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2;
+    }
+
+    static double longitude(double x) {
+        return x * 360 - 180;
+    }
+
+    static double latitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+    }
+
+    /**
+     * The cells of one zoom level: columns per cell plus an open addressing table from key to
+     * slot. Cells are never removed.
+     */
+    static final class Level {
+        final int zoom;
+        int       size;
+        long[]    keys       = new long[16];
+        int[]     counts     = new int[16];
+        long[]    rssiSums   = new long[16];
+        int[]     maxRssis   = new int[16];
+        double[]  sumX       = new double[16];
+        double[]  sumY       = new double[16];
+        long[]    lastMillis = new long[16];
+        long[]    generations = new long[16];
+        private int[] table  = new int[32]; // slot + 1, 0 for empty
+
+        Level(int zoom) {
+            this.zoom = zoom;
+        }
+
+        int find(long key) {
+            int mask = table.length - 1;
+            for(int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask) {
+                if(keys[table[i] - 1] == key) return table[i] - 1;
+            }
+            return -1;
+        }
+
+        void add(long key, double x, double y, int rssi, long timeMillis, long generation) {
+            int mask = table.length - 1;
+            int i = hash(key) & mask;
+            while(table[i] != 0 && keys[table[i] - 1] != key) i = (i + 1) & mask;
+            int slot;
+            if(table[i] != 0) {
+                slot = table[i] - 1;
+                maxRssis[slot] = Math.max(maxRssis[slot], rssi);
+            } else {
+                slot = size++;
+                if(slot == keys.length) grow();
+                keys[slot]     = key;
+                maxRssis[slot] = rssi;
+                table[i]       = slot + 1;
+                if(size * 2 > table.length) rehash();
+            }
+            counts[slot]++;
+            rssiSums[slot]   += rssi;
+            sumX[slot]       += x;
+            sumY[slot]       += y;
+            lastMillis[slot]  = Math.max(lastMillis[slot], timeMillis);
+            generations[slot] = generation;
+        }
+
+        private void grow() {
+            int n = keys.length * 2;
+            keys        = Arrays.copyOf(keys, n);
+            counts      = Arrays.copyOf(counts, n);
+            rssiSums    = Arrays.copyOf(rssiSums, n);
+            maxRssis    = Arrays.copyOf(maxRssis, n);
+            sumX        = Arrays.copyOf(sumX, n);
+            sumY        = Arrays.copyOf(sumY, n);
+            lastMillis  = Arrays.copyOf(lastMillis, n);
+            generations = Arrays.copyOf(generations, n);
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            int mask = table.length - 1;
+            for(int slot = 0; slot < size; ++slot) {
+                int i = hash(keys[slot]) & mask;
+                while(table[i] != 0) i = (i + 1) & mask;
+                table[i] = slot + 1;
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ h >>> 32);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.bah.iotsap.cluster;
+
+import java.util.Arrays;
+
+/**
+ * ClusterLayer works out what a map has to change to show the clusters of a ClusterGrid for its
+ * current viewport. It remembers which cells it told the map to draw and in which generation, so
+ * update() only returns the cells that came into view, changed or went out of view: panning
+ * touches the cells at the edges, new sightings the few cells they fell into, and only a zoom
+ * change redraws everything (with far fewer cells than sightings).
+ * A viewport holding more than maxClusters cells (a tilted or very large map) is drawn one level
+ * coarser until it fits.
+ * Not thread safe, use it on the grid's thread. Example:
+ *   ClusterDiff diff = layer.update(grid.level(camera.zoom), south, west, north, east);
+ *   ...post diff to the UI thread, add / update / remove markers by Cluster.key...
+ */
+public final class ClusterLayer {
+
+    public static final int DEFAULT_MAX_CLUSTERS = 1500;
+
+    private final ClusterGrid grid;
+    private final int         maxClusters;
+    // What the map shows: zoom, sorted keys and the generation each was drawn in
+    private int    zoom = -1;
+    private long[] keys = new long[0];
+    private long[] generations = new long[0];
+    private int    count;
+    // Scratch for the cells in view
+    private long[] visible = new long[64];
+    private int    visibleCount;
+
+    private final ClusterGrid.CellVisitor collector = new ClusterGrid.CellVisitor() {
+        @Override
+        public void visit(ClusterGrid.Level level, int slot) {
+            if(visibleCount == visible.length) visible = Arrays.copyOf(visible, visibleCount * 2);
+            visible[visibleCount++] = level.keys[slot];
+        }
+    };
+
+    public ClusterLayer(ClusterGrid grid) {
+        this(grid, DEFAULT_MAX_CLUSTERS);
+    }
+
+    public ClusterLayer(ClusterGrid grid, int maxClusters) {
+        this.grid        = grid;
+        this.maxClusters = maxClusters;
+    }
+
+    /**
+     * @return number of clusters the map shows after the last update()
+     */
+    public int rendered() {
+        return count;
+    }
+
+    /**
+     * Forget what was drawn, e.g. because the map was cleared: the next update() adds every
+     * cluster in view.
+     */
+    public void reset() {
+        zoom  = -1;
+        count = 0;
+    }
+
+    /**
+     * @param zoom grid level to draw, see ClusterGrid.level()
+     * @return the changes that bring the map to the cells of zoom in the box
+     */
+    public ClusterDiff update(int zoom, double south, double west, double north, double east) {
+        zoom = Math.max(0, Math.min(grid.maxZoom(), zoom));
+        while(true) {
+            visibleCount = 0;
+            grid.cells(zoom, south, west, north, east, collector);
+            if(visibleCount <= maxClusters || zoom == 0) break;
+            zoom--;
+        }
+        Arrays.sort(visible, 0, visibleCount);
+        ClusterGrid.Level level = grid.levelAt(zoom);
+        ClusterDiff diff = new ClusterDiff(zoom);
+        long[] newKeys = new long[visibleCount];
+        long[] newGenerations = new long[visibleCount];
+        int old = 0, oldCount = zoom == this.zoom ? count : 0;
+        if(zoom != this.zoom) {
+            for(int i = 0; i < count; ++i) diff.remove(keys[i]);
+        }
+        for(int i = 0; i < visibleCount; ++i) {
+            long key = visible[i];
+            int slot = level.find(key);
+            newKeys[i]        = key;
+            newGenerations[i] = level.generations[slot];
+            while(old < oldCount && keys[old] < key) diff.remove(keys[old++]);
+            if(old < oldCount && keys[old] == key) {
+                if(generations[old] != newGenerations[i]) diff.changed.add(ClusterGrid.cluster(level, slot));
+                old++;
+            } else {
+                diff.added.add(ClusterGrid.cluster(level, slot));
+            }
+        }
+        while(old < oldCount) diff.remove(keys[old++]);
+        this.zoom        = zoom;
+        this.keys        = newKeys;
+        this.generations = newGenerations;
+        this.count       = visibleCount;
+        return diff;
+    }
+}
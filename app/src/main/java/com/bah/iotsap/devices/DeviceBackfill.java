@@ -0,0 +1,161 @@
+package com.bah.iotsap.devices;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.storage.LogCursor;
+import com.bah.iotsap.storage.SightingLog;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * DeviceBackfill fills a DeviceList from the SightingLog, for the sightings it did not get from
+ * the bus:
+ * - history, everything logged before the list first followed the bus (untilSeq), read
+ *   backwards a page at a time (loadPage()) as the user scrolls down to it, so the latest comes
+ *   first and the whole log is never read unless someone asks for it;
+ * - gaps, what was logged between two subscriptions to the bus (while the list was paused), read
+ *   forwards (startGap() and catchUp()) in chunks.
+ * Records are split by log sequence number (see Sighting.logSeq), not by their timestamps, which
+ * batched scan results can carry from well before they are logged and published. So each one
+ * reaches the list once, from the log or from the bus. Either way only a LogCursor (one mapped
+ * segment) and the rows are held in memory.
+ * Not thread safe: confine it to the list's thread.
+ */
+public final class DeviceBackfill implements Closeable {
+
+    /** New rows a page of history stops at */
+    public static final int DEFAULT_PAGE_ROWS    = 50;
+    /** Records a page or a chunk of a gap reads at most */
+    public static final int DEFAULT_PAGE_RECORDS = 8192;
+
+    private final SightingLog     log;
+    private final DeviceList      list;
+    private final Sighting.Source source;
+    private final long            untilSeq;
+    private final Sighting        scratch = new Sighting();
+    // Reading history backwards, null until the first page and once it is all read
+    private LogCursor             history;
+    private boolean               historyDone;
+    // Reading a gap forwards, null if there is none
+    private LogCursor             gap;
+    private long                  gapToSeq;
+    private long                  records;
+
+    /**
+     * @param source   only list sightings from this source, null for all
+     * @param untilSeq log sequence number from which the list gets sightings from the bus
+     */
+    public DeviceBackfill(SightingLog log, DeviceList list, Sighting.Source source, long untilSeq) {
+        this.log      = log;
+        this.list     = list;
+        this.source   = source;
+        this.untilSeq = untilSeq;
+    }
+
+    /**
+     * @return true once all the history is listed, or no more devices fit in the list
+     */
+    public boolean historyDone() {
+        return historyDone;
+    }
+
+    /**
+     * @return true while a gap is being filled
+     */
+    public boolean inGap() {
+        return gap != null;
+    }
+
+    /**
+     * @return number of log records read so far
+     */
+    public long records() {
+        return records;
+    }
+
+    /**
+     * List the next older page of history: read back until pageRows new devices were listed,
+     * maxRecords were read or the start of the log.
+     * @return number of new rows
+     */
+    public int loadPage(int pageRows, int maxRecords) throws IOException {
+        if(historyDone) return 0;
+        if(history == null) {
+            history = log.cursor();
+            // Newer ones came from the bus
+            history.seekSeq(untilSeq);
+        }
+        int rows = 0;
+        for(int read = 0; read < maxRecords && rows < pageRows; ++read) {
+            if(!history.previous(scratch)) {
+                finishHistory();
+                break;
+            }
+            records++;
+            if(!wanted(scratch)) continue;
+            int result = list.addOlder(scratch);
+            if(result == DeviceList.FULL) {
+                finishHistory();
+                break;
+            }
+            if(result == DeviceList.ADDED) rows++;
+        }
+        return rows;
+    }
+
+    /**
+     * Start filling the gap between fromSeq (the first record the bus did not deliver once the
+     * list stopped following it) and toSeq (where it followed it again). A gap still being filled
+     * is finished first.
+     */
+    public void startGap(long fromSeq, long toSeq) throws IOException {
+        while(catchUp(Integer.MAX_VALUE)) {}
+        if(toSeq <= fromSeq) return;
+        gap = log.cursor();
+        gap.seekSeq(fromSeq);
+        gapToSeq = toSeq;
+    }
+
+    /**
+     * Fill in the next chunk of the gap, up to maxRecords read.
+     * @return true if there is more of it
+     */
+    public boolean catchUp(int maxRecords) throws IOException {
+        if(gap == null) return false;
+        for(int read = 0; read < maxRecords; ++read) {
+            // The rest came from the bus
+            if(!gap.next(scratch) || gap.seq() >= gapToSeq) {
+                gap.close();
+                gap = null;
+                return false;
+            }
+            records++;
+            if(wanted(scratch)) list.add(scratch);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if(history != null) history.close();
+        if(gap != null) gap.close();
+        history = null;
+        gap     = null;
+    }
+
+    private boolean wanted(Sighting sighting) {
+        return source == null || sighting.source == source;
+    }
+
+    private void finishHistory() {
+        historyDone = true;
+        history.close();
+        history = null;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceBackfill{" + records + " records read" + (historyDone ? ", history done" : "")
+                + (gap != null ? ", in gap" : "") + "}";
+    }
+}
@@ -0,0 +1,251 @@
+package com.bah.iotsap.devices;
+
+import com.bah.iotsap.discovery.MacAddress;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.location.PositionEstimator;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * DeviceList folds a stream of sightings into one row per device, newest device first, for a
+ * list UI. Every device keeps a short ring of its latest RSSI values (HISTORY) instead of every
+ * sighting, and at most maxDevices are kept (the least recently seen goes first), so memory is
+ * bounded however long the list runs.
+ * add() only updates counters; rows are formatted in snapshot(), once per changed device however
+ * many sightings it had since the previous snapshot. Take snapshots at the rate the screen can
+ * show them (once per frame at most) and the cost no longer depends on the sighting rate.
+ * History read from a log goes in through addOlder(), newest record first, below the rows
+ * already listed; see DeviceBackfill.
+ * Not thread safe: confine it to one (background) thread.
+ */
+public final class DeviceList {
+
+    public static final int DEFAULT_MAX_DEVICES = 2000;
+    /** RSSI values remembered per device */
+    public static final int HISTORY             = 16;
+
+    /** addOlder() results */
+    public static final int ADDED  = 1;
+    public static final int MERGED = 0;
+    public static final int FULL   = -1;
+
+    private static final String SEPARATOR = "  \u00b7  ";
+    // Eighth blocks, lowest to full, for the RSSI history
+    private static final char[] BARS      = "\u2581\u2582\u2583\u2584\u2585\u2586\u2587\u2588".toCharArray();
+
+    /**
+     * Mutable state of one device.
+     */
+    private static final class Entry {
+        final long      mac;
+        Sighting.Source source;
+        String          name;
+        int             rssi;
+        int             count;
+        long            lastMillis;
+        boolean         gone;
+        final byte[]    history = new byte[HISTORY];
+        DeviceRow       row;
+        boolean         dirty;
+
+        Entry(long mac) {
+            this.mac = mac;
+        }
+    }
+
+    private final int                 maxDevices;
+    private final long                epochOffsetMillis;
+    private final PositionEstimator   estimator;
+    private final Map<Long, Entry>    entries = new HashMap<>();
+    // In order first seen, oldest first
+    private final ArrayList<Entry>    order   = new ArrayList<>();
+    private List<DeviceRow>           snapshot = Collections.emptyList();
+    private boolean                   changed;
+    private long                      evictions;
+    // Formatting, snapshot() only
+    private final StringBuilder       text       = new StringBuilder();
+    private final SimpleDateFormat    timeFormat = new SimpleDateFormat("HH:mm:ss", Locale.US);
+    private final Date                date       = new Date();
+    private final PositionEstimator.Estimate estimate = new PositionEstimator.Estimate();
+
+    /**
+     * @param epochOffsetMillis wall clock time at the monotonic time base zero, see SightingFormat
+     */
+    public DeviceList(long epochOffsetMillis) {
+        this(DEFAULT_MAX_DEVICES, epochOffsetMillis, null);
+    }
+
+    /**
+     * @param maxDevices        devices kept at most
+     * @param epochOffsetMillis wall clock time at the monotonic time base zero, see SightingFormat
+     * @param estimator         shows where devices are estimated to be, may be null
+     */
+    public DeviceList(int maxDevices, long epochOffsetMillis, PositionEstimator estimator) {
+        if(maxDevices <= 0) throw new IllegalArgumentException("maxDevices " + maxDevices);
+        this.maxDevices        = maxDevices;
+        this.epochOffsetMillis = epochOffsetMillis;
+        this.estimator         = estimator;
+    }
+
+    public int size() {
+        return order.size();
+    }
+
+    public long evictions() {
+        return evictions;
+    }
+
+    /**
+     * @return true if snapshot() would return something new
+     */
+    public boolean changed() {
+        return changed;
+    }
+
+    /**
+     * Fold a sighting into its device's row. Expiries mark the device gone without counting
+     * as a sighting.
+     */
+    public void add(Sighting sighting) {
+        Entry entry = entries.get(sighting.mac);
+        if(entry == null) {
+            // Nothing to show for a device that went before it came
+            if(sighting.change == Sighting.Change.EXPIRED) return;
+            if(order.size() == maxDevices) evict();
+            entry = new Entry(sighting.mac);
+            entries.put(sighting.mac, entry);
+            order.add(entry);
+        }
+        entry.source = sighting.source;
+        if(sighting.name != null) entry.name = sighting.name;
+        long timeMillis = epochOffsetMillis + sighting.timestampNanos / 1000000L;
+        // Sightings filled in from a gap in the log can be older than live ones already in
+        boolean latest = timeMillis >= entry.lastMillis;
+        if(sighting.change == Sighting.Change.EXPIRED) {
+            if(latest) entry.gone = true;
+        } else {
+            if(latest) {
+                entry.gone       = false;
+                entry.rssi       = sighting.rssi;
+                entry.lastMillis = timeMillis;
+            }
+            entry.history[entry.count % HISTORY] = (byte) Math.max(-128, Math.min(0, sighting.rssi));
+            entry.count++;
+        }
+        entry.dirty = true;
+        changed     = true;
+    }
+
+    /**
+     * Fold in a sighting older than everything the list has of its device (reading history
+     * backwards). A device not listed yet goes below all the rows; one already listed keeps its
+     * place, latest RSSI and time, and only gains the count and older history.
+     * @return ADDED for a new row, MERGED, or FULL if the device is new but there is no room
+     *         (history never evicts what is already listed)
+     */
+    public int addOlder(Sighting sighting) {
+        Entry entry = entries.get(sighting.mac);
+        int result = MERGED;
+        if(entry == null) {
+            if(order.size() == maxDevices) return FULL;
+            entry = new Entry(sighting.mac);
+            entries.put(sighting.mac, entry);
+            order.add(0, entry);
+            // Its latest record decides whether it is gone
+            entry.gone       = sighting.change == Sighting.Change.EXPIRED;
+            entry.lastMillis = epochOffsetMillis + sighting.timestampNanos / 1000000L;
+            result = ADDED;
+        }
+        if(entry.source == null) entry.source = sighting.source;
+        if(entry.name == null) entry.name = sighting.name;
+        if(sighting.change != Sighting.Change.EXPIRED) {
+            if(entry.count == 0) entry.rssi = sighting.rssi;
+            // add() keeps the newest value at (count - 1) % HISTORY: rotate the ring one slot so
+            // that still holds after count++. The older value goes into the slot in front,
+            // unless the ring is full and it is too old to keep
+            byte[] history = entry.history;
+            byte last = history[HISTORY - 1];
+            System.arraycopy(history, 0, history, 1, HISTORY - 1);
+            history[0] = last;
+            if(entry.count < HISTORY) history[0] = (byte) Math.max(-128, Math.min(0, sighting.rssi));
+            entry.count++;
+        }
+        entry.dirty = true;
+        changed     = true;
+        return result;
+    }
+
+    /**
+     * @return one row per device, newest device first; the same list as last time if nothing
+     *         changed since, and the same row instances for the devices that did not change
+     */
+    public List<DeviceRow> snapshot() {
+        if(!changed) return snapshot;
+        ArrayList<DeviceRow> rows = new ArrayList<>(order.size());
+        for(int i = order.size() - 1; i >= 0; --i) {
+            Entry entry = order.get(i);
+            if(entry.dirty || entry.row == null) {
+                entry.row   = row(entry);
+                entry.dirty = false;
+            }
+            rows.add(entry.row);
+        }
+        snapshot = Collections.unmodifiableList(rows);
+        changed  = false;
+        return snapshot;
+    }
+
+    /**
+     * Forget the least recently seen device. O(size), only when full.
+     */
+    private void evict() {
+        int oldest = 0;
+        for(int i = 1; i < order.size(); ++i) {
+            if(order.get(i).lastMillis < order.get(oldest).lastMillis) oldest = i;
+        }
+        entries.remove(order.remove(oldest).mac);
+        evictions++;
+        changed = true;
+    }
+
+    private DeviceRow row(Entry entry) {
+        String address = MacAddress.toString(entry.mac);
+        String title = entry.name == null || entry.name.isEmpty() ? address : entry.name + "  " + address;
+
+        text.setLength(0);
+        text.append(entry.rssi).append(" dBm  ");
+        int n = Math.min(entry.count, HISTORY);
+        int sum = 0;
+        for(int i = entry.count - n; i < entry.count; ++i) {
+            int rssi = entry.history[i % HISTORY];
+            sum += rssi;
+            // -100 dBm and below is the lowest bar, -40 and above the highest
+            text.append(BARS[Math.max(0, Math.min(BARS.length - 1, (rssi + 100) * BARS.length / 60))]);
+        }
+        // Only an expiry of it in the history read so far
+        if(n > 0) text.append("  avg ").append(Math.round((float) sum / n));
+        text.append(SEPARATOR).append(entry.count).append(" seen");
+        date.setTime(entry.lastMillis);
+        text.append(SEPARATOR).append(timeFormat.format(date));
+        if(entry.gone) {
+            text.append(SEPARATOR).append("gone");
+        } else if(estimator != null && estimator.estimate(entry.mac, estimate)) {
+            text.append(SEPARATOR).append(String.format(Locale.US, "%.5f, %.5f", estimate.latitude, estimate.longitude))
+                .append(" \u00b1").append(Math.round(estimate.radiusMeters)).append(" m");
+        }
+        return new DeviceRow(entry.mac, entry.source, entry.name, entry.rssi, entry.count, entry.lastMillis,
+                entry.gone, title, text.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceList{" + order.size() + "/" + maxDevices + " devices, " + evictions + " evicted}";
+    }
+}
@@ -0,0 +1,46 @@
+package com.bah.iotsap.devices;
+
+import com.bah.iotsap.discovery.Sighting;
+
+/**
+ * DeviceRow is what a device list shows for one device: its latest state plus the text of its
+ * row, formatted once when the device changes rather than every time the row is bound.
+ * Immutable: a DeviceList hands out a new DeviceRow when the device changes and the same
+ * instance while it does not, so rows can be compared by identity.
+ */
+public final class DeviceRow {
+
+    /** MAC address, packed, see MacAddress */
+    public final long            mac;
+    public final Sighting.Source source;
+    /** Latest name reported, may be null */
+    public final String          name;
+    /** Latest RSSI in dBm */
+    public final int             rssi;
+    /** Sightings of the device so far */
+    public final int             count;
+    /** Wall clock time of the latest sighting */
+    public final long            lastMillis;
+    /** True once the device expired, until it is seen again */
+    public final boolean         gone;
+    public final String          title;
+    public final String          detail;
+
+    DeviceRow(long mac, Sighting.Source source, String name, int rssi, int count, long lastMillis, boolean gone,
+              String title, String detail) {
+        this.mac        = mac;
+        this.source     = source;
+        this.name       = name;
+        this.rssi       = rssi;
+        this.count      = count;
+        this.lastMillis = lastMillis;
+        this.gone       = gone;
+        this.title      = title;
+        this.detail     = detail;
+    }
+
+    @Override
+    public String toString() {
+        return title + " / " + detail;
+    }
+}
@@ -0,0 +1,96 @@
+package com.bah.iotsap.discovery;
+
+/**
+ * AdaptiveScanPolicy adjusts the duty cycle to the discovery yield.
+ * While new devices keep appearing the scan windows grow (up to maxWindow) and the idle
+ * intervals shrink, and when a window finds (almost) nothing new the windows shrink and the
+ * radio rests longer. Scan failures back off exponentially until a window succeeds again.
+ */
+public class AdaptiveScanPolicy implements ScanPolicy {
+
+    // New devices per minute of scanning above which we scan more / below which we scan less
+    public static final double GROW_PER_MINUTE   = 6.0;
+    public static final double SHRINK_PER_MINUTE = 1.0;
+    // Failure back off
+    public static final long   BACKOFF_BASE = 1000;
+    public static final long   BACKOFF_MAX  = 5 * 60 * 1000;
+
+    private final long minWindow;
+    private final long maxWindow;
+    private final long initialWindow;
+    private final long minIdle;
+    private final long maxIdle;
+    private final long initialIdle;
+
+    private long window;
+    private long idle;
+    private int  failures;
+
+    /**
+     * Creates a policy that moves between a quarter and four times the given window / idle times.
+     * @param windowMillis initial scan window, e.g. from the *_SCANTIME preference
+     * @param idleMillis   initial idle interval, e.g. from the *_DELAY preference
+     */
+    public AdaptiveScanPolicy(long windowMillis, long idleMillis) {
+        this(Math.max(1000, windowMillis / 4), windowMillis * 4, windowMillis,
+                Math.max(1000, idleMillis / 4), Math.max(1000, idleMillis * 4), idleMillis);
+    }
+
+    public AdaptiveScanPolicy(long minWindow, long maxWindow, long initialWindow,
+                              long minIdle, long maxIdle, long initialIdle) {
+        if(minWindow <= 0 || minWindow > maxWindow || minIdle < 0 || minIdle > maxIdle) {
+            throw new IllegalArgumentException("invalid window / idle bounds");
+        }
+        this.minWindow     = minWindow;
+        this.maxWindow     = maxWindow;
+        this.initialWindow = clamp(initialWindow, minWindow, maxWindow);
+        this.minIdle       = minIdle;
+        this.maxIdle       = maxIdle;
+        this.initialIdle   = clamp(initialIdle, minIdle, maxIdle);
+        reset();
+    }
+
+    @Override
+    public long nextWindowMillis() {
+        return window;
+    }
+
+    @Override
+    public long nextIdleMillis() {
+        return idle;
+    }
+
+    @Override
+    public void onWindowFinished(int results, int newDevices, long windowMillis) {
+        failures = 0;
+        if(windowMillis <= 0) return;
+        double perMinute = newDevices * 60000.0 / windowMillis;
+        if(perMinute >= GROW_PER_MINUTE) {
+            window = clamp(window * 3 / 2, minWindow, maxWindow);
+            idle   = clamp(idle * 2 / 3, minIdle, maxIdle);
+        } else if(perMinute < SHRINK_PER_MINUTE) {
+            window = clamp(window * 3 / 4, minWindow, maxWindow);
+            idle   = clamp(idle * 3 / 2, minIdle, maxIdle);
+        }
+    }
+
+    @Override
+    public long onScanFailed(int errorCode) {
+        if(errorCode == SCAN_FAILED_FEATURE_UNSUPPORTED) return NEVER;
+        // Somebody else's scan is still registered, it should go away quickly
+        if(errorCode == SCAN_FAILED_ALREADY_STARTED) return BACKOFF_BASE;
+        failures = Math.min(failures + 1, 30);
+        return Math.min(BACKOFF_MAX, BACKOFF_BASE << (failures - 1));
+    }
+
+    @Override
+    public void reset() {
+        window   = initialWindow;
+        idle     = initialIdle;
+        failures = 0;
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,260 @@
+package com.bah.iotsap.discovery;
+
+import java.util.Arrays;
+
+/**
+ * DeviceTable is the live table of devices a discovery source is currently seeing, keyed by the
+ * packed MAC address. update() folds every sighting into its device's entry (first / last seen,
+ * hit count, RSSI EWMA, min / max) and reports whether anything worth telling downstream
+ * happened: a NEW device, or a smoothed RSSI that moved by at least the threshold since it was
+ * last reported. Devices that have not been seen for the TTL are removed by expire(), and when
+ * the table is full the least recently seen device is evicted; both go to the Listener.
+ *
+ * Entries live in parallel primitive arrays addressed by an entry number, which stays valid until
+ * the entry is removed. The MAC to entry lookup is an open addressing (linear probing) table of
+ * entry numbers, so nothing is boxed and update() does not allocate. Not thread safe.
+ */
+public final class DeviceTable {
+
+    public static final long  DEFAULT_TTL_NANOS     = 5L * 60 * 1000000000L;
+    public static final int   DEFAULT_RSSI_THRESHOLD = 6;
+    public static final float DEFAULT_ALPHA          = 0.25f;
+
+    /**
+     * Told about every entry just before it is removed, accessors are still valid for it.
+     */
+    public interface Listener {
+        /**
+         * @param evicted true if the entry made room for a new device, false if its TTL ran out
+         */
+        void onRemoved(DeviceTable table, int entry, boolean evicted);
+    }
+
+    private final int   capacity;
+    private final long  ttlNanos;
+    private final int   rssiThreshold;
+    private final float alpha;
+    private Listener    listener;
+
+    // MAC -> entry + 1, 0 marks an empty slot
+    private final int[] index;
+    private final int   mask;
+
+    // Entry columns
+    private final long[]   macs;
+    private final long[]   firstSeen;
+    private final long[]   lastSeen;
+    private final int[]    hits;
+    private final float[]  rssi;
+    private final short[]  minRssi;
+    private final short[]  maxRssi;
+    private final short[]  reportedRssi;
+    private final String[] names;
+    // LRU list, head is the most recently seen entry. next[] doubles as the free list.
+    private final int[]    prev;
+    private final int[]    next;
+    private int head = -1;
+    private int tail = -1;
+    private int free;
+    private int size;
+    private int lastEntry = -1;
+
+    private long evictions;
+    private long expirations;
+
+    public DeviceTable(int capacity) {
+        this(capacity, DEFAULT_TTL_NANOS, DEFAULT_RSSI_THRESHOLD, DEFAULT_ALPHA);
+    }
+
+    /**
+     * @param capacity      maximum number of devices tracked
+     * @param ttlNanos      how long a device may go unseen before it expires
+     * @param rssiThreshold dB the smoothed RSSI has to move before RSSI is reported again
+     * @param alpha         EWMA weight of the newest RSSI sample, between 0 and 1
+     */
+    public DeviceTable(int capacity, long ttlNanos, int rssiThreshold, float alpha) {
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity      = capacity;
+        this.ttlNanos      = ttlNanos;
+        this.rssiThreshold = rssiThreshold;
+        this.alpha         = alpha;
+
+        int slots = Integer.highestOneBit(capacity * 2 - 1) << 1; // load factor <= 0.5
+        index = new int[slots];
+        mask  = slots - 1;
+
+        macs         = new long[capacity];
+        firstSeen    = new long[capacity];
+        lastSeen     = new long[capacity];
+        hits         = new int[capacity];
+        rssi         = new float[capacity];
+        minRssi      = new short[capacity];
+        maxRssi      = new short[capacity];
+        reportedRssi = new short[capacity];
+        names        = new String[capacity];
+        prev         = new int[capacity];
+        next         = new int[capacity];
+        clear();
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Fold one sighting into the table.
+     * @param name device name, only stored if not null so callers can skip looking it up
+     * @return NEW, RSSI if the smoothed RSSI moved past the threshold, otherwise NONE.
+     *         The affected entry is available from lastEntry().
+     */
+    public Sighting.Change update(long mac, int sampleRssi, long timestampNanos, String name) {
+        int e = find(mac);
+        if(e < 0) {
+            if(size == capacity) remove(tail, true);
+            e = free;
+            free = next[e];
+            size++;
+            insertIndex(mac, e);
+            macs[e]         = mac;
+            firstSeen[e]    = timestampNanos;
+            lastSeen[e]     = timestampNanos;
+            hits[e]         = 1;
+            rssi[e]         = sampleRssi;
+            minRssi[e]      = (short) sampleRssi;
+            maxRssi[e]      = (short) sampleRssi;
+            reportedRssi[e] = (short) sampleRssi;
+            names[e]        = name;
+            linkHead(e);
+            lastEntry = e;
+            return Sighting.Change.NEW;
+        }
+
+        lastEntry = e;
+        hits[e]++;
+        if(timestampNanos > lastSeen[e]) lastSeen[e] = timestampNanos;
+        rssi[e] += alpha * (sampleRssi - rssi[e]);
+        if(sampleRssi < minRssi[e]) minRssi[e] = (short) sampleRssi;
+        if(sampleRssi > maxRssi[e]) maxRssi[e] = (short) sampleRssi;
+        if(name != null) names[e] = name;
+        if(e != head) {
+            unlink(e);
+            linkHead(e);
+        }
+        if(Math.abs(rssi[e] - reportedRssi[e]) >= rssiThreshold) {
+            reportedRssi[e] = (short) Math.round(rssi[e]);
+            return Sighting.Change.RSSI;
+        }
+        return Sighting.Change.NONE;
+    }
+
+    /**
+     * Remove every device not seen within the TTL before nowNanos.
+     * @return number of devices removed
+     */
+    public int expire(long nowNanos) {
+        int removed = 0;
+        // The tail is the least recently updated entry, so stop at the first one still alive
+        while(tail >= 0 && nowNanos - lastSeen[tail] > ttlNanos) {
+            remove(tail, false);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * @return entry of the device, or -1 if it is not in the table
+     */
+    public int find(long mac) {
+        int i = MacAddress.hash(mac) & mask;
+        int slot;
+        while((slot = index[i]) != 0) {
+            if(macs[slot - 1] == mac) return slot - 1;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public void clear() {
+        Arrays.fill(index, 0);
+        Arrays.fill(names, null);
+        for(int e = 0; e < capacity; ++e) next[e] = e + 1 < capacity ? e + 1 : -1;
+        free      = 0;
+        head      = -1;
+        tail      = -1;
+        size      = 0;
+        lastEntry = -1;
+    }
+
+    public int  size()        { return size; }
+    public int  capacity()    { return capacity; }
+    public int  lastEntry()   { return lastEntry; }
+    public long evictions()   { return evictions; }
+    public long expirations() { return expirations; }
+
+    public long   mac(int entry)       { return macs[entry]; }
+    public long   firstSeen(int entry) { return firstSeen[entry]; }
+    public long   lastSeen(int entry)  { return lastSeen[entry]; }
+    public int    hits(int entry)      { return hits[entry]; }
+    public int    rssi(int entry)      { return Math.round(rssi[entry]); }
+    public int    minRssi(int entry)   { return minRssi[entry]; }
+    public int    maxRssi(int entry)   { return maxRssi[entry]; }
+    public String name(int entry)      { return names[entry]; }
+
+    public void setName(int entry, String name) {
+        names[entry] = name;
+    }
+
+    private void remove(int e, boolean evicted) {
+        if(evicted) evictions++;
+        else expirations++;
+        if(listener != null) listener.onRemoved(this, e, evicted);
+        removeIndex(macs[e]);
+        unlink(e);
+        names[e] = null;
+        next[e]  = free;
+        free     = e;
+        size--;
+        if(lastEntry == e) lastEntry = -1;
+    }
+
+    private void insertIndex(long mac, int e) {
+        int i = MacAddress.hash(mac) & mask;
+        while(index[i] != 0) i = (i + 1) & mask;
+        index[i] = e + 1;
+    }
+
+    /**
+     * Backward shift deletion keeps probe chains intact without tombstones.
+     */
+    private void removeIndex(long mac) {
+        int i = MacAddress.hash(mac) & mask;
+        while(macs[index[i] - 1] != mac) i = (i + 1) & mask;
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            if(index[j] == 0) break;
+            int home = MacAddress.hash(macs[index[j] - 1]) & mask;
+            // Leave entries whose home slot lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if(stays) continue;
+            index[i] = index[j];
+            i = j;
+        }
+        index[i] = 0;
+    }
+
+    private void linkHead(int e) {
+        prev[e] = -1;
+        next[e] = head;
+        if(head >= 0) prev[head] = e;
+        head = e;
+        if(tail < 0) tail = e;
+    }
+
+    private void unlink(int e) {
+        if(prev[e] >= 0) next[prev[e]] = next[e];
+        else head = next[e];
+        if(next[e] >= 0) prev[next[e]] = prev[e];
+        else tail = prev[e];
+    }
+}
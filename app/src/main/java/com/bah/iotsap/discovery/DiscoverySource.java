@@ -0,0 +1,39 @@
+package com.bah.iotsap.discovery;
+
+/**
+ * A radio the discovery engine scans with: classic inquiry, LE scanning and whatever comes next.
+ * A source lives as long as the engine; start() and stop() only switch its scan cycle on and off,
+ * so they are cheap and can follow a setting as often as it changes. All methods are called on
+ * the engine's main thread.
+ */
+public interface DiscoverySource {
+
+    Sighting.Source source();
+
+    /**
+     * Start scanning with the current settings. Does nothing if already scanning.
+     * @return false if the source cannot scan now, e.g. no adapter or no permission
+     */
+    boolean start();
+
+    /**
+     * Stop scanning, closing the current window. Does nothing if not scanning.
+     */
+    void stop();
+
+    /**
+     * Apply a changed setting without stopping, if it is one of this source's.
+     * @return true if the key belongs to this source
+     */
+    boolean reconfigure(String key);
+
+    /**
+     * The engine is going away: stop and release threads and receivers for good.
+     */
+    void close();
+
+    /**
+     * @return a line of counters for the log
+     */
+    String summary();
+}
@@ -0,0 +1,70 @@
+package com.bah.iotsap.discovery;
+
+/**
+ * MacAddress packs "AA:BB:CC:DD:EE:FF" style strings into the low 48 bits of a long and back.
+ * pack() walks the characters directly so it does not allocate on the scan path.
+ * This class cannot be instantiated.
+ */
+public final class MacAddress {
+
+    /** Returned by pack() when the string is not a valid MAC address */
+    public static final long INVALID = -1L;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {}
+
+    /**
+     * Pack a colon (or dash) separated MAC address string into a long.
+     * @param address six hex octets separated by ':' or '-'
+     * @return packed address, or INVALID if the string could not be parsed
+     */
+    public static long pack(String address) {
+        if(address == null || address.length() != 17) return INVALID;
+        long mac = 0L;
+        for(int i = 0; i < 17; i += 3) {
+            int hi = digit(address.charAt(i));
+            int lo = digit(address.charAt(i + 1));
+            if(hi < 0 || lo < 0) return INVALID;
+            if(i < 15) {
+                char sep = address.charAt(i + 2);
+                if(sep != ':' && sep != '-') return INVALID;
+            }
+            mac = (mac << 8) | (hi << 4) | lo;
+        }
+        return mac;
+    }
+
+    /**
+     * Format a packed address the same way BluetoothDevice.getAddress() does.
+     * This allocates, so only call it at the edges (UI, export).
+     * @param mac packed address
+     * @return upper case colon separated address
+     */
+    public static String toString(long mac) {
+        char[] out = new char[17];
+        for(int octet = 0; octet < 6; ++octet) {
+            int b = (int) (mac >>> (40 - 8 * octet)) & 0xFF;
+            int i = octet * 3;
+            out[i]     = HEX[b >>> 4];
+            out[i + 1] = HEX[b & 0x0F];
+            if(octet < 5) out[i + 2] = ':';
+        }
+        return new String(out);
+    }
+
+    /**
+     * Spread the bits of a packed address for use as a hash table index.
+     */
+    public static int hash(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int digit(char c) {
+        if(c >= '0' && c <= '9') return c - '0';
+        if(c >= 'A' && c <= 'F') return c - 'A' + 10;
+        if(c >= 'a' && c <= 'f') return c - 'a' + 10;
+        return -1;
+    }
+}
@@ -0,0 +1,153 @@
+package com.bah.iotsap.discovery;
+
+/**
+ * RadioScheduler time-slices the Bluetooth radio between discovery sources (classic inquiry
+ * and LE scanning) so their windows never overlap.
+ * Each source keeps its own ScanScheduler and policy and asks this gate before every window.
+ * The radio is granted to one source at a time with a guard interval in between, and when
+ * more than one source is waiting the one with the least airtime relative to its weight goes
+ * first, so under contention the radio time is shared in proportion to the weights.
+ * Per source yield (windows, airtime, results and new devices) is kept for diagnostics.
+ * Methods are synchronized so sources may call in from different threads.
+ */
+public final class RadioScheduler implements ScanScheduler.Gate {
+
+    /** Time between two windows so the controller can finish tearing down the last one */
+    public static final long DEFAULT_GUARD = 500;
+    /** A holder that has not released this long after its window ended is considered gone */
+    public static final long STALE_GRACE   = 5000;
+
+    private static final int SOURCES = Sighting.Source.values().length;
+
+    private final long guardMillis;
+
+    private final boolean[] registered = new boolean[SOURCES];
+    private final int[]     weights    = new int[SOURCES];
+    private final double[]  airtime    = new double[SOURCES]; // ms granted, for fairness
+    private final long[]    retryAt    = new long[SOURCES];   // when a refused source asks again
+    // Yield statistics
+    private final long[]    windows    = new long[SOURCES];
+    private final long[]    usedMillis = new long[SOURCES];
+    private final long[]    results    = new long[SOURCES];
+    private final long[]    newDevices = new long[SOURCES];
+
+    private int  holder = -1;
+    private long busyUntil;
+    private long freeAt;
+
+    public RadioScheduler() {
+        this(DEFAULT_GUARD);
+    }
+
+    public RadioScheduler(long guardMillis) {
+        this.guardMillis = guardMillis;
+        for(int i = 0; i < SOURCES; ++i) retryAt[i] = Long.MIN_VALUE;
+    }
+
+    /**
+     * Start arbitrating for a source. A newly registered source starts level with the
+     * others instead of being owed all the airtime it missed.
+     * @param weight relative share of radio time, at least 1
+     */
+    public synchronized void register(Sighting.Source source, int weight) {
+        int s = source.ordinal();
+        double level = Double.MAX_VALUE;
+        for(int i = 0; i < SOURCES; ++i) {
+            if(registered[i] && i != s) level = Math.min(level, airtime[i] / weights[i]);
+        }
+        registered[s] = true;
+        weights[s]    = Math.max(1, weight);
+        airtime[s]    = level == Double.MAX_VALUE ? 0 : level * weights[s];
+        retryAt[s]    = Long.MIN_VALUE;
+    }
+
+    public synchronized void unregister(Sighting.Source source) {
+        int s = source.ordinal();
+        registered[s] = false;
+        retryAt[s]    = Long.MIN_VALUE;
+        if(holder == s) holder = -1;
+    }
+
+    public synchronized void setWeight(Sighting.Source source, int weight) {
+        int s = source.ordinal();
+        if(!registered[s]) return;
+        // Keep the normalized airtime so changing weights does not reshuffle the queue
+        double normalized = airtime[s] / weights[s];
+        weights[s] = Math.max(1, weight);
+        airtime[s] = normalized * weights[s];
+    }
+
+    @Override
+    public synchronized long acquire(Sighting.Source source, long windowMillis, long now) {
+        int s = source.ordinal();
+        if(!registered[s]) register(source, 1);
+        if(holder == s) return 0;
+
+        if(holder >= 0 && now > busyUntil + STALE_GRACE) {
+            holder = -1;
+            freeAt = now;
+        }
+        if(holder >= 0) return refuse(s, Math.max(guardMillis, busyUntil - now + guardMillis), now);
+        if(now < freeAt) return refuse(s, freeAt - now, now);
+
+        // Let a waiting source that is behind on its share go first
+        double mine = airtime[s] / weights[s];
+        for(int i = 0; i < SOURCES; ++i) {
+            if(i == s || !registered[i]) continue;
+            boolean waiting = retryAt[i] != Long.MIN_VALUE && now <= retryAt[i] + guardMillis;
+            if(waiting && airtime[i] / weights[i] < mine) return refuse(s, guardMillis, now);
+        }
+
+        holder     = s;
+        busyUntil  = now + windowMillis;
+        retryAt[s] = Long.MIN_VALUE;
+        return 0;
+    }
+
+    @Override
+    public synchronized void release(Sighting.Source source, int results, int newDevices,
+                                     long windowMillis, long now) {
+        int s = source.ordinal();
+        if(holder != s) return;
+        holder = -1;
+        freeAt = now + guardMillis;
+        airtime[s]         += windowMillis;
+        windows[s]         += 1;
+        usedMillis[s]      += windowMillis;
+        this.results[s]    += results;
+        this.newDevices[s] += newDevices;
+    }
+
+    private long refuse(int source, long delay, long now) {
+        retryAt[source] = now + delay;
+        return delay;
+    }
+
+    public synchronized long windows(Sighting.Source source)    { return windows[source.ordinal()]; }
+    public synchronized long airtime(Sighting.Source source)    { return usedMillis[source.ordinal()]; }
+    public synchronized long results(Sighting.Source source)    { return results[source.ordinal()]; }
+    public synchronized long newDevices(Sighting.Source source) { return newDevices[source.ordinal()]; }
+
+    /**
+     * @return new devices found per minute of radio time given to the source
+     */
+    public synchronized double yieldPerMinute(Sighting.Source source) {
+        int s = source.ordinal();
+        return usedMillis[s] == 0 ? 0.0 : newDevices[s] * 60000.0 / usedMillis[s];
+    }
+
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        for(Sighting.Source source : Sighting.Source.values()) {
+            int s = source.ordinal();
+            if(!registered[s] && windows[s] == 0) continue;
+            if(sb.length() > 0) sb.append("; ");
+            sb.append(source).append(": weight = ").append(weights[s])
+                    .append(", windows = ").append(windows[s])
+                    .append(", airtime = ").append(usedMillis[s]).append(" ms")
+                    .append(", new devices = ").append(newDevices[s])
+                    .append(", new/min = ").append(Math.round(yieldPerMinute(source)));
+        }
+        return sb.toString();
+    }
+}
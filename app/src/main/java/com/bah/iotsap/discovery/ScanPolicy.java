@@ -0,0 +1,49 @@
+package com.bah.iotsap.discovery;
+
+/**
+ * ScanPolicy decides how long a ScanScheduler scans for and how long it rests in between.
+ * Implementations are told how productive each window was and which errors the scanner
+ * reported, and adjust the next window / idle interval accordingly.
+ * Policies are only called from the scheduler's thread and do not need to be thread safe.
+ */
+public interface ScanPolicy {
+
+    /** Returned by onScanFailed() when scanning should not be retried at all */
+    long NEVER = -1L;
+
+    // Mirrors of the android.bluetooth.le.ScanCallback error codes, kept here so policies run on the JVM
+    int SCAN_FAILED_ALREADY_STARTED                 = 1;
+    int SCAN_FAILED_APPLICATION_REGISTRATION_FAILED = 2;
+    int SCAN_FAILED_INTERNAL_ERROR                  = 3;
+    int SCAN_FAILED_FEATURE_UNSUPPORTED             = 4;
+    /** Used by the scheduler when the scanner refused to start */
+    int SCAN_FAILED_TO_START                        = 100;
+
+    /**
+     * @return length of the next scan window in ms
+     */
+    long nextWindowMillis();
+
+    /**
+     * @return time to rest after the window that just finished, in ms
+     */
+    long nextIdleMillis();
+
+    /**
+     * @param results    number of results delivered during the window
+     * @param newDevices number of devices seen for the first time during the window
+     * @param windowMillis how long the window actually lasted
+     */
+    void onWindowFinished(int results, int newDevices, long windowMillis);
+
+    /**
+     * @param errorCode one of the SCAN_FAILED_* codes
+     * @return delay before the next attempt in ms, or NEVER to give up
+     */
+    long onScanFailed(int errorCode);
+
+    /**
+     * Forget everything learned so far, used when the scheduler is restarted.
+     */
+    void reset();
+}
@@ -0,0 +1,222 @@
+package com.bah.iotsap.discovery;
+
+/**
+ * ScanScheduler runs a scanner in a continuous cycle of scan windows and idle intervals.
+ * The length of both comes from a ScanPolicy, which is told after every window how many
+ * results and new devices it produced and when the scanner reported a failure.
+ * When several schedulers share one radio, each can be given a Gate (see RadioScheduler) that
+ * has to grant every window before it starts; a refused window is retried after the delay
+ * the gate asks for.
+ * The scanner and the clock are interfaces so the whole cycle can be driven by a fake clock
+ * on the JVM. All methods must be called from the thread the Timer runs its tasks on.
+ */
+public final class ScanScheduler {
+
+    /**
+     * The radio being scheduled.
+     */
+    public interface Scanner {
+        /** @return false if the scan could not be started */
+        boolean startScan();
+        void stopScan();
+    }
+
+    /**
+     * Clock and task scheduling, backed by a Handler on Android.
+     */
+    public interface Timer {
+        long now();
+        void schedule(Runnable task, long delayMillis);
+        void cancel(Runnable task);
+    }
+
+    /**
+     * Arbitrates windows between schedulers sharing a radio.
+     */
+    public interface Gate {
+        /**
+         * @return 0 if source may scan for windowMillis starting now, otherwise the number of
+         *         ms to wait before asking again
+         */
+        long acquire(Sighting.Source source, long windowMillis, long now);
+
+        /**
+         * Hand the radio back after a granted window, with what the window produced.
+         */
+        void release(Sighting.Source source, int results, int newDevices, long windowMillis, long now);
+    }
+
+    private final Scanner        scanner;
+    private final Timer          timer;
+    private ScanPolicy           policy;
+    private final Gate           gate;
+    private final Sighting.Source source;
+
+    private boolean running;
+    private boolean scanning;
+    private long    windowStart;
+    private int     results;
+    private int     newDevices;
+    // Totals since start(), for diagnostics
+    private long    windows;
+    private long    failures;
+    private long    totalNewDevices;
+    private long    deferrals;
+
+    private final Runnable beginWindow = new Runnable() {
+        @Override
+        public void run() {
+            beginWindow();
+        }
+    };
+
+    private final Runnable endWindow = new Runnable() {
+        @Override
+        public void run() {
+            endWindow();
+        }
+    };
+
+    public ScanScheduler(Scanner scanner, Timer timer, ScanPolicy policy) {
+        this(scanner, timer, policy, null, null);
+    }
+
+    /**
+     * @param gate   gate every window must be granted by, may be null
+     * @param source the source this scheduler scans for, passed to the gate
+     */
+    public ScanScheduler(Scanner scanner, Timer timer, ScanPolicy policy,
+                         Gate gate, Sighting.Source source) {
+        this.scanner = scanner;
+        this.timer   = timer;
+        this.policy  = policy;
+        this.gate    = gate;
+        this.source  = source;
+    }
+
+    /**
+     * Start cycling, the first window begins after initialDelayMillis.
+     */
+    public void start(long initialDelayMillis) {
+        if(running) return;
+        running         = true;
+        windows         = 0;
+        failures        = 0;
+        totalNewDevices = 0;
+        deferrals       = 0;
+        policy.reset();
+        timer.schedule(beginWindow, initialDelayMillis);
+    }
+
+    /**
+     * Stop cycling, closing the current window if one is open.
+     */
+    public void stop() {
+        running = false;
+        timer.cancel(beginWindow);
+        timer.cancel(endWindow);
+        closeWindow();
+    }
+
+    /**
+     * Replace the policy while cycling, e.g. because its settings changed. The window or idle
+     * interval in progress runs to its end, the new policy sizes everything after it.
+     */
+    public void setPolicy(ScanPolicy policy) {
+        policy.reset();
+        this.policy = policy;
+    }
+
+    /**
+     * Report a scan result received during the current window.
+     * @param newDevice true if the device was not seen before
+     */
+    public void onResult(boolean newDevice) {
+        if(!scanning) return;
+        results++;
+        if(newDevice) {
+            newDevices++;
+            totalNewDevices++;
+        }
+    }
+
+    /**
+     * Report new devices that are only known after their results were counted, e.g. by a
+     * pipeline stage on another thread. Call it from Scanner.stopScan() at the latest for them
+     * to count towards the window that is closing.
+     */
+    public void onNewDevices(int count) {
+        newDevices      += count;
+        totalNewDevices += count;
+    }
+
+    /**
+     * Report a scanner failure. The current window is abandoned and the next attempt is
+     * scheduled after the policy's back off, or cycling stops if the policy gives up.
+     * @param errorCode one of the ScanPolicy.SCAN_FAILED_* codes
+     */
+    public void onScanFailed(int errorCode) {
+        failures++;
+        timer.cancel(endWindow);
+        timer.cancel(beginWindow);
+        closeWindow();
+        if(!running) return;
+        long delay = policy.onScanFailed(errorCode);
+        if(delay == ScanPolicy.NEVER) {
+            running = false;
+        } else {
+            timer.schedule(beginWindow, delay);
+        }
+    }
+
+    public boolean isRunning()      { return running; }
+    public boolean isScanning()     { return scanning; }
+    public long    windows()        { return windows; }
+    public long    failures()       { return failures; }
+    public long    newDevices()     { return totalNewDevices; }
+    public long    deferrals()      { return deferrals; }
+
+    private void beginWindow() {
+        if(!running) return;
+        long window = policy.nextWindowMillis();
+        if(gate != null) {
+            long wait = gate.acquire(source, window, timer.now());
+            if(wait > 0) {
+                deferrals++;
+                timer.schedule(beginWindow, wait);
+                return;
+            }
+        }
+        results     = 0;
+        newDevices  = 0;
+        scanning    = true;
+        windowStart = timer.now();
+        if(!scanner.startScan()) {
+            onScanFailed(ScanPolicy.SCAN_FAILED_TO_START);
+            return;
+        }
+        timer.schedule(endWindow, window);
+    }
+
+    private void endWindow() {
+        if(!scanning) return;
+        long elapsed = closeWindow();
+        windows++;
+        policy.onWindowFinished(results, newDevices, elapsed);
+        if(running) timer.schedule(beginWindow, policy.nextIdleMillis());
+    }
+
+    /**
+     * Stop the scanner and hand the radio back to the gate, if a window is open.
+     * @return how long the window lasted
+     */
+    private long closeWindow() {
+        if(!scanning) return 0;
+        scanning = false;
+        scanner.stopScan();
+        long now     = timer.now();
+        long elapsed = now - windowStart;
+        if(gate != null) gate.release(source, results, newDevices, elapsed, now);
+        return elapsed;
+    }
+}
@@ -0,0 +1,63 @@
+package com.bah.iotsap.discovery;
+
+/**
+ * ScanStats counts how often a scanner wakes the app up compared to how many results it delivers.
+ * In the per-result path every result is its own callback (and used to be its own broadcast),
+ * so results - callbacks is the number of wakeups saved by hardware batching, and
+ * results - events is the number of broadcasts saved downstream.
+ * All methods are expected to be called from the scan callback thread.
+ */
+public final class ScanStats {
+
+    private long startMillis = -1;
+    private long callbacks;
+    private long results;
+    private long events;
+
+    public void reset(long nowMillis) {
+        startMillis = nowMillis;
+        callbacks   = 0;
+        results     = 0;
+        events      = 0;
+    }
+
+    /**
+     * @param resultCount number of scan results delivered by one callback
+     */
+    public void onCallback(int resultCount) {
+        callbacks++;
+        results += resultCount;
+    }
+
+    /**
+     * @param eventCount number of batch events sent downstream, e.g. signals of the sighting bus
+     */
+    public void onEvents(long eventCount) {
+        events += eventCount;
+    }
+
+    public long callbacks() { return callbacks; }
+    public long results()   { return results; }
+    public long events()    { return events; }
+
+    public long wakeupsSaved() {
+        return results - callbacks;
+    }
+
+    public long eventsSaved() {
+        return results - events;
+    }
+
+    public double callbacksPerMinute(long nowMillis) {
+        return perMinute(callbacks, nowMillis);
+    }
+
+    public double resultsPerMinute(long nowMillis) {
+        return perMinute(results, nowMillis);
+    }
+
+    private double perMinute(long count, long nowMillis) {
+        if(startMillis < 0 || nowMillis <= startMillis) return 0.0;
+        return count * 60000.0 / (nowMillis - startMillis);
+    }
+}
@@ -0,0 +1,111 @@
+package com.bah.iotsap.discovery;
+
+/**
+ * Sighting is a single observation of a device by one of the discovery sources.
+ * Every field is a primitive (or an existing reference) so that instances can be
+ * preallocated once and recycled by the SightingBus and Pipeline instead of being created per
+ * scan result.
+ * Formatting to JSON or dates only happens at the edges, see SightingFormat.
+ */
+public final class Sighting {
+
+    /**
+     * Which radio / discovery source produced the sighting.
+     */
+    public enum Source {
+        BLE,
+        BT_CLASSIC,
+        NFC;
+
+        private static final Source[] VALUES = values();
+
+        /**
+         * values() clones its array on every call, use this on hot paths instead.
+         * @param ordinal ordinal of the wanted source
+         * @return matching Source
+         */
+        public static Source of(int ordinal) {
+            return VALUES[ordinal];
+        }
+    }
+
+    /**
+     * What a DeviceTable made of the sighting. Sources that do not keep a table publish NONE.
+     */
+    public enum Change {
+        /** Plain observation, nothing changed */
+        NONE,
+        /** First sighting of the device */
+        NEW,
+        /** Smoothed RSSI moved past the reporting threshold */
+        RSSI,
+        /** Device has not been seen for the TTL (or was evicted) and is gone */
+        EXPIRED
+    }
+
+    /** MAC address packed into the low 48 bits, see MacAddress */
+    public long   mac;
+    /** Received signal strength in dBm */
+    public int    rssi;
+    /** Monotonic timestamp (elapsedRealtimeNanos time base) of the observation */
+    public long   timestampNanos;
+    public Source source;
+    /** Device name as reported by the adapter, may be null */
+    public String name;
+    public Change change = Change.NONE;
+    /** Where the device was seen from, NaN if unknown (see hasLocation()) */
+    public double latitude  = Double.NaN;
+    public double longitude = Double.NaN;
+    /** Horizontal accuracy of the position in meters */
+    public float  accuracy;
+    /** Sequence number the SightingLog gave it, -1 if it was not logged (yet) */
+    public long   logSeq = -1;
+
+    public Sighting set(long mac, int rssi, long timestampNanos, Source source, String name) {
+        return set(mac, rssi, timestampNanos, source, name, Change.NONE);
+    }
+
+    public Sighting set(long mac, int rssi, long timestampNanos, Source source, String name,
+                        Change change) {
+        this.mac            = mac;
+        this.rssi           = rssi;
+        this.timestampNanos = timestampNanos;
+        this.source         = source;
+        this.name           = name;
+        this.change         = change;
+        this.logSeq         = -1;
+        return clearLocation();
+    }
+
+    public Sighting setLocation(double latitude, double longitude, float accuracy) {
+        this.latitude  = latitude;
+        this.longitude = longitude;
+        this.accuracy  = accuracy;
+        return this;
+    }
+
+    public Sighting clearLocation() {
+        return setLocation(Double.NaN, Double.NaN, 0f);
+    }
+
+    public boolean hasLocation() {
+        return !Double.isNaN(latitude);
+    }
+
+    public Sighting copyFrom(Sighting other) {
+        set(other.mac, other.rssi, other.timestampNanos, other.source, other.name, other.change);
+        logSeq = other.logSeq;
+        return setLocation(other.latitude, other.longitude, other.accuracy);
+    }
+
+    public void clear() {
+        set(0L, 0, 0L, null, null, Change.NONE);
+    }
+
+    @Override
+    public String toString() {
+        return "Sighting{" + MacAddress.toString(mac) + ", rssi=" + rssi
+                + ", t=" + timestampNanos + ", " + source + ", " + name + ", " + change
+                + (hasLocation() ? ", " + latitude + "," + longitude + " +-" + accuracy + "m" : "") + "}";
+    }
+}
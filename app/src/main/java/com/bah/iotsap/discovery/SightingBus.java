@@ -0,0 +1,367 @@
+package com.bah.iotsap.discovery;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * SightingBus hands Sighting records from the discovery sources to in-process consumers without
+ * serializing them: a fixed ring of preallocated records that any number of producers publish
+ * into (multi producer), and that every Subscription reads with its own cursor.
+ *
+ * publish() copies a record into the next slot and never allocates. It does not wake anyone up by
+ * itself, so a producer can publish a whole scan batch and then signal() once. A subscription's
+ * Listener is called (on the signalling thread) at most once until the subscription polls again,
+ * so a slow consumer gets one wakeup for a burst, not one per record.
+ *
+ * What happens when a consumer falls a full ring behind is its Backpressure policy:
+ *   DROP_OLDEST  producers overwrite, the consumer skips what it lost and counts it in dropped()
+ *   COALESCE     like DROP_OLDEST, but a consumer that is more than half a ring behind only gets
+ *                the newest record of each device in its backlog, the rest count as coalesced()
+ *   BLOCK        producers wait for the consumer, for at most the block timeout, then overwrite
+ * BLOCK stalls the producer's thread, so only use it for consumers that keep up (e.g. a writer
+ * thread), never for the UI.
+ * Example:
+ *   Subscription sub = bus.subscribe(Backpressure.DROP_OLDEST);
+ *   sub.setListener(...post a poll to the main thread...);
+ *   sub.poll(consumer);
+ */
+public final class SightingBus {
+
+    public enum Backpressure {
+        DROP_OLDEST,
+        COALESCE,
+        BLOCK
+    }
+
+    /**
+     * Receives records from poll(). The Sighting is reused, copy what you keep.
+     */
+    public interface Consumer {
+        void onSighting(long seq, Sighting sighting);
+    }
+
+    /**
+     * Told that a subscription has records to poll. Called on the producer's thread, so only
+     * schedule the poll here (e.g. Handler.post()).
+     */
+    public interface Listener {
+        void onAvailable(Subscription subscription);
+    }
+
+    public static final long DEFAULT_BLOCK_TIMEOUT_NANOS = 50000000L;
+
+    // read() results
+    private static final int READ_OK      = 1;
+    private static final int NOT_YET      = 0;
+    private static final int OVERWRITTEN  = -1;
+    private static final long PARK_NANOS  = 20000L;
+    private static final long WRITING     = Long.MIN_VALUE;
+
+    private final Sighting[]      slots;
+    // Sequence stored in each slot, WRITING + seq while seq is being written into it
+    private final AtomicLongArray stamps;
+    private final AtomicLong      head = new AtomicLong();
+    private final int             mask;
+    private final long            blockTimeoutNanos;
+    private final AtomicLong      blockedNanos = new AtomicLong();
+    private final AtomicLong      blockTimeouts = new AtomicLong();
+
+    private volatile Subscription[] subscriptions = new Subscription[0];
+    private volatile Subscription[] blocking      = new Subscription[0];
+
+    /**
+     * @param capacity number of records kept, rounded up to a power of two
+     */
+    public SightingBus(int capacity) {
+        this(capacity, DEFAULT_BLOCK_TIMEOUT_NANOS);
+    }
+
+    /**
+     * @param blockTimeoutNanos how long a producer waits for a BLOCK subscription before it
+     *                          overwrites the record anyway
+     */
+    public SightingBus(int capacity, long blockTimeoutNanos) {
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) size <<= 1;
+        slots  = new Sighting[size];
+        stamps = new AtomicLongArray(size);
+        for(int i = 0; i < size; ++i) {
+            slots[i] = new Sighting();
+            // As if the previous lap had written it
+            stamps.set(i, i - size);
+        }
+        mask = size - 1;
+        this.blockTimeoutNanos = blockTimeoutNanos;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return number of records published so far, also the sequence number of the next one
+     */
+    public long published() {
+        return head.get();
+    }
+
+    /**
+     * @return total time producers spent waiting for BLOCK subscriptions
+     */
+    public long blockedNanos() {
+        return blockedNanos.get();
+    }
+
+    /**
+     * @return how often a producer gave up waiting for a BLOCK subscription
+     */
+    public long blockTimeouts() {
+        return blockTimeouts.get();
+    }
+
+    /**
+     * Start reading at the next published record.
+     */
+    public synchronized Subscription subscribe(Backpressure policy) {
+        Subscription subscription = new Subscription(policy, head.get());
+        subscriptions = append(subscriptions, subscription);
+        if(policy == Backpressure.BLOCK) blocking = append(blocking, subscription);
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        subscriptions = remove(subscriptions, subscription);
+        blocking      = remove(blocking, subscription);
+    }
+
+    /**
+     * Copy a sighting into the bus. Safe to call from any number of threads.
+     * @return its sequence number
+     */
+    public long publish(Sighting sighting) {
+        long seq = head.getAndIncrement();
+        int  i   = (int) seq & mask;
+        Subscription[] gates = blocking;
+        if(gates.length > 0) awaitConsumers(gates, seq);
+        // Wait for the producer of the previous lap to finish with the slot
+        long previous = seq - slots.length;
+        while(stamps.get(i) != previous) Thread.yield();
+        stamps.set(i, WRITING + seq);
+        slots[i].copyFrom(sighting);
+        stamps.set(i, seq);
+        return seq;
+    }
+
+    /**
+     * Wake up the listeners of subscriptions that have not been told about new records yet.
+     */
+    public void signal() {
+        for(Subscription subscription : subscriptions) wake(subscription);
+    }
+
+    private static void wake(Subscription subscription) {
+        Listener listener = subscription.listener;
+        if(listener != null && subscription.armed.compareAndSet(true, false)) {
+            listener.onAvailable(subscription);
+        }
+    }
+
+    private void awaitConsumers(Subscription[] gates, long seq) {
+        long start = 0;
+        for(Subscription gate : gates) {
+            if(seq - gate.cursor < slots.length) continue;
+            if(start == 0) start = System.nanoTime();
+            // It may be waiting for a signal() that only comes after this publish()
+            wake(gate);
+            while(seq - gate.cursor >= slots.length && !gate.closed) {
+                if(System.nanoTime() - start > blockTimeoutNanos) {
+                    blockTimeouts.incrementAndGet();
+                    break;
+                }
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+        if(start != 0) blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Copy the record with the given sequence number into out.
+     */
+    private int read(long seq, Sighting out) {
+        int i = (int) seq & mask;
+        long stamp = stamps.get(i);
+        if(stamp == seq) {
+            out.copyFrom(slots[i]);
+            // Re-check in case a producer lapped us while copying
+            return stamps.get(i) == seq ? READ_OK : OVERWRITTEN;
+        }
+        // Claimed producers may still wait for BLOCK subscriptions, so only the stamp can tell
+        if(stamp < -slots.length) stamp -= WRITING;
+        return stamp > seq ? OVERWRITTEN : NOT_YET;
+    }
+
+    private static Subscription[] append(Subscription[] array, Subscription subscription) {
+        Subscription[] copy = Arrays.copyOf(array, array.length + 1);
+        copy[array.length] = subscription;
+        return copy;
+    }
+
+    private static Subscription[] remove(Subscription[] array, Subscription subscription) {
+        int n = 0;
+        Subscription[] copy = new Subscription[array.length];
+        for(Subscription s : array) if(s != subscription) copy[n++] = s;
+        return Arrays.copyOf(copy, n);
+    }
+
+    /**
+     * One consumer's view of the bus. poll() must only be called from one thread at a time.
+     */
+    public final class Subscription {
+
+        private final Backpressure  policy;
+        private final Sighting      scratch = new Sighting();
+        private final AtomicBoolean armed   = new AtomicBoolean(true);
+        private volatile Listener   listener;
+        private volatile boolean    closed;
+        // Next sequence number to read, written by the consumer only
+        private volatile long       cursor;
+        private long                delivered;
+        private long                dropped;
+        private long                coalesced;
+        // COALESCE: newest seq per MAC in the backlog, valid where generations[slot] == generation
+        private long[]              macs;
+        private long[]              newest;
+        private int[]               generations;
+        private int                 generation;
+
+        private Subscription(Backpressure policy, long cursor) {
+            this.policy = policy;
+            this.cursor = cursor;
+        }
+
+        public Backpressure policy() {
+            return policy;
+        }
+
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * @return number of records published but not polled yet (some may be lost already)
+         */
+        public long lag() {
+            return head.get() - cursor;
+        }
+
+        public long delivered() {
+            return delivered;
+        }
+
+        /**
+         * @return records that were overwritten before this subscription read them
+         */
+        public long dropped() {
+            return dropped;
+        }
+
+        /**
+         * @return records skipped because a newer record of the same device was delivered instead
+         */
+        public long coalesced() {
+            return coalesced;
+        }
+
+        /**
+         * Hand every available record to consumer, oldest first.
+         * @return number of records delivered
+         */
+        public int poll(Consumer consumer) {
+            // Arm first: anything published from here on gets another wakeup
+            armed.set(true);
+            long end = head.get();
+            long seq = cursor;
+            if(end - seq > slots.length && policy != Backpressure.BLOCK) {
+                dropped += end - slots.length - seq;
+                seq = end - slots.length;
+            }
+            if(policy == Backpressure.COALESCE && end - seq > slots.length / 2) {
+                return coalesce(consumer, seq, end);
+            }
+            int n = 0;
+            for(; seq < end; ++seq) {
+                int result = read(seq, scratch);
+                if(result == NOT_YET) break;
+                if(result == READ_OK) {
+                    consumer.onSighting(seq, scratch);
+                    ++n;
+                } else {
+                    ++dropped;
+                }
+                // Let blocked producers go on now and then
+                if((seq & 63) == 0) cursor = seq + 1;
+            }
+            cursor = seq;
+            delivered += n;
+            return n;
+        }
+
+        /**
+         * Deliver only the newest record of each device between seq and end.
+         */
+        private int coalesce(Consumer consumer, long seq, long end) {
+            if(macs == null) {
+                macs        = new long[slots.length * 2];
+                newest      = new long[slots.length * 2];
+                generations = new int[slots.length * 2];
+            }
+            ++generation;
+            // Stop at the first record that is not published yet, like poll()
+            long stop = seq;
+            for(; stop < end; ++stop) {
+                int result = read(stop, scratch);
+                if(result == NOT_YET) break;
+                if(result == READ_OK) newest[slotOf(scratch.mac)] = stop;
+            }
+            int n = 0;
+            for(; seq < stop; ++seq) {
+                if(read(seq, scratch) != READ_OK) {
+                    ++dropped;
+                } else if(newest[slotOf(scratch.mac)] == seq) {
+                    consumer.onSighting(seq, scratch);
+                    ++n;
+                } else {
+                    ++coalesced;
+                }
+            }
+            cursor = stop;
+            delivered += n;
+            return n;
+        }
+
+        private int slotOf(long mac) {
+            int tableMask = macs.length - 1;
+            int slot = MacAddress.hash(mac) & tableMask;
+            while(generations[slot] == generation && macs[slot] != mac) slot = (slot + 1) & tableMask;
+            if(generations[slot] != generation) {
+                generations[slot] = generation;
+                macs[slot] = mac;
+                newest[slot] = -1;
+            }
+            return slot;
+        }
+
+        /**
+         * Stop receiving; BLOCK producers no longer wait for this subscription.
+         */
+        public void close() {
+            closed = true;
+            listener = null;
+            unsubscribe(this);
+        }
+    }
+}
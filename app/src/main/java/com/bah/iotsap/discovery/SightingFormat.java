@@ -0,0 +1,90 @@
+package com.bah.iotsap.discovery;
+
+import com.bah.iotsap.location.PositionEstimator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * SightingFormat turns Sighting records into the JSON strings the rest of the app has always used:
+ * {"date":"yyyyMMddHHmmss","mac":"AA:BB:..","name":"..","rssi":-60}
+ * plus an "event" key (NEW, RSSI, EXPIRED) when the sighting came out of a DeviceTable, and
+ * "lat", "lon" and "accuracy" (meters) when it was tagged with a location, and "est_lat",
+ * "est_lon" and "est_radius" (meters) when given an estimate of where the device itself is.
+ * It keeps one SimpleDateFormat around, so it is NOT thread safe; give each consumer its own.
+ * Only use this at the edges (UI, export), never on the scan path.
+ */
+public final class SightingFormat {
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss");
+    private final Date             date       = new Date();
+    private final long             epochOffsetMillis;
+
+    /**
+     * @param epochOffsetMillis wall clock time at the monotonic time base zero, on Android:
+     *                          System.currentTimeMillis() - SystemClock.elapsedRealtime()
+     */
+    public SightingFormat(long epochOffsetMillis) {
+        this.epochOffsetMillis = epochOffsetMillis;
+    }
+
+    public long wallClockMillis(Sighting sighting) {
+        return epochOffsetMillis + sighting.timestampNanos / 1000000L;
+    }
+
+    public String date(Sighting sighting) {
+        date.setTime(wallClockMillis(sighting));
+        return dateFormat.format(date);
+    }
+
+    public JSONObject toJsonObject(Sighting sighting) throws JSONException {
+        return toJsonObject(sighting, null);
+    }
+
+    /**
+     * @param estimate position of the sighted device, see PositionEstimator; may be null
+     */
+    public JSONObject toJsonObject(Sighting sighting, PositionEstimator.Estimate estimate) throws JSONException {
+        JSONObject item = new JSONObject();
+        item.put("date", date(sighting));
+        item.put("mac",  MacAddress.toString(sighting.mac));
+        item.put("name", sighting.name);
+        item.put("rssi", sighting.rssi);
+        if(sighting.change != null && sighting.change != Sighting.Change.NONE) {
+            item.put("event", sighting.change.name());
+        }
+        if(sighting.hasLocation()) {
+            item.put("lat", sighting.latitude);
+            item.put("lon", sighting.longitude);
+            item.put("accuracy", sighting.accuracy);
+        }
+        if(estimate != null) {
+            item.put("est_lat", estimate.latitude);
+            item.put("est_lon", estimate.longitude);
+            item.put("est_radius", estimate.radiusMeters);
+        }
+        return item;
+    }
+
+    /**
+     * @return JSON string of the sighting, or null if it could not be built
+     */
+    public String toJson(Sighting sighting) {
+        return toJson(sighting, null);
+    }
+
+    /**
+     * @return JSON string of the sighting and the device's estimated position, or null if it
+     *         could not be built
+     */
+    public String toJson(Sighting sighting, PositionEstimator.Estimate estimate) {
+        try {
+            return toJsonObject(sighting, estimate).toString();
+        } catch(JSONException e) {
+            return null;
+        }
+    }
+}
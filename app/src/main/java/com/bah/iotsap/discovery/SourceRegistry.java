@@ -0,0 +1,117 @@
+package com.bah.iotsap.discovery;
+
+/**
+ * SourceRegistry keeps the discovery sources of the engine and what state each one is in, in
+ * arrays indexed by Sighting.Source. Whether a source runs is a lookup, and starting or stopping
+ * it only calls into that source; nothing asks the system which services are alive.
+ * A source that fails to start is kept as FAILED and tried again on the next start().
+ * Thread safe, although the engine only uses it from its main thread.
+ */
+public final class SourceRegistry {
+
+    public enum State { ABSENT, STOPPED, RUNNING, FAILED }
+
+    private static final int SOURCES = Sighting.Source.values().length;
+
+    private final DiscoverySource[] sources  = new DiscoverySource[SOURCES];
+    private final State[]           states   = new State[SOURCES];
+    private final long[]            starts   = new long[SOURCES];
+    private final long[]            failures = new long[SOURCES];
+
+    public SourceRegistry() {
+        for(int i = 0; i < SOURCES; ++i) states[i] = State.ABSENT;
+    }
+
+    /**
+     * Add a stopped source, closing the one it replaces.
+     */
+    public synchronized void register(DiscoverySource source) {
+        int i = source.source().ordinal();
+        if(sources[i] != null && sources[i] != source) sources[i].close();
+        sources[i] = source;
+        states[i]  = State.STOPPED;
+    }
+
+    /**
+     * @return true if the source runs, false if it is not registered or could not start
+     */
+    public synchronized boolean start(Sighting.Source source) {
+        int i = source.ordinal();
+        if(states[i] == State.RUNNING) return true;
+        if(sources[i] == null) return false;
+        if(sources[i].start()) {
+            states[i] = State.RUNNING;
+            starts[i]++;
+            return true;
+        }
+        states[i] = State.FAILED;
+        failures[i]++;
+        return false;
+    }
+
+    public synchronized void stop(Sighting.Source source) {
+        int i = source.ordinal();
+        if(states[i] == State.RUNNING) sources[i].stop();
+        if(sources[i] != null) states[i] = State.STOPPED;
+    }
+
+    public synchronized void stopAll() {
+        for(Sighting.Source source : Sighting.Source.values()) stop(source);
+    }
+
+    /**
+     * Stop and close every source and forget them.
+     */
+    public synchronized void closeAll() {
+        for(int i = 0; i < SOURCES; ++i) {
+            if(sources[i] == null) continue;
+            if(states[i] == State.RUNNING) sources[i].stop();
+            sources[i].close();
+            sources[i] = null;
+            states[i]  = State.ABSENT;
+        }
+    }
+
+    /**
+     * Hand a changed setting to the registered sources, running or not.
+     * @return true if a source took it
+     */
+    public synchronized boolean reconfigure(String key) {
+        boolean taken = false;
+        for(DiscoverySource source : sources) {
+            if(source != null && source.reconfigure(key)) taken = true;
+        }
+        return taken;
+    }
+
+    public synchronized State state(Sighting.Source source) {
+        return states[source.ordinal()];
+    }
+
+    public synchronized boolean isRunning(Sighting.Source source) {
+        return states[source.ordinal()] == State.RUNNING;
+    }
+
+    /**
+     * @return true if any source runs
+     */
+    public synchronized boolean isActive() {
+        for(State state : states) if(state == State.RUNNING) return true;
+        return false;
+    }
+
+    public synchronized long starts(Sighting.Source source)   { return starts[source.ordinal()]; }
+    public synchronized long failures(Sighting.Source source) { return failures[source.ordinal()]; }
+
+    public synchronized String summary() {
+        StringBuilder out = new StringBuilder();
+        for(int i = 0; i < SOURCES; ++i) {
+            if(sources[i] == null) continue;
+            if(out.length() > 0) out.append("; ");
+            out.append(Sighting.Source.values()[i]).append(' ').append(states[i])
+                    .append(", ").append(starts[i]).append(" starts, ").append(failures[i]).append(" failures")
+                    .append(", ").append(sources[i].summary());
+        }
+        return out.toString();
+    }
+}
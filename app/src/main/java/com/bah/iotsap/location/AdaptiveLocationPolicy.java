@@ -0,0 +1,165 @@
+package com.bah.iotsap.location;
+
+/**
+ * AdaptiveLocationPolicy samples hard only while it matters. It moves between three states:
+ *   MOVING      the last fixes moved further than their accuracy explains, or discovery keeps
+ *               finding new devices (a sign we are moving even before the fixes show it):
+ *               high accuracy every movingInterval
+ *   STATIONARY  no movement for stillAfter: balanced priority, with the interval doubling on
+ *               every fix that shows no movement, up to maxStationaryInterval
+ *   DORMANT     stationary and no new devices for dormantAfter: passive, plus one balanced
+ *               probe fix every probeInterval to notice being carried away
+ * Movement is measured against an anchor fix, so slow drift adds up instead of being lost
+ * between consecutive fixes.
+ */
+public class AdaptiveLocationPolicy implements LocationPolicy {
+
+    /** Least distance that counts as movement, whatever the fixes' accuracy claims */
+    public static final double MIN_MOVE_METERS  = 30;
+    /** New devices per minute above which we assume we are moving */
+    public static final double MOVING_YIELD_PER_MINUTE = 6.0;
+
+    private static final double EARTH_RADIUS_METERS = 6371000;
+
+    public enum State {
+        MOVING,
+        STATIONARY,
+        DORMANT
+    }
+
+    private final long movingInterval;
+    private final long stationaryInterval;
+    private final long maxStationaryInterval;
+    private final long probeInterval;
+    private final long stillAfter;
+    private final long dormantAfter;
+
+    private State  state;
+    private long   lastMotion;
+    private long   lastYield;
+    private long   lastFix;
+    private long   interval;
+    private double anchorLatitude;
+    private double anchorLongitude;
+    private float  anchorAccuracy;
+    private boolean anchored;
+    // New devices in the current minute, for the yield rate
+    private long   yieldStart;
+    private int    yieldCount;
+
+    /**
+     * Defaults for a walking / driving survey: 10 s fixes while moving, 1 to 10 min while
+     * stationary, passive after 30 min without movement or new devices.
+     */
+    public AdaptiveLocationPolicy() {
+        this(10000, 60000, 10 * 60000, 15 * 60000, 2 * 60000, 30 * 60000);
+    }
+
+    public AdaptiveLocationPolicy(long movingInterval, long stationaryInterval, long maxStationaryInterval,
+                                  long probeInterval, long stillAfter, long dormantAfter) {
+        if(movingInterval <= 0 || stationaryInterval < movingInterval || maxStationaryInterval < stationaryInterval) {
+            throw new IllegalArgumentException("invalid intervals");
+        }
+        this.movingInterval        = movingInterval;
+        this.stationaryInterval    = stationaryInterval;
+        this.maxStationaryInterval = maxStationaryInterval;
+        this.probeInterval         = probeInterval;
+        this.stillAfter            = stillAfter;
+        this.dormantAfter          = dormantAfter;
+        reset(0);
+    }
+
+    public State state() {
+        return state;
+    }
+
+    @Override
+    public void reset(long nowMillis) {
+        // Start out moving: we know nothing yet, and a first good fix is worth it
+        state      = State.MOVING;
+        lastMotion = nowMillis;
+        lastYield  = nowMillis;
+        lastFix    = nowMillis;
+        interval   = movingInterval;
+        anchored   = false;
+        yieldStart = nowMillis;
+        yieldCount = 0;
+    }
+
+    @Override
+    public void onFix(long nowMillis, double latitude, double longitude, float accuracy) {
+        lastFix = nowMillis;
+        if(!anchored) {
+            anchor(latitude, longitude, accuracy);
+            return;
+        }
+        double moved = distanceMeters(anchorLatitude, anchorLongitude, latitude, longitude);
+        // Accuracy is a 68% radius: two fixes of the same spot are easily their accuracies apart
+        if(moved > Math.max(MIN_MOVE_METERS, 2 * (anchorAccuracy + accuracy))) {
+            lastMotion = nowMillis;
+            anchor(latitude, longitude, accuracy);
+        } else {
+            if(state == State.STATIONARY) interval = Math.min(interval * 2, maxStationaryInterval);
+            // Keep the sharpest fix of the spot as the anchor
+            if(accuracy > 0 && accuracy < anchorAccuracy) anchor(latitude, longitude, accuracy);
+        }
+    }
+
+    @Override
+    public void onNewDevices(long nowMillis, int count) {
+        if(count <= 0) return;
+        if(nowMillis - yieldStart >= 60000) {
+            yieldStart = nowMillis;
+            yieldCount = 0;
+        }
+        yieldCount += count;
+        lastYield = nowMillis;
+        if(yieldCount >= MOVING_YIELD_PER_MINUTE) lastMotion = nowMillis;
+    }
+
+    @Override
+    public Settings settings(long nowMillis) {
+        State next;
+        if(nowMillis - lastMotion < stillAfter) {
+            next = State.MOVING;
+        } else if(nowMillis - Math.max(lastMotion, lastYield) < dormantAfter) {
+            next = State.STATIONARY;
+        } else {
+            next = State.DORMANT;
+        }
+        if(next != state) {
+            state = next;
+            if(next == State.STATIONARY) interval = stationaryInterval;
+        }
+        switch(state) {
+            case MOVING:
+                return new Settings(PRIORITY_HIGH_ACCURACY, movingInterval, movingInterval / 2);
+            case STATIONARY:
+                return new Settings(PRIORITY_BALANCED_POWER_ACCURACY, interval, interval / 2);
+            default:
+                if(nowMillis - lastFix >= probeInterval) {
+                    return new Settings(PRIORITY_BALANCED_POWER_ACCURACY, stationaryInterval, stationaryInterval / 2);
+                }
+                return new Settings(PRIORITY_NO_POWER, probeInterval, stationaryInterval);
+        }
+    }
+
+    private void anchor(double latitude, double longitude, float accuracy) {
+        anchorLatitude  = latitude;
+        anchorLongitude = longitude;
+        anchorAccuracy  = accuracy;
+        anchored        = true;
+    }
+
+    /**
+     * Equirectangular approximation; plenty for the distances between two fixes.
+     */
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLon = lon2 - lon1;
+        if(dLon > 180) dLon -= 360;
+        else if(dLon < -180) dLon += 360;
+        double x = Math.toRadians(dLon) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = Math.toRadians(lat2 - lat1);
+        return Math.sqrt(x * x + y * y) * EARTH_RADIUS_METERS;
+    }
+}
@@ -0,0 +1,72 @@
+package com.bah.iotsap.location;
+
+/**
+ * LocationPolicy decides how a LocationSampler asks the location provider for fixes: with which
+ * priority and how often. It is told about every fix and about discovery yield (new devices
+ * found), and is asked for its settings after each of those and whenever its current interval
+ * has passed, so it can also change its mind when nothing arrives at all.
+ * Policies are only called from the sampler's thread and do not need to be thread safe.
+ */
+public interface LocationPolicy {
+
+    // Mirrors of the com.google.android.gms.location.LocationRequest priorities, kept here so
+    // policies run on the JVM
+    int PRIORITY_HIGH_ACCURACY          = 100;
+    int PRIORITY_BALANCED_POWER_ACCURACY = 102;
+    int PRIORITY_LOW_POWER              = 104;
+    /** Passive: only fixes other apps asked for */
+    int PRIORITY_NO_POWER               = 105;
+
+    /**
+     * What to ask the provider for. Immutable, compare with equals().
+     */
+    final class Settings {
+        public final int  priority;
+        public final long intervalMillis;
+        public final long fastestIntervalMillis;
+
+        public Settings(int priority, long intervalMillis, long fastestIntervalMillis) {
+            this.priority              = priority;
+            this.intervalMillis        = intervalMillis;
+            this.fastestIntervalMillis = fastestIntervalMillis;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Settings)) return false;
+            Settings other = (Settings) o;
+            return priority == other.priority && intervalMillis == other.intervalMillis
+                    && fastestIntervalMillis == other.fastestIntervalMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return (priority * 31 + (int) intervalMillis) * 31 + (int) fastestIntervalMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "priority " + priority + " every " + intervalMillis + " ms (fastest " + fastestIntervalMillis + ")";
+        }
+    }
+
+    /**
+     * Forget everything learned, the sampler starts over.
+     */
+    void reset(long nowMillis);
+
+    /**
+     * @param accuracy horizontal accuracy in meters, 0 if unknown
+     */
+    void onFix(long nowMillis, double latitude, double longitude, float accuracy);
+
+    /**
+     * @param count number of devices discovery saw for the first time since the last call
+     */
+    void onNewDevices(long nowMillis, int count);
+
+    /**
+     * @return how to sample from now on; return an equal Settings to keep the current request
+     */
+    Settings settings(long nowMillis);
+}
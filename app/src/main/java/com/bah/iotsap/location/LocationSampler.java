@@ -0,0 +1,202 @@
+package com.bah.iotsap.location;
+
+import com.bah.iotsap.discovery.ScanScheduler;
+
+/**
+ * LocationSampler keeps one location subscription in line with a LocationPolicy. Fixes, discovery
+ * yield and a timer that fires once per current interval all ask the policy for its settings, and
+ * only when they changed is the Client asked to replace its request; the client itself is never
+ * re-created. Every fix also goes into the LocationTrack that sightings are tagged from.
+ *
+ * It counts fixes per priority and time spent at each priority, and estimates the energy the
+ * location requests cost with a rough per fix model (see millijoules()). The model is only good
+ * for comparing policies with each other, not as a battery gauge.
+ * The client and the clock are interfaces so a whole deployment can be replayed with a fake clock
+ * on the JVM. All methods must be called from the thread the Timer runs its tasks on.
+ */
+public final class LocationSampler {
+
+    /**
+     * The location provider, backed by the FusedLocationProviderClient on Android.
+     */
+    public interface Client {
+        /** Replace the current request, if any */
+        void request(LocationPolicy.Settings settings);
+        void remove();
+    }
+
+    // Rough cost of one fix in mJ: a warm GPS fix, a Wi-Fi scan, a cell lookup
+    static final double GPS_FIX_MILLIJOULES  = 1500;
+    static final double WIFI_FIX_MILLIJOULES = 250;
+    static final double CELL_FIX_MILLIJOULES = 40;
+    /** GPS draws this continuously when asked for fixes more often than GPS_CONTINUOUS_BELOW */
+    static final double GPS_MILLIWATTS        = 120;
+    static final long   GPS_CONTINUOUS_BELOW  = 30000;
+
+    private final Client         client;
+    private final ScanScheduler.Timer timer;
+    private final LocationPolicy policy;
+    private final LocationTrack  track;
+
+    private boolean                  running;
+    private LocationPolicy.Settings  current;
+    private long                     since;
+    private long                     startedAt;
+    private long                     stoppedAt;
+    private long                     fixes;
+    private long                     changes;
+    private double                   millijoules;
+    private final long[]             fixesByPriority  = new long[4];
+    private final long[]             millisByPriority = new long[4];
+
+    private final Runnable evaluate = new Runnable() {
+        @Override
+        public void run() {
+            update();
+        }
+    };
+
+    public LocationSampler(Client client, ScanScheduler.Timer timer, LocationPolicy policy, LocationTrack track) {
+        this.client = client;
+        this.timer  = timer;
+        this.policy = policy;
+        this.track  = track;
+    }
+
+    public void start() {
+        if(running) return;
+        running   = true;
+        startedAt = timer.now();
+        stoppedAt = 0;
+        fixes = changes = 0;
+        millijoules = 0;
+        for(int i = 0; i < 4; ++i) fixesByPriority[i] = millisByPriority[i] = 0;
+        policy.reset(startedAt);
+        update();
+    }
+
+    public void stop() {
+        if(!running) return;
+        account(timer.now());
+        running   = false;
+        stoppedAt = timer.now();
+        current   = null;
+        timer.cancel(evaluate);
+        client.remove();
+    }
+
+    /**
+     * @param timeNanos time of the fix in the Sighting time base, for the track
+     */
+    public void onFix(long timeNanos, double latitude, double longitude, float accuracy) {
+        track.add(timeNanos, latitude, longitude, accuracy);
+        if(!running) return;
+        fixes++;
+        if(current != null) fixesByPriority[slot(current.priority)]++;
+        policy.onFix(timer.now(), latitude, longitude, accuracy);
+        update();
+    }
+
+    public void onNewDevices(int count) {
+        if(!running || count <= 0) return;
+        policy.onNewDevices(timer.now(), count);
+        update();
+    }
+
+    public boolean isRunning() { return running; }
+    public long    fixes()     { return fixes; }
+    /** Number of times the request was replaced */
+    public long    changes()   { return changes; }
+
+    public LocationPolicy.Settings settings() {
+        return current;
+    }
+
+    /**
+     * @param priority one of the LocationPolicy.PRIORITY_* values
+     */
+    public long fixes(int priority) {
+        return fixesByPriority[slot(priority)];
+    }
+
+    /**
+     * @return time spent at priority since start(), up to now
+     */
+    public long millis(int priority) {
+        long millis = millisByPriority[slot(priority)];
+        if(running && current != null && current.priority == priority) millis += timer.now() - since;
+        return millis;
+    }
+
+    public double fixesPerHour() {
+        long elapsed = (running ? timer.now() : stoppedAt) - startedAt;
+        return elapsed <= 0 ? 0 : fixes * 3600000.0 / elapsed;
+    }
+
+    /**
+     * @return estimated energy of the location requests since start(), in mJ
+     */
+    public double estimatedMillijoules() {
+        double total = millijoules;
+        if(running && current != null) total += millijoules(current, timer.now() - since);
+        return total;
+    }
+
+    /**
+     * Rough energy of holding a request for durationMillis: the fixes it asks for times their
+     * cost, or continuous GPS power for high accuracy requests too frequent to let GPS sleep.
+     * Passive requests are free; they only get fixes somebody else paid for.
+     */
+    public static double millijoules(LocationPolicy.Settings settings, long durationMillis) {
+        double fixes = (double) durationMillis / Math.max(1, settings.intervalMillis);
+        switch(settings.priority) {
+            case LocationPolicy.PRIORITY_HIGH_ACCURACY:
+                if(settings.intervalMillis < GPS_CONTINUOUS_BELOW) return GPS_MILLIWATTS * durationMillis / 1000.0;
+                return fixes * GPS_FIX_MILLIJOULES;
+            case LocationPolicy.PRIORITY_BALANCED_POWER_ACCURACY:
+                return fixes * WIFI_FIX_MILLIJOULES;
+            case LocationPolicy.PRIORITY_LOW_POWER:
+                return fixes * CELL_FIX_MILLIJOULES;
+            default:
+                return 0;
+        }
+    }
+
+    public String summary() {
+        return fixes + " fixes (" + Math.round(fixesPerHour()) + "/h), ~" + Math.round(estimatedMillijoules() / 1000)
+                + " J, " + changes + " request changes, now " + current;
+    }
+
+    private void update() {
+        if(!running) return;
+        long now = timer.now();
+        LocationPolicy.Settings next = policy.settings(now);
+        if(!next.equals(current)) {
+            account(now);
+            current = next;
+            changes++;
+            client.request(next);
+        }
+        // Let the policy change its mind even when no fix comes in
+        timer.cancel(evaluate);
+        timer.schedule(evaluate, current.intervalMillis);
+    }
+
+    private void account(long now) {
+        if(current != null) {
+            long duration = now - since;
+            millisByPriority[slot(current.priority)] += duration;
+            millijoules += millijoules(current, duration);
+        }
+        since = now;
+    }
+
+    private static int slot(int priority) {
+        switch(priority) {
+            case LocationPolicy.PRIORITY_HIGH_ACCURACY:           return 0;
+            case LocationPolicy.PRIORITY_BALANCED_POWER_ACCURACY: return 1;
+            case LocationPolicy.PRIORITY_LOW_POWER:               return 2;
+            default:                                              return 3;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.bah.iotsap.location;
+
+import com.bah.iotsap.discovery.Sighting;
+
+/**
+ * LocationTrack keeps the most recent location fixes of this device in time order, so sightings
+ * can be tagged with where they were made without asking the location provider for anything per
+ * sighting. The provider's callback add()s its fixes; every add() publishes a new immutable
+ * Snapshot that any thread can read without locking. Snapshot.locate() finds the fixes around a
+ * sighting's timestamp by binary search and interpolates between them.
+ * Fixes arrive every few seconds at most, so copying the (bounded) track on add() costs next to
+ * nothing compared to the lookups it saves a lock on.
+ * Example:
+ *   track.add(location.getElapsedRealtimeNanos(), location.getLatitude(), ...);   // provider
+ *   track.snapshot().locate(sighting.timestampNanos, sighting);                  // any thread
+ */
+public final class LocationTrack {
+
+    public static final int  DEFAULT_CAPACITY      = 256;
+    /** Fixes further apart than this are not interpolated between */
+    public static final long DEFAULT_MAX_GAP_NANOS = 120L * 1000000000L;
+    /** How far from the nearest fix a sighting may be to still get its position */
+    public static final long DEFAULT_MAX_AGE_NANOS = 30L * 1000000000L;
+
+    private final int      capacity;
+    private final long     maxGapNanos;
+    private final long     maxAgeNanos;
+    private volatile Snapshot snapshot;
+
+    public LocationTrack() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_GAP_NANOS, DEFAULT_MAX_AGE_NANOS);
+    }
+
+    /**
+     * @param capacity    number of fixes kept, the oldest go first
+     * @param maxGapNanos fixes further apart are not interpolated between
+     * @param maxAgeNanos a sighting this close to its nearest fix takes that fix's position when
+     *                    it cannot be interpolated (outside the track, or inside a large gap)
+     */
+    public LocationTrack(int capacity, long maxGapNanos, long maxAgeNanos) {
+        if(capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity    = capacity;
+        this.maxGapNanos = maxGapNanos;
+        this.maxAgeNanos = maxAgeNanos;
+        this.snapshot    = new Snapshot(new long[0], new double[0], new double[0], new float[0],
+                maxGapNanos, maxAgeNanos);
+    }
+
+    /**
+     * @return the fixes as of now; keep using the same one for a batch of lookups
+     */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Add a fix. Fixes may come out of order (e.g. a batch after a provider flush); a fix with the
+     * time of one already kept replaces it, one older than everything in a full track is ignored.
+     * @param timeNanos time of the fix in the Sighting time base (elapsedRealtimeNanos on Android)
+     * @param accuracy  horizontal accuracy in meters
+     */
+    public synchronized void add(long timeNanos, double latitude, double longitude, float accuracy) {
+        if(Double.isNaN(latitude) || Double.isNaN(longitude)) return;
+        Snapshot old = snapshot;
+        int n = old.times.length;
+        int at = old.search(timeNanos);
+        if(at >= 0 && old.times[at] == timeNanos) {
+            Snapshot copy = old.copy(0, n, -1);
+            copy.set(at, timeNanos, latitude, longitude, accuracy);
+            snapshot = copy;
+            return;
+        }
+        int insert = at + 1;
+        // Full: make room by dropping the oldest, unless the new fix would be the oldest
+        int drop = n == capacity ? 1 : 0;
+        if(drop == 1 && insert == 0) return;
+        Snapshot copy = old.copy(drop, n, insert);
+        copy.set(insert - drop, timeNanos, latitude, longitude, accuracy);
+        snapshot = copy;
+    }
+
+    public synchronized void clear() {
+        snapshot = new Snapshot(new long[0], new double[0], new double[0], new float[0],
+                maxGapNanos, maxAgeNanos);
+    }
+
+    /**
+     * An immutable, time ordered set of fixes.
+     */
+    public static final class Snapshot {
+
+        private final long[]   times;
+        private final double[] latitudes;
+        private final double[] longitudes;
+        private final float[]  accuracies;
+        private final long     maxGapNanos;
+        private final long     maxAgeNanos;
+
+        private Snapshot(long[] times, double[] latitudes, double[] longitudes, float[] accuracies,
+                         long maxGapNanos, long maxAgeNanos) {
+            this.times       = times;
+            this.latitudes   = latitudes;
+            this.longitudes  = longitudes;
+            this.accuracies  = accuracies;
+            this.maxGapNanos = maxGapNanos;
+            this.maxAgeNanos = maxAgeNanos;
+        }
+
+        public int size() {
+            return times.length;
+        }
+
+        public long   time(int i)      { return times[i]; }
+        public double latitude(int i)  { return latitudes[i]; }
+        public double longitude(int i) { return longitudes[i]; }
+        public float  accuracy(int i)  { return accuracies[i]; }
+
+        /**
+         * Set out's location to where this device was at timeNanos: interpolated between the fixes
+         * around it, or the nearest fix if that is within the max age. Never allocates.
+         * @return false, leaving out untouched, if the track does not cover timeNanos
+         */
+        public boolean locate(long timeNanos, Sighting out) {
+            int n = times.length;
+            if(n == 0) return false;
+            int before = search(timeNanos);
+            int after  = before + 1;
+            if(before >= 0 && times[before] == timeNanos) return take(before, out);
+            if(before >= 0 && after < n && times[after] - times[before] <= maxGapNanos) {
+                double f = (double) (timeNanos - times[before]) / (times[after] - times[before]);
+                double latitude = latitudes[before] + (latitudes[after] - latitudes[before]) * f;
+                // Go the short way round across the antimeridian
+                double delta = longitudes[after] - longitudes[before];
+                if(delta > 180) delta -= 360;
+                else if(delta < -180) delta += 360;
+                double longitude = longitudes[before] + delta * f;
+                if(longitude >= 180) longitude -= 360;
+                else if(longitude < -180) longitude += 360;
+                float accuracy = (float) (accuracies[before] + (accuracies[after] - accuracies[before]) * f);
+                out.setLocation(latitude, longitude, accuracy);
+                return true;
+            }
+            long toBefore = before >= 0 ? timeNanos - times[before] : Long.MAX_VALUE;
+            long toAfter  = after < n ? times[after] - timeNanos : Long.MAX_VALUE;
+            if(toBefore <= toAfter) return toBefore <= maxAgeNanos && take(before, out);
+            return toAfter <= maxAgeNanos && take(after, out);
+        }
+
+        /**
+         * @return index of the last fix at or before timeNanos, -1 if there is none
+         */
+        int search(long timeNanos) {
+            int low = 0;
+            int high = times.length - 1;
+            while(low <= high) {
+                int mid = (low + high) >>> 1;
+                if(times[mid] <= timeNanos) low = mid + 1;
+                else high = mid - 1;
+            }
+            return high;
+        }
+
+        private boolean take(int i, Sighting out) {
+            out.setLocation(latitudes[i], longitudes[i], accuracies[i]);
+            return true;
+        }
+
+        /**
+         * @return a copy of [from, to) with an empty slot at gap (index into the original),
+         *         or no gap if gap is -1
+         */
+        private Snapshot copy(int from, int to, int gap) {
+            int size = to - from + (gap >= 0 ? 1 : 0);
+            Snapshot copy = new Snapshot(new long[size], new double[size], new double[size],
+                    new float[size], maxGapNanos, maxAgeNanos);
+            int split = gap >= 0 ? gap : to;
+            int head = split - from;
+            System.arraycopy(times, from, copy.times, 0, head);
+            System.arraycopy(latitudes, from, copy.latitudes, 0, head);
+            System.arraycopy(longitudes, from, copy.longitudes, 0, head);
+            System.arraycopy(accuracies, from, copy.accuracies, 0, head);
+            int tail = to - split;
+            int at = size - tail;
+            System.arraycopy(times, split, copy.times, at, tail);
+            System.arraycopy(latitudes, split, copy.latitudes, at, tail);
+            System.arraycopy(longitudes, split, copy.longitudes, at, tail);
+            System.arraycopy(accuracies, split, copy.accuracies, at, tail);
+            return copy;
+        }
+
+        // Only on copies that are not published yet
+        private void set(int i, long time, double latitude, double longitude, float accuracy) {
+            times[i]      = time;
+            latitudes[i]  = latitude;
+            longitudes[i] = longitude;
+            accuracies[i] = accuracy;
+        }
+
+        @Override
+        public String toString() {
+            int last = size() - 1;
+            return size() + " fixes" + (last < 0 ? "" : ", latest " + latitudes[last] + ","
+                    + longitudes[last] + " at " + times[last]);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.bah.iotsap.location;
+
+import com.bah.iotsap.discovery.Sighting;
+
+/**
+ * PositionEstimator estimates where every device is from the RSSI it was heard at by this device
+ * at many known positions (located sightings).
+ * Each observation becomes a range, d = 10^((txPower - rssi) / (10 n)) with the log-distance path
+ * loss model, from the observer's position in a local plane (meters around the first observer
+ * position of the device). Ranges are combined by weighted least squares on the linearized
+ * circle equations
+ *   -2 x px - 2 y py + R = d^2 - x^2 - y^2   (R = px^2 + py^2)
+ * whose normal equations only need running sums, so an update is O(1) and a device takes a
+ * fixed BYTES_PER_DEVICE however often it is heard. Weights are the inverse variance of d^2
+ * (shadowing grows with distance, plus the observer's own accuracy), and older observations
+ * fade with a half life so devices that move are followed.
+ * Until there are three observations from distinct enough positions (or when trilateration is
+ * less certain than that), the estimate is the weighted centroid of the observers instead.
+ * A device heard several times in a row where it cannot be according to its estimate has moved:
+ * its sums start over from there.
+ * The uncertainty radius comes from the residuals: the device is within twice of it about 90%
+ * of the time.
+ * Devices live in fixed size columns: when they are full the least recently heard of a few
+ * candidates is evicted, so memory stays within the budget given at construction.
+ * Thread safe (synchronized): the pipeline updates while the UI and exports read.
+ */
+public final class PositionEstimator {
+
+    /**
+     * Position of a device, filled by estimate().
+     */
+    public static final class Estimate {
+        public double  latitude;
+        public double  longitude;
+        /** Uncertainty of the position in meters, see the class comment */
+        public float   radiusMeters;
+        /** Observations folded in since the device was first heard */
+        public int     observations;
+        /** True if trilaterated, false for the observers' weighted centroid */
+        public boolean trilaterated;
+        /** Monotonic time of the latest observation */
+        public long    lastNanos;
+
+        @Override
+        public String toString() {
+            return "Estimate{" + latitude + "," + longitude + " +-" + radiusMeters + "m, " + observations
+                    + (trilaterated ? " ranges}" : " ranges, centroid}");
+        }
+    }
+
+    /** RSSI at one meter of a typical BLE advertiser */
+    public static final int    DEFAULT_TX_POWER       = -59;
+    /** Path loss exponent, between free space (2) and indoors (3 and more) */
+    public static final double DEFAULT_PATH_LOSS      = 2.5;
+    public static final long   DEFAULT_HALF_LIFE_NANOS = 3600L * 1000000000L;
+    /** Memory one device takes: MAC, anchor, time, counts, sums and (at most) its share of the table */
+    public static final int    BYTES_PER_DEVICE       = 8 + 2 * 8 + 8 + 4 + 1 + 12 * 8 + 4 * 4;
+
+    private static final double EARTH_RADIUS   = 6371008.8;
+    private static final double METERS_PER_DEG = EARTH_RADIUS * Math.PI / 180;
+    // Shadowing as a share of the distance, about 4 dB with n = 2.5
+    private static final double RANGE_ERROR    = 0.4;
+    private static final double MIN_RANGE      = 0.5;
+    private static final double MAX_RANGE      = 300;
+    private static final float  MIN_RADIUS     = 1f;
+    private static final int    EVICTION_SAMPLES = 8;
+    // E[d^2] = d^2 exp(2 s^2) for log-normal ranges with log standard deviation s ~ ln(1 + RANGE_ERROR)
+    private static final double SQUARE_BIAS    = Math.exp(-2 * Math.pow(Math.log1p(RANGE_ERROR), 2));
+    // An observation further from the estimate than this many standard deviations is inconsistent
+    private static final double MOVE_SIGMAS    = 5;
+    private static final int    MOVE_STRIKES   = 3;
+    // The linearized covariance is optimistic (d^2 is skewed, fixes and ranges are noisier than
+    // modelled); scaled so the true position is within twice the radius about 90% of the time
+    private static final double RADIUS_SCALE   = 2;
+
+    // Running sums per device, STATS apart
+    private static final int N = 0, W = 1, X = 2, Y = 3, XX = 4, XY = 5, YY = 6, D = 7,
+                             B = 8, XB = 9, YB = 10, BB = 11, STATS = 12;
+
+    private final int      capacity;
+    private final int      txPower;
+    private final double   pathLoss;
+    private final double   halfLifeNanos;
+    private final long[]   macs;
+    private final double[] anchors;      // lat, lon per device
+    private final long[]   lastNanos;
+    private final int[]    counts;
+    private final double[] stats;
+    private final int[]    table;        // slot + 1, 0 for empty
+    private final byte[]   strikes;      // inconsistent observations in a row
+    private int            size;
+    private int            hand;
+    // Result of solve()
+    private double         solvedX;
+    private double         solvedY;
+    private double         solvedRadius;
+    private boolean        solvedTrilaterated;
+    private long           updates;
+    private long           evictions;
+    private long           resets;
+
+    public PositionEstimator(int capacity) {
+        this(capacity, DEFAULT_TX_POWER, DEFAULT_PATH_LOSS, DEFAULT_HALF_LIFE_NANOS);
+    }
+
+    /**
+     * @param capacity      devices tracked at most, see capacityFor()
+     * @param txPower       RSSI at one meter
+     * @param pathLoss      path loss exponent
+     * @param halfLifeNanos age at which an observation counts half
+     */
+    public PositionEstimator(int capacity, int txPower, double pathLoss, long halfLifeNanos) {
+        this.capacity      = capacity;
+        this.txPower       = txPower;
+        this.pathLoss      = pathLoss;
+        this.halfLifeNanos = halfLifeNanos;
+        macs      = new long[capacity];
+        anchors   = new double[2 * capacity];
+        lastNanos = new long[capacity];
+        counts    = new int[capacity];
+        strikes   = new byte[capacity];
+        stats     = new double[STATS * capacity];
+        table     = new int[Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2];
+    }
+
+    /**
+     * @return how many devices fit into a memory budget
+     */
+    public static int capacityFor(long budgetBytes) {
+        return (int) Math.min(Integer.MAX_VALUE / 4, budgetBytes / BYTES_PER_DEVICE);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long updates() {
+        return updates;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    /**
+     * Fold a located sighting into its device's estimate. Sightings without a location, and
+     * expiries (which carry no fresh RSSI), are ignored.
+     * @return true if it was used
+     */
+    public boolean update(Sighting sighting) {
+        if(!sighting.hasLocation() || sighting.change == Sighting.Change.EXPIRED) return false;
+        update(sighting.mac, sighting.rssi, sighting.latitude, sighting.longitude, sighting.accuracy,
+                sighting.timestampNanos);
+        return true;
+    }
+
+    /**
+     * @param accuracy  accuracy of the observer's position in meters
+     * @param timeNanos monotonic time of the observation
+     */
+    public synchronized void update(long mac, int rssi, double latitude, double longitude, float accuracy,
+                                    long timeNanos) {
+        int slot = find(mac);
+        if(slot < 0) slot = insert(mac, latitude, longitude, timeNanos);
+        double d = range(rssi);
+        if(counts[slot] >= 3 && !consistent(slot, latitude, longitude, d, accuracy)) {
+            // Heard where it cannot be several times running: it moved, start over from here
+            if(++strikes[slot] >= MOVE_STRIKES) {
+                reset(slot, latitude, longitude);
+                resets++;
+            }
+        } else {
+            strikes[slot] = 0;
+        }
+        int s = slot * STATS;
+        long age = timeNanos - lastNanos[slot];
+        if(age > 0) {
+            double decay = Math.pow(0.5, age / halfLifeNanos);
+            for(int i = 0; i < STATS; ++i) stats[s + i] *= decay;
+            lastNanos[slot] = timeNanos;
+        }
+        double x = east(slot, longitude), y = north(slot, latitude);
+        // Variance of d^2 is about (2 d sd)^2
+        double sd2 = RANGE_ERROR * RANGE_ERROR * d * d + (double) accuracy * accuracy;
+        double w = 1 / (4 * d * d * sd2 + 1e-9);
+        // Shadowing is log-normal, so d^2 from the model overshoots on average
+        double b = d * d * SQUARE_BIAS - x * x - y * y;
+        stats[s + N]  += 1;
+        stats[s + W]  += w;
+        stats[s + X]  += w * x;
+        stats[s + Y]  += w * y;
+        stats[s + XX] += w * x * x;
+        stats[s + XY] += w * x * y;
+        stats[s + YY] += w * y * y;
+        stats[s + D]  += w * d;
+        stats[s + B]  += w * b;
+        stats[s + XB] += w * x * b;
+        stats[s + YB] += w * y * b;
+        stats[s + BB] += w * b * b;
+        counts[slot]++;
+        updates++;
+    }
+
+    /**
+     * @return false if the device is not tracked (never heard at a known position, or evicted)
+     */
+    public synchronized boolean estimate(long mac, Estimate out) {
+        int slot = find(mac);
+        if(slot < 0) return false;
+        solve(slot);
+        double lat0 = anchors[2 * slot];
+        out.latitude     = lat0 + solvedY / METERS_PER_DEG;
+        out.longitude    = wrap(anchors[2 * slot + 1] + solvedX / (METERS_PER_DEG * Math.cos(Math.toRadians(lat0))));
+        out.radiusMeters = Math.max(MIN_RADIUS, (float) solvedRadius);
+        out.observations = counts[slot];
+        out.trilaterated = solvedTrilaterated;
+        out.lastNanos    = lastNanos[slot];
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PositionEstimator{" + size + "/" + capacity + " devices, " + updates + " updates, "
+                + evictions + " evicted, " + resets + " moved}";
+    }
+
+    /**
+     * @return range in meters for an RSSI, by the path loss model
+     */
+    double range(int rssi) {
+        double d = Math.pow(10, (txPower - rssi) / (10 * pathLoss));
+        return Math.max(MIN_RANGE, Math.min(MAX_RANGE, d));
+    }
+
+    /**
+     * Work out the position of the device in slot, in its local plane, into the solved* fields.
+     */
+    private void solve(int slot) {
+        int s = slot * STATS;
+        double sw = stats[s + W];
+        // Weighted centroid of the observers, spread plus typical range as its uncertainty
+        double cx = stats[s + X] / sw, cy = stats[s + Y] / sw;
+        double spread = Math.max(0, stats[s + XX] / sw - cx * cx + stats[s + YY] / sw - cy * cy);
+        double range = stats[s + D] / sw;
+        solvedX            = cx;
+        solvedY            = cy;
+        solvedRadius       = Math.sqrt(spread + range * range);
+        solvedTrilaterated = false;
+        if(counts[slot] < 3 || stats[s + N] <= 3) return;
+
+        // Normal equations N t = r for t = (px, py, R)
+        double a = 4 * stats[s + XX], bxy = 4 * stats[s + XY], c = -2 * stats[s + X];
+        double e = 4 * stats[s + YY], f = -2 * stats[s + Y], g = sw;
+        double r0 = -2 * stats[s + XB], r1 = -2 * stats[s + YB], r2 = stats[s + B];
+        // Cofactors of the symmetric matrix [[a, bxy, c], [bxy, e, f], [c, f, g]]
+        double c00 = e * g - f * f, c01 = c * f - bxy * g, c02 = bxy * f - c * e;
+        double c11 = a * g - c * c, c12 = bxy * c - a * f, c22 = a * e - bxy * bxy;
+        double det = a * c00 + bxy * c01 + c * c02;
+        // Observers (nearly) on a line leave the position ambiguous
+        if(!(Math.abs(det) > 1e-12 * Math.abs(a * e * g))) return;
+        double tx = (c00 * r0 + c01 * r1 + c02 * r2) / det;
+        double ty = (c01 * r0 + c11 * r1 + c12 * r2) / det;
+        double tr = (c02 * r0 + c12 * r1 + c22 * r2) / det;
+        double rss = Math.max(0, stats[s + BB] - (tx * r0 + ty * r1 + tr * r2));
+        double sigma2 = rss / Math.max(1, stats[s + N] - 3);
+        double radius = RADIUS_SCALE * Math.sqrt(sigma2 * (c00 + c11) / det);
+        if(radius > 0 && radius < solvedRadius) {
+            solvedX            = tx;
+            solvedY            = ty;
+            solvedRadius       = radius;
+            solvedTrilaterated = true;
+        }
+    }
+
+    /**
+     * @return true if a range d from the given position fits the device's current estimate
+     */
+    private boolean consistent(int slot, double latitude, double longitude, double d, float accuracy) {
+        solve(slot);
+        double dx = east(slot, longitude) - solvedX, dy = north(slot, latitude) - solvedY;
+        double sd = Math.sqrt(solvedRadius * solvedRadius + RANGE_ERROR * RANGE_ERROR * d * d
+                + (double) accuracy * accuracy);
+        return Math.abs(Math.hypot(dx, dy) - d) <= MOVE_SIGMAS * sd;
+    }
+
+    private void reset(int slot, double latitude, double longitude) {
+        anchors[2 * slot]     = latitude;
+        anchors[2 * slot + 1] = longitude;
+        counts[slot]          = 0;
+        strikes[slot]         = 0;
+        java.util.Arrays.fill(stats, slot * STATS, (slot + 1) * STATS, 0);
+    }
+
+    private double east(int slot, double longitude) {
+        double lat0 = anchors[2 * slot];
+        return wrap(longitude - anchors[2 * slot + 1]) * METERS_PER_DEG * Math.cos(Math.toRadians(lat0));
+    }
+
+    private double north(int slot, double latitude) {
+        return (latitude - anchors[2 * slot]) * METERS_PER_DEG;
+    }
+
+    private static double wrap(double longitude) {
+        if(longitude > 180) return longitude - 360;
+        if(longitude < -180) return longitude + 360;
+        return longitude;
+    }
+
+    // ----------------------------------------------------------------------------------------
+
+    private int find(long mac) {
+        int mask = table.length - 1;
+        for(int i = hash(mac) & mask; table[i] != 0; i = (i + 1) & mask) {
+            if(macs[table[i] - 1] == mac) return table[i] - 1;
+        }
+        return -1;
+    }
+
+    private int insert(long mac, double latitude, double longitude, long timeNanos) {
+        if(size == capacity) evict();
+        int slot = size++;
+        macs[slot]            = mac;
+        anchors[2 * slot]     = latitude;
+        anchors[2 * slot + 1] = longitude;
+        lastNanos[slot]       = timeNanos;
+        reset(slot, latitude, longitude);
+        int mask = table.length - 1;
+        int i = hash(mac) & mask;
+        while(table[i] != 0) i = (i + 1) & mask;
+        table[i] = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Remove the least recently heard of a few devices after the clock hand.
+     */
+    private void evict() {
+        int victim = -1;
+        for(int k = 0; k < EVICTION_SAMPLES; ++k) {
+            int slot = (hand + k) % size;
+            if(victim < 0 || lastNanos[slot] < lastNanos[victim]) victim = slot;
+        }
+        hand = (hand + EVICTION_SAMPLES) % size;
+        remove(victim);
+        evictions++;
+    }
+
+    /**
+     * Take slot out of the table (shifting its probe run back) and move the last device into it.
+     */
+    private void remove(int slot) {
+        int mask = table.length - 1;
+        int i = hash(macs[slot]) & mask;
+        while(table[i] != slot + 1) i = (i + 1) & mask;
+        // Backward shift deletion keeps every probe run unbroken
+        int j = i;
+        while(true) {
+            j = (j + 1) & mask;
+            if(table[j] == 0) break;
+            int home = hash(macs[table[j] - 1]) & mask;
+            if(((j - home) & mask) >= ((j - i) & mask)) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+        table[i] = 0;
+
+        int last = --size;
+        if(slot == last) return;
+        long mac = macs[last];
+        int k = hash(mac) & mask;
+        while(table[k] != last + 1) k = (k + 1) & mask;
+        table[k] = slot + 1;
+        macs[slot]            = mac;
+        anchors[2 * slot]     = anchors[2 * last];
+        anchors[2 * slot + 1] = anchors[2 * last + 1];
+        lastNanos[slot]       = lastNanos[last];
+        counts[slot]          = counts[last];
+        strikes[slot]         = strikes[last];
+        System.arraycopy(stats, last * STATS, stats, slot * STATS, STATS);
+    }
+
+    private static int hash(long mac) {
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+}
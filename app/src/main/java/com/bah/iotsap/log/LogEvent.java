@@ -0,0 +1,90 @@
+package com.bah.iotsap.log;
+
+import com.bah.iotsap.discovery.MacAddress;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LogEvent is one kind of line in a RingLog: its level, tag and format, registered once with
+ * RingLog.event(). Only its id and up to MAX_ARGS primitive arguments go into the ring; the
+ * format is applied when the ring is dumped.
+ * Placeholders: "{}" decimal, "{x}" hex, "{mac}" a packed MAC address.
+ */
+public final class LogEvent {
+
+    public static final int MAX_ARGS = 4;
+
+    private static final char DECIMAL = 'd';
+    private static final char HEX     = 'x';
+    private static final char MAC     = 'm';
+
+    public final int    id;
+    public final int    level;
+    public final String tag;
+    public final String format;
+    // Text before each placeholder, and after the last one
+    private final String[] literals;
+    private final char[]   kinds;
+
+    /**
+     * @throws IllegalArgumentException for an unknown placeholder or more than MAX_ARGS of them
+     */
+    LogEvent(int id, int level, String tag, String format) {
+        this.id     = id;
+        this.level  = level;
+        this.tag    = tag;
+        this.format = format;
+        List<String> parts = new ArrayList<>();
+        StringBuilder kinds = new StringBuilder();
+        int from = 0;
+        int open;
+        while((open = format.indexOf('{', from)) >= 0) {
+            int close = format.indexOf('}', open);
+            if(close < 0) break;
+            String name = format.substring(open + 1, close);
+            char kind;
+            if(name.isEmpty())          kind = DECIMAL;
+            else if(name.equals("x"))   kind = HEX;
+            else if(name.equals("mac")) kind = MAC;
+            else throw new IllegalArgumentException("Unknown placeholder {" + name + "} in " + format);
+            parts.add(format.substring(from, open));
+            kinds.append(kind);
+            from = close + 1;
+        }
+        if(kinds.length() > MAX_ARGS) {
+            throw new IllegalArgumentException("More than " + MAX_ARGS + " arguments in " + format);
+        }
+        parts.add(format.substring(from));
+        this.literals = parts.toArray(new String[parts.size()]);
+        this.kinds    = kinds.toString().toCharArray();
+    }
+
+    /**
+     * @return how many arguments the format takes
+     */
+    public int args() {
+        return kinds.length;
+    }
+
+    /**
+     * Append the message with the arguments filled in; those the format does not use are ignored.
+     */
+    public void format(StringBuilder out, long a, long b, long c, long d) {
+        for(int i = 0; i < kinds.length; ++i) {
+            out.append(literals[i]);
+            long arg = i == 0 ? a : i == 1 ? b : i == 2 ? c : d;
+            switch(kinds[i]) {
+                case HEX: out.append("0x").append(Long.toHexString(arg)); break;
+                case MAC: out.append(MacAddress.toString(arg));           break;
+                default:  out.append(arg);
+            }
+        }
+        out.append(literals[kinds.length]);
+    }
+
+    @Override
+    public String toString() {
+        return tag + ": " + format;
+    }
+}
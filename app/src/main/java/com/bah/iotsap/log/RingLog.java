@@ -0,0 +1,190 @@
+package com.bah.iotsap.log;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * RingLog keeps the latest entries of the app's hot paths in memory, as fixed size binary
+ * entries: event id, time, thread and up to four primitive arguments. Logging claims a slot with
+ * one atomic increment and writes it in place, so it neither locks nor allocates nor formats
+ * anything; when the ring is full the oldest entries are overwritten. Entries below the level
+ * are skipped before the arguments are even looked at. dump() turns the ring into text, oldest
+ * entry first, for the diagnostics page and dumps.
+ * Example:
+ *   LogEvent WINDOW = log.event(RingLog.INFO, TAG, "stopScan(): {} results, {} dropped");  // once
+ *   log.log(WINDOW, results, dropped);                                                     // per window
+ */
+public final class RingLog {
+
+    // Same values as android.util.Log
+    public static final int VERBOSE = 2;
+    public static final int DEBUG   = 3;
+    public static final int INFO    = 4;
+    public static final int WARN    = 5;
+    public static final int ERROR   = 6;
+
+    // Longs per entry: stamp, nanos, event, 4 args, thread
+    private static final int SLOT   = 8;
+    private static final int NANOS  = 1;
+    private static final int EVENT  = 2;
+    private static final int ARGS   = 3;
+    private static final int THREAD = 7;
+
+    private final int             capacity;
+    private final int             mask;
+    // An entry's stamp is its sequence number + 1 once written, minus that while being written
+    private final AtomicLongArray slots;
+    private final AtomicLong      next = new AtomicLong();
+    // Wall clock at nanoBase, to date entries in dumps
+    private final long            wallBase = System.currentTimeMillis();
+    private final long            nanoBase = System.nanoTime();
+    private volatile int          level;
+    // Indexed by LogEvent.id, replaced whole when an event is added
+    private volatile LogEvent[]   events = new LogEvent[0];
+
+    /**
+     * @param capacity entries kept, a power of two
+     * @param level    lowest level logged
+     */
+    public RingLog(int capacity, int level) {
+        if(capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask     = capacity - 1;
+        this.slots    = new AtomicLongArray(capacity * SLOT);
+        this.level    = level;
+    }
+
+    /**
+     * Register a kind of entry. Do it once, when the code that logs it is set up, and keep it.
+     * @throws IllegalArgumentException if the format does not parse, see LogEvent
+     */
+    public synchronized LogEvent event(int level, String tag, String format) {
+        LogEvent[] current = events;
+        LogEvent event = new LogEvent(current.length, level, tag, format);
+        LogEvent[] grown = new LogEvent[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = event;
+        events = grown;
+        return event;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public int level() {
+        return level;
+    }
+
+    /**
+     * @return true if entries of this event are kept; check it before computing costly arguments
+     */
+    public boolean isLoggable(LogEvent event) {
+        return event.level >= level;
+    }
+
+    public void log(LogEvent event) {
+        if(event.level >= level) write(event.id, 0, 0, 0, 0);
+    }
+
+    public void log(LogEvent event, long a) {
+        if(event.level >= level) write(event.id, a, 0, 0, 0);
+    }
+
+    public void log(LogEvent event, long a, long b) {
+        if(event.level >= level) write(event.id, a, b, 0, 0);
+    }
+
+    public void log(LogEvent event, long a, long b, long c) {
+        if(event.level >= level) write(event.id, a, b, c, 0);
+    }
+
+    public void log(LogEvent event, long a, long b, long c, long d) {
+        if(event.level >= level) write(event.id, a, b, c, d);
+    }
+
+    private void write(int event, long a, long b, long c, long d) {
+        long seq  = next.getAndIncrement();
+        int  base = (int) (seq & mask) * SLOT;
+        // Readers that see the negative stamp, or a different one after reading, skip the entry
+        slots.set(base, -(seq + 1));
+        slots.set(base + NANOS, System.nanoTime());
+        slots.set(base + EVENT, event);
+        slots.set(base + ARGS, a);
+        slots.set(base + ARGS + 1, b);
+        slots.set(base + ARGS + 2, c);
+        slots.set(base + ARGS + 3, d);
+        slots.set(base + THREAD, Thread.currentThread().getId());
+        slots.set(base, seq + 1);
+    }
+
+    /**
+     * @return entries logged since the start, overwritten ones included
+     */
+    public long written() {
+        return next.get();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Append every entry still in the ring, one line each, oldest first.
+     */
+    public void dump(StringBuilder out) {
+        dump(out, capacity);
+    }
+
+    /**
+     * Append the latest maxEntries entries, one line each, oldest first. Entries overwritten or
+     * still being written while this reads them are left out.
+     */
+    public void dump(StringBuilder out, int maxEntries) {
+        LogEvent[] events = this.events;
+        SimpleDateFormat time = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+        long end = next.get();
+        long seq = Math.max(0, end - Math.min(capacity, maxEntries));
+        for(; seq < end; ++seq) {
+            int  base  = (int) (seq & mask) * SLOT;
+            long stamp = slots.get(base);
+            if(stamp != seq + 1) continue;
+            long nanos  = slots.get(base + NANOS);
+            int  id     = (int) slots.get(base + EVENT);
+            long a      = slots.get(base + ARGS);
+            long b      = slots.get(base + ARGS + 1);
+            long c      = slots.get(base + ARGS + 2);
+            long d      = slots.get(base + ARGS + 3);
+            long thread = slots.get(base + THREAD);
+            if(slots.get(base) != stamp || id < 0 || id >= events.length) continue;
+            LogEvent event = events[id];
+            date.setTime(wallBase + (nanos - nanoBase) / 1000000L);
+            out.append(time.format(date)).append(' ').append(thread).append(' ')
+                    .append(letter(event.level)).append(' ').append(event.tag).append(": ");
+            event.format(out, a, b, c, d);
+            out.append('\n');
+        }
+    }
+
+    private static char letter(int level) {
+        switch(level) {
+            case VERBOSE: return 'V';
+            case DEBUG:   return 'D';
+            case INFO:    return 'I';
+            case WARN:    return 'W';
+            case ERROR:   return 'E';
+            default:      return '?';
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RingLog(" + written() + " written, " + capacity + " kept)";
+    }
+}
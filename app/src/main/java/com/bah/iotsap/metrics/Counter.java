@@ -0,0 +1,42 @@
+package com.bah.iotsap.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter is a monotonic count that many threads can add to without fighting over one cache
+ * line: every thread adds to one of STRIPES cells, picked by its id, and sum() adds the cells up.
+ * Adding does not allocate.
+ */
+public final class Counter {
+
+    // Power of two
+    private static final int STRIPES = 8;
+    // Longs per cache line, so neighbouring cells do not share one
+    private static final int PAD     = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+    Counter() {}
+
+    public void inc() {
+        add(1);
+    }
+
+    public void add(long n) {
+        cells.getAndAdd(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD, n);
+    }
+
+    /**
+     * @return the count; adds made while summing may or may not be in it
+     */
+    public long sum() {
+        long sum = 0;
+        for(int i = 0; i < STRIPES; ++i) sum += cells.get(i * PAD);
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,9 @@
+package com.bah.iotsap.metrics;
+
+/**
+ * A value that is read when the metrics are shown, e.g. a queue depth. Called on whatever
+ * thread dumps the registry, so it must be safe to call from any thread.
+ */
+public interface Gauge {
+    long value();
+}
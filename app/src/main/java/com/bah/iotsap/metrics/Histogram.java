@@ -0,0 +1,95 @@
+package com.bah.iotsap.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram counts values, normally latencies in nanoseconds, in fixed log-linear buckets: every
+ * power of two is split into 4 buckets, so a percentile is off by at most a quarter of its value
+ * from 4 to Long.MAX_VALUE with BUCKETS counters. Recording is a few atomic adds and never
+ * allocates; any thread may record and read.
+ */
+public final class Histogram {
+
+    // Values below this get a bucket each
+    private static final int  LINEAR  = 4;
+    public  static final int  BUCKETS = (63 - 1) * 4;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong      count  = new AtomicLong();
+    private final AtomicLong      sum    = new AtomicLong();
+    private final AtomicLong      max    = new AtomicLong();
+
+    Histogram() {}
+
+    /**
+     * @param value negative values count as 0
+     */
+    public void record(long value) {
+        if(value < 0) value = 0;
+        counts.getAndIncrement(bucket(value));
+        count.getAndIncrement();
+        sum.getAndAdd(value);
+        long current;
+        while(value > (current = max.get()) && !max.compareAndSet(current, value)) { }
+    }
+
+    /**
+     * Record the time since startNanos, a System.nanoTime() value.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long count() { return count.get(); }
+    public long sum()   { return sum.get(); }
+    public long max()   { return max.get(); }
+
+    public long mean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the middle of the bucket the quantile falls into, at most max(); 0 if empty
+     */
+    public long percentile(double quantile) {
+        long n = 0;
+        for(int i = 0; i < BUCKETS; ++i) n += counts.get(i);
+        if(n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; ++i) {
+            seen += counts.get(i);
+            if(seen >= rank) {
+                long low = lowerBound(i);
+                long mid = i + 1 < BUCKETS ? low + (lowerBound(i + 1) - low) / 2 : low;
+                return Math.min(mid, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int bucket(long value) {
+        if(value < LINEAR) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub      = (int) (value >>> (exponent - 2)) & 3;
+        return (exponent - 1) * 4 + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if(bucket < LINEAR) return bucket;
+        int exponent = bucket / 4 + 1;
+        return (long) (4 + bucket % 4) << (exponent - 2);
+    }
+
+    @Override
+    public String toString() {
+        return "n " + count() + ", mean " + MetricsRegistry.formatNanos(mean())
+                + ", p50 " + MetricsRegistry.formatNanos(percentile(0.5))
+                + ", p90 " + MetricsRegistry.formatNanos(percentile(0.9))
+                + ", p99 " + MetricsRegistry.formatNanos(percentile(0.99))
+                + ", max " + MetricsRegistry.formatNanos(max());
+    }
+}
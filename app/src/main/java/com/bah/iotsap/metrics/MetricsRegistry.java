@@ -0,0 +1,119 @@
+package com.bah.iotsap.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * MetricsRegistry names the counters, gauges and histograms of the app, e.g. "ble.results" or
+ * "storage.latency". Look a metric up once, when the code that records it is set up, and keep
+ * the reference: the lookup is synchronized, recording is not and does not allocate.
+ * dump() writes every metric in name order, counters with their rate since the previous dump,
+ * histograms with their percentiles.
+ * Example:
+ *   Counter results = registry.counter("ble.results");   // once
+ *   results.inc();                                       // per result
+ */
+public final class MetricsRegistry {
+
+    private final Map<String, Object> metrics  = new TreeMap<>();
+    private final Map<String, long[]> lastSums = new TreeMap<>();
+    private long lastDumpNanos = System.nanoTime();
+
+    /**
+     * @return the counter with this name, created on first use
+     * @throws IllegalArgumentException if the name is taken by another kind of metric
+     */
+    public synchronized Counter counter(String name) {
+        Object metric = metrics.get(name);
+        if(metric == null) {
+            Counter counter = new Counter();
+            metrics.put(name, counter);
+            lastSums.put(name, new long[1]);
+            return counter;
+        }
+        if(!(metric instanceof Counter)) throw new IllegalArgumentException(name + " is not a counter");
+        return (Counter) metric;
+    }
+
+    /**
+     * @return the histogram with this name, created on first use
+     * @throws IllegalArgumentException if the name is taken by another kind of metric
+     */
+    public synchronized Histogram histogram(String name) {
+        Object metric = metrics.get(name);
+        if(metric == null) {
+            Histogram histogram = new Histogram();
+            metrics.put(name, histogram);
+            return histogram;
+        }
+        if(!(metric instanceof Histogram)) throw new IllegalArgumentException(name + " is not a histogram");
+        return (Histogram) metric;
+    }
+
+    /**
+     * Register a gauge, replacing the one of the same name (e.g. of a pipeline that was rebuilt).
+     * @throws IllegalArgumentException if the name is taken by another kind of metric
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        Object metric = metrics.get(name);
+        if(metric != null && !(metric instanceof Gauge)) throw new IllegalArgumentException(name + " is not a gauge");
+        metrics.put(name, gauge);
+    }
+
+    public synchronized void remove(String name) {
+        metrics.remove(name);
+        lastSums.remove(name);
+    }
+
+    /**
+     * Append one line per metric to out.
+     */
+    public synchronized void dump(StringBuilder out) {
+        long   now     = System.nanoTime();
+        double elapsed = Math.max(1, now - lastDumpNanos) / 1e9;
+        lastDumpNanos = now;
+        for(Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name   = entry.getKey();
+            Object metric = entry.getValue();
+            out.append(name).append(": ");
+            if(metric instanceof Counter) {
+                long   sum  = ((Counter) metric).sum();
+                long[] last = lastSums.get(name);
+                out.append(sum).append(String.format(Locale.US, " (%.1f/s)", (sum - last[0]) / elapsed));
+                last[0] = sum;
+            } else if(metric instanceof Histogram) {
+                out.append(metric);
+            } else {
+                out.append(((Gauge) metric).value());
+            }
+            out.append('\n');
+        }
+    }
+
+    /**
+     * Write dump() to a file, replacing it.
+     */
+    public void writeTo(File file) throws IOException {
+        StringBuilder out = new StringBuilder();
+        dump(out);
+        try(Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            writer.write(out.toString());
+        }
+    }
+
+    /**
+     * @return nanos with a unit that keeps 3 significant digits or so, e.g. "850 ns", "12.4 ms"
+     */
+    static String formatNanos(long nanos) {
+        if(nanos < 1000L)          return nanos + " ns";
+        if(nanos < 1000000L)       return String.format(Locale.US, "%.1f us", nanos / 1e3);
+        if(nanos < 1000000000L)    return String.format(Locale.US, "%.1f ms", nanos / 1e6);
+        return String.format(Locale.US, "%.1f s", nanos / 1e9);
+    }
+}
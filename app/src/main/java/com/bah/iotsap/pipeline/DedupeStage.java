@@ -0,0 +1,77 @@
+package com.bah.iotsap.pipeline;
+
+import com.bah.iotsap.discovery.DeviceTable;
+import com.bah.iotsap.discovery.Sighting;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DedupeStage folds every raw result into a DeviceTable and only passes on what is worth telling
+ * downstream: NEW devices and RSSI moves (see DeviceTable.update()). On every tick it expires the
+ * devices that went unseen for the TTL and emits them as EXPIRED.
+ * The table belongs to the stage's thread; nothing else may touch it once the pipeline runs.
+ */
+public final class DedupeStage extends Pipeline.Stage {
+
+    /**
+     * Looks a device name up from a record's attachment. Only called once per new device, so it
+     * may be slow (e.g. a binder call).
+     */
+    public interface NameLookup {
+        String name(Object attachment);
+    }
+
+    private final DeviceTable     table;
+    private final Sighting.Source source;
+    private final NameLookup      lookup;
+    private final Sighting        expired = new Sighting();
+    private final AtomicInteger   newDevices = new AtomicInteger();
+    private Pipeline.Emitter      out;
+
+    /**
+     * @param lookup resolves names of new devices that came in without one, may be null
+     */
+    public DedupeStage(DeviceTable table, Sighting.Source source, NameLookup lookup) {
+        super("dedupe");
+        this.table  = table;
+        this.source = source;
+        this.lookup = lookup;
+        table.setListener(new DeviceTable.Listener() {
+            @Override
+            public void onRemoved(DeviceTable table, int entry, boolean evicted) {
+                out.emit(expired.set(table.mac(entry), table.rssi(entry), table.lastSeen(entry),
+                        DedupeStage.this.source, table.name(entry), Sighting.Change.EXPIRED));
+            }
+        });
+    }
+
+    /**
+     * @return number of new devices found since the last call, for the ScanScheduler
+     */
+    public int takeNewDevices() {
+        return newDevices.getAndSet(0);
+    }
+
+    @Override
+    protected boolean process(Pipeline.Record record, Pipeline.Emitter out) {
+        this.out = out;
+        Sighting s = record.sighting;
+        Sighting.Change change = table.update(s.mac, s.rssi, s.timestampNanos, s.name);
+        if(change == Sighting.Change.NONE) return false;
+
+        int entry = table.lastEntry();
+        if(change == Sighting.Change.NEW) {
+            newDevices.incrementAndGet();
+            if(s.name == null && lookup != null) table.setName(entry, lookup.name(record.attachment));
+        }
+        s.set(s.mac, table.rssi(entry), s.timestampNanos, source, table.name(entry), change);
+        record.attachment = null;
+        return true;
+    }
+
+    @Override
+    protected void onTick(long nowNanos, Pipeline.Emitter out) {
+        this.out = out;
+        table.expire(nowNanos);
+    }
+}
@@ -0,0 +1,45 @@
+package com.bah.iotsap.pipeline;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.location.LocationTrack;
+import com.bah.iotsap.location.PositionEstimator;
+
+/**
+ * EstimateStage folds every scan result this device could place into a PositionEstimator, with
+ * its raw RSSI. Goes before dedupe: dedupe only passes on new devices and large RSSI moves, with
+ * a smoothed RSSI, so a device heard at a steady strength from many places would otherwise add
+ * one observation rather than one per place. Passes every record on unchanged.
+ */
+public final class EstimateStage extends Pipeline.Stage {
+
+    private final LocationTrack     track;
+    private final PositionEstimator estimator;
+    // Takes the location, so the record goes on as it came
+    private final Sighting          located = new Sighting();
+    private volatile long           updates;
+
+    public EstimateStage(LocationTrack track, PositionEstimator estimator) {
+        super("estimate");
+        this.track     = track;
+        this.estimator = estimator;
+    }
+
+    /**
+     * @return results folded into the estimator
+     */
+    public long updates() {
+        return updates;
+    }
+
+    @Override
+    protected boolean process(Pipeline.Record record, Pipeline.Emitter out) {
+        Sighting s = record.sighting;
+        if(s.change == Sighting.Change.EXPIRED) return true;
+        if(track.snapshot().locate(s.timestampNanos, located)) {
+            estimator.update(s.mac, s.rssi, located.latitude, located.longitude, located.accuracy,
+                    s.timestampNanos);
+            updates++;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package com.bah.iotsap.pipeline;
+
+import com.bah.iotsap.spatial.SightingIndex;
+import com.bah.iotsap.storage.LogCursor;
+import com.bah.iotsap.storage.SightingLog;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * IndexStage keeps a SightingIndex up to date with the SightingLog. Rather than inserting the
+ * records going past, it reads the log behind the persist stage with its own cursor, so the
+ * index knows which sequence number it has reached and picks up whatever it missed (records
+ * appended while it was being loaded, or by the other discovery service) from the log.
+ * Catches up when its queue runs dry at most every catchUpIntervalMillis, and fully on every tick.
+ * Goes after the persist stage. Given a log that is still being opened, the stage's thread waits
+ * for it when it first catches up.
+ */
+public final class IndexStage extends Pipeline.Stage {
+
+    public static final long DEFAULT_CATCH_UP_INTERVAL = 2000L;
+    private static final int BATCH = 4096;
+
+    private final SightingIndex index;
+    private final long          catchUpIntervalNanos;
+    // Stage thread only, once started
+    private SightingLog         log;
+    private Future<SightingLog> opening;
+    private LogCursor           cursor;
+    private long                lastCatchUpNanos;
+    private volatile long       indexed;
+    private volatile long       failures;
+
+    public IndexStage(SightingIndex index, SightingLog log) {
+        this(index, log, DEFAULT_CATCH_UP_INTERVAL);
+    }
+
+    /**
+     * @param log log the persist stage appends to, may be null (the stage then does nothing)
+     */
+    public IndexStage(SightingIndex index, SightingLog log, long catchUpIntervalMillis) {
+        super("index");
+        this.index                = index;
+        this.log                  = log;
+        this.catchUpIntervalNanos = catchUpIntervalMillis * 1000000L;
+    }
+
+    /**
+     * @param log log being opened in the background; its value may be null, as above
+     */
+    public IndexStage(SightingIndex index, Future<SightingLog> log) {
+        this(index, (SightingLog) null, DEFAULT_CATCH_UP_INTERVAL);
+        this.opening = log;
+    }
+
+    /**
+     * @return log records read into the index
+     */
+    public long indexed() {
+        return indexed;
+    }
+
+    /**
+     * @return catch ups that failed with an IOException
+     */
+    public long failures() {
+        return failures;
+    }
+
+    @Override
+    protected boolean process(Pipeline.Record record, Pipeline.Emitter out) {
+        return true;
+    }
+
+    @Override
+    protected void onIdle() {
+        if(System.nanoTime() - lastCatchUpNanos >= catchUpIntervalNanos) catchUp(1);
+    }
+
+    @Override
+    protected void onTick(long nowNanos, Pipeline.Emitter out) {
+        catchUp(Integer.MAX_VALUE);
+    }
+
+    private void catchUp(int maxBatches) {
+        if(opening != null) {
+            log     = await(opening);
+            opening = null;
+        }
+        if(log == null) return;
+        lastCatchUpNanos = System.nanoTime();
+        try {
+            if(cursor == null) cursor = log.cursor();
+            for(int i = 0; i < maxBatches; ++i) {
+                int read = index.catchUp(cursor, BATCH);
+                indexed += read;
+                if(read < BATCH) break;
+            }
+        } catch(IOException e) {
+            failures++;
+            // Start over with a fresh cursor next time
+            if(cursor != null) cursor.close();
+            cursor = null;
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        if(cursor != null) cursor.close();
+        cursor = null;
+    }
+}
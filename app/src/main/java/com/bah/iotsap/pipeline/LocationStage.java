@@ -0,0 +1,40 @@
+package com.bah.iotsap.pipeline;
+
+import com.bah.iotsap.location.LocationTrack;
+
+/**
+ * LocationStage tags every sighting with the position of this device at the sighting's timestamp,
+ * looked up in a LocationTrack. It reads whatever fixes the track holds and never asks for one, so
+ * sightings that are newer than the latest fix by more than the track's max age stay untagged.
+ * Goes after dedupe, so only what is persisted and published gets looked up. Devices are located
+ * from the raw results before dedupe instead, see EstimateStage.
+ */
+public final class LocationStage extends Pipeline.Stage {
+
+    private final LocationTrack track;
+    private volatile long       tagged;
+    private volatile long       untagged;
+
+    public LocationStage(LocationTrack track) {
+        super("locate");
+        this.track = track;
+    }
+
+    public long tagged() {
+        return tagged;
+    }
+
+    public long untagged() {
+        return untagged;
+    }
+
+    @Override
+    protected boolean process(Pipeline.Record record, Pipeline.Emitter out) {
+        if(track.snapshot().locate(record.sighting.timestampNanos, record.sighting)) {
+            tagged++;
+        } else {
+            untagged++;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,110 @@
+package com.bah.iotsap.pipeline;
+
+import com.bah.iotsap.metrics.Counter;
+import com.bah.iotsap.metrics.Histogram;
+import com.bah.iotsap.metrics.MetricsRegistry;
+import com.bah.iotsap.storage.SightingLog;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+
+/**
+ * PersistStage appends every sighting to the SightingLog and stamps it with its sequence number
+ * (Sighting.logSeq), so later stages and bus subscribers can tell where it is in the log. The
+ * log group commits on its own; the
+ * stage also forces it when its queue runs dry and the flush interval is up, and on every tick.
+ * Given a MetricsRegistry it records how long appends and flushes take ("storage.append",
+ * "storage.flush") and how long a sighting took from submit() to the log ("storage.latency").
+ * Given a log that is still being opened, the stage's thread waits for it when it first needs it.
+ */
+public final class PersistStage extends Pipeline.Stage {
+
+    private final Histogram     appendNanos;
+    private final Histogram     flushNanos;
+    private final Histogram     latencyNanos;
+    private final Counter       failed;
+    private volatile long       failures;
+    // Stage thread only, once started; see log()
+    private SightingLog         log;
+    private Future<SightingLog> opening;
+
+    /**
+     * @param log log to append to, may be null (the stage then passes everything through)
+     */
+    public PersistStage(SightingLog log) {
+        this(log, null);
+    }
+
+    /**
+     * @param metrics registry to record into, may be null
+     */
+    public PersistStage(SightingLog log, MetricsRegistry metrics) {
+        super("persist");
+        this.log = log;
+        appendNanos  = metrics == null ? null : metrics.histogram("storage.append");
+        flushNanos   = metrics == null ? null : metrics.histogram("storage.flush");
+        latencyNanos = metrics == null ? null : metrics.histogram("storage.latency");
+        failed       = metrics == null ? null : metrics.counter("storage.failures");
+    }
+
+    /**
+     * @param log log being opened in the background; its value may be null, as above
+     * @param metrics registry to record into, may be null
+     */
+    public PersistStage(Future<SightingLog> log, MetricsRegistry metrics) {
+        this((SightingLog) null, metrics);
+        this.opening = log;
+    }
+
+    /**
+     * @return appends that failed with an IOException
+     */
+    public long failures() {
+        return failures;
+    }
+
+    @Override
+    protected boolean process(Pipeline.Record record, Pipeline.Emitter out) {
+        SightingLog log = log();
+        if(log == null) return true;
+        long start = System.nanoTime();
+        try {
+            record.sighting.logSeq = log.append(record.sighting);
+        } catch(IOException e) {
+            failures++;
+            if(failed != null) failed.inc();
+            return true;
+        }
+        if(appendNanos != null) {
+            long end = System.nanoTime();
+            appendNanos.record(end - start);
+            latencyNanos.record(end - record.submitNanos);
+        }
+        return true;
+    }
+
+    @Override
+    protected void onIdle() {
+        SightingLog log = log();
+        if(log == null) return;
+        long start = System.nanoTime();
+        if(log.flushIfDue() && flushNanos != null) flushNanos.recordSince(start);
+    }
+
+    @Override
+    protected void onTick(long nowNanos, Pipeline.Emitter out) {
+        SightingLog log = log();
+        if(log == null) return;
+        long start = System.nanoTime();
+        log.flush();
+        if(flushNanos != null) flushNanos.recordSince(start);
+    }
+
+    private SightingLog log() {
+        if(opening != null) {
+            log     = await(opening);
+            opening = null;
+        }
+        return log;
+    }
+}
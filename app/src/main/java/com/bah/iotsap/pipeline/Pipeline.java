@@ -0,0 +1,378 @@
+package com.bah.iotsap.pipeline;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipeline moves sightings from the discovery callbacks through a chain of stages (e.g. dedupe,
+ * persist, publish), each on its own thread, with a bounded queue in front of every stage.
+ *
+ * submit() is all a scan callback does: it takes a preallocated Record from the pool, fills it
+ * and offers it to the first queue. It never blocks; if the pool or the first queue is
+ * exhausted the record is dropped and counted. Between stages the hand-off blocks, so a slow
+ * stage holds back the ones before it until the first queue fills up and the callbacks start
+ * dropping, instead of memory growing.
+ *
+ * tick() runs every stage's periodic work (expiry, flushing) in pipeline order, normally behind
+ * the records already queued. Every stage has StageMetrics: queue depth, queueing and service time.
+ * Example:
+ *   Pipeline pipeline = new Pipeline("ble", 1024, new DedupeStage(...), new PersistStage(...), ...);
+ *   pipeline.start();
+ *   Pipeline.Record r = pipeline.obtain(); r.sighting.set(...); pipeline.submit(r);
+ */
+public final class Pipeline {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final int  DATA = 0;
+    private static final int  TICK = 1;
+    private static final int  STOP = 2;
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * A sighting travelling down the pipeline. Records are pooled: do not keep references.
+     */
+    public static final class Record {
+        public final Sighting sighting = new Sighting();
+        /** Source specific extra for the stages, e.g. the BluetoothDevice to look the name up on */
+        public Object attachment;
+        int  kind;
+        long tickNanos;
+        long submitNanos;
+        long handoffNanos;
+
+        private Record reset() {
+            attachment = null;
+            kind = DATA;
+            return this;
+        }
+    }
+
+    /**
+     * Hands records to the stage after the current one.
+     */
+    public interface Emitter {
+        /**
+         * Send a copy of sighting downstream, e.g. a device that expired.
+         */
+        void emit(Sighting sighting);
+    }
+
+    /**
+     * One step of the pipeline. All methods are called on the stage's own thread.
+     */
+    public abstract static class Stage {
+
+        private final String name;
+
+        protected Stage(String name) {
+            this.name = name;
+        }
+
+        public final String name() {
+            return name;
+        }
+
+        /**
+         * @return true to pass the record on, false to drop it here
+         */
+        protected abstract boolean process(Record record, Emitter out);
+
+        /**
+         * Periodic work. Records emitted here go downstream before the tick does.
+         * @param nowNanos time base of the Sighting timestamps (elapsedRealtimeNanos on Android)
+         */
+        protected void onTick(long nowNanos, Emitter out) {}
+
+        /**
+         * The input queue ran empty: a good time to finish a batch (signal, flush).
+         */
+        protected void onIdle() {}
+
+        /**
+         * The pipeline is stopping, after onIdle() for the last time: release resources.
+         */
+        protected void onStop() {}
+
+        /**
+         * Wait on the stage's thread for something the stage was given while it was still being
+         * set up in the background.
+         * @return its value, or null if setting it up failed or the thread was interrupted
+         */
+        protected static <T> T await(Future<T> future) {
+            try {
+                return future.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch(ExecutionException e) {
+                return null;
+            }
+        }
+    }
+
+    private final String                name;
+    private final BlockingQueue<Record> pool;
+    private final Worker[]              workers;
+    private final AtomicLong            submitted = new AtomicLong();
+    private final AtomicLong            dropped   = new AtomicLong();
+    private final StageMetrics          endToEnd  = new StageMetrics("end to end", null);
+    private volatile boolean            tickPending;
+    private volatile long               pendingTickNanos;
+    private boolean                     started;
+    private boolean                     stopped;
+
+    public Pipeline(String name, int queueCapacity, Stage... stages) {
+        if(stages.length == 0) throw new IllegalArgumentException("A pipeline needs at least one stage");
+        this.name = name;
+        // Enough records to fill every queue, so the pool only runs dry when the queues are full
+        int records = queueCapacity * stages.length;
+        pool = new ArrayBlockingQueue<>(records);
+        for(int i = 0; i < records; ++i) pool.add(new Record());
+        workers = new Worker[stages.length];
+        for(int i = stages.length - 1; i >= 0; --i) {
+            workers[i] = new Worker(stages[i], new ArrayBlockingQueue<Record>(queueCapacity),
+                    i + 1 < stages.length ? workers[i + 1] : null);
+        }
+    }
+
+    /**
+     * Start the stage threads. A stopped pipeline cannot be started again.
+     */
+    public synchronized void start() {
+        if(stopped) throw new IllegalStateException("Pipeline " + name + " was stopped");
+        if(started) return;
+        started = true;
+        for(Worker worker : workers) worker.thread.start();
+    }
+
+    /**
+     * Let every stage finish what is queued, then stop the threads.
+     */
+    public synchronized void stop() throws InterruptedException {
+        if(!started || stopped) return;
+        stopped = true;
+        Record stop = obtainOrCreate();
+        stop.kind = STOP;
+        workers[0].queue.put(stop);
+        for(Worker worker : workers) worker.thread.join(STOP_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @return a free record to fill in and submit(), or null if the pool is exhausted (the
+     *         record is counted as dropped)
+     */
+    public Record obtain() {
+        Record record = pool.poll();
+        if(record == null) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        return record.reset();
+    }
+
+    /**
+     * Queue an obtained record for the first stage. Never blocks.
+     * @return false if the first queue was full and the record was dropped
+     */
+    public boolean submit(Record record) {
+        record.kind = DATA;
+        record.submitNanos = record.handoffNanos = System.nanoTime();
+        if(!workers[0].queue.offer(record)) {
+            dropped.incrementAndGet();
+            pool.offer(record);
+            return false;
+        }
+        submitted.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Like obtain(), but waits for a free record instead of dropping one. Only for producers that
+     * must not lose anything and may wait, e.g. a TraceReplayer running flat out; never from a
+     * scan callback.
+     */
+    public Record obtainBlocking() throws InterruptedException {
+        return pool.take().reset();
+    }
+
+    /**
+     * Like submit(), but waits for room in the first queue.
+     */
+    public void submitBlocking(Record record) throws InterruptedException {
+        record.kind = DATA;
+        record.submitNanos = record.handoffNanos = System.nanoTime();
+        workers[0].queue.put(record);
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * Like tick(), but waits for room in the first queue, so the tick always runs behind every
+     * record submitted before it.
+     */
+    public void tickBlocking(long nowNanos) throws InterruptedException {
+        Record record = pool.take().reset();
+        record.kind        = TICK;
+        record.tickNanos   = nowNanos;
+        record.submitNanos = record.handoffNanos = System.nanoTime();
+        workers[0].queue.put(record);
+    }
+
+    /**
+     * Run every stage's periodic work after what is already queued. Never blocks; if the first
+     * queue is full, the first stage runs the tick as soon as it is done with its current record.
+     */
+    public void tick(long nowNanos) {
+        Record record = pool.poll();
+        if(record != null) {
+            record.reset().kind = TICK;
+            record.tickNanos    = nowNanos;
+            record.submitNanos  = record.handoffNanos = System.nanoTime();
+            if(workers[0].queue.offer(record)) return;
+            pool.offer(record);
+        }
+        pendingTickNanos = nowNanos;
+        tickPending = true;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long submitted() {
+        return submitted.get();
+    }
+
+    /**
+     * @return records refused by obtain() or submit() because the pipeline was full
+     */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return metrics of each stage, in pipeline order
+     */
+    public StageMetrics[] metrics() {
+        StageMetrics[] metrics = new StageMetrics[workers.length];
+        for(int i = 0; i < workers.length; ++i) metrics[i] = workers[i].metrics;
+        return metrics;
+    }
+
+    /**
+     * @return time from submit() to the end of the last stage, queues included
+     */
+    public StageMetrics endToEnd() {
+        return endToEnd;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder(name).append(": submitted ").append(submitted())
+                .append(", dropped ").append(dropped());
+        for(Worker worker : workers) out.append("\n  ").append(worker.metrics);
+        return out.append("\n  ").append(endToEnd).toString();
+    }
+
+    private Record obtainOrCreate() {
+        Record record = pool.poll();
+        return record == null ? new Record() : record.reset();
+    }
+
+    private void release(Record record) {
+        pool.offer(record);
+    }
+
+    /**
+     * Runs one stage on its own thread.
+     */
+    private final class Worker implements Runnable, Emitter {
+
+        final Stage                 stage;
+        final BlockingQueue<Record> queue;
+        final Worker                next;
+        final StageMetrics          metrics;
+        final Thread                thread;
+
+        Worker(Stage stage, BlockingQueue<Record> queue, Worker next) {
+            this.stage   = stage;
+            this.queue   = queue;
+            this.next    = next;
+            this.metrics = new StageMetrics(stage.name(), queue);
+            this.thread  = new Thread(this, name + "-" + stage.name());
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    Record record = queue.poll();
+                    if(record == null) {
+                        stage.onIdle();
+                        record = queue.take();
+                    }
+                    long start = System.nanoTime();
+                    metrics.onDequeue(start - record.handoffNanos, queue.size() + 1);
+                    if(record.kind == STOP) {
+                        stage.onIdle();
+                        stage.onStop();
+                        forward(record);
+                        return;
+                    }
+                    boolean keep;
+                    if(record.kind == TICK) {
+                        stage.onTick(record.tickNanos, this);
+                        keep = true;
+                    } else {
+                        keep = stage.process(record, this);
+                    }
+                    metrics.onProcessed(System.nanoTime() - start, keep);
+                    if(keep) {
+                        forward(record);
+                    } else {
+                        release(record);
+                    }
+                    // A tick that did not fit into the first queue runs right away
+                    if(this == workers[0] && tickPending) {
+                        tickPending = false;
+                        Record tick = obtainOrCreate();
+                        tick.kind = TICK;
+                        tick.tickNanos = pendingTickNanos;
+                        stage.onTick(tick.tickNanos, this);
+                        forward(tick);
+                    }
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void emit(Sighting sighting) {
+            Record record = obtainOrCreate();
+            record.sighting.copyFrom(sighting);
+            record.submitNanos = record.handoffNanos = System.nanoTime();
+            metrics.onEmitted();
+            try {
+                forward(record);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void forward(Record record) throws InterruptedException {
+            if(next != null) {
+                record.handoffNanos = System.nanoTime();
+                next.queue.put(record);
+                return;
+            }
+            if(record.kind == DATA) endToEnd.onProcessed(System.nanoTime() - record.submitNanos, true);
+            release(record);
+        }
+    }
+}
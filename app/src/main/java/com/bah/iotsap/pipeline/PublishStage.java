@@ -0,0 +1,59 @@
+package com.bah.iotsap.pipeline;
+
+import com.bah.iotsap.discovery.SightingBus;
+
+/**
+ * PublishStage copies every sighting onto the SightingBus. Subscribers are signalled once the
+ * stage's queue runs dry with at least minBatch records published since the last signal, and on
+ * every tick, so a burst of results costs one wakeup.
+ */
+public final class PublishStage extends Pipeline.Stage {
+
+    private final SightingBus bus;
+    private volatile int      minBatch;
+    private int               pending;
+    private volatile long     signals;
+
+    /**
+     * @param minBatch records to collect before an idle queue signals subscribers
+     */
+    public PublishStage(SightingBus bus, int minBatch) {
+        super("publish");
+        this.bus      = bus;
+        this.minBatch = Math.max(1, minBatch);
+    }
+
+    /**
+     * Change the batch size while running, it applies from the next idle queue.
+     */
+    public void setMinBatch(int minBatch) {
+        this.minBatch = Math.max(1, minBatch);
+    }
+
+    public long signals() {
+        return signals;
+    }
+
+    @Override
+    protected boolean process(Pipeline.Record record, Pipeline.Emitter out) {
+        bus.publish(record.sighting);
+        pending++;
+        return true;
+    }
+
+    @Override
+    protected void onIdle() {
+        if(pending >= minBatch) signal();
+    }
+
+    @Override
+    protected void onTick(long nowNanos, Pipeline.Emitter out) {
+        if(pending > 0) signal();
+    }
+
+    private void signal() {
+        pending = 0;
+        signals++;
+        bus.signal();
+    }
+}
@@ -0,0 +1,81 @@
+package com.bah.iotsap.pipeline;
+
+import java.util.Queue;
+
+/**
+ * StageMetrics counts what a Pipeline stage did and how long it took: records processed, passed on
+ * and emitted, the depth of its input queue, the time records waited in that queue and the time
+ * the stage spent on them (totals and maxima since start).
+ * Only the stage's thread writes; any thread may read, values are then a moment out of date.
+ */
+public final class StageMetrics {
+
+    private final String        name;
+    private final Queue<?>      queue;
+    private volatile long       processed;
+    private volatile long       passed;
+    private volatile long       emitted;
+    private volatile int        maxDepth;
+    private volatile long       waitNanos;
+    private volatile long       maxWaitNanos;
+    private volatile long       serviceNanos;
+    private volatile long       maxServiceNanos;
+
+    StageMetrics(String name, Queue<?> queue) {
+        this.name  = name;
+        this.queue = queue;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long processed()       { return processed; }
+    public long passed()          { return passed; }
+    public long emitted()         { return emitted; }
+    public int  maxDepth()        { return maxDepth; }
+    public long maxWaitNanos()    { return maxWaitNanos; }
+    public long maxServiceNanos() { return maxServiceNanos; }
+
+    /**
+     * @return records waiting in front of the stage right now
+     */
+    public int depth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    public long averageWaitNanos() {
+        long n = processed;
+        return n == 0 ? 0 : waitNanos / n;
+    }
+
+    public long averageServiceNanos() {
+        long n = processed;
+        return n == 0 ? 0 : serviceNanos / n;
+    }
+
+    void onDequeue(long waited, int depth) {
+        waitNanos += waited;
+        if(waited > maxWaitNanos) maxWaitNanos = waited;
+        if(depth > maxDepth) maxDepth = depth;
+    }
+
+    void onProcessed(long nanos, boolean passedOn) {
+        processed++;
+        if(passedOn) passed++;
+        serviceNanos += nanos;
+        if(nanos > maxServiceNanos) maxServiceNanos = nanos;
+    }
+
+    void onEmitted() {
+        emitted++;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + processed + " processed, " + passed + " passed, " + emitted + " emitted, depth "
+                + depth() + " (max " + maxDepth + "), wait " + averageWaitNanos() / 1000 + " us (max "
+                + maxWaitNanos / 1000 + "), service " + averageServiceNanos() / 1000 + " us (max "
+                + maxServiceNanos / 1000 + ")";
+    }
+}
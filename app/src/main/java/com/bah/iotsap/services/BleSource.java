@@ -0,0 +1,404 @@
+package com.bah.iotsap.services;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import com.bah.iotsap.App;
+import com.bah.iotsap.discovery.AdaptiveScanPolicy;
+import com.bah.iotsap.discovery.DeviceTable;
+import com.bah.iotsap.discovery.DiscoverySource;
+import com.bah.iotsap.discovery.MacAddress;
+import com.bah.iotsap.discovery.RadioScheduler;
+import com.bah.iotsap.discovery.ScanScheduler;
+import com.bah.iotsap.discovery.ScanStats;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.log.LogEvent;
+import com.bah.iotsap.log.RingLog;
+import com.bah.iotsap.metrics.Counter;
+import com.bah.iotsap.metrics.Gauge;
+import com.bah.iotsap.metrics.Histogram;
+import com.bah.iotsap.metrics.MetricsRegistry;
+import com.bah.iotsap.pipeline.DedupeStage;
+import com.bah.iotsap.pipeline.EstimateStage;
+import com.bah.iotsap.pipeline.IndexStage;
+import com.bah.iotsap.pipeline.LocationStage;
+import com.bah.iotsap.pipeline.PersistStage;
+import com.bah.iotsap.pipeline.Pipeline;
+import com.bah.iotsap.pipeline.PublishStage;
+import com.bah.iotsap.pipeline.StageMetrics;
+import com.bah.iotsap.trace.TraceRecorder;
+import com.bah.iotsap.util.HandlerTimer;
+import com.bah.iotsap.util.PreferenceUtil;
+
+import java.util.List;
+
+/**
+ * BleSource periodically scans for BLE devices. The scan callbacks only hand each result to a
+ * Pipeline; its stages run on their own threads: dedupe folds the result into a DeviceTable and
+ * only passes it on when a device is new, its smoothed RSSI moved, or it expired, locate tags it
+ * with where this device was at the time (from the App's LocationTrack), persist appends it to
+ * the App's SightingLog and publish copies it onto the App's SightingBus. Subscribers read
+ * the new records themselves; they format them with SightingFormat if they need to.
+ * In batched mode (PREF_BLE_BATCH) the controller holds results for PREF_BLE_REPORT_DELAY ms and
+ * hands them over in onBatchScanResults; subscribers are then only signalled once at least
+ * PREF_BLE_BATCH_SIZE records were published.
+ * Scans run in windows separated by idle intervals, both sized by an AdaptiveScanPolicy that starts
+ * from PREF_BLE_SCANTIME / PREF_BLE_DELAY and follows the number of new devices each window finds.
+ * Every window has to be granted by the engine's RadioScheduler first, so LE scans and
+ * classic inquiries take turns on the radio instead of fighting over it.
+ * The pipeline is built on the first start() and kept until close(), so stopping and starting
+ * again only switches the scan cycle. Changed settings apply from the next window.
+ * While the App records a trace, every result and window end goes into it first, dropped or not.
+ * Results, drops, windows, the time each callback takes and the wakeups and broadcasts that
+ * batching saved (ScanStats) are counted under "ble." in the App's MetricsRegistry; what
+ * happens per window and per batch goes to the App's RingLog.
+ */
+public final class BleSource implements DiscoverySource {
+
+    private static final String TAG = "BleSource";
+    // Preference strings
+    public static final String PREF_BLE_SERVICE  = "pref_ble_service";
+    public static final String PREF_BLE_SCANTIME = "pref_ble_scantime";
+    public static final String PREF_BLE_DELAY    = "pref_ble_delay";
+    public static final String PREF_BLE_BATCH        = "pref_ble_batch";
+    public static final String PREF_BLE_REPORT_DELAY = "pref_ble_report_delay";
+    public static final String PREF_BLE_BATCH_SIZE   = "pref_ble_batch_size";
+    public static final String PREF_BLE_SCAN_MODE    = "pref_ble_scan_mode";
+    // Scan cycle defaults
+    public static final long DEFAULT_SCANTIME = 10000;
+    public static final long DEFAULT_DELAY    = 10000;
+    // Batched mode defaults
+    public static final long DEFAULT_REPORT_DELAY = 5000;
+    public static final int  DEFAULT_BATCH_SIZE   = 1;
+    // Number of devices tracked in the live device table
+    public static final int DEVICE_CAPACITY = 8192;
+    // Scan path entries, see App.getLog()
+    private static final RingLog  LOG           = App.getLog();
+    private static final LogEvent SCAN_START    = LOG.event(RingLog.DEBUG, TAG, "startScan(): starting scan");
+    private static final LogEvent START_OFF     = LOG.event(RingLog.INFO, TAG, "startScan(): adapter is off");
+    private static final LogEvent STOP_OFF      = LOG.event(RingLog.INFO, TAG, "stopScan(): adapter is off");
+    private static final LogEvent WINDOW        = LOG.event(RingLog.INFO, TAG,
+            "stopScan(): {} callbacks, {} results, {} new devices, {} signals");
+    private static final LogEvent WINDOW_RATES  = LOG.event(RingLog.INFO, TAG,
+            "stopScan(): {} callbacks/min, {} results/min, {} wakeups saved, {} broadcasts saved");
+    private static final LogEvent WINDOW_PIPE   = LOG.event(RingLog.INFO, TAG,
+            "stopScan(): pipeline {} submitted, {} dropped, {} ns end to end");
+    private static final LogEvent BATCH         = LOG.event(RingLog.DEBUG, TAG, "onBatchScanResults(): {} results");
+    private static final LogEvent SCAN_FAILED   = LOG.event(RingLog.WARN, TAG, "onScanFailed(): errorCode = {}");
+
+    private final Context          context;
+    private final Handler          handler;
+    private final RadioScheduler   radio;
+    // Metrics, see App.getMetrics()
+    private final Counter          results;
+    private final Counter          dropped;
+    private final Counter          windows;
+    private final Counter          newDevices;
+    private final Counter          wakeupsSaved;
+    private final Counter          broadcastsSaved;
+    private final Histogram        callbackNanos;
+    // Of the last window, for the "ble.callbacks_per_min" gauge
+    private volatile long          callbacksPerMinute;
+    private final BluetoothAdapter bleAdapter = BluetoothAdapter.getDefaultAdapter();
+    private BluetoothLeScanner leScanner;
+    private ScanScheduler scheduler;
+    private long scantime = DEFAULT_SCANTIME;
+    private long delay    = DEFAULT_DELAY;
+    // Batched mode settings, read from preferences on start() and when they change
+    private boolean batchMode   = false;
+    private long    reportDelay = DEFAULT_REPORT_DELAY;
+    private int     batchSize   = DEFAULT_BATCH_SIZE;
+    private int     scanMode    = ScanSettings.SCAN_MODE_LOW_POWER;
+    private final ScanStats stats = new ScanStats();
+    // Signals of the publish stage already counted into stats
+    private long countedSignals;
+    // Built on the first start()
+    private Pipeline     pipeline;
+    private DedupeStage  dedupe;
+    private PublishStage publish;
+
+    /**
+     * @param handler handler of the engine's main thread, the scan cycle runs on it
+     * @param radio   scheduler every scan window has to be granted by
+     */
+    public BleSource(Context context, Handler handler, RadioScheduler radio) {
+        this.context = context;
+        this.handler = handler;
+        this.radio   = radio;
+        MetricsRegistry metrics = App.getMetrics();
+        results         = metrics.counter("ble.results");
+        dropped         = metrics.counter("ble.dropped");
+        windows         = metrics.counter("ble.windows");
+        newDevices      = metrics.counter("ble.new_devices");
+        wakeupsSaved    = metrics.counter("ble.wakeups_saved");
+        broadcastsSaved = metrics.counter("ble.broadcasts_saved");
+        callbackNanos   = metrics.histogram("ble.callback");
+    }
+
+    @Override
+    public Sighting.Source source() {
+        return Sighting.Source.BLE;
+    }
+
+    @Override
+    public boolean start() {
+        if(scheduler != null) return true;
+        if(!hasPermissions()) return false;
+        leScanner = bleAdapter.getBluetoothLeScanner();
+        if(leScanner == null) {
+            Log.i(TAG, "start(): adapter is off");
+            return false;
+        }
+        readPreferences();
+        if(pipeline == null) startPipeline();
+        App.getLocationDiscovery().acquire();
+        scheduler = new ScanScheduler(leScanCycle, new HandlerTimer(handler),
+                new AdaptiveScanPolicy(scantime, delay), radio, Sighting.Source.BLE);
+        Log.i(TAG, "start(): starting scan cycle");
+        scheduler.start(delay);
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        if(scheduler == null) return;
+        Log.i(TAG, "stop(): " + summary());
+        scheduler.stop();
+        scheduler = null;
+        App.getLocationDiscovery().release();
+    }
+
+    @Override
+    public boolean reconfigure(String key) {
+        if(PREF_BLE_SCANTIME.equals(key) || PREF_BLE_DELAY.equals(key)) {
+            readPreferences();
+            if(scheduler != null) scheduler.setPolicy(new AdaptiveScanPolicy(scantime, delay));
+            return true;
+        }
+        if(PREF_BLE_BATCH.equals(key) || PREF_BLE_REPORT_DELAY.equals(key)
+                || PREF_BLE_BATCH_SIZE.equals(key) || PREF_BLE_SCAN_MODE.equals(key)) {
+            // The scan settings are built for every window, only the publish batch needs a push
+            readPreferences();
+            if(publish != null) publish.setMinBatch(batchMode ? batchSize : 1);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        stop();
+        if(pipeline == null) return;
+        try {
+            pipeline.stop();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "close(): " + pipeline);
+        pipeline = null;
+        App.saveSightingIndex();
+    }
+
+    @Override
+    public String summary() {
+        if(scheduler == null) return pipeline == null ? "idle" : String.valueOf(pipeline);
+        return scheduler.windows() + " windows, " + scheduler.failures() + " failures, "
+                + scheduler.deferrals() + " deferrals, " + scheduler.newDevices() + " new devices";
+    }
+
+    /**
+     * Build and start the estimate, dedupe, locate, persist, publish and index stages.
+     */
+    private void startPipeline() {
+        dedupe = new DedupeStage(new DeviceTable(DEVICE_CAPACITY), Sighting.Source.BLE,
+                new DedupeStage.NameLookup() {
+                    @Override
+                    public String name(Object attachment) {
+                        // getName() is a binder call, the stage only makes it once per device
+                        return ((BluetoothDevice) attachment).getName();
+                    }
+                });
+        publish  = new PublishStage(App.getSightingBus(), batchMode ? batchSize : 1);
+        pipeline = new Pipeline("ble", Pipeline.DEFAULT_QUEUE_CAPACITY,
+                new EstimateStage(App.getLocationTrack(), App.getPositionEstimator()),
+                dedupe,
+                new LocationStage(App.getLocationTrack()),
+                new PersistStage(App.getSightingLogFuture(), App.getMetrics()),
+                publish,
+                new IndexStage(App.getSightingIndex(), App.getSightingLogFuture()));
+        pipeline.start();
+        final StageMetrics first = pipeline.metrics()[0];
+        App.getMetrics().gauge("ble.queue", new Gauge() {
+            @Override
+            public long value() {
+                return first.depth();
+            }
+        });
+        App.getMetrics().gauge("ble.callbacks_per_min", new Gauge() {
+            @Override
+            public long value() {
+                return callbacksPerMinute;
+            }
+        });
+    }
+
+    private boolean hasPermissions() {
+        int fineLocationCheck = ContextCompat.checkSelfPermission(context,
+                Manifest.permission.ACCESS_FINE_LOCATION);
+        if(fineLocationCheck != PackageManager.PERMISSION_GRANTED) {
+            Log.i(TAG, "hasPermissions(): no FINE LOCATION");
+            return false;
+        } else if(bleAdapter == null) {
+            Log.i(TAG, "hasPermissions(): no BT ADAPTER");
+            return false;
+        } else return true;
+    }
+
+    /**
+     * Load the scan cycle and batched scanning settings. Values are stored as Strings by EditTextPreference.
+     */
+    private void readPreferences() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        scantime    = Math.max(1000, PreferenceUtil.getLong(preferences, PREF_BLE_SCANTIME, DEFAULT_SCANTIME));
+        delay       = Math.max(0, PreferenceUtil.getLong(preferences, PREF_BLE_DELAY, DEFAULT_DELAY));
+        batchMode   = preferences.getBoolean(PREF_BLE_BATCH, false);
+        reportDelay = Math.max(0, PreferenceUtil.getLong(preferences, PREF_BLE_REPORT_DELAY, DEFAULT_REPORT_DELAY));
+        batchSize   = (int) Math.max(1, PreferenceUtil.getLong(preferences, PREF_BLE_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+        scanMode    = (int) PreferenceUtil.getLong(preferences, PREF_BLE_SCAN_MODE, ScanSettings.SCAN_MODE_LOW_POWER);
+
+        // Controllers without offloaded batching reject any report delay
+        if(batchMode && !bleAdapter.isOffloadedScanBatchingSupported()) {
+            Log.i(TAG, "readPreferences(): batching not supported by controller, using per-result mode");
+            batchMode = false;
+        }
+        Log.i(TAG, "readPreferences(): scantime = " + scantime + ", delay = " + delay);
+        Log.i(TAG, "readPreferences(): batchMode = " + batchMode + ", reportDelay = " + reportDelay
+                + ", batchSize = " + batchSize + ", scanMode = " + scanMode);
+    }
+
+    private ScanSettings buildScanSettings() {
+        return new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .setReportDelay(batchMode ? reportDelay : 0)
+                .build();
+    }
+
+    /**
+     * Starts and stops the LE scanner for each window of the ScanScheduler.
+     */
+    private final ScanScheduler.Scanner leScanCycle = new ScanScheduler.Scanner() {
+        @Override
+        public boolean startScan() {
+            LOG.log(SCAN_START);
+            try {
+                stats.reset(SystemClock.elapsedRealtime());
+                leScanner.startScan(null, buildScanSettings(), leScanCallback);
+                return true;
+            } catch(IllegalStateException e) {
+                LOG.log(START_OFF);
+                return false;
+            }
+        }
+
+        @Override
+        public void stopScan() {
+            try {
+                if(batchMode) leScanner.flushPendingScanResults(leScanCallback);
+                leScanner.stopScan(leScanCallback);
+            } catch(IllegalStateException e) {
+                LOG.log(STOP_OFF);
+            }
+            // Expire, flush and signal behind the results already queued
+            long now = SystemClock.elapsedRealtimeNanos();
+            pipeline.tick(now);
+            TraceRecorder recorder = App.getTraceRecorder();
+            if(recorder != null) {
+                recorder.windowEnd(Sighting.Source.BLE, now);
+                recorder.flush();
+            }
+            // Subscribers are woken once per signal, not per result
+            long signals = publish.signals();
+            stats.onEvents(signals - countedSignals);
+            countedSignals = signals;
+            wakeupsSaved.add(stats.wakeupsSaved());
+            broadcastsSaved.add(stats.eventsSaved());
+            long nowMillis = SystemClock.elapsedRealtime();
+            callbacksPerMinute = Math.round(stats.callbacksPerMinute(nowMillis));
+            int found = dedupe.takeNewDevices();
+            windows.inc();
+            newDevices.add(found);
+            if(scheduler != null) scheduler.onNewDevices(found);
+            // New devices hint that we are moving, location sampling speeds up
+            App.getLocationDiscovery().onNewDevices(found);
+            LOG.log(WINDOW, stats.callbacks(), stats.results(), found, signals);
+            LOG.log(WINDOW_RATES, callbacksPerMinute, Math.round(stats.resultsPerMinute(nowMillis)),
+                    stats.wakeupsSaved(), stats.eventsSaved());
+            LOG.log(WINDOW_PIPE, pipeline.submitted(), pipeline.dropped(), pipeline.endToEnd().averageServiceNanos());
+        }
+    };
+
+    private final ScanCallback leScanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            super.onScanResult(callbackType, result);
+            stats.onCallback(1);
+            submit(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            super.onBatchScanResults(results);
+            LOG.log(BATCH, results.size());
+            stats.onCallback(results.size());
+            for(int i = 0; i < results.size(); ++i) submit(results.get(i));
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+            LOG.log(SCAN_FAILED, errorCode);
+            if(scheduler != null) scheduler.onScanFailed(errorCode);
+        }
+    };
+
+    /**
+     * Hand a scan result to the pipeline. Only the MAC is parsed here; everything else, the name
+     * lookup included, happens on the pipeline's threads. Never blocks: if the pipeline is
+     * backed up the result is dropped and counted. How long this takes goes into "ble.callback".
+     * @param result scan result from the leScanCallback
+     */
+    private void submit(ScanResult result) {
+        if(pipeline == null) return;
+        long start = System.nanoTime();
+        results.inc();
+        if(scheduler != null) scheduler.onResult(false);
+        BluetoothDevice device = result.getDevice();
+        long mac = MacAddress.pack(device.getAddress());
+        TraceRecorder recorder = App.getTraceRecorder();
+        if(recorder != null) {
+            recorder.result(Sighting.Source.BLE, mac, result.getRssi(), result.getTimestampNanos(), null);
+        }
+        Pipeline.Record record = pipeline.obtain();
+        if(record == null) {
+            dropped.inc();
+        } else {
+            record.sighting.set(mac, result.getRssi(), result.getTimestampNanos(), Sighting.Source.BLE, null);
+            record.attachment = device;
+            if(!pipeline.submit(record)) dropped.inc();
+        }
+        callbackNanos.recordSince(start);
+    }
+}
@@ -0,0 +1,293 @@
+package com.bah.iotsap.services;
+
+import android.Manifest;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import com.bah.iotsap.App;
+import com.bah.iotsap.discovery.AdaptiveScanPolicy;
+import com.bah.iotsap.discovery.DeviceTable;
+import com.bah.iotsap.discovery.DiscoverySource;
+import com.bah.iotsap.discovery.MacAddress;
+import com.bah.iotsap.discovery.RadioScheduler;
+import com.bah.iotsap.discovery.ScanScheduler;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.log.LogEvent;
+import com.bah.iotsap.log.RingLog;
+import com.bah.iotsap.metrics.Counter;
+import com.bah.iotsap.metrics.Gauge;
+import com.bah.iotsap.metrics.Histogram;
+import com.bah.iotsap.metrics.MetricsRegistry;
+import com.bah.iotsap.pipeline.DedupeStage;
+import com.bah.iotsap.pipeline.EstimateStage;
+import com.bah.iotsap.pipeline.IndexStage;
+import com.bah.iotsap.pipeline.LocationStage;
+import com.bah.iotsap.pipeline.PersistStage;
+import com.bah.iotsap.pipeline.Pipeline;
+import com.bah.iotsap.pipeline.PublishStage;
+import com.bah.iotsap.pipeline.StageMetrics;
+import com.bah.iotsap.trace.TraceRecorder;
+import com.bah.iotsap.util.HandlerTimer;
+import com.bah.iotsap.util.PreferenceUtil;
+
+/**
+ * ClassicSource periodically scans for any and all near-by bluetooth devices.
+ * Every device found is handed to a Pipeline, whose stages fold it into a DeviceTable and, when
+ * a device is new, its smoothed RSSI moved or it expired, tag the sighting with this device's
+ * location at the time, append it to the App's SightingLog and publish it on the App's
+ * SightingBus, all off the main thread.
+ * Inquiries run in windows sized by an AdaptiveScanPolicy, and every window has to be granted by
+ * the engine's RadioScheduler so classic inquiry and LE scans never share the radio.
+ * The ACTION_FOUND receiver is only registered while the source runs; the pipeline lives from
+ * the first start() to close().
+ * Results, drops, windows and the time each ACTION_FOUND takes are counted under "bt." in the
+ * App's MetricsRegistry; what happens per window goes to the App's RingLog.
+ */
+public final class ClassicSource implements DiscoverySource {
+
+    private static final String TAG = "ClassicSource";
+    // SharedPreferences Strings
+    public static final String PREF_BT_SERVICE  = "pref_bt_service";
+    public static final String PREF_BT_SCANTIME = "pref_bt_scantime";
+    public static final String PREF_BT_DELAY    = "pref_bt_delay";
+    // Scan cycle defaults, one standard inquiry lasts about 12 seconds
+    public static final long DEFAULT_SCANTIME = 12000;
+    public static final long DEFAULT_DELAY    = 1000;
+    // Number of devices tracked in the live device table
+    public static final int DEVICE_CAPACITY = 8192;
+    // Inquiry path entries, see App.getLog()
+    private static final RingLog  LOG         = App.getLog();
+    private static final LogEvent SCAN_START  = LOG.event(RingLog.DEBUG, TAG,
+            "startScan(): starting discovery, started = {}");
+    private static final LogEvent RESTART     = LOG.event(RingLog.DEBUG, TAG,
+            "onReceive(): restarting discovery within window");
+    private static final LogEvent WINDOW      = LOG.event(RingLog.INFO, TAG,
+            "stopScan(): {} new devices; in total {} results, {} submitted, {} dropped");
+
+    private final Context          context;
+    private final Handler          handler;
+    private final RadioScheduler   radio;
+    // Metrics, see App.getMetrics()
+    private final Counter          results;
+    private final Counter          dropped;
+    private final Counter          windows;
+    private final Counter          newDevices;
+    private final Histogram        callbackNanos;
+    private final BluetoothAdapter btAdapter = BluetoothAdapter.getDefaultAdapter();
+    private ScanScheduler scheduler;
+    private Pipeline    pipeline;
+    private DedupeStage dedupe;
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+
+            if(BluetoothDevice.ACTION_FOUND.equals(action)) {
+                // Get information from discovered devices
+                long start = System.nanoTime();
+                results.inc();
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                if(scheduler != null) scheduler.onResult(false);
+                long mac = MacAddress.pack(device.getAddress());
+                int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                long now = SystemClock.elapsedRealtimeNanos();
+                String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+                TraceRecorder recorder = App.getTraceRecorder();
+                if(recorder != null) recorder.result(Sighting.Source.BT_CLASSIC, mac, rssi, now, name);
+                Pipeline.Record record = pipeline.obtain();
+                if(record == null) {
+                    dropped.inc();
+                } else {
+                    record.sighting.set(mac, rssi, now, Sighting.Source.BT_CLASSIC, name);
+                    record.attachment = device;
+                    if(!pipeline.submit(record)) dropped.inc();
+                }
+                callbackNanos.recordSince(start);
+
+            } else if(BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                // An inquiry ended before our window did, keep going until the window closes
+                if(scheduler != null && scheduler.isScanning()) {
+                    LOG.log(RESTART);
+                    btAdapter.startDiscovery();
+                }
+            }
+        }
+    };
+
+    /**
+     * @param handler handler of the engine's main thread, the scan cycle runs on it
+     * @param radio   scheduler every inquiry window has to be granted by
+     */
+    public ClassicSource(Context context, Handler handler, RadioScheduler radio) {
+        this.context = context;
+        this.handler = handler;
+        this.radio   = radio;
+        MetricsRegistry metrics = App.getMetrics();
+        results       = metrics.counter("bt.results");
+        dropped       = metrics.counter("bt.dropped");
+        windows       = metrics.counter("bt.windows");
+        newDevices    = metrics.counter("bt.new_devices");
+        callbackNanos = metrics.histogram("bt.callback");
+    }
+
+    @Override
+    public Sighting.Source source() {
+        return Sighting.Source.BT_CLASSIC;
+    }
+
+    @Override
+    public boolean start() {
+        if(scheduler != null) return true;
+        if(!hasPermissions()) return false;
+        if(!btAdapter.isEnabled()) {
+            Log.i(TAG, "start(): enabling bluetooth adapter");
+            btAdapter.enable();
+        }
+        if(pipeline == null) startPipeline();
+        App.getLocationDiscovery().acquire();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        context.registerReceiver(receiver, filter, null, handler);
+
+        scheduler = new ScanScheduler(inquiryCycle, new HandlerTimer(handler), policy(), radio,
+                Sighting.Source.BT_CLASSIC);
+        Log.i(TAG, "start(): starting inquiry cycle");
+        scheduler.start(0);
+        return true;
+    }
+
+    @Override
+    public void stop() {
+        if(scheduler == null) return;
+        Log.i(TAG, "stop(): " + summary());
+        scheduler.stop();
+        scheduler = null;
+        context.unregisterReceiver(receiver);
+        App.getLocationDiscovery().release();
+    }
+
+    @Override
+    public boolean reconfigure(String key) {
+        if(!PREF_BT_SCANTIME.equals(key) && !PREF_BT_DELAY.equals(key)) return false;
+        if(scheduler != null) scheduler.setPolicy(policy());
+        return true;
+    }
+
+    @Override
+    public void close() {
+        stop();
+        if(pipeline == null) return;
+        try {
+            pipeline.stop();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.i(TAG, "close(): " + pipeline);
+        pipeline = null;
+        App.saveSightingIndex();
+    }
+
+    @Override
+    public String summary() {
+        if(scheduler == null) return pipeline == null ? "idle" : String.valueOf(pipeline);
+        return scheduler.windows() + " windows, " + scheduler.failures() + " failures, "
+                + scheduler.deferrals() + " deferrals, " + scheduler.newDevices() + " new devices";
+    }
+
+    private void startPipeline() {
+        dedupe = new DedupeStage(new DeviceTable(DEVICE_CAPACITY), Sighting.Source.BT_CLASSIC,
+                new DedupeStage.NameLookup() {
+                    @Override
+                    public String name(Object attachment) {
+                        return ((BluetoothDevice) attachment).getName();
+                    }
+                });
+        pipeline = new Pipeline("bt", Pipeline.DEFAULT_QUEUE_CAPACITY,
+                new EstimateStage(App.getLocationTrack(), App.getPositionEstimator()),
+                dedupe,
+                new LocationStage(App.getLocationTrack()),
+                new PersistStage(App.getSightingLogFuture(), App.getMetrics()),
+                new PublishStage(App.getSightingBus(), 1),
+                new IndexStage(App.getSightingIndex(), App.getSightingLogFuture()));
+        pipeline.start();
+        final StageMetrics first = pipeline.metrics()[0];
+        App.getMetrics().gauge("bt.queue", new Gauge() {
+            @Override
+            public long value() {
+                return first.depth();
+            }
+        });
+    }
+
+    /**
+     * @return a policy for the scan cycle settings in the preferences
+     */
+    private AdaptiveScanPolicy policy() {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        long scantime = Math.max(1000, PreferenceUtil.getLong(preferences, PREF_BT_SCANTIME, DEFAULT_SCANTIME));
+        long delay    = Math.max(0, PreferenceUtil.getLong(preferences, PREF_BT_DELAY, DEFAULT_DELAY));
+        Log.i(TAG, "policy(): scantime = " + scantime + ", delay = " + delay);
+        return new AdaptiveScanPolicy(scantime, delay);
+    }
+
+    /**
+     * Starts and cancels an inquiry for each window of the ScanScheduler.
+     */
+    private final ScanScheduler.Scanner inquiryCycle = new ScanScheduler.Scanner() {
+        @Override
+        public boolean startScan() {
+            boolean started = btAdapter.startDiscovery();
+            LOG.log(SCAN_START, started ? 1 : 0);
+            return started;
+        }
+
+        @Override
+        public void stopScan() {
+            btAdapter.cancelDiscovery();
+            // Expire, flush and signal behind the devices already queued
+            long now = SystemClock.elapsedRealtimeNanos();
+            pipeline.tick(now);
+            TraceRecorder recorder = App.getTraceRecorder();
+            if(recorder != null) {
+                recorder.windowEnd(Sighting.Source.BT_CLASSIC, now);
+                recorder.flush();
+            }
+            int found = dedupe.takeNewDevices();
+            windows.inc();
+            newDevices.add(found);
+            if(scheduler != null) scheduler.onNewDevices(found);
+            // New devices hint that we are moving, location sampling speeds up
+            App.getLocationDiscovery().onNewDevices(found);
+            LOG.log(WINDOW, found, results.sum(), pipeline.submitted(), pipeline.dropped());
+        }
+    };
+
+    /**
+     * Confirm that the source has all permissions required to operate
+     * @return true if it should be able to run without any issues
+     */
+    private boolean hasPermissions() {
+        int fineLocationCheck = ContextCompat.checkSelfPermission(context,
+                Manifest.permission.ACCESS_FINE_LOCATION);
+        if(fineLocationCheck != PackageManager.PERMISSION_GRANTED) {
+            Log.i(TAG, "hasPermissions(): no FINE LOCATION");
+            return false;
+        } else if(btAdapter == null) {
+            Log.i(TAG, "hasPermissions(): no BT ADAPTER");
+            return false;
+        } else return true;
+    }
+}
@@ -0,0 +1,259 @@
+package com.bah.iotsap.services;
+
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.preference.PreferenceManager;
+import android.support.v4.app.NotificationCompat;
+import android.util.Log;
+
+import com.bah.iotsap.MainActivity;
+import com.bah.iotsap.R;
+import com.bah.iotsap.discovery.RadioScheduler;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.discovery.SourceRegistry;
+import com.bah.iotsap.util.PreferenceUtil;
+
+/**
+ * DiscoveryEngine is the one long lived service that runs discovery. It holds every
+ * DiscoverySource (classic inquiry, LE scanning) in a SourceRegistry and runs the ones whose
+ * PREF_*_SERVICE preference is on, all in this process and on its main thread. Turning a source
+ * on or off, or changing one of its settings, is applied in place from
+ * onSharedPreferenceChanged: no service is started, stopped or looked up for it, and the other
+ * sources keep scanning.
+ * The engine runs in the foreground, with a notification, while any source runs and stops
+ * itself when the last one is turned off. It is sticky, so if the system kills it anyway it is
+ * brought back with the sources the preferences ask for.
+ * It owns the RadioScheduler the sources share, so their scan windows take turns on the radio
+ * according to the PREF_RADIO_*_WEIGHT preferences.
+ * When the device (re)gains connectivity it has HttpService drain the upload queue right away.
+ * NFC is not a source: tags are only delivered to the activity in the foreground.
+ */
+public class DiscoveryEngine extends Service implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final String TAG = "DiscoveryEngine";
+    // intent action strings
+    public static final String START = "com.bah.iotsap.services.DiscoveryEngine.START";
+    public static final String STOP  = "com.bah.iotsap.services.DiscoveryEngine.STOP";
+    // Preference strings
+    public static final String PREF_RADIO_BT_WEIGHT  = "pref_radio_bt_weight";
+    public static final String PREF_RADIO_BLE_WEIGHT = "pref_radio_ble_weight";
+    public static final int    DEFAULT_RADIO_WEIGHT  = 1;
+
+    private static final int NOTIFICATION_ID = 1;
+
+    // Null while the engine is not running
+    private static volatile SourceRegistry registry;
+
+    private SharedPreferences preferences;
+    private RadioScheduler    radioScheduler;
+    private boolean           foreground;
+
+    /**
+     * Receiver to listen for changes to the state of the adapters and the network.
+     */
+    private final BroadcastReceiver receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Log.i(TAG, "onReceive()");
+            String action = intent.getAction();
+
+            // RESPOND TO CHANGES IN BT ADAPTER
+            if(BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+                int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+                Log.i(TAG, "onReceive(): BT ACTION_STATE_CHANGED, state = " + state);
+                // The LE scanner only exists while the adapter is on, retry what could not start
+                if(state == BluetoothAdapter.STATE_ON) apply();
+            } else if(WifiManager.WIFI_STATE_CHANGED_ACTION.equals(action)) {
+                Log.i(TAG, "onReceive(): BT WIFI_STATE_CHANGED_ACTION");
+                if(isConnected()) HttpService.requestDrain(context, true);
+            } else if(WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(action)) {
+                Log.i(TAG, "onReceive(): BT NETWORK_STATE_CHANGED");
+                NetworkInfo info = intent.getParcelableExtra(WifiManager.EXTRA_NETWORK_INFO);
+                if(info != null && info.isConnected()) {
+                    // Back online, catch up on the backlog without waiting for the backoff
+                    HttpService.requestDrain(context, true);
+                }
+            }
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.i(TAG, "onCreate()");
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);   // Adapter on or off?
+        filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);   // Enabled, disabled, enabling?
+        filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);// Network connectivity change?
+        registerReceiver(receiver, filter);
+
+        preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        preferences.registerOnSharedPreferenceChangeListener(this);
+
+        radioScheduler = new RadioScheduler();
+        Handler handler = new Handler();
+        SourceRegistry sources = new SourceRegistry();
+        sources.register(new ClassicSource(this, handler, radioScheduler));
+        sources.register(new BleSource(this, handler, radioScheduler));
+        registry = sources;
+    }
+
+    /**
+     * START, or a restart by the system with a null intent, runs the sources the preferences
+     * ask for; STOP stops them all and the engine with them.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        Log.i(TAG, "onStartCommand()");
+
+        if(intent != null && STOP.equals(intent.getAction())) {
+            Log.i(TAG, "onStartCommand(): intent action = STOP");
+            registry.stopAll();
+            Log.i(TAG, "onStartCommand(): radio yield: " + radioScheduler.summary());
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        apply();
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        Log.i(TAG, "onDestroy()");
+        super.onDestroy();
+        SourceRegistry sources = registry;
+        registry = null;
+        sources.closeAll();
+        try {
+            unregisterReceiver(receiver);
+            preferences.unregisterOnSharedPreferenceChangeListener(this);
+        } catch(Exception e) {
+            Log.i(TAG, "onDestroy(): EXCEPTION CAUGHT = " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start or stop the source a preference switches, change radio shares, or hand any other
+     * key to the sources to apply in place.
+     */
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        Log.i(TAG, "onSharedPreferenceChanged(): key = " + key);
+
+        if(ClassicSource.PREF_BT_SERVICE.equals(key)) {
+            setEnabled(Sighting.Source.BT_CLASSIC, sharedPreferences.getBoolean(key, false));
+            updateForeground();
+        } else if(BleSource.PREF_BLE_SERVICE.equals(key)) {
+            setEnabled(Sighting.Source.BLE, sharedPreferences.getBoolean(key, false));
+            updateForeground();
+        } else if(PREF_RADIO_BT_WEIGHT.equals(key)) {
+            radioScheduler.setWeight(Sighting.Source.BT_CLASSIC, radioWeight(Sighting.Source.BT_CLASSIC));
+        } else if(PREF_RADIO_BLE_WEIGHT.equals(key)) {
+            radioScheduler.setWeight(Sighting.Source.BLE, radioWeight(Sighting.Source.BLE));
+        } else {
+            registry.reconfigure(key);
+        }
+    }
+
+    /**
+     * The sources of the running engine, to ask what runs.
+     * @return the registry, or null if the engine is not running
+     */
+    public static SourceRegistry getSourceRegistry() {
+        return registry;
+    }
+
+    /**
+     * Start the engine unless it runs. Only looks at a field, so it is cheap to call whenever a
+     * source may have been turned on.
+     */
+    public static void ensureRunning(Context context) {
+        if(registry != null) return;
+        context.startService(new Intent(START, null, context, DiscoveryEngine.class));
+    }
+
+    /**
+     * Bring every source in line with its preference.
+     */
+    private void apply() {
+        setEnabled(Sighting.Source.BT_CLASSIC, preferences.getBoolean(ClassicSource.PREF_BT_SERVICE, false));
+        setEnabled(Sighting.Source.BLE, preferences.getBoolean(BleSource.PREF_BLE_SERVICE, false));
+        Log.i(TAG, "apply(): " + registry.summary());
+        updateForeground();
+    }
+
+    private void setEnabled(Sighting.Source source, boolean enabled) {
+        if(enabled == registry.isRunning(source)) return;
+        if(enabled) {
+            Log.i(TAG, "setEnabled(): starting " + source);
+            radioScheduler.register(source, radioWeight(source));
+            if(!registry.start(source)) {
+                Log.i(TAG, "setEnabled(): " + source + " could not start");
+                radioScheduler.unregister(source);
+            }
+        } else {
+            Log.i(TAG, "setEnabled(): stopping " + source);
+            registry.stop(source);
+            radioScheduler.unregister(source);
+        }
+    }
+
+    /**
+     * Stay in the foreground while a source runs, stop once none does.
+     */
+    private void updateForeground() {
+        if(registry.isActive()) {
+            if(!foreground) {
+                startForeground(NOTIFICATION_ID, buildNotification());
+                foreground = true;
+            }
+        } else {
+            Log.i(TAG, "updateForeground(): no source runs, stopping");
+            if(foreground) {
+                stopForeground(true);
+                foreground = false;
+            }
+            stopSelf();
+        }
+    }
+
+    private android.app.Notification buildNotification() {
+        PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
+        return new NotificationCompat.Builder(this)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.engine_notification_title))
+                .setContentText(getString(R.string.engine_notification_text))
+                .setContentIntent(open)
+                .setOngoing(true)
+                .build();
+    }
+
+    private boolean isConnected() {
+        ConnectivityManager manager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = manager.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    private int radioWeight(Sighting.Source source) {
+        String key = source == Sighting.Source.BLE ? PREF_RADIO_BLE_WEIGHT : PREF_RADIO_BT_WEIGHT;
+        return Math.max(1, PreferenceUtil.getInt(preferences, key, DEFAULT_RADIO_WEIGHT));
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -1,45 +1,78 @@
 package com.bah.iotsap.services;
 
+import android.app.AlarmManager;
 import android.app.IntentService;
+import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.support.annotation.NonNull;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
-import java.io.Closeable;
+import com.bah.iotsap.App;
+import com.bah.iotsap.metrics.Counter;
+import com.bah.iotsap.metrics.Histogram;
+import com.bah.iotsap.metrics.MetricsRegistry;
+import com.bah.iotsap.storage.SegmentInfo;
+import com.bah.iotsap.storage.SightingLog;
+import com.bah.iotsap.upload.MultipartUploader;
+import com.bah.iotsap.upload.SegmentUploader;
+import com.bah.iotsap.upload.SyncClient;
+import com.bah.iotsap.upload.UploadQueue;
+import com.bah.iotsap.util.PreferenceUtil;
+
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.Scanner;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
 
 
 /**
  * HttpService allows us to send information over HTTP.
  * You are able to send files or text over HTTP via POST or form/multipart.
- * TODO: Remove test code in primary sendFile method
- * TODO: Set up default address or config to listen to
- * TODO: Get POST working with a request directly to the target address
+ * DRAIN uploads the sealed sighting log segments waiting in the persistent UploadQueue to the
+ * PREF_UPLOAD_ENDPOINT. If an upload fails the queue backs off and an alarm sends DRAIN again
+ * once the backoff has passed; RESET_BACKOFF (set by DiscoveryEngine when connectivity comes back)
+ * retries right away.
+ * With PREF_UPLOAD_DELTA set, DRAIN instead runs an incremental SyncClient: only records after
+ * the collector's committed offset are sent, and DRAIN repeats every PREF_SYNC_INTERVAL.
+ * Requests, records, bytes and failures are counted under "upload." in the App's MetricsRegistry,
+ * with how long each request took and how old a segment was when the collector took it.
  */
 public class HttpService extends IntentService {
 
     private static final String TAG  = "HttpService";
-    private static final String CRLF = "\r\n";
     public  static final String SEND_FILE = "com.bah.iotsap.services.HttpService.SEND_FILE";
+    public  static final String DRAIN     = "com.bah.iotsap.services.HttpService.DRAIN";
     public  static final String ADDRESS  = "address";
     public  static final String FILENAME = "title";
     public  static final String DESC     = "description";
+    public  static final String GZIP     = "gzip";
+    public  static final String RESET_BACKOFF = "reset_backoff";
+    // Preference strings
+    public  static final String PREF_UPLOAD_ENDPOINT = "pref_upload_endpoint";
+    public  static final String PREF_UPLOAD_GZIP     = "pref_upload_gzip";
+    public  static final String PREF_UPLOAD_COLUMNAR = "pref_upload_columnar";
+    public  static final String PREF_UPLOAD_DELTA    = "pref_upload_delta";
+    public  static final String PREF_SYNC_INTERVAL   = "pref_sync_interval";
+    public  static final String DEFAULT_ENDPOINT     = "http://192.168.1.100:8080/upload/";
+    public  static final long   DEFAULT_SYNC_INTERVAL = 5 * 60 * 1000L;
+    // Generated on first use, names this device's stream on the collector
+    private static final String PREF_DEVICE_ID       = "pref_device_id";
 
+    private static final String QUEUE_DIR       = "upload-queue";
+    private static final String COLUMNAR_DIR    = "columnar";
+    private static final String SYNC_CHECKPOINT = "sync.checkpoint";
 
+    // Opened on the first DRAIN, only used from the worker thread
+    private static UploadQueue queue;
+    private static SyncClient  syncClient;
+    private static String      syncEndpoint;
 
     public HttpService() {
         super("HttpService");
@@ -58,8 +91,10 @@ public class HttpService extends IntentService {
 
         if(SEND_FILE.equals(action)) {
             sendFile(intent);
+        } else if(DRAIN.equals(action)) {
+            drain(intent.getBooleanExtra(RESET_BACKOFF, false));
         } else {
-            Log.i(TAG, "onHandleIntent(): Action is NOT SEND_FILE");
+            Log.i(TAG, "onHandleIntent(): Action is NOT SEND_FILE or DRAIN");
         }
         Log.i(TAG, "onHandleIntent(): Ending method");
     }
@@ -70,10 +105,147 @@ public class HttpService extends IntentService {
         Log.i(TAG, "onDestroy()");
     }
 
+    /**
+     * Ask HttpService to upload whatever is queued.
+     * @param resetBackoff true to retry right away even if the queue is backing off
+     */
+    public static void requestDrain(Context context, boolean resetBackoff) {
+        context.startService(new Intent(DRAIN, null, context, HttpService.class)
+                .putExtra(RESET_BACKOFF, resetBackoff));
+    }
+
+    /**
+     * Queue any sealed log segments that are not uploaded yet, and upload them oldest first.
+     */
+    private void drain(boolean resetBackoff) {
+        SightingLog log = App.awaitSightingLog();
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        String address = preferences.getString(PREF_UPLOAD_ENDPOINT, DEFAULT_ENDPOINT);
+        if(preferences.getBoolean(PREF_UPLOAD_DELTA, false)) {
+            if(log != null) sync(log, preferences, address, resetBackoff);
+            return;
+        }
+        try {
+            if(queue == null) queue = new UploadQueue(new File(getFilesDir(), QUEUE_DIR));
+            if(resetBackoff) queue.resetBackoff();
+            if(log != null) queue.enqueueSealed(log.directory());
+
+            SegmentUploader sender = new SegmentUploader(new URL(address),
+                    preferences.getBoolean(PREF_UPLOAD_GZIP, false),
+                    preferences.getBoolean(PREF_UPLOAD_COLUMNAR, false) ? new File(getCacheDir(), COLUMNAR_DIR) : null);
+            long retryIn = queue.drain(new TimedSender(sender, App.getMetrics()), System.currentTimeMillis());
+            Log.i(TAG, "drain(): sent " + queue.sent() + ", acked up to " + queue.ackedSeq()
+                    + ", " + queue.pending() + " pending, last status " + sender.lastCode());
+            if(retryIn > 0) scheduleDrain(retryIn);
+        } catch(MalformedURLException e) {
+            Log.i(TAG, "drain(): Invalid endpoint " + address);
+        } catch(IOException e) {
+            Log.i(TAG, "drain(): IOException " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send the records the collector does not have yet, then come back after the sync interval
+     * (or the backoff, if it failed).
+     */
+    private void sync(SightingLog log, SharedPreferences preferences, String address, boolean resetBackoff) {
+        try {
+            if(syncClient == null || !address.equals(syncEndpoint)) {
+                syncClient = new SyncClient(new URL(address), deviceId(preferences), log.directory(),
+                        new File(getFilesDir(), SYNC_CHECKPOINT));
+                syncEndpoint = address;
+            }
+            if(resetBackoff) syncClient.resetBackoff();
+            MetricsRegistry metrics = App.getMetrics();
+            long records  = syncClient.recordsSent();
+            long bytes    = syncClient.bytesSent();
+            int  failures = syncClient.failures();
+            long start    = System.nanoTime();
+            long retryIn  = syncClient.sync(System.currentTimeMillis());
+            metrics.histogram("upload.sync").recordSince(start);
+            metrics.counter("upload.records").add(syncClient.recordsSent() - records);
+            metrics.counter("upload.bytes").add(syncClient.bytesSent() - bytes);
+            if(syncClient.failures() > failures) metrics.counter("upload.failures").inc();
+            Log.i(TAG, "sync(): committed " + syncClient.committed() + ", sent " + syncClient.recordsSent()
+                    + " records / " + syncClient.bytesSent() + " bytes in " + syncClient.requests() + " requests");
+            scheduleDrain(retryIn > 0 ? retryIn : Math.max(10000,
+                    PreferenceUtil.getLong(preferences, PREF_SYNC_INTERVAL, DEFAULT_SYNC_INTERVAL)));
+        } catch(MalformedURLException e) {
+            Log.i(TAG, "sync(): Invalid endpoint " + address);
+        } catch(IOException e) {
+            Log.i(TAG, "sync(): IOException " + e.getMessage());
+        }
+    }
+
+    /**
+     * Times every segment upload and counts what went through.
+     */
+    private static final class TimedSender implements UploadQueue.Sender {
+
+        private final UploadQueue.Sender sender;
+        private final Histogram          requestNanos;
+        private final Histogram          ageNanos;
+        private final Counter            records;
+        private final Counter            bytes;
+        private final Counter            failures;
+
+        TimedSender(UploadQueue.Sender sender, MetricsRegistry metrics) {
+            this.sender  = sender;
+            requestNanos = metrics.histogram("upload.request");
+            ageNanos     = metrics.histogram("upload.age");
+            records      = metrics.counter("upload.records");
+            bytes        = metrics.counter("upload.bytes");
+            failures     = metrics.counter("upload.failures");
+        }
+
+        @Override
+        public boolean send(SegmentInfo segment) throws IOException {
+            long start = System.nanoTime();
+            boolean sent = false;
+            try {
+                sent = sender.send(segment);
+            } finally {
+                requestNanos.recordSince(start);
+                if(sent) {
+                    records.add(segment.count());
+                    bytes.add(segment.length);
+                    // Sealed when last written, so this is how long its newest record waited
+                    ageNanos.record((System.currentTimeMillis() - segment.file.lastModified()) * 1000000L);
+                } else {
+                    failures.inc();
+                }
+            }
+            return sent;
+        }
+    }
+
+    private static String deviceId(SharedPreferences preferences) {
+        String id = preferences.getString(PREF_DEVICE_ID, null);
+        if(id == null) {
+            id = UUID.randomUUID().toString();
+            preferences.edit().putString(PREF_DEVICE_ID, id).apply();
+        }
+        return id;
+    }
+
+    /**
+     * Send DRAIN again after delayMillis. The alarm does not wake the device; a sleeping device
+     * gets it when it wakes up, which is soon enough for a backlog.
+     */
+    private void scheduleDrain(long delayMillis) {
+        Log.i(TAG, "scheduleDrain(): retrying in " + delayMillis + " ms");
+        Intent retry = new Intent(DRAIN, null, this, HttpService.class);
+        PendingIntent pending = PendingIntent.getService(this, 0, retry, PendingIntent.FLAG_UPDATE_CURRENT);
+        AlarmManager alarms = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        alarms.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delayMillis, pending);
+    }
+
     /**
      * sendFile(Intent) is the method used for sending a particular file over HTTP
-     * to a server.
-     * @param intent with StringExtras for address of site and filename to send
+     * to a server. The file is streamed by MultipartUploader with a fixed Content-Length, or
+     * gzipped on the fly if the GZIP extra is true.
+     * @param intent with StringExtras for address of site (PREF_UPLOAD_ENDPOINT if missing) and
+     *               filename to send
      * @return success if file was sent successfully, false otherwise
      */
     private boolean sendFile(Intent intent) {
@@ -81,42 +253,14 @@ public class HttpService extends IntentService {
         boolean success = false;
 
         // File and address Strings
-        String address = "http://192.168.1.100:8080/upload/"; // intent.getStringExtra(ADDRESS);
+        String address = intent.getStringExtra(ADDRESS);
+        if(address == null) {
+            address = PreferenceManager.getDefaultSharedPreferences(this)
+                    .getString(PREF_UPLOAD_ENDPOINT, DEFAULT_ENDPOINT);
+        }
         String filename = intent.getStringExtra(FILENAME);
         String desc = intent.getStringExtra(DESC);
-        String boundary = Long.toHexString(System.currentTimeMillis());
-        URL url;
-        HttpURLConnection conn = null;
-        PrintWriter writer = null;
-        File file = null;
-
-
-        // TEST CODE FOR FILE
-        filename = "myTestFile100.txt";
-        String contents = "hello world! This is a test file to ensure can upload files to a server";
-        try {
-            FileOutputStream fos = openFileOutput(filename, Context.MODE_PRIVATE);
-            fos.write(contents.getBytes(StandardCharsets.UTF_8));
-            fos.close();
-
-            File myFile = new File(getFilesDir(), filename);
-            Scanner scanner = new Scanner(myFile);
-            String fileContents = scanner.nextLine();
-            scanner.close();
-            if(contents.equals(fileContents)) {
-                Log.i(TAG, "file contents EQUAL");
-            } else {
-                Log.i(TAG, "file contents NOT EQUAL!");
-                Log.i(TAG, "contents = " + contents);
-                Log.i(TAG, "fileContents = " + fileContents);
-            }
-
-        } catch(FileNotFoundException e) {
-            Log.i(TAG, "sendFile(Intent): FileNotFoundException");
-        } catch(IOException e) {
-            Log.i(TAG, "sendFile(Intent): IOException");
-        }
-        // END TEST CODE
+        boolean gzip = intent.getBooleanExtra(GZIP, false);
 
         // Guard against invalid
         if(filename == null || filename.isEmpty() ||
@@ -126,78 +270,17 @@ public class HttpService extends IntentService {
         }
 
         try {
-            url = new URL(address);
-            file = new File(getFilesDir(), filename);
-
-            // HTTP connection / header setup
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setDoInput(true); // Allow inputs on connection
-            conn.setDoOutput(true); // Allow outputs on connection
-            conn.setChunkedStreamingMode(0); // Body length is unknown
-            conn.setRequestMethod("POST"); // Post information to server
-            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-
-            // Setup stream writer
-            writer = new PrintWriter(new OutputStreamWriter(conn.getOutputStream(), StandardCharsets.UTF_8));
-            // Send text file
-            writer.append("--" + boundary).append(CRLF);
-            writer.append("Content-Disposition: form-data; name=\"file\"; filename=\"" + file.getName() + "\"").append(CRLF);
-            writer.append("Content-Type: text/plain; charset=" + StandardCharsets.UTF_8.toString()).append(CRLF);
-            writer.append(CRLF).flush();
-            // copy all bytes of file to output stream
-            copyFile(file, conn.getOutputStream());
-            writer.append(CRLF).flush();
-            // END of multipart/form-data
-            writer.append("--" + boundary + "--").append(CRLF).flush();
-
-            int responseCode = conn.getResponseCode();
-            Log.i(TAG, "sendFile(): responseCode = " + responseCode);
-
-            success = true;
+            File file = new File(getFilesDir(), filename);
+            Map<String, String> fields = desc == null ? null : Collections.singletonMap(DESC, desc);
+            MultipartUploader.Response response = new MultipartUploader(gzip).upload(new URL(address), file,
+                    0, file.length(), file.getName(), fields);
+            Log.i(TAG, "sendFile(): responseCode = " + response.code + ", sent " + response.bytesSent + " bytes");
+            success = response.isSuccessful();
         } catch(MalformedURLException e) {
             Log.i(TAG, "sendFile(): MalformedURLException");
         } catch(IOException e) {
             Log.i(TAG, "sendFile(): IOException");
-        } finally {
-            conn.disconnect();
-            close(writer);
         }
         return success;
     }
-
-    /**
-     * Copy a all bytes of a file to an output stream
-     * @param file nonNull File
-     * @param out nonNull OutputStream
-     */
-    private void copyFile(@NonNull File file, @NonNull OutputStream out) {
-        FileInputStream in = null;
-        try {
-            in = new FileInputStream(file);
-            int data;
-            while((data = in.read()) != -1) out.write(data);
-            out.flush();
-
-        } catch(FileNotFoundException e) {
-            Log.i(TAG, "copyFile(): FileNotFoundException");
-        } catch(IOException e) {
-            Log.i(TAG, "copyFile(): IOException");
-        } finally {
-            close(in);
-        }
-    }
-
-    /**
-     * Helper method used to cleanly close all streams found in the above try block.
-     * We simple pass all closeable objects to this method in a finally block.
-     * @param c an object that has the .close() function.
-     */
-    private void close(@Nullable Closeable c) {
-        if(c == null) return;
-        try {
-            c.close();
-        } catch(IOException e) {
-            Log.i(TAG, "close(Closeable): Caught IOException");
-        }
-    }
 }
@@ -0,0 +1,132 @@
+package com.bah.iotsap.spatial;
+
+/**
+ * Morton maps positions onto a Z-order curve: latitude and longitude are quantized to 31 bits
+ * each (about a centimeter) and their bits interleaved into one 62 bit key, so that positions
+ * close to each other mostly get keys close to each other. A quadtree cell is a contiguous range
+ * of keys, which lets a bounding box be answered with a few range scans over sorted keys.
+ * Longitude takes the even bits, latitude the odd ones.
+ * This class cannot be instantiated.
+ */
+final class Morton {
+
+    static final int  BITS  = 31;
+    static final long CELLS = 1L << BITS;
+    static final int  MAX   = (int) (CELLS - 1);
+
+    private Morton() {}
+
+    static int x(double longitude) {
+        return quantize((longitude + 180) / 360);
+    }
+
+    static int y(double latitude) {
+        return quantize((latitude + 90) / 180);
+    }
+
+    static double longitude(int x) {
+        return (x + 0.5) / CELLS * 360 - 180;
+    }
+
+    static double latitude(int y) {
+        return (y + 0.5) / CELLS * 180 - 90;
+    }
+
+    static long key(int x, int y) {
+        return spread(x) | spread(y) << 1;
+    }
+
+    static int x(long key) {
+        return compact(key);
+    }
+
+    static int y(long key) {
+        return compact(key >>> 1);
+    }
+
+    private static int quantize(double f) {
+        long v = (long) Math.floor(f * CELLS);
+        return (int) Math.max(0, Math.min(MAX, v));
+    }
+
+    private static long spread(int v) {
+        long x = v & 0x7FFFFFFFL;
+        x = (x | x << 16) & 0x0000FFFF0000FFFFL;
+        x = (x | x << 8)  & 0x00FF00FF00FF00FFL;
+        x = (x | x << 4)  & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | x << 2)  & 0x3333333333333333L;
+        x = (x | x << 1)  & 0x5555555555555555L;
+        return x;
+    }
+
+    private static int compact(long x) {
+        x &= 0x5555555555555555L;
+        x = (x | x >>> 1)  & 0x3333333333333333L;
+        x = (x | x >>> 2)  & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | x >>> 4)  & 0x00FF00FF00FF00FFL;
+        x = (x | x >>> 8)  & 0x0000FFFF0000FFFFL;
+        x = (x | x >>> 16) & 0x00000000FFFFFFFFL;
+        return (int) x;
+    }
+
+    /**
+     * Cover the box [x0, x1] x [y0, y1] with key ranges, in key order, adjacent ranges merged.
+     * Cells are split down to a few levels below the box's size; cells on the box's border at
+     * that level are taken whole, so keys in the ranges still need checking against the box.
+     * @param ranges receives start, end (inclusive) pairs
+     * @return number of ranges
+     */
+    static int cover(int x0, int y0, int x1, int y1, LongList ranges) {
+        ranges.clear();
+        long extent = Math.max((long) x1 - x0, (long) y1 - y0) + 1;
+        // Level whose cells are at least as big as the box, then three more
+        int fit = BITS - (63 - Long.numberOfLeadingZeros(extent));
+        int maxLevel = Math.min(BITS, Math.max(0, fit) + 3);
+        cover(0, 0, 0, x0, y0, x1, y1, maxLevel, ranges);
+        return ranges.size() / 2;
+    }
+
+    private static void cover(int level, long cx, long cy, int x0, int y0, int x1, int y1,
+                              int maxLevel, LongList ranges) {
+        int shift = BITS - level;
+        long lowX = cx << shift, highX = ((cx + 1) << shift) - 1;
+        long lowY = cy << shift, highY = ((cy + 1) << shift) - 1;
+        if(highX < x0 || lowX > x1 || highY < y0 || lowY > y1) return;
+        boolean inside = lowX >= x0 && highX <= x1 && lowY >= y0 && highY <= y1;
+        if(inside || level == maxLevel) {
+            long start = key((int) lowX, (int) lowY);
+            long end   = start | ((1L << (2 * shift)) - 1);
+            int n = ranges.size();
+            if(n > 0 && ranges.get(n - 1) + 1 == start) {
+                ranges.set(n - 1, end);
+            } else {
+                ranges.add(start);
+                ranges.add(end);
+            }
+            return;
+        }
+        // Children in key order: x is the lower bit
+        cover(level + 1, cx * 2,     cy * 2,     x0, y0, x1, y1, maxLevel, ranges);
+        cover(level + 1, cx * 2 + 1, cy * 2,     x0, y0, x1, y1, maxLevel, ranges);
+        cover(level + 1, cx * 2,     cy * 2 + 1, x0, y0, x1, y1, maxLevel, ranges);
+        cover(level + 1, cx * 2 + 1, cy * 2 + 1, x0, y0, x1, y1, maxLevel, ranges);
+    }
+
+    /**
+     * Growable list of longs, reused between queries.
+     */
+    static final class LongList {
+        private long[] values = new long[64];
+        private int    size;
+
+        void clear()             { size = 0; }
+        int  size()              { return size; }
+        long get(int i)          { return values[i]; }
+        void set(int i, long v)  { values[i] = v; }
+
+        void add(long v) {
+            if(size == values.length) values = java.util.Arrays.copyOf(values, size * 2);
+            values[size++] = v;
+        }
+    }
+}
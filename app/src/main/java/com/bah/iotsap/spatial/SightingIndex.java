@@ -0,0 +1,624 @@
+package com.bah.iotsap.spatial;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.storage.LogCursor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * SightingIndex answers "which devices were seen inside this box during this time" over located
+ * sightings, fast enough to run on every camera move of the map with millions of points.
+ * Points are kept in Morton key order, the leaf order of a quadtree (see Morton): a box becomes a
+ * few key ranges, each found by binary search and scanned sequentially. The time span of every
+ * block of 64 points is kept as well, so narrow time ranges skip most of a key range.
+ * Storage is log structured: inserts go to a small unsorted delta that is sorted into an
+ * immutable run when it fills up, and runs of similar size are merged so only O(log n) of them
+ * exist. A query scans the runs that existed when it started plus the delta, it never waits for a
+ * merge. A point takes 17 bytes (key, time in seconds, device id, rssi); MACs are interned.
+ * The index is fed from the SightingLog (catchUp()) and remembers the last sequence number it
+ * took, so it can be saved next to the log and reloaded instead of rebuilt (save(), load()).
+ * Thread safe. Queries may run on any thread; inserts are meant to come from one at a time.
+ * Example, devices seen in the viewport during the last hour:
+ *   index.query(bounds.getLatSouth(), bounds.getLonWest(), bounds.getLatNorth(),
+ *           bounds.getLonEast(), now - 3600000L, now, visitor);
+ */
+public final class SightingIndex {
+
+    /**
+     * Receives the points matching a query.
+     */
+    public interface Visitor {
+        /**
+         * @param timeMillis wall clock time of the sighting, to the second
+         * @return false to end the query
+         */
+        boolean visit(long mac, double latitude, double longitude, long timeMillis, int rssi);
+    }
+
+    public static final int DEFAULT_DELTA_CAPACITY = 8192;
+
+    /** Times are stored as seconds since 2017-01-01 UTC, which lasts an int until 2085 */
+    static final long TIME_BASE_SECONDS = 1483228800L;
+
+    private static final int BLOCK_SHIFT = 6;
+    private static final int MAGIC       = 0x53474958; // "SGIX"
+    private static final int VERSION     = 1;
+    private static final int POINT_BYTES = 8 + 4 + 4 + 1;
+
+    // Lock order: catchUpLock, compactLock, this
+    private final Object catchUpLock = new Object();
+    private final Object compactLock = new Object();
+
+    // Guarded by this
+    private final long[] deltaKeys;
+    private final int[]  deltaTimes;
+    private final int[]  deltaDevices;
+    private final byte[] deltaRssis;
+    private int          deltaSize;
+    private int[]        idTable = new int[64]; // device id + 1, 0 for empty slots
+    private int          macCount;
+    private long         throughSeq = -1;
+
+    private volatile Run[]  runs = new Run[0];
+    private volatile long[] macs = new long[32];
+
+    private long cursorSkips;
+
+    public SightingIndex() {
+        this(DEFAULT_DELTA_CAPACITY);
+    }
+
+    /**
+     * @param deltaCapacity points inserted before they are sorted into a run
+     */
+    public SightingIndex(int deltaCapacity) {
+        deltaKeys    = new long[deltaCapacity];
+        deltaTimes   = new int[deltaCapacity];
+        deltaDevices = new int[deltaCapacity];
+        deltaRssis   = new byte[deltaCapacity];
+    }
+
+    /**
+     * Insert a located sighting. Sightings without a location are ignored, and so are expiries,
+     * which only say when a device was last heard.
+     * @param timeMillis wall clock time of the sighting
+     * @return true if it was inserted
+     */
+    public boolean add(Sighting sighting, long timeMillis) {
+        if(!indexed(sighting)) return false;
+        add(sighting.mac, sighting.latitude, sighting.longitude, timeMillis, sighting.rssi);
+        return true;
+    }
+
+    public void add(long mac, double latitude, double longitude, long timeMillis, int rssi) {
+        boolean frozen;
+        synchronized(this) {
+            frozen = insert(mac, latitude, longitude, timeMillis, rssi);
+        }
+        if(frozen) compact();
+    }
+
+    /**
+     * Insert the located records of the log that were appended since the last call, at most
+     * maxRecords of them (located or not), and remember how far it got. Expiries are skipped
+     * as in add().
+     * @param cursor cursor over the log this index is built from, it is moved as needed
+     * @return number of records read, less than maxRecords once caught up
+     */
+    public int catchUp(LogCursor cursor, int maxRecords) throws IOException {
+        synchronized(catchUpLock) {
+            long from = throughSeq() + 1;
+            if(cursor.nextSeq() != from) {
+                cursorSkips++;
+                cursor.seekSeq(from);
+            }
+            Sighting scratch = new Sighting();
+            int read = 0;
+            boolean frozen = false;
+            while(read < maxRecords && cursor.next(scratch)) {
+                read++;
+                long seq = cursor.seq();
+                synchronized(this) {
+                    if(seq <= throughSeq) continue;
+                    if(indexed(scratch)) {
+                        frozen |= insert(scratch.mac, scratch.latitude, scratch.longitude,
+                                cursor.timeMillis(), scratch.rssi);
+                    }
+                    throughSeq = seq;
+                }
+                if(frozen) {
+                    compact();
+                    frozen = false;
+                }
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Visit the points inside the box whose time is in [fromMillis, toMillis], compared to the
+     * second. A box with west greater than east crosses the antimeridian. Points come grouped
+     * by area, not in time order.
+     * @return number of points visited
+     */
+    public int query(double south, double west, double north, double east,
+                     long fromMillis, long toMillis, Visitor visitor) {
+        if(south > north || fromMillis > toMillis) return 0;
+        int t0 = seconds(fromMillis), t1 = seconds(toMillis);
+        int y0 = Morton.y(south), y1 = Morton.y(north);
+        int xw = Morton.x(west), xe = Morton.x(east);
+        Run[] current;
+        long[] macList;
+        int[] pending;
+        int pendingCount;
+        synchronized(this) {
+            current = runs;
+            macList = macs;
+            pending = new int[16];
+            pendingCount = 0;
+            // The delta is unsorted, copy out what matches and visit it after letting go
+            for(int i = 0; i < deltaSize; ++i) {
+                int t = deltaTimes[i];
+                if(t < t0 || t > t1) continue;
+                long key = deltaKeys[i];
+                int y = Morton.y(key);
+                if(y < y0 || y > y1 || !inside(Morton.x(key), xw, xe)) continue;
+                if(pendingCount == pending.length) pending = Arrays.copyOf(pending, pendingCount * 2);
+                pending[pendingCount++] = i;
+            }
+            pending = collect(pending, pendingCount);
+        }
+        int visited = 0;
+        for(int i = 0; i < pendingCount; ++i) {
+            int p = i * 5;
+            long key = (long) pending[p] << 32 | (pending[p + 1] & 0xFFFFFFFFL);
+            if(!visit(visitor, macList, key, pending[p + 2], pending[p + 3], pending[p + 4])) {
+                return visited + 1;
+            }
+            visited++;
+        }
+        Morton.LongList ranges = new Morton.LongList();
+        if(west <= east) {
+            visited = scanRuns(current, macList, xw, y0, xe, y1, t0, t1, ranges, visitor, visited);
+        } else {
+            visited = scanRuns(current, macList, xw, y0, Morton.MAX, y1, t0, t1, ranges, visitor, visited);
+            visited = scanRuns(current, macList, 0, y0, xe, y1, t0, t1, ranges, visitor, visited);
+        }
+        return visited < 0 ? ~visited : visited;
+    }
+
+    /**
+     * @return number of points in the index
+     */
+    public long size() {
+        long size;
+        Run[] current;
+        synchronized(this) {
+            size    = deltaSize;
+            current = runs;
+        }
+        for(Run run : current) size += run.size;
+        return size;
+    }
+
+    /**
+     * @return number of distinct devices in the index
+     */
+    public synchronized int devices() {
+        return macCount;
+    }
+
+    /**
+     * @return number of sorted runs, O(log size)
+     */
+    public int runs() {
+        return runs.length;
+    }
+
+    /**
+     * @return sequence number of the last log record taken by catchUp(), -1 if none
+     */
+    public synchronized long throughSeq() {
+        return throughSeq;
+    }
+
+    /**
+     * Write the whole index to file, through a temporary file that then replaces it, so file is
+     * never left half written. The index stays usable (inserts included) while it is saved.
+     * @return number of points written
+     */
+    public int save(File file) throws IOException {
+        Run[] current;
+        Run delta;
+        long[] macList;
+        int devices;
+        long seq;
+        synchronized(this) {
+            current = runs;
+            delta   = deltaSize == 0 ? null : freeze();
+            macList = macs;
+            devices = macCount;
+            seq     = throughSeq;
+        }
+        Run all = delta == null ? Run.EMPTY : delta;
+        for(Run run : current) all = Run.merge(run, all);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(new FileOutputStream(tmp), crc), 64 << 10))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(seq);
+            out.writeInt(devices);
+            out.writeInt(all.size);
+            for(int i = 0; i < devices; ++i) out.writeLong(macList[i]);
+            for(int i = 0; i < all.size; ++i) out.writeLong(all.keys[i]);
+            for(int i = 0; i < all.size; ++i) out.writeInt(all.times[i]);
+            for(int i = 0; i < all.size; ++i) out.writeInt(all.devices[i]);
+            out.write(all.rssis, 0, all.size);
+            out.flush();
+            out.writeInt((int) crc.getValue());
+        }
+        if(!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+        return all.size;
+    }
+
+    /**
+     * Replace the contents of the index with what save() wrote to file. The saved index always
+     * covers the log up to its throughSeq, so catchUp() carries on from there.
+     * @return number of points loaded
+     * @throws IOException if the file is missing, truncated or corrupt; the index is unchanged
+     */
+    public int load(File file) throws IOException {
+        long length = file.length();
+        CRC32 crc = new CRC32();
+        try(DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 << 10), crc))) {
+            if(in.readInt() != MAGIC) throw new IOException("Not a sighting index: " + file);
+            if(in.readInt() != VERSION) throw new IOException("Unknown sighting index version");
+            long seq    = in.readLong();
+            int devices = in.readInt();
+            int size    = in.readInt();
+            if(devices < 0 || size < 0 || 8L * devices + (long) POINT_BYTES * size > length) {
+                throw new IOException("Sighting index truncated");
+            }
+            long[] macList = new long[Math.max(32, devices)];
+            for(int i = 0; i < devices; ++i) macList[i] = in.readLong();
+            long[] keys = new long[size];
+            int[] times = new int[size];
+            int[] ids   = new int[size];
+            byte[] rssis = new byte[size];
+            for(int i = 0; i < size; ++i) keys[i] = in.readLong();
+            for(int i = 0; i < size; ++i) times[i] = in.readInt();
+            for(int i = 0; i < size; ++i) ids[i] = in.readInt();
+            in.readFully(rssis);
+            int expected = (int) crc.getValue();
+            if(in.readInt() != expected) throw new IOException("Sighting index checksum mismatch");
+            for(int i = 0; i < size; ++i) {
+                if(ids[i] < 0 || ids[i] >= devices || (i > 0 && keys[i] < keys[i - 1])) {
+                    throw new IOException("Sighting index inconsistent at point " + i);
+                }
+            }
+            Run run = new Run(keys, times, ids, rssis, size);
+            synchronized(catchUpLock) {
+                synchronized(compactLock) {
+                    synchronized(this) {
+                        macs      = macList;
+                        macCount  = devices;
+                        idTable   = new int[64];
+                        while(devices * 2 > idTable.length) idTable = new int[idTable.length * 2];
+                        for(int i = 0; i < devices; ++i) idTable[slot(macList[i])] = i + 1;
+                        deltaSize  = 0;
+                        runs       = size == 0 ? new Run[0] : new Run[] { run };
+                        throughSeq = seq;
+                    }
+                }
+            }
+            return size;
+        } catch(EOFException e) {
+            throw new IOException("Sighting index truncated", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        Run[] current = runs;
+        StringBuilder sizes = new StringBuilder();
+        for(Run run : current) sizes.append(sizes.length() == 0 ? "" : "+").append(run.size);
+        synchronized(this) {
+            return "SightingIndex{" + deltaSize + " pending, runs " + sizes + ", " + macCount
+                    + " devices, through seq " + throughSeq + ", " + cursorSkips + " seeks}";
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------
+
+    /**
+     * @return true if the delta was frozen into a new run and compact() should be called
+     */
+    private boolean insert(long mac, double latitude, double longitude, long timeMillis, int rssi) {
+        int i = deltaSize++;
+        deltaKeys[i]    = Morton.key(Morton.x(longitude), Morton.y(latitude));
+        deltaTimes[i]   = seconds(timeMillis);
+        deltaDevices[i] = intern(mac);
+        deltaRssis[i]   = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, rssi));
+        if(deltaSize < deltaKeys.length) return false;
+        Run[] current = runs;
+        Run[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = freeze();
+        deltaSize = 0;
+        runs = next;
+        return true;
+    }
+
+    /**
+     * Merge the two newest runs for as long as the older one is at most twice as big.
+     */
+    private void compact() {
+        synchronized(compactLock) {
+            while(true) {
+                Run[] current = runs;
+                int n = current.length;
+                if(n < 2 || current[n - 2].size > 2 * current[n - 1].size) return;
+                Run merged = Run.merge(current[n - 2], current[n - 1]);
+                synchronized(this) {
+                    // Runs may have been added behind the two meanwhile, never removed
+                    Run[] now = runs;
+                    Run[] next = new Run[now.length - 1];
+                    System.arraycopy(now, 0, next, 0, n - 2);
+                    next[n - 2] = merged;
+                    System.arraycopy(now, n, next, n - 1, now.length - n);
+                    runs = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a sorted run of the delta's points (the delta itself is left as it is)
+     */
+    private Run freeze() {
+        int n = deltaSize;
+        int[] order = new int[n];
+        for(int i = 0; i < n; ++i) order[i] = i;
+        sortByKey(deltaKeys, order, n);
+        long[] keys = new long[n];
+        int[] times = new int[n];
+        int[] ids   = new int[n];
+        byte[] rssis = new byte[n];
+        for(int i = 0; i < n; ++i) {
+            int j = order[i];
+            keys[i]  = deltaKeys[j];
+            times[i] = deltaTimes[j];
+            ids[i]   = deltaDevices[j];
+            rssis[i] = deltaRssis[j];
+        }
+        return new Run(keys, times, ids, rssis, n);
+    }
+
+    /**
+     * Pack the delta points at the given indices as key high, key low, time, device, rssi.
+     */
+    private int[] collect(int[] indices, int count) {
+        int[] out = new int[count * 5];
+        for(int i = 0; i < count; ++i) {
+            int j = indices[i], p = i * 5;
+            out[p]     = (int) (deltaKeys[j] >>> 32);
+            out[p + 1] = (int) deltaKeys[j];
+            out[p + 2] = deltaTimes[j];
+            out[p + 3] = deltaDevices[j];
+            out[p + 4] = deltaRssis[j];
+        }
+        return out;
+    }
+
+    private int intern(long mac) {
+        int slot = slot(mac);
+        if(idTable[slot] != 0) return idTable[slot] - 1;
+        int id = macCount++;
+        long[] macList = macs;
+        if(id == macList.length) {
+            macList = Arrays.copyOf(macList, id * 2);
+            macList[id] = mac;
+            macs = macList;
+        } else {
+            macList[id] = mac;
+        }
+        idTable[slot] = id + 1;
+        if(macCount * 2 > idTable.length) {
+            idTable = new int[idTable.length * 2];
+            for(int i = 0; i < macCount; ++i) idTable[slot(macList[i])] = i + 1;
+        }
+        return id;
+    }
+
+    /**
+     * @return slot of mac in idTable, or the empty slot it would go to
+     */
+    private int slot(long mac) {
+        int mask = idTable.length - 1;
+        long h = mac * 0x9E3779B97F4A7C15L;
+        int i = (int) (h ^ h >>> 32) & mask;
+        long[] macList = macs;
+        while(idTable[i] != 0 && macList[idTable[i] - 1] != mac) i = (i + 1) & mask;
+        return i;
+    }
+
+    /**
+     * @return the running count of visited points, or its complement if the visitor ended
+     *         the query
+     */
+    private static int scanRuns(Run[] runs, long[] macList, int x0, int y0, int x1, int y1,
+                                int t0, int t1, Morton.LongList ranges, Visitor visitor, int visited) {
+        if(visited < 0) return visited;
+        int count = Morton.cover(x0, y0, x1, y1, ranges);
+        for(Run run : runs) {
+            if(run.maxTime < t0 || run.minTime > t1) continue;
+            for(int r = 0; r < count; ++r) {
+                long start = ranges.get(2 * r), end = ranges.get(2 * r + 1);
+                int i = run.lowerBound(start);
+                int checked = -1;
+                while(i < run.size) {
+                    int block = i >>> BLOCK_SHIFT;
+                    if(block != checked) {
+                        checked = block;
+                        if(run.blockMax[block] < t0 || run.blockMin[block] > t1) {
+                            i = (block + 1) << BLOCK_SHIFT;
+                            continue;
+                        }
+                    }
+                    long key = run.keys[i];
+                    if(key > end) break;
+                    int t = run.times[i];
+                    if(t >= t0 && t <= t1) {
+                        int x = Morton.x(key), y = Morton.y(key);
+                        if(x >= x0 && x <= x1 && y >= y0 && y <= y1) {
+                            if(!visit(visitor, macList, key, t, run.devices[i], run.rssis[i])) {
+                                return ~(visited + 1);
+                            }
+                            visited++;
+                        }
+                    }
+                    i++;
+                }
+            }
+        }
+        return visited;
+    }
+
+    private static boolean visit(Visitor visitor, long[] macList, long key, int time, int device,
+                                 int rssi) {
+        return visitor.visit(macList[device], Morton.latitude(Morton.y(key)),
+                Morton.longitude(Morton.x(key)), (time + TIME_BASE_SECONDS) * 1000L, rssi);
+    }
+
+    private static boolean indexed(Sighting sighting) {
+        return sighting.hasLocation() && sighting.change != Sighting.Change.EXPIRED;
+    }
+
+    private static boolean inside(int x, int west, int east) {
+        return west <= east ? x >= west && x <= east : x >= west || x <= east;
+    }
+
+    static int seconds(long timeMillis) {
+        long s = (timeMillis >= 0 ? timeMillis : timeMillis - 999) / 1000 - TIME_BASE_SECONDS;
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, s));
+    }
+
+    /**
+     * Stable merge sort of order[0, n) by keys[order[i]].
+     */
+    private static void sortByKey(long[] keys, int[] order, int n) {
+        int[] from = order, to = new int[n];
+        for(int width = 1; width < n; width *= 2) {
+            for(int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n), hi = Math.min(lo + 2 * width, n);
+                int a = lo, b = mid, k = lo;
+                while(a < mid && b < hi) to[k++] = keys[from[b]] < keys[from[a]] ? from[b++] : from[a++];
+                while(a < mid) to[k++] = from[a++];
+                while(b < hi) to[k++] = from[b++];
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if(from != order) System.arraycopy(from, 0, order, 0, n);
+    }
+
+    /**
+     * Immutable run of points sorted by key, with the time span of every block of 64.
+     */
+    private static final class Run {
+        static final Run EMPTY = new Run(new long[0], new int[0], new int[0], new byte[0], 0);
+
+        final long[] keys;
+        final int[]  times;
+        final int[]  devices;
+        final byte[] rssis;
+        final int    size;
+        final int[]  blockMin;
+        final int[]  blockMax;
+        final int    minTime;
+        final int    maxTime;
+
+        Run(long[] keys, int[] times, int[] devices, byte[] rssis, int size) {
+            this.keys    = keys;
+            this.times   = times;
+            this.devices = devices;
+            this.rssis   = rssis;
+            this.size    = size;
+            int blocks = (size + (1 << BLOCK_SHIFT) - 1) >>> BLOCK_SHIFT;
+            blockMin = new int[blocks];
+            blockMax = new int[blocks];
+            int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+            for(int b = 0; b < blocks; ++b) {
+                int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+                for(int i = b << BLOCK_SHIFT, end = Math.min(size, i + (1 << BLOCK_SHIFT)); i < end; ++i) {
+                    lo = Math.min(lo, times[i]);
+                    hi = Math.max(hi, times[i]);
+                }
+                blockMin[b] = lo;
+                blockMax[b] = hi;
+                min = Math.min(min, lo);
+                max = Math.max(max, hi);
+            }
+            minTime = min;
+            maxTime = max;
+        }
+
+        /**
+         * @return index of the first key at or after key, size if none
+         */
+        int lowerBound(long key) {
+            int lo = 0, hi = size;
+            while(lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if(keys[mid] < key) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        static Run merge(Run a, Run b) {
+            if(a.size == 0) return b;
+            if(b.size == 0) return a;
+            int n = a.size + b.size;
+            long[] keys = new long[n];
+            int[] times = new int[n];
+            int[] ids   = new int[n];
+            byte[] rssis = new byte[n];
+            int i = 0, j = 0;
+            for(int k = 0; k < n; ++k) {
+                Run from;
+                int at;
+                if(j == b.size || (i < a.size && a.keys[i] <= b.keys[j])) {
+                    from = a;
+                    at = i++;
+                } else {
+                    from = b;
+                    at = j++;
+                }
+                keys[k]  = from.keys[at];
+                times[k] = from.times[at];
+                ids[k]   = from.devices[at];
+                rssis[k] = from.rssis[at];
+            }
+            return new Run(keys, times, ids, rssis, n);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.bah.iotsap.storage;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * ColumnarDecoder reads a ColumnarFormat batch written by ColumnarEncoder back into sightings.
+ * read() checks and unpacks the whole batch into primitive columns, get() then fills a recycled
+ * Sighting per row. A batch that does not check out is rejected with an IOException.
+ * Not thread safe.
+ */
+public final class ColumnarDecoder {
+
+    private static final Charset           UTF_8   = Charset.forName("UTF-8");
+    private static final Sighting.Change[] CHANGES = Sighting.Change.values();
+    private static final int               SOURCES = Sighting.Source.values().length;
+
+    private final long                    epochOffsetMillis;
+    private final ColumnarFormat.Reader   reader = new ColumnarFormat.Reader();
+
+    private long[]   times   = new long[0];
+    private int[]    macRows = new int[0]; // mac index
+    private int[]    named   = new int[0]; // name index + 1
+    private int[]    rssis   = new int[0];
+    private byte[]   kinds   = new byte[0];
+    private int[]    lats    = new int[0];
+    private int[]    lons    = new int[0];
+    private int[]    accuracies = new int[0]; // decimeters, 0 for rows without location
+    private long[]   macList;
+    private String[] nameList;
+    private byte[]   payload = new byte[0];
+    private int      count;
+
+    /**
+     * @param epochOffsetMillis wall clock time at the monotonic time base zero of the reader,
+     *                          decoded timestamps are moved into that time base
+     */
+    public ColumnarDecoder(long epochOffsetMillis) {
+        this.epochOffsetMillis = epochOffsetMillis;
+    }
+
+    /**
+     * Decode a whole batch, replacing the previous one.
+     * @return number of sightings in the batch
+     */
+    public int read(byte[] data, int offset, int length) throws IOException {
+        count = 0;
+        ColumnarFormat.Reader in = reader.reset(data, offset, length);
+        if(in.readInt() != ColumnarFormat.MAGIC) throw new IOException("Not a columnar batch");
+        if(in.readByte() != ColumnarFormat.VERSION) throw new IOException("Unknown batch version");
+        int flags = in.readByte();
+        int rows = in.readVarInt(ColumnarFormat.MAX_PAYLOAD / ColumnarFormat.MIN_ROW);
+        int size = in.readVarInt(ColumnarFormat.MAX_PAYLOAD);
+        if(rows * ColumnarFormat.MIN_ROW > size) throw new IOException("Batch too short for " + rows + " rows");
+
+        if((flags & ColumnarFormat.FLAG_DEFLATE) != 0) {
+            // Deflate cannot do better than about 1:1032, do not allocate for a corrupt size
+            if(size > (in.limit - in.position) * 1100L + 64) throw new IOException("Implausible payload size " + size);
+            if(payload.length < size) payload = new byte[size];
+            inflate(data, in.position, in.limit - in.position, size);
+            in.reset(payload, 0, size);
+        } else if(in.limit - in.position != size) {
+            throw new IOException("Payload is " + (in.limit - in.position) + " bytes, expected " + size);
+        }
+        readColumns(in, rows);
+        if((flags & ColumnarFormat.FLAG_LOCATION) != 0) {
+            readLocations(in, rows);
+        } else {
+            Arrays.fill(accuracies, 0, rows, 0);
+        }
+        if(in.position != in.limit) throw new IOException("Trailing bytes after batch");
+        count = rows;
+        return rows;
+    }
+
+    public int read(byte[] data) throws IOException {
+        return read(data, 0, data.length);
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @return wall clock millis of the row
+     */
+    public long timeMillis(int row) {
+        checkRow(row);
+        return times[row];
+    }
+
+    /**
+     * Fill out with the row's sighting.
+     */
+    public Sighting get(int row, Sighting out) {
+        checkRow(row);
+        int kind   = kinds[row] & 0xFF;
+        int source = kind >>> 4;
+        out.set(macList[macRows[row]], rssis[row], (times[row] - epochOffsetMillis) * 1000000L,
+                source == ColumnarFormat.NO_SOURCE ? null : Sighting.Source.of(source),
+                named[row] == 0 ? null : nameList[named[row] - 1], CHANGES[kind & 0xF]);
+        if(accuracies[row] != 0) out.setLocation(lats[row] / 1e7, lons[row] / 1e7, accuracies[row] / 10f);
+        return out;
+    }
+
+    private void inflate(byte[] data, int offset, int length, int size) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset, length);
+            int n = 0;
+            while(n < size && !inflater.finished()) {
+                int inflated = inflater.inflate(payload, n, size - n);
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += inflated;
+            }
+            // The stream has to end right after size bytes, with no input left over
+            if(n == size && !inflater.finished() && inflater.inflate(new byte[1]) > 0) ++n;
+            if(n != size || !inflater.finished() || inflater.getRemaining() != 0) {
+                throw new IOException("Deflated payload does not match its length");
+            }
+        } catch(DataFormatException e) {
+            throw new IOException("Corrupt deflated payload: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readColumns(ColumnarFormat.Reader in, int rows) throws IOException {
+        int remaining = in.limit - in.position;
+        int macCount = in.readVarInt(remaining / 6);
+        macList = new long[macCount];
+        for(int i = 0; i < macCount; ++i) {
+            long mac = 0;
+            for(int b = 0; b < 6; ++b) mac = mac << 8 | in.readByte();
+            macList[i] = mac;
+        }
+        int nameCount = in.readVarInt(in.limit - in.position);
+        nameList = new String[nameCount];
+        for(int i = 0; i < nameCount; ++i) {
+            int length = in.readVarInt(in.limit - in.position);
+            nameList[i] = new String(in.data, in.position, length, UTF_8);
+            in.position += length;
+        }
+
+        ensureCapacity(rows);
+        long time = 0;
+        for(int i = 0; i < rows; ++i) {
+            time += ColumnarFormat.unZigZag(in.readVarLong());
+            times[i] = time;
+        }
+        for(int i = 0; i < rows; ++i) {
+            if(macCount == 0) throw new IOException("Row without a MAC dictionary");
+            macRows[i] = in.readVarInt(macCount - 1);
+        }
+        for(int i = 0; i < rows; ++i) named[i] = in.readVarInt(nameCount);
+        for(int i = 0; i < rows; ++i) {
+            long zigZag = in.readVarLong();
+            if(zigZag < 0 || zigZag > 0xFFFFFFFFL) throw new IOException("RSSI out of range");
+            rssis[i] = ColumnarFormat.unZigZag((int) zigZag);
+        }
+        for(int i = 0; i < rows; ++i) {
+            int kind = in.readByte();
+            int source = kind >>> 4;
+            if(source >= SOURCES && source != ColumnarFormat.NO_SOURCE || (kind & 0xF) >= CHANGES.length) {
+                throw new IOException("Unknown source or change " + kind);
+            }
+            kinds[i] = (byte) kind;
+        }
+    }
+
+    private void readLocations(ColumnarFormat.Reader in, int rows) throws IOException {
+        int located = 0;
+        for(int i = 0; i < rows; i += 8) {
+            int bits = in.readByte();
+            for(int b = 0; b < 8; ++b) {
+                boolean set = (bits & 1 << b) != 0;
+                if(i + b >= rows) {
+                    if(set) throw new IOException("Location bit past the last row");
+                    continue;
+                }
+                // Marks the row until its accuracy is read
+                accuracies[i + b] = set ? -1 : 0;
+                if(set) ++located;
+            }
+        }
+        long lat = 0;
+        for(int i = 0; i < rows; ++i) {
+            if(accuracies[i] == 0) continue;
+            lat += ColumnarFormat.unZigZag(in.readVarLong());
+            if(lat < -900000000L || lat > 900000000L) throw new IOException("Latitude out of range");
+            lats[i] = (int) lat;
+        }
+        long lon = 0;
+        for(int i = 0; i < rows; ++i) {
+            if(accuracies[i] == 0) continue;
+            lon += ColumnarFormat.unZigZag(in.readVarLong());
+            if(lon < -1800000000L || lon > 1800000000L) throw new IOException("Longitude out of range");
+            lons[i] = (int) lon;
+        }
+        for(int i = 0; i < rows; ++i) {
+            if(accuracies[i] != 0) accuracies[i] = Math.max(1, in.readVarInt(0xFFFF));
+        }
+        if(located == 0) throw new IOException("Location flag without located rows");
+    }
+
+    private void ensureCapacity(int rows) {
+        if(times.length >= rows) return;
+        times = new long[rows];
+        macRows = new int[rows];
+        named = new int[rows];
+        rssis = new int[rows];
+        kinds = new byte[rows];
+        lats = new int[rows];
+        lons = new int[rows];
+        accuracies = new int[rows];
+    }
+
+    private void checkRow(int row) {
+        if(row < 0 || row >= count) throw new IndexOutOfBoundsException("Row " + row + " of " + count);
+    }
+}
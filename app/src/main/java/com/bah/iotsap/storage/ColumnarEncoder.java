@@ -0,0 +1,272 @@
+package com.bah.iotsap.storage;
+
+import com.bah.iotsap.discovery.MacAddress;
+import com.bah.iotsap.discovery.Sighting;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * ColumnarEncoder collects sightings into a compact ColumnarFormat batch for export and upload:
+ * timestamps are delta encoded, MACs and names go into per batch dictionaries and RSSI is a
+ * zig-zag varint, which takes a typical batch to a fraction of the JSON lines of SightingFormat.
+ * Locations are delta encoded as well, and left out of batches without any.
+ * Rows are buffered in primitive columns until writeTo(); reset() starts the next batch and
+ * keeps the arrays. Not thread safe.
+ */
+public final class ColumnarEncoder {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long epochOffsetMillis;
+
+    // Columns
+    private long[] times   = new long[256];
+    private int[]  macs    = new int[256];
+    private int[]  names   = new int[256];
+    private int[]  rssis   = new int[256];
+    private byte[] kinds   = new byte[256];
+    private int[]  lats    = new int[256];
+    private int[]  lons    = new int[256];
+    private int[]  accuracies = new int[256];
+    private int    count;
+    private int    located;
+
+    // MAC dictionary: open addressing table of packed address -> index + 1
+    private long[] macKeys  = new long[64];
+    private int[]  macSlots = new int[64];
+    private long[] macList  = new long[32];
+    private int    macCount;
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private final List<String>         nameList  = new ArrayList<>();
+
+    /**
+     * @param epochOffsetMillis wall clock time at the monotonic time base zero of the sightings,
+     *                          batches always hold wall clock millis
+     */
+    public ColumnarEncoder(long epochOffsetMillis) {
+        this.epochOffsetMillis = epochOffsetMillis;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public void add(Sighting sighting) {
+        if(count == times.length) grow();
+        times[count] = epochOffsetMillis + sighting.timestampNanos / 1000000L;
+        macs[count]  = macIndex(sighting.mac);
+        names[count] = sighting.name == null ? 0 : nameIndex(sighting.name) + 1;
+        rssis[count] = sighting.rssi;
+        int source   = sighting.source == null ? ColumnarFormat.NO_SOURCE : sighting.source.ordinal();
+        int change   = sighting.change == null ? 0 : sighting.change.ordinal();
+        kinds[count] = (byte) (source << 4 | change);
+        // Accuracy 0 marks a row without location; a real one is never better than a decimeter
+        if(sighting.hasLocation()) {
+            lats[count]       = LogFormat.toE7(sighting.latitude);
+            lons[count]       = LogFormat.toE7(sighting.longitude);
+            accuracies[count] = Math.max(1, LogFormat.toDecimeters(sighting.accuracy));
+            ++located;
+        } else {
+            accuracies[count] = 0;
+        }
+        ++count;
+    }
+
+    /**
+     * Forget the rows and dictionaries, ready for the next batch.
+     */
+    public void reset() {
+        count = 0;
+        located = 0;
+        macCount = 0;
+        Arrays.fill(macSlots, 0);
+        nameIndex.clear();
+        nameList.clear();
+    }
+
+    /**
+     * Write the batch.
+     * @param deflate compress the payload; worth it for anything but tiny batches
+     * @return bytes written
+     */
+    public int writeTo(OutputStream out, boolean deflate) throws IOException {
+        Buffer payload = new Buffer(count * 8 + macCount * 6 + 64);
+        payload.writeVarLong(macCount);
+        for(int i = 0; i < macCount; ++i) {
+            long mac = macList[i];
+            for(int shift = 40; shift >= 0; shift -= 8) payload.write((int) (mac >>> shift) & 0xFF);
+        }
+        payload.writeVarLong(nameList.size());
+        for(String name : nameList) {
+            byte[] utf8 = name.getBytes(UTF_8);
+            payload.writeVarLong(utf8.length);
+            payload.write(utf8, 0, utf8.length);
+        }
+        long previous = 0;
+        for(int i = 0; i < count; ++i) {
+            payload.writeVarLong(ColumnarFormat.zigZag(times[i] - previous));
+            previous = times[i];
+        }
+        for(int i = 0; i < count; ++i) payload.writeVarLong(macs[i]);
+        for(int i = 0; i < count; ++i) payload.writeVarLong(names[i]);
+        for(int i = 0; i < count; ++i) payload.writeVarLong(ColumnarFormat.zigZag(rssis[i]) & 0xFFFFFFFFL);
+        payload.write(kinds, 0, count);
+        if(located > 0) writeLocations(payload);
+
+        Buffer header = new Buffer(32);
+        header.writeInt(ColumnarFormat.MAGIC);
+        header.write(ColumnarFormat.VERSION);
+        header.write((deflate ? ColumnarFormat.FLAG_DEFLATE : 0) | (located > 0 ? ColumnarFormat.FLAG_LOCATION : 0));
+        header.writeVarLong(count);
+        header.writeVarLong(payload.size());
+        header.writeTo(out);
+        if(!deflate) {
+            payload.writeTo(out);
+            return header.size() + payload.size();
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            Buffer compressed = new Buffer(payload.size() / 4 + 64);
+            DeflaterOutputStream zip = new DeflaterOutputStream(compressed, deflater, 8192);
+            payload.writeTo(zip);
+            zip.finish();
+            compressed.writeTo(out);
+            return header.size() + compressed.size();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public byte[] toByteArray(boolean deflate) {
+        Buffer out = new Buffer(count * 4 + 64);
+        try {
+            writeTo(out, deflate);
+        } catch(IOException e) {
+            throw new AssertionError(e); // in memory
+        }
+        return out.toByteArray();
+    }
+
+    private void writeLocations(Buffer payload) {
+        for(int i = 0; i < count; i += 8) {
+            int bits = 0;
+            for(int b = 0; b < 8 && i + b < count; ++b) if(accuracies[i + b] != 0) bits |= 1 << b;
+            payload.write(bits);
+        }
+        int lat = 0;
+        for(int i = 0; i < count; ++i) {
+            if(accuracies[i] == 0) continue;
+            payload.writeVarLong(ColumnarFormat.zigZag((long) lats[i] - lat));
+            lat = lats[i];
+        }
+        int lon = 0;
+        for(int i = 0; i < count; ++i) {
+            if(accuracies[i] == 0) continue;
+            payload.writeVarLong(ColumnarFormat.zigZag((long) lons[i] - lon));
+            lon = lons[i];
+        }
+        for(int i = 0; i < count; ++i) if(accuracies[i] != 0) payload.writeVarLong(accuracies[i]);
+    }
+
+    private int macIndex(long mac) {
+        int mask = macKeys.length - 1;
+        int slot = MacAddress.hash(mac) & mask;
+        while(macSlots[slot] != 0) {
+            if(macKeys[slot] == mac) return macSlots[slot] - 1;
+            slot = (slot + 1) & mask;
+        }
+        if(macCount == macList.length) macList = Arrays.copyOf(macList, macCount * 2);
+        macList[macCount] = mac;
+        macKeys[slot] = mac;
+        macSlots[slot] = ++macCount;
+        if(macCount * 2 > macKeys.length) rehash();
+        return macCount - 1;
+    }
+
+    private void rehash() {
+        macKeys  = new long[macKeys.length * 2];
+        macSlots = new int[macSlots.length * 2];
+        int mask = macKeys.length - 1;
+        for(int i = 0; i < macCount; ++i) {
+            int slot = MacAddress.hash(macList[i]) & mask;
+            while(macSlots[slot] != 0) slot = (slot + 1) & mask;
+            macKeys[slot]  = macList[i];
+            macSlots[slot] = i + 1;
+        }
+    }
+
+    private int nameIndex(String name) {
+        Integer index = nameIndex.get(name);
+        if(index == null) {
+            index = nameList.size();
+            nameIndex.put(name, index);
+            nameList.add(name);
+        }
+        return index;
+    }
+
+    private void grow() {
+        int capacity = times.length * 2;
+        times = Arrays.copyOf(times, capacity);
+        macs  = Arrays.copyOf(macs, capacity);
+        names = Arrays.copyOf(names, capacity);
+        rssis = Arrays.copyOf(rssis, capacity);
+        kinds = Arrays.copyOf(kinds, capacity);
+        lats  = Arrays.copyOf(lats, capacity);
+        lons  = Arrays.copyOf(lons, capacity);
+        accuracies = Arrays.copyOf(accuracies, capacity);
+    }
+
+    /**
+     * ByteArrayOutputStream with varints, and without the synchronization.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public void write(int b) {
+            if(count == buf.length) buf = Arrays.copyOf(buf, count * 2 + 16);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if(count + len > buf.length) buf = Arrays.copyOf(buf, Math.max(count + len, count * 2));
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, count);
+        }
+
+        void writeInt(int v) {
+            write(v >>> 24);
+            write((v >>> 16) & 0xFF);
+            write((v >>> 8) & 0xFF);
+            write(v & 0xFF);
+        }
+
+        void writeVarLong(long v) {
+            while((v & ~0x7FL) != 0) {
+                write((int) (v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.bah.iotsap.storage;
+
+import java.io.IOException;
+
+/**
+ * ColumnarFormat describes the compact batch format written by ColumnarEncoder and read by
+ * ColumnarDecoder. A batch stores its sightings column by column, so similar values sit next to
+ * each other and the optional deflate pass gets most of them down to a few bits:
+ *
+ *   header   magic(4) version(1) flags(1) count(varint) payloadLength(varint)
+ *   payload  (deflated when flags & FLAG_DEFLATE, payloadLength is the inflated size)
+ *     macs     macCount(varint) mac(6, big endian) * macCount
+ *     names    nameCount(varint) [length(varint) UTF-8] * nameCount
+ *     time     zig-zag varint difference to the previous row's wall clock millis (the first to 0)
+ *     mac      varint index into macs, per row
+ *     name     varint index into names plus one, 0 for no name, per row
+ *     rssi     zig-zag varint, per row
+ *     kind     source ordinal << 4 | change ordinal (source 0xF: none), one byte per row
+ *   only when flags & FLAG_LOCATION:
+ *     located  bitmap, one bit per row (least significant bit first): the row has a location
+ *     lat      zig-zag varint difference to the previous located row's latitude in 1e-7 degrees
+ *     lon      the same for the longitude
+ *     accuracy varint decimeters, per located row
+ *
+ * This class cannot be instantiated.
+ */
+final class ColumnarFormat {
+
+    static final int MAGIC        = 0x53474342; // "SGCB"
+    static final int VERSION      = 1;
+    static final int FLAG_DEFLATE  = 1;
+    static final int FLAG_LOCATION = 2;
+    static final int NO_SOURCE    = 0xF;
+    /** Every row takes at least one byte in each of the five columns */
+    static final int MIN_ROW      = 5;
+    /** Larger payloads are rejected by the decoder as corrupt */
+    static final int MAX_PAYLOAD  = 64 * 1024 * 1024;
+
+    private ColumnarFormat() {}
+
+    static int zigZag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    static int unZigZag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Reads the header and payload of a batch with bounds checks, so that a corrupt batch ends in
+     * an IOException instead of a runtime exception.
+     */
+    static final class Reader {
+        byte[] data;
+        int    position;
+        int    limit;
+
+        Reader reset(byte[] data, int offset, int length) {
+            this.data     = data;
+            this.position = offset;
+            this.limit    = offset + length;
+            return this;
+        }
+
+        int readByte() throws IOException {
+            if(position >= limit) throw new IOException("Truncated batch");
+            return data[position++] & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if(b < 0x80) return v;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        /**
+         * @return a varint that must lie in [0, max]
+         */
+        int readVarInt(int max) throws IOException {
+            long v = readVarLong();
+            if(v < 0 || v > max) throw new IOException("Value " + v + " out of range");
+            return (int) v;
+        }
+    }
+}
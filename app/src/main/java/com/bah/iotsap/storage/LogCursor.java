@@ -0,0 +1,381 @@
+package com.bah.iotsap.storage;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * LogCursor streams the records of a SightingLog directory, forwards or backwards.
+ * Only one segment is mapped at a time, and the only per segment state kept is a sparse index
+ * (one entry per INDEX_INTERVAL records) of the mapped segment, so memory use does not depend
+ * on how big the log is. The cursor sits between records like a ListIterator: next() returns
+ * the record after it, previous() the record before it.
+ * Records are in append order and their times are only nearly ordered (batched scan results,
+ * expiries), seekTime() lands on the first record at or after the time in append order.
+ * Reading the active segment is safe while the writer appends: frames are verified before use
+ * and the cursor picks up new segments when it reaches the end.
+ * Example, the latest 50 records:
+ *   try(LogCursor cursor = log.cursor()) {
+ *       cursor.seekEnd();
+ *       for(int i = 0; i < 50 && cursor.previous(scratch); ++i) show(scratch);
+ *   }
+ * Not thread safe.
+ */
+public final class LogCursor implements Closeable {
+
+    public static final int INDEX_INTERVAL = 64;
+
+    private final File      directory;
+    private final long      epochOffsetMillis;
+    private final LogFormat format = new LogFormat();
+
+    // Segments of the directory, oldest first, and the time of each one's last record
+    private File[] segments = new File[0];
+    private long[] firstSeqs = new long[0];
+    private long[] lastTimes = new long[0];
+
+    // Mapped segment
+    private int        current = -1;
+    private ByteBuffer buffer;
+    private long       bufferFirstSeq;
+    private int        position;  // offset of the frame after the cursor
+    private long       seq;       // seq of the frame after the cursor
+    private int        end = -1;  // end of the data, -1 until known
+    private int[]      indexOffsets = new int[16];
+    private long[]     indexMaxTimes = new long[16];
+    private int        indexSize;
+
+    // Last record returned
+    private long lastSeq = -1;
+    private long lastTimeMillis;
+
+    /**
+     * @param epochOffsetMillis wall clock time at the reader's monotonic time base zero, used to
+     *                          fill Sighting.timestampNanos (see SightingLog)
+     */
+    public LogCursor(File directory, long epochOffsetMillis) throws IOException {
+        this.directory         = directory;
+        this.epochOffsetMillis = epochOffsetMillis;
+        refresh();
+        seekStart();
+    }
+
+    /**
+     * @return sequence number of the record last returned by next() or previous(), -1 if none
+     */
+    public long seq() {
+        return lastSeq;
+    }
+
+    /**
+     * @return wall clock time of the record last returned by next() or previous()
+     */
+    public long timeMillis() {
+        return lastTimeMillis;
+    }
+
+    /**
+     * @return sequence number the next call to next() would return
+     */
+    public long nextSeq() {
+        return seq;
+    }
+
+    public void seekStart() throws IOException {
+        if(segments.length == 0) {
+            unmap();
+            return;
+        }
+        map(0);
+        position = LogFormat.HEADER_SIZE;
+        seq      = bufferFirstSeq;
+    }
+
+    public void seekEnd() throws IOException {
+        refresh();
+        if(segments.length == 0) {
+            unmap();
+            return;
+        }
+        map(segments.length - 1);
+        buildIndex();
+        position = end;
+        seq      = bufferFirstSeq + countTo(end);
+    }
+
+    /**
+     * Move the cursor right before the record with the given sequence number (or to the start /
+     * end of the log if it is not there any more / yet).
+     */
+    public void seekSeq(long target) throws IOException {
+        refresh();
+        int s = segments.length - 1;
+        while(s > 0 && firstSeqs[s] > target) --s;
+        if(s < 0 || target <= firstSeqs[0]) {
+            seekStart();
+            return;
+        }
+        map(s);
+        buildIndex();
+        int block = (int) Math.min(indexSize - 1, (target - bufferFirstSeq) / INDEX_INTERVAL);
+        position = indexOffsets[block];
+        seq      = bufferFirstSeq + (long) block * INDEX_INTERVAL;
+        skipWhile(target, Long.MAX_VALUE);
+    }
+
+    /**
+     * Move the cursor right before the first record at or after timeMillis (wall clock).
+     */
+    public void seekTime(long timeMillis) throws IOException {
+        refresh();
+        if(segments.length == 0) {
+            unmap();
+            return;
+        }
+        // First segment whose last record is not older; the active one's is unknown (MAX_VALUE)
+        int lo = 0, hi = segments.length - 1;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(lastTimes[mid] < timeMillis) lo = mid + 1; else hi = mid;
+        }
+        map(lo);
+        buildIndex();
+        // Last block that starts before any record at or after the time
+        int a = 0, b = indexSize - 1;
+        while(a < b) {
+            int mid = (a + b + 1) >>> 1;
+            if(indexMaxTimes[mid] < timeMillis) a = mid; else b = mid - 1;
+        }
+        position = indexOffsets[a];
+        seq      = bufferFirstSeq + (long) a * INDEX_INTERVAL;
+        skipWhile(Long.MAX_VALUE, timeMillis);
+    }
+
+    /**
+     * Copy the record after the cursor into out and move past it.
+     * @return false at the end of the log
+     */
+    public boolean next(Sighting out) throws IOException {
+        if(buffer == null) {
+            refresh();
+            if(segments.length == 0) return false;
+            seekStart();
+        }
+        while(true) {
+            int size = format.checkFrame(buffer, position, seq);
+            if(size > 0) {
+                format.readFrame(buffer, position, epochOffsetMillis, out);
+                position += size;
+                return returned(seq++);
+            }
+            // End of this segment; move on if there is a newer one
+            if(current == segments.length - 1) refresh();
+            if(current == segments.length - 1) return false;
+            map(current + 1);
+            position = LogFormat.HEADER_SIZE;
+            seq      = bufferFirstSeq;
+        }
+    }
+
+    /**
+     * Copy the record before the cursor into out and move back over it.
+     * @return false at the start of the log
+     */
+    public boolean previous(Sighting out) throws IOException {
+        if(buffer == null) return false;
+        while(position <= LogFormat.HEADER_SIZE) {
+            if(current == 0) return false;
+            map(current - 1);
+            buildIndex();
+            position = end;
+            seq      = bufferFirstSeq + countTo(end);
+        }
+        int size = LogFormat.frameBefore(buffer, position);
+        if(format.checkFrame(buffer, position - size, seq - 1) != size) {
+            throw new IOException("Corrupt frame before offset " + position + " of " + segments[current]);
+        }
+        position -= size;
+        format.readFrame(buffer, position, epochOffsetMillis, out);
+        return returned(--seq);
+    }
+
+    /**
+     * Copy the raw frames after the cursor into dst, as many whole frames as fit in length bytes,
+     * and move past them. Frames never span segments, so this stops at the end of a segment.
+     * The frames keep their CRCs and sequence numbers, so they can be shipped as they are.
+     * @param length room in dst, at least LogFormat's largest frame (512 bytes is enough)
+     * @return number of bytes copied, 0 at the end of the log
+     */
+    public int copyFrames(byte[] dst, int offset, int length) throws IOException {
+        if(length < LogFormat.MAX_FRAME) throw new IllegalArgumentException("length < " + LogFormat.MAX_FRAME);
+        if(buffer == null) {
+            refresh();
+            if(segments.length == 0) return 0;
+            seekStart();
+        }
+        int size;
+        while((size = format.checkFrame(buffer, position, seq)) == 0) {
+            if(current == segments.length - 1) refresh();
+            if(current == segments.length - 1) return 0;
+            map(current + 1);
+            position = LogFormat.HEADER_SIZE;
+            seq      = bufferFirstSeq;
+        }
+        int start  = position;
+        int copied = 0;
+        do {
+            copied   += size;
+            position += size;
+            returned(seq++);
+        } while(copied < length && (size = format.checkFrame(buffer, position, seq)) > 0 && copied + size <= length);
+        ByteBuffer frames = buffer.duplicate();
+        frames.position(start);
+        frames.get(dst, offset, copied);
+        return copied;
+    }
+
+    @Override
+    public void close() {
+        unmap();
+        segments = new File[0];
+    }
+
+    private boolean returned(long s) {
+        lastSeq        = s;
+        lastTimeMillis = format.timeMillis;
+        return true;
+    }
+
+    /**
+     * Move forward over records with seq < maxSeq and time < minTime, staying in this segment.
+     */
+    private void skipWhile(long maxSeq, long minTime) {
+        int size;
+        while(seq < maxSeq && (size = format.checkFrame(buffer, position, seq)) > 0
+                && format.timeMillis < minTime) {
+            position += size;
+            ++seq;
+        }
+    }
+
+    /**
+     * Re-list the directory to see segments that were added or deleted since.
+     */
+    private void refresh() throws IOException {
+        File mapped = current >= 0 ? segments[current] : null;
+        File[] files = LogFormat.listSegments(directory);
+        long[] times = new long[files.length];
+        long[] firsts = new long[files.length];
+        int now = -1;
+        for(int i = 0; i < files.length; ++i) {
+            firsts[i] = LogFormat.firstSeqOf(files[i]);
+            times[i]  = i < lastTimes.length && files[i].equals(segments[i]) && i < segments.length - 1
+                    ? lastTimes[i] : lastTime(files[i]);
+            if(files[i].equals(mapped)) now = i;
+        }
+        segments  = files;
+        firstSeqs = firsts;
+        lastTimes = times;
+        current   = now;
+        if(now < 0) buffer = null;
+    }
+
+    /**
+     * Read the time of a sealed segment's last record straight from the file.
+     * @return the time, or Long.MAX_VALUE if the segment is still being written (or empty)
+     */
+    private static long lastTime(File file) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if(raf.length() < LogFormat.HEADER_SIZE) return Long.MAX_VALUE;
+            raf.seek(LogFormat.OFF_END);
+            int segmentEnd = raf.readInt();
+            if(segmentEnd <= LogFormat.HEADER_SIZE) return Long.MAX_VALUE;
+            raf.seek(segmentEnd - 4);
+            int length = raf.readInt();
+            raf.seek(segmentEnd - 4 - length + 8);
+            return raf.readLong();
+        }
+    }
+
+    private void map(int index) throws IOException {
+        if(index == current && buffer != null) return;
+        try(RandomAccessFile raf = new RandomAccessFile(segments[index], "r")) {
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if(!LogFormat.hasValidHeader(mapped)) throw new IOException("Not a log segment: " + segments[index]);
+            buffer         = mapped;
+            bufferFirstSeq = mapped.getLong(LogFormat.OFF_FIRST_SEQ);
+        }
+        current   = index;
+        end       = -1;
+        indexSize = 0;
+    }
+
+    private void unmap() {
+        buffer    = null;
+        current   = -1;
+        position  = 0;
+        seq       = 0;
+        indexSize = 0;
+    }
+
+    /**
+     * Walk the mapped segment once, noting the offset and running maximum time of every
+     * INDEX_INTERVAL-th record, and where the data ends. The active segment is walked again
+     * from the last entry on, since it may have grown.
+     */
+    private void buildIndex() {
+        int  offset  = LogFormat.HEADER_SIZE;
+        long s       = bufferFirstSeq;
+        long maxTime = Long.MIN_VALUE;
+        if(indexSize > 0) {
+            --indexSize;
+            offset  = indexOffsets[indexSize];
+            s       = bufferFirstSeq + (long) indexSize * INDEX_INTERVAL;
+            maxTime = indexMaxTimes[indexSize];
+        }
+        int size;
+        while(true) {
+            if((s - bufferFirstSeq) % INDEX_INTERVAL == 0) addIndex(offset, maxTime);
+            if((size = format.checkFrame(buffer, offset, s)) == 0) break;
+            maxTime = Math.max(maxTime, format.timeMillis);
+            offset += size;
+            ++s;
+        }
+        end = offset;
+    }
+
+    private void addIndex(int offset, long maxTime) {
+        if(indexSize == indexOffsets.length) {
+            int[]  offsets = new int[indexSize * 2];
+            long[] times   = new long[indexSize * 2];
+            System.arraycopy(indexOffsets, 0, offsets, 0, indexSize);
+            System.arraycopy(indexMaxTimes, 0, times, 0, indexSize);
+            indexOffsets  = offsets;
+            indexMaxTimes = times;
+        }
+        indexOffsets[indexSize]  = offset;
+        indexMaxTimes[indexSize] = maxTime;
+        ++indexSize;
+    }
+
+    /**
+     * @return number of records before offset in the mapped segment, using the index
+     */
+    private long countTo(int offset) {
+        int block = indexSize - 1;
+        while(block > 0 && indexOffsets[block] > offset) --block;
+        int  o = indexOffsets[block];
+        long n = (long) block * INDEX_INTERVAL;
+        while(o < offset) {
+            o += buffer.getInt(o) + LogFormat.FRAME_OVERHEAD;
+            ++n;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,237 @@
+package com.bah.iotsap.storage;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * LogFormat describes the on-disk layout of SightingLog segments and encodes / decodes frames.
+ *
+ * Segment file "sightings-[first seq, 20 digits].log":
+ *   header  magic(4) version(4) firstSeq(8) endOffset(4) reserved(4) lastSeq(8)   = 32 bytes
+ *   frames  length(4) crc32(4) body(length) length(4)
+ *   body    seq(8) timeMillis(8) mac(8) rssi(2) source(1) change(1) nameLength(2) name(UTF-8)
+ *           [latitudeE7(4) longitudeE7(4) accuracyDecimeters(2)]   if change & LOCATED
+ * endOffset / lastSeq are 0 / -1 until the segment is sealed. The unused rest of a segment is
+ * zero, so a zero length marks the end of the data. The trailing length lets readers walk a
+ * segment backwards. Frames whose CRC, trailing length or sequence number do not check out are
+ * the torn tail of a crash and are discarded.
+ * Not thread safe, every user keeps its own instance.
+ */
+final class LogFormat {
+
+    static final int    MAGIC          = 0x53474C47; // "SGLG"
+    static final int    VERSION        = 1;
+    static final int    HEADER_SIZE    = 32;
+    static final int    OFF_FIRST_SEQ  = 8;
+    static final int    OFF_END        = 16;
+    static final int    OFF_LAST_SEQ   = 24;
+    static final int    FRAME_OVERHEAD = 12;
+    static final int    BODY_FIXED     = 30;
+    static final int    MAX_NAME_BYTES = 248;
+    /** Flag in the change byte: the body ends with the location */
+    static final int    LOCATED        = 0x80;
+    static final int    LOCATION_BYTES = 10;
+    static final int    MAX_BODY       = BODY_FIXED + MAX_NAME_BYTES + LOCATION_BYTES;
+    static final int    MAX_FRAME      = FRAME_OVERHEAD + MAX_BODY;
+    static final String PREFIX         = "sightings-";
+    static final String SUFFIX         = ".log";
+
+    private static final Sighting.Change[] CHANGES = Sighting.Change.values();
+
+    private final byte[]     body = new byte[MAX_BODY];
+    private final ByteBuffer bodyBuffer = ByteBuffer.wrap(body);
+    private final CRC32      crc = new CRC32();
+    private final char[]     chars = new char[MAX_NAME_BYTES];
+
+    // Fields of the last decoded frame
+    long seq;
+    long timeMillis;
+
+    static String segmentName(long firstSeq) {
+        return PREFIX + String.format("%020d", firstSeq) + SUFFIX;
+    }
+
+    static boolean isSegment(File file) {
+        String name = file.getName();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    static long firstSeqOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * @return the segment files of a log directory, oldest first
+     */
+    static File[] listSegments(File directory) {
+        File[] files = directory.listFiles();
+        if(files == null) return new File[0];
+        int n = 0;
+        for(File f : files) if(isSegment(f)) files[n++] = f;
+        File[] segments = Arrays.copyOf(files, n);
+        Arrays.sort(segments); // zero padded names sort by first seq
+        return segments;
+    }
+
+    static void writeHeader(ByteBuffer segment, long firstSeq) {
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segment.putLong(OFF_FIRST_SEQ, firstSeq);
+        segment.putInt(OFF_END, 0);
+        segment.putInt(20, 0);
+        segment.putLong(OFF_LAST_SEQ, -1L);
+    }
+
+    static boolean hasValidHeader(ByteBuffer segment) {
+        return segment.limit() >= HEADER_SIZE && segment.getInt(0) == MAGIC && segment.getInt(4) == VERSION;
+    }
+
+    /**
+     * Encode a sighting as a frame at the buffer's position, advancing it.
+     * @return false (buffer untouched) if the frame does not fit in the remaining space
+     */
+    boolean writeFrame(ByteBuffer out, long seq, long timeMillis, Sighting sighting) {
+        bodyBuffer.clear();
+        bodyBuffer.putLong(seq);
+        bodyBuffer.putLong(timeMillis);
+        bodyBuffer.putLong(sighting.mac);
+        bodyBuffer.putShort((short) sighting.rssi);
+        bodyBuffer.put((byte) (sighting.source == null ? 0 : sighting.source.ordinal()));
+        boolean located = sighting.hasLocation();
+        bodyBuffer.put((byte) ((sighting.change == null ? 0 : sighting.change.ordinal()) | (located ? LOCATED : 0)));
+        int lengthAt = bodyBuffer.position();
+        bodyBuffer.putShort((short) 0);
+        int nameBytes = sighting.name == null ? 0 : putUtf8(sighting.name, bodyBuffer);
+        bodyBuffer.putShort(lengthAt, (short) nameBytes);
+        if(located) {
+            bodyBuffer.putInt(toE7(sighting.latitude));
+            bodyBuffer.putInt(toE7(sighting.longitude));
+            bodyBuffer.putShort((short) toDecimeters(sighting.accuracy));
+        }
+        int length = bodyBuffer.position();
+
+        if(out.remaining() < length + FRAME_OVERHEAD) return false;
+        crc.reset();
+        crc.update(body, 0, length);
+        out.putInt(length);
+        out.putInt((int) crc.getValue());
+        out.put(body, 0, length);
+        out.putInt(length);
+        return true;
+    }
+
+    /**
+     * Check the frame at offset.
+     * @param expectedSeq sequence number the frame must carry, or -1 to accept any
+     * @return size of the whole frame, or 0 if there is no valid frame at offset
+     */
+    int checkFrame(ByteBuffer in, int offset, long expectedSeq) {
+        if(offset + FRAME_OVERHEAD > in.limit()) return 0;
+        int length = in.getInt(offset);
+        if(length < BODY_FIXED || length > MAX_BODY) return 0;
+        int end = offset + 8 + length;
+        if(end + 4 > in.limit() || in.getInt(end) != length) return 0;
+        for(int i = 0; i < length; ++i) body[i] = in.get(offset + 8 + i);
+        crc.reset();
+        crc.update(body, 0, length);
+        if((int) crc.getValue() != in.getInt(offset + 4)) return 0;
+        seq        = in.getLong(offset + 8);
+        timeMillis = in.getLong(offset + 16);
+        if(expectedSeq >= 0 && seq != expectedSeq) return 0;
+        return length + FRAME_OVERHEAD;
+    }
+
+    /**
+     * Decode the frame at offset into out without checking it (see checkFrame()).
+     * out.timestampNanos is moved into the reader's time base using epochOffsetMillis.
+     * @return size of the whole frame
+     */
+    int readFrame(ByteBuffer in, int offset, long epochOffsetMillis, Sighting out) {
+        int length = in.getInt(offset);
+        int b = offset + 8;
+        seq        = in.getLong(b);
+        timeMillis = in.getLong(b + 8);
+        long mac   = in.getLong(b + 16);
+        int  rssi  = in.getShort(b + 24);
+        int  source = in.get(b + 26);
+        int  change = in.get(b + 27) & 0xFF;
+        int  nameBytes = in.getShort(b + 28) & 0xFFFF;
+        String name = nameBytes == 0 ? null : getUtf8(in, b + BODY_FIXED, nameBytes);
+        out.set(mac, rssi, (timeMillis - epochOffsetMillis) * 1000000L,
+                Sighting.Source.of(source), name, CHANGES[change & ~LOCATED]);
+        if((change & LOCATED) != 0) {
+            int l = b + BODY_FIXED + nameBytes;
+            out.setLocation(in.getInt(l) / 1e7, in.getInt(l + 4) / 1e7, (in.getShort(l + 8) & 0xFFFF) / 10f);
+        }
+        return length + FRAME_OVERHEAD;
+    }
+
+    /**
+     * @return degrees in units of 1e-7 (about a centimeter), as stored in frames and batches
+     */
+    static int toE7(double degrees) {
+        return (int) Math.round(degrees * 1e7);
+    }
+
+    /**
+     * @return meters in decimeters, capped to fit an unsigned short
+     */
+    static int toDecimeters(float meters) {
+        return Math.min(0xFFFF, Math.max(0, Math.round(meters * 10)));
+    }
+
+    /**
+     * @return size of the frame that ends right before offset, or 0 if offset is a segment start
+     */
+    static int frameBefore(ByteBuffer in, int offset) {
+        if(offset <= HEADER_SIZE) return 0;
+        return in.getInt(offset - 4) + FRAME_OVERHEAD;
+    }
+
+    /**
+     * Encode without allocating; names are truncated to MAX_NAME_BYTES.
+     */
+    private static int putUtf8(String s, ByteBuffer out) {
+        int written = 0;
+        for(int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            int need = c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+            if(written + need > MAX_NAME_BYTES) break;
+            if(need == 1) {
+                out.put((byte) c);
+            } else if(need == 2) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+            written += need;
+        }
+        return written;
+    }
+
+    private String getUtf8(ByteBuffer in, int offset, int length) {
+        int n = 0;
+        int end = offset + length;
+        while(offset < end) {
+            int b = in.get(offset++) & 0xFF;
+            if(b < 0x80) {
+                chars[n++] = (char) b;
+            } else if(b < 0xE0) {
+                chars[n++] = (char) (((b & 0x1F) << 6) | (in.get(offset++) & 0x3F));
+            } else {
+                int b2 = in.get(offset++) & 0x3F;
+                int b3 = in.get(offset++) & 0x3F;
+                chars[n++] = (char) (((b & 0x0F) << 12) | (b2 << 6) | b3);
+            }
+        }
+        return new String(chars, 0, n);
+    }
+}
@@ -0,0 +1,69 @@
+package com.bah.iotsap.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SegmentInfo describes a sealed SightingLog segment: its file, the range of sequence numbers
+ * it holds and the length of its data. Sealed segments never change again, so the first
+ * length bytes of the file can be shipped as they are.
+ */
+public final class SegmentInfo {
+
+    public final File file;
+    public final long firstSeq;
+    public final long lastSeq;
+    /** Bytes of the file in use (header and frames), the rest is zero padding */
+    public final long length;
+
+    public SegmentInfo(File file, long firstSeq, long lastSeq, long length) {
+        this.file     = file;
+        this.firstSeq = firstSeq;
+        this.lastSeq  = lastSeq;
+        this.length   = length;
+    }
+
+    /**
+     * Read the header of a segment file.
+     * @return its info, or null if the segment is still being written (or is not a segment)
+     */
+    public static SegmentInfo read(File file) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if(raf.length() < LogFormat.HEADER_SIZE || raf.readInt() != LogFormat.MAGIC) return null;
+            raf.seek(LogFormat.OFF_FIRST_SEQ);
+            long first = raf.readLong();
+            raf.seek(LogFormat.OFF_END);
+            int end = raf.readInt();
+            raf.seek(LogFormat.OFF_LAST_SEQ);
+            long last = raf.readLong();
+            return end == 0 ? null : new SegmentInfo(file, first, last, end);
+        }
+    }
+
+    /**
+     * @return the sealed segments of a log directory, oldest first
+     */
+    public static List<SegmentInfo> listSealed(File directory) throws IOException {
+        List<SegmentInfo> sealed = new ArrayList<>();
+        for(File file : LogFormat.listSegments(directory)) {
+            SegmentInfo info = read(file);
+            if(info != null) sealed.add(info);
+        }
+        return sealed;
+    }
+
+    /**
+     * @return number of records in the segment
+     */
+    public long count() {
+        return lastSeq - firstSeq + 1;
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentInfo{" + file.getName() + ", seq " + firstSeq + ".." + lastSeq + ", " + length + " bytes}";
+    }
+}
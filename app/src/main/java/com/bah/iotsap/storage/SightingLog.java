@@ -0,0 +1,281 @@
+package com.bah.iotsap.storage;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * SightingLog is an append-only log of sightings kept in fixed size memory-mapped segment files.
+ * Appending copies one CRC protected frame into the mapping (no syscall, no allocation); the
+ * mapping is forced to disk as a group commit once flushBytes have been written or
+ * flushIntervalMillis have passed, whichever comes first. When a segment is full it is sealed
+ * and a new one is started. Opening a log recovers it: the frames of the newest segment are
+ * verified and a torn tail left by a crash is zeroed, so appending carries on with the next
+ * sequence number.
+ * Records store wall clock time, so they stay meaningful across reboots.
+ * See LogFormat for the layout. Methods are synchronized, but it is meant to have one writer.
+ */
+public final class SightingLog implements Closeable {
+
+    /**
+     * Told about every segment that gets sealed, from the appending thread (while the log's lock
+     * is held, so do not call back into the log).
+     */
+    public interface Listener {
+        void onSegmentSealed(SegmentInfo segment);
+    }
+
+    public static final int  DEFAULT_SEGMENT_BYTES  = 4 << 20;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000L;
+    public static final int  DEFAULT_FLUSH_BYTES    = 64 << 10;
+
+    private final File      directory;
+    private final long      epochOffsetMillis;
+    private final int       segmentBytes;
+    private final long      flushIntervalNanos;
+    private final int       flushBytes;
+    private final LogFormat format = new LogFormat();
+
+    private RandomAccessFile file;
+    private MappedByteBuffer segment;
+    private long             segmentFirstSeq;
+    private long             nextSeq;
+    private int              unflushedBytes;
+    private long             lastFlushNanos;
+    private int              flushes;
+    private int              recoveredBytes;
+    private boolean          closed;
+    private Listener         listener;
+
+    /**
+     * Open (or create) the log in directory with the default segment size and flush policy.
+     * @param epochOffsetMillis wall clock time at the monotonic time base zero, on Android:
+     *                          System.currentTimeMillis() - SystemClock.elapsedRealtime()
+     */
+    public SightingLog(File directory, long epochOffsetMillis) throws IOException {
+        this(directory, epochOffsetMillis, DEFAULT_SEGMENT_BYTES, DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_BYTES);
+    }
+
+    /**
+     * @param segmentBytes        size of each segment file
+     * @param flushIntervalMillis longest time appended records stay unforced, 0 forces every append
+     * @param flushBytes          number of appended bytes that triggers a force
+     */
+    public SightingLog(File directory, long epochOffsetMillis, int segmentBytes,
+                       long flushIntervalMillis, int flushBytes) throws IOException {
+        if(segmentBytes < LogFormat.HEADER_SIZE + LogFormat.MAX_FRAME) {
+            throw new IllegalArgumentException("segmentBytes too small: " + segmentBytes);
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.directory          = directory;
+        this.epochOffsetMillis  = epochOffsetMillis;
+        this.segmentBytes       = segmentBytes;
+        this.flushIntervalNanos = flushIntervalMillis * 1000000L;
+        this.flushBytes         = flushBytes;
+        recover();
+        lastFlushNanos = System.nanoTime();
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public File directory() {
+        return directory;
+    }
+
+    public long epochOffsetMillis() {
+        return epochOffsetMillis;
+    }
+
+    /**
+     * Open a cursor over the records of this log, positioned at the start. Records appended
+     * later are picked up by the cursor as it reaches them. Close it when done.
+     */
+    public LogCursor cursor() throws IOException {
+        return new LogCursor(directory, epochOffsetMillis);
+    }
+
+    /**
+     * @return sequence number the next appended record will get
+     */
+    public synchronized long nextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * @return number of forces (group commits) done so far
+     */
+    public synchronized int flushes() {
+        return flushes;
+    }
+
+    /**
+     * @return number of bytes of torn tail that were discarded when the log was opened
+     */
+    public int recoveredBytes() {
+        return recoveredBytes;
+    }
+
+    /**
+     * Append one sighting.
+     * @return its sequence number
+     */
+    public synchronized long append(Sighting sighting) throws IOException {
+        long seq = write(sighting);
+        commitIfDue();
+        return seq;
+    }
+
+    /**
+     * Append count sightings starting at batch[offset], committing at most once.
+     * @return sequence number of the first one
+     */
+    public synchronized long append(Sighting[] batch, int offset, int count) throws IOException {
+        long first = nextSeq;
+        for(int i = offset; i < offset + count; ++i) write(batch[i]);
+        commitIfDue();
+        return first;
+    }
+
+    /**
+     * Force the pending records if the flush interval has passed, for callers with a timer.
+     * @return true if a force happened
+     */
+    public synchronized boolean flushIfDue() {
+        if(closed || unflushedBytes == 0) return false;
+        if(System.nanoTime() - lastFlushNanos < flushIntervalNanos) return false;
+        force();
+        return true;
+    }
+
+    /**
+     * Force the pending records to disk now.
+     */
+    public synchronized void flush() {
+        if(!closed && unflushedBytes > 0) force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed) return;
+        flush();
+        closed = true;
+        file.close();
+        segment = null;
+    }
+
+    private long write(Sighting sighting) throws IOException {
+        if(closed) throw new IOException("SightingLog is closed");
+        long seq = nextSeq;
+        long timeMillis = epochOffsetMillis + sighting.timestampNanos / 1000000L;
+        int start = segment.position();
+        if(!format.writeFrame(segment, seq, timeMillis, sighting)) {
+            roll();
+            start = segment.position();
+            format.writeFrame(segment, seq, timeMillis, sighting);
+        }
+        unflushedBytes += segment.position() - start;
+        nextSeq = seq + 1;
+        return seq;
+    }
+
+    private void commitIfDue() {
+        if(unflushedBytes >= flushBytes || System.nanoTime() - lastFlushNanos >= flushIntervalNanos) {
+            force();
+        }
+    }
+
+    private void force() {
+        segment.force();
+        unflushedBytes = 0;
+        lastFlushNanos = System.nanoTime();
+        ++flushes;
+    }
+
+    /**
+     * Seal the active segment and start a new one at nextSeq.
+     */
+    private void roll() throws IOException {
+        SegmentInfo sealed = new SegmentInfo(new File(directory, LogFormat.segmentName(segmentFirstSeq)),
+                segmentFirstSeq, nextSeq - 1, segment.position());
+        seal(segment, nextSeq - 1);
+        file.close();
+        open(new File(directory, LogFormat.segmentName(nextSeq)), true);
+        if(listener != null) listener.onSegmentSealed(sealed);
+    }
+
+    private void seal(MappedByteBuffer buffer, long lastSeq) {
+        buffer.putInt(LogFormat.OFF_END, buffer.position());
+        buffer.putLong(LogFormat.OFF_LAST_SEQ, lastSeq);
+        buffer.force();
+        unflushedBytes = 0;
+    }
+
+    private void open(File path, boolean create) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        if(file.length() < segmentBytes) file.setLength(segmentBytes);
+        segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        segmentFirstSeq = LogFormat.firstSeqOf(path);
+        if(create) {
+            LogFormat.writeHeader(segment, segmentFirstSeq);
+            segment.force();
+        }
+        segment.position(LogFormat.HEADER_SIZE);
+    }
+
+    /**
+     * Find the active segment, verify its frames and cut off anything after the last good one.
+     */
+    private void recover() throws IOException {
+        File[] segments = LogFormat.listSegments(directory);
+        File last = null;
+        for(int i = segments.length - 1; i >= 0 && last == null; --i) {
+            if(segments[i].length() >= LogFormat.HEADER_SIZE) {
+                last = segments[i];
+            } else if(!segments[i].delete()) {
+                // A crash while creating a segment leaves it empty
+                throw new IOException("Could not delete " + segments[i]);
+            }
+        }
+        if(last == null) {
+            nextSeq = 0;
+            open(new File(directory, LogFormat.segmentName(0)), true);
+            return;
+        }
+
+        open(last, false);
+        if(!LogFormat.hasValidHeader(segment)) {
+            LogFormat.writeHeader(segment, segmentFirstSeq);
+        }
+        int offset = LogFormat.HEADER_SIZE;
+        long seq = segmentFirstSeq;
+        int size;
+        while((size = format.checkFrame(segment, offset, seq)) > 0) {
+            offset += size;
+            ++seq;
+        }
+        nextSeq = seq;
+        segment.position(offset);
+        for(int i = offset; i < segment.limit(); ++i) {
+            if(segment.get(i) != 0) {
+                segment.put(i, (byte) 0);
+                ++recoveredBytes;
+            }
+        }
+
+        if(segment.getInt(LogFormat.OFF_END) != 0) {
+            // Sealed before the crash, the next segment was never created
+            roll();
+        } else if(recoveredBytes > 0) {
+            segment.force();
+        }
+    }
+}
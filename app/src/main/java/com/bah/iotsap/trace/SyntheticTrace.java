@@ -0,0 +1,300 @@
+package com.bah.iotsap.trace;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import java.util.Random;
+
+/**
+ * SyntheticTrace generates the events of a venue instead of recording one: N devices in a disc,
+ * some of them walking between random waypoints, and this device walking among them and getting
+ * a location fix every second.
+ *
+ * Every BLE device advertises at its own interval (100 ms to 1 s, like most beacons and phones);
+ * a classic device answers once per scan window, with its name. An advertisement is heard with
+ * the RSSI of a log distance path loss model (per device transmit power, exponent 2.2) plus
+ * Gaussian noise, unless it falls below the sensitivity or is lost like a real one would be.
+ * A WINDOW_END closes every scan window.
+ *
+ * Everything derives from the seed: the same settings give the same events, in time order. Set it
+ * up before the first next(). Not thread safe.
+ * Example:
+ *   TraceSource venue = new SyntheticTrace(42).devices(5000).mobileFraction(0.3).durationSeconds(600);
+ */
+public final class SyntheticTrace implements TraceSource {
+
+    public static final int    DEFAULT_DEVICES          = 500;
+    public static final double DEFAULT_MOBILE_FRACTION  = 0.2;
+    public static final double DEFAULT_CLASSIC_FRACTION = 0.1;
+    public static final double DEFAULT_RADIUS_METERS    = 100;
+    public static final double DEFAULT_LATITUDE         = 38.8977;
+    public static final double DEFAULT_LONGITUDE        = -77.0365;
+    public static final double DEFAULT_RSSI_SIGMA       = 4;
+    public static final double DEFAULT_LOSS             = 0.1;
+
+    private static final long   SECOND           = 1000000000L;
+    private static final long   START_NANOS      = SECOND;
+    private static final long   MIN_INTERVAL     = SECOND / 10;
+    private static final long   MAX_INTERVAL     = SECOND;
+    private static final int    ADV_DELAY        = 10000000;
+    private static final double TX_POWER         = -59;
+    private static final double TX_POWER_SPREAD  = 4;
+    private static final double PATH_LOSS        = 22;
+    private static final int    SENSITIVITY      = -100;
+    private static final double WALKING_SPEED    = 1.4;
+    private static final double METERS_PER_DEG   = 6371000 * Math.PI / 180;
+
+    private final long   seed;
+    private int          deviceCount      = DEFAULT_DEVICES;
+    private double       mobileFraction   = DEFAULT_MOBILE_FRACTION;
+    private double       classicFraction  = DEFAULT_CLASSIC_FRACTION;
+    private double       radius           = DEFAULT_RADIUS_METERS;
+    private double       latitude         = DEFAULT_LATITUDE;
+    private double       longitude        = DEFAULT_LONGITUDE;
+    private double       rssiSigma        = DEFAULT_RSSI_SIGMA;
+    private double       loss             = DEFAULT_LOSS;
+    private long         durationNanos    = 60 * SECOND;
+    private long         windowNanos      = 10 * SECOND;
+    private long         fixIntervalNanos = SECOND;
+
+    private Random       random;
+    // Devices 0..deviceCount-1, this device (the observer) last
+    private long[]       macs;
+    private boolean[]    classic;
+    private double[]     txPower;
+    private long[]       intervals;
+    private double[]     speeds;
+    private double[]     fromX, fromY, toX, toY;
+    private long[]       departs, arrives;
+    // Devices by time of their next advertisement, a binary min heap
+    private int[]        heap;
+    private long[]       nextNanos;
+    private long         nextFix;
+    private long         nextWindow;
+    private boolean      classicWindowPending;
+    private long         endNanos;
+    private long         results;
+    private long         events;
+
+    public SyntheticTrace(long seed) {
+        this.seed = seed;
+    }
+
+    public SyntheticTrace devices(int devices) {
+        this.deviceCount = devices;
+        return this;
+    }
+
+    /**
+     * @param fraction share of the devices that walk around
+     */
+    public SyntheticTrace mobileFraction(double fraction) {
+        this.mobileFraction = fraction;
+        return this;
+    }
+
+    /**
+     * @param fraction share of the devices that are classic Bluetooth rather than BLE
+     */
+    public SyntheticTrace classicFraction(double fraction) {
+        this.classicFraction = fraction;
+        return this;
+    }
+
+    /**
+     * @param radiusMeters radius of the venue around its center
+     */
+    public SyntheticTrace area(double latitude, double longitude, double radiusMeters) {
+        this.latitude  = latitude;
+        this.longitude = longitude;
+        this.radius    = radiusMeters;
+        return this;
+    }
+
+    /**
+     * @param sigma standard deviation of the RSSI noise in dB
+     * @param loss  probability an advertisement that is strong enough is not heard anyway
+     */
+    public SyntheticTrace noise(double sigma, double loss) {
+        this.rssiSigma = sigma;
+        this.loss      = loss;
+        return this;
+    }
+
+    public SyntheticTrace durationSeconds(double seconds) {
+        this.durationNanos = (long) (seconds * SECOND);
+        return this;
+    }
+
+    public SyntheticTrace windowSeconds(double seconds) {
+        this.windowNanos = (long) (seconds * SECOND);
+        return this;
+    }
+
+    /**
+     * @return results generated so far
+     */
+    public long results() {
+        return results;
+    }
+
+    public long events() {
+        return events;
+    }
+
+    @Override
+    public boolean next(TraceEvent out) {
+        if(random == null) init();
+        while(true) {
+            long advert = deviceCount > 0 ? nextNanos[heap[0]] : Long.MAX_VALUE;
+            // Fixes and windows first on a tie, so a result at the end of a window belongs to the next
+            long time = Math.min(advert, Math.min(nextFix, nextWindow));
+            if(time > endNanos) return false;
+            if(time == nextFix) {
+                nextFix += fixIntervalNanos;
+                fix(time, out);
+                break;
+            }
+            if(time == nextWindow) {
+                // Both scanners close their window, BLE first
+                if(classicFraction > 0 && !classicWindowPending) {
+                    classicWindowPending = true;
+                    out.windowEnd(time, Sighting.Source.BLE);
+                } else {
+                    classicWindowPending = false;
+                    nextWindow += windowNanos;
+                    out.windowEnd(time, classicFraction > 0 ? Sighting.Source.BT_CLASSIC : Sighting.Source.BLE);
+                }
+                break;
+            }
+            int device = heap[0];
+            // BLE adds up to 10 ms of random delay to every advertising interval
+            nextNanos[device] += classic[device] ? windowNanos : intervals[device] + random.nextInt(ADV_DELAY);
+            siftDown(0);
+            if(heard(device, time, out)) {
+                results++;
+                break;
+            }
+        }
+        events++;
+        return true;
+    }
+
+    @Override
+    public void close() {}
+
+    private void init() {
+        random = new Random(seed);
+        int n = deviceCount + 1;
+        macs      = new long[n];
+        classic   = new boolean[n];
+        txPower   = new double[n];
+        intervals = new long[n];
+        speeds    = new double[n];
+        fromX     = new double[n];
+        fromY     = new double[n];
+        toX       = new double[n];
+        toY       = new double[n];
+        departs   = new long[n];
+        arrives   = new long[n];
+        heap      = new int[deviceCount];
+        nextNanos = new long[deviceCount];
+        for(int i = 0; i < n; ++i) {
+            macs[i]    = random.nextLong() & 0xffffffffffffL;
+            classic[i] = random.nextDouble() < classicFraction;
+            txPower[i] = TX_POWER + (2 * random.nextDouble() - 1) * TX_POWER_SPREAD;
+            intervals[i] = classic[i] ? windowNanos
+                    : MIN_INTERVAL + (long) (random.nextDouble() * (MAX_INTERVAL - MIN_INTERVAL));
+            boolean mobile = i == deviceCount || random.nextDouble() < mobileFraction;
+            speeds[i] = i == deviceCount ? WALKING_SPEED : mobile ? 0.5 + random.nextDouble() : 0;
+            randomPoint(i);
+            fromX[i] = toX[i];
+            fromY[i] = toY[i];
+            departs[i] = arrives[i] = START_NANOS;
+            if(i < deviceCount) {
+                nextNanos[i] = START_NANOS + (long) (random.nextDouble() * intervals[i]);
+                heap[i] = i;
+            }
+        }
+        for(int i = deviceCount / 2 - 1; i >= 0; --i) siftDown(i);
+        nextFix    = START_NANOS;
+        nextWindow = START_NANOS + windowNanos;
+        endNanos   = START_NANOS + durationNanos;
+    }
+
+    /**
+     * @return true if out was filled with what this device heard of device's advertisement at time
+     */
+    private boolean heard(int device, long time, TraceEvent out) {
+        move(device, time);
+        move(deviceCount, time);
+        double dx = x(device, time) - x(deviceCount, time);
+        double dy = y(device, time) - y(deviceCount, time);
+        double distance = Math.max(1, Math.sqrt(dx * dx + dy * dy));
+        double rssi = txPower[device] - PATH_LOSS * Math.log10(distance) + random.nextGaussian() * rssiSigma;
+        if(rssi < SENSITIVITY || random.nextDouble() < loss) return false;
+        out.result(time, classic[device] ? Sighting.Source.BT_CLASSIC : Sighting.Source.BLE, macs[device],
+                (int) Math.round(rssi), classic[device] ? "Device " + device : null);
+        return true;
+    }
+
+    private void fix(long time, TraceEvent out) {
+        move(deviceCount, time);
+        float accuracy = (float) (3 + 7 * random.nextDouble());
+        double x = x(deviceCount, time) + random.nextGaussian() * accuracy / 2;
+        double y = y(deviceCount, time) + random.nextGaussian() * accuracy / 2;
+        out.fix(time, latitude + y / METERS_PER_DEG,
+                longitude + x / (METERS_PER_DEG * Math.cos(Math.toRadians(latitude))), accuracy);
+    }
+
+    /**
+     * Random waypoint mobility: once i arrives, it heads for a new random point.
+     */
+    private void move(int i, long time) {
+        if(speeds[i] == 0) return;
+        while(time >= arrives[i]) {
+            fromX[i] = toX[i];
+            fromY[i] = toY[i];
+            randomPoint(i);
+            double dx = toX[i] - fromX[i], dy = toY[i] - fromY[i];
+            departs[i] = arrives[i];
+            arrives[i] = departs[i] + (long) (Math.sqrt(dx * dx + dy * dy) / speeds[i] * SECOND) + 1;
+        }
+    }
+
+    private double x(int i, long time) {
+        return fromX[i] + (toX[i] - fromX[i]) * progress(i, time);
+    }
+
+    private double y(int i, long time) {
+        return fromY[i] + (toY[i] - fromY[i]) * progress(i, time);
+    }
+
+    private double progress(int i, long time) {
+        if(time >= arrives[i]) return 1;
+        return (double) (time - departs[i]) / (arrives[i] - departs[i]);
+    }
+
+    /**
+     * Send i to a uniformly random point of the disc.
+     */
+    private void randomPoint(int i) {
+        double r = radius * Math.sqrt(random.nextDouble());
+        double a = 2 * Math.PI * random.nextDouble();
+        toX[i] = r * Math.cos(a);
+        toY[i] = r * Math.sin(a);
+    }
+
+    private void siftDown(int i) {
+        int device = heap[i];
+        long key = nextNanos[device];
+        int half = deviceCount / 2;
+        while(i < half) {
+            int child = 2 * i + 1;
+            if(child + 1 < deviceCount && nextNanos[heap[child + 1]] < nextNanos[heap[child]]) child++;
+            if(nextNanos[heap[child]] >= key) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = device;
+    }
+}
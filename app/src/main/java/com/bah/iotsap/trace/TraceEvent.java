@@ -0,0 +1,89 @@
+package com.bah.iotsap.trace;
+
+import com.bah.iotsap.discovery.MacAddress;
+import com.bah.iotsap.discovery.Sighting;
+
+/**
+ * TraceEvent is one raw discovery event as the services see it, before any pipeline stage: a
+ * scan result, the end of a scan window (when the services tick their pipeline) or a location
+ * fix. Mutable and reused, like Sighting: sources fill the one they are handed.
+ */
+public final class TraceEvent {
+
+    public enum Kind {
+        /** A ScanCallback result or an ACTION_FOUND broadcast */
+        RESULT,
+        /** A scan window closed: the service ticks its pipeline */
+        WINDOW_END,
+        /** A location fix of this device */
+        FIX
+    }
+
+    public Kind            kind;
+    /** Monotonic time of the event (the Sighting time base) */
+    public long            timeNanos;
+    /** RESULT and WINDOW_END */
+    public Sighting.Source source;
+    /** RESULT: packed MAC, RSSI in dBm, name if the event carried one (else null) */
+    public long            mac;
+    public int             rssi;
+    public String          name;
+    /** FIX */
+    public double          latitude;
+    public double          longitude;
+    public float           accuracy;
+
+    public TraceEvent result(long timeNanos, Sighting.Source source, long mac, int rssi, String name) {
+        this.kind      = Kind.RESULT;
+        this.timeNanos = timeNanos;
+        this.source    = source;
+        this.mac       = mac;
+        this.rssi      = rssi;
+        this.name      = name;
+        return this;
+    }
+
+    public TraceEvent windowEnd(long timeNanos, Sighting.Source source) {
+        this.kind      = Kind.WINDOW_END;
+        this.timeNanos = timeNanos;
+        this.source    = source;
+        this.name      = null;
+        return this;
+    }
+
+    public TraceEvent fix(long timeNanos, double latitude, double longitude, float accuracy) {
+        this.kind      = Kind.FIX;
+        this.timeNanos = timeNanos;
+        this.latitude  = latitude;
+        this.longitude = longitude;
+        this.accuracy  = accuracy;
+        this.name      = null;
+        return this;
+    }
+
+    public TraceEvent copyFrom(TraceEvent other) {
+        kind      = other.kind;
+        timeNanos = other.timeNanos;
+        source    = other.source;
+        mac       = other.mac;
+        rssi      = other.rssi;
+        name      = other.name;
+        latitude  = other.latitude;
+        longitude = other.longitude;
+        accuracy  = other.accuracy;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        switch(kind) {
+            case RESULT:
+                return timeNanos + " " + source + " " + MacAddress.toString(mac) + " " + rssi
+                        + (name != null ? " " + name : "");
+            case WINDOW_END:
+                return timeNanos + " " + source + " window end";
+            default:
+                return timeNanos + " fix " + latitude + "," + longitude + " +-" + accuracy;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.bah.iotsap.trace;
+
+import com.bah.iotsap.discovery.MacAddress;
+
+import java.util.Arrays;
+
+/**
+ * Layout of a trace file, shared by TraceRecorder and TraceReader.
+ *
+ * Header: "SCTR", a version byte and the base time (8 bytes, big endian nanos).
+ * Then one event after the other, nothing else, so a trace cut short by a crash reads up to its
+ * last whole event:
+ *   tag       1 byte: kind (bits 0-1), source ordinal (bits 2-3), NEW_MAC, NAME, SAME_NAME
+ *   time      zigzag varint, microseconds since the previous event (scan results of batched
+ *             scans arrive out of order, so it may be negative)
+ *   RESULT:   device id (varint), or the 6 byte MAC with NEW_MAC the first time the device
+ *             appears (it then gets the next id); RSSI (1 signed byte); the name (varint
+ *             length, UTF-8) with NAME if it is not the device's last one, SAME_NAME if it is
+ *   FIX:      latitude and longitude (int, 1e-7 degrees), accuracy (unsigned short, decimeters)
+ * A result of a known device usually takes 5 or 6 bytes.
+ */
+final class TraceFormat {
+
+    static final byte[] MAGIC   = {'S', 'C', 'T', 'R'};
+    static final int    VERSION = 1;
+    static final int    HEADER  = MAGIC.length + 1 + 8;
+
+    static final int KIND_MASK    = 0x03;
+    static final int SOURCE_SHIFT = 2;
+    static final int SOURCE_MASK  = 0x03;
+    static final int NEW_MAC      = 0x10;
+    static final int NAME         = 0x20;
+    static final int SAME_NAME    = 0x40;
+
+    static final double DEGREES_SCALE  = 1e7;
+    static final float  ACCURACY_SCALE = 10f;
+
+    /** Names are cut to what a Bluetooth name may take */
+    static final int MAX_NAME = 248;
+    /** Longest event: tag, time, MAC, RSSI and name length, without the name */
+    static final int MAX_FIXED_EVENT = 1 + 10 + 6 + 1 + 5;
+
+    private TraceFormat() {}
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Device ids of a trace: MACs numbered in order of appearance, with the last name each
+     * carried. Open addressing on primitives, so recording a result does not allocate.
+     */
+    static final class Devices {
+
+        private long[]   macs;
+        private int[]    ids;
+        private long[]   byId;
+        private String[] names;
+        private int      size;
+
+        Devices() {
+            macs  = new long[1024];
+            ids   = new int[1024];
+            byId  = new long[512];
+            names = new String[512];
+            Arrays.fill(macs, MacAddress.INVALID);
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return id of mac, -1 if it has none yet
+         */
+        int id(long mac) {
+            int mask = macs.length - 1;
+            for(int i = MacAddress.hash(mac) & mask; ; i = (i + 1) & mask) {
+                if(macs[i] == mac) return ids[i];
+                if(macs[i] == MacAddress.INVALID) return -1;
+            }
+        }
+
+        /**
+         * @return the id given to mac, the next one
+         */
+        int add(long mac) {
+            if((size + 1) * 2 > macs.length) rehash();
+            insert(mac, size);
+            if(size == byId.length) {
+                byId  = Arrays.copyOf(byId, size * 2);
+                names = Arrays.copyOf(names, size * 2);
+            }
+            byId[size] = mac;
+            return size++;
+        }
+
+        long mac(int id) {
+            return byId[id];
+        }
+
+        String name(int id) {
+            return names[id];
+        }
+
+        void setName(int id, String name) {
+            names[id] = name;
+        }
+
+        private void insert(long mac, int id) {
+            int mask = macs.length - 1;
+            int i = MacAddress.hash(mac) & mask;
+            while(macs[i] != MacAddress.INVALID) i = (i + 1) & mask;
+            macs[i] = mac;
+            ids[i]  = id;
+        }
+
+        private void rehash() {
+            long[] oldMacs = macs;
+            int[]  oldIds  = ids;
+            macs = new long[oldMacs.length * 2];
+            ids  = new int[oldMacs.length * 2];
+            Arrays.fill(macs, MacAddress.INVALID);
+            for(int i = 0; i < oldMacs.length; ++i) {
+                if(oldMacs[i] != MacAddress.INVALID) insert(oldMacs[i], oldIds[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.bah.iotsap.trace;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * TraceReader plays a trace written by a TraceRecorder back, event by event. Times come back
+ * with microsecond resolution. A trace cut short (the recorder did not get to close it) ends at
+ * its last whole event; truncated() then tells. Not thread safe.
+ */
+public final class TraceReader implements TraceSource {
+
+    private static final Charset UTF_8   = Charset.forName("UTF-8");
+    private static final int     SOURCES = Sighting.Source.values().length;
+
+    private final InputStream         in;
+    private final long                baseNanos;
+    private final TraceFormat.Devices devices = new TraceFormat.Devices();
+    private byte[]                    name    = new byte[64];
+    private long                      lastMicros;
+    private long                      events;
+    private boolean                   truncated;
+    private boolean                   done;
+
+    /**
+     * @throws IOException if in does not start with a trace header of a known version
+     */
+    public TraceReader(InputStream in) throws IOException {
+        this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 16 << 10);
+        byte[] header = new byte[TraceFormat.HEADER];
+        int read = 0;
+        while(read < header.length) {
+            int n = this.in.read(header, read, header.length - read);
+            if(n < 0) throw new IOException("Not a trace: only " + read + " bytes");
+            read += n;
+        }
+        for(int i = 0; i < TraceFormat.MAGIC.length; ++i) {
+            if(header[i] != TraceFormat.MAGIC[i]) throw new IOException("Not a trace: bad magic");
+        }
+        int version = header[TraceFormat.MAGIC.length];
+        if(version != TraceFormat.VERSION) throw new IOException("Unknown trace version " + version);
+        long base = 0;
+        for(int i = TraceFormat.MAGIC.length + 1; i < header.length; ++i) base = base << 8 | (header[i] & 0xff);
+        baseNanos  = base;
+        lastMicros = base / 1000;
+    }
+
+    public static TraceReader open(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return new TraceReader(in);
+        } catch(IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    public long baseNanos() {
+        return baseNanos;
+    }
+
+    /**
+     * @return events read so far
+     */
+    public long events() {
+        return events;
+    }
+
+    /**
+     * @return number of devices the trace named so far
+     */
+    public int devices() {
+        return devices.size();
+    }
+
+    /**
+     * @return true if the trace ended in the middle of an event
+     */
+    public boolean truncated() {
+        return truncated;
+    }
+
+    @Override
+    public boolean next(TraceEvent out) throws IOException {
+        if(done) return false;
+        int tag = in.read();
+        if(tag < 0) {
+            done = true;
+            return false;
+        }
+        try {
+            read(tag, out);
+        } catch(EOFException e) {
+            truncated = true;
+            done      = true;
+            return false;
+        }
+        events++;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        done = true;
+        in.close();
+    }
+
+    private void read(int tag, TraceEvent out) throws IOException {
+        int kind = tag & TraceFormat.KIND_MASK;
+        long micros = lastMicros + TraceFormat.unzigzag(readVarint());
+        lastMicros = micros;
+        long timeNanos = micros * 1000;
+        if(kind == TraceEvent.Kind.FIX.ordinal()) {
+            double latitude  = readInt() / TraceFormat.DEGREES_SCALE;
+            double longitude = readInt() / TraceFormat.DEGREES_SCALE;
+            int decimeters = readByte() << 8 | readByte();
+            out.fix(timeNanos, latitude, longitude, decimeters / TraceFormat.ACCURACY_SCALE);
+            return;
+        }
+        int source = tag >> TraceFormat.SOURCE_SHIFT & TraceFormat.SOURCE_MASK;
+        if(source >= SOURCES) throw new IOException("Bad event tag " + tag);
+        if(kind == TraceEvent.Kind.WINDOW_END.ordinal()) {
+            out.windowEnd(timeNanos, Sighting.Source.of(source));
+            return;
+        }
+        if(kind != TraceEvent.Kind.RESULT.ordinal()) throw new IOException("Bad event tag " + tag);
+        int id;
+        if((tag & TraceFormat.NEW_MAC) != 0) {
+            long mac = 0;
+            for(int i = 0; i < 6; ++i) mac = mac << 8 | readByte();
+            id = devices.add(mac);
+        } else {
+            id = (int) readVarint();
+            if(id < 0 || id >= devices.size()) throw new IOException("Unknown device " + id);
+        }
+        int rssi = (byte) readByte();
+        String deviceName = null;
+        if((tag & TraceFormat.NAME) != 0) {
+            int length = (int) readVarint();
+            if(length > TraceFormat.MAX_NAME) throw new IOException("Bad name length " + length);
+            if(length > name.length) name = new byte[TraceFormat.MAX_NAME];
+            for(int i = 0; i < length; ++i) name[i] = (byte) readByte();
+            deviceName = new String(name, 0, length, UTF_8);
+            devices.setName(id, deviceName);
+        } else if((tag & TraceFormat.SAME_NAME) != 0) {
+            deviceName = devices.name(id);
+        }
+        out.result(timeNanos, Sighting.Source.of(source), devices.mac(id), rssi, deviceName);
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if(b < 0) throw new EOFException();
+        return b;
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Bad varint");
+    }
+
+    private int readInt() throws IOException {
+        return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+    }
+}
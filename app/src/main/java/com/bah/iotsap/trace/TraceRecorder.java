@@ -0,0 +1,246 @@
+package com.bah.iotsap.trace;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * TraceRecorder writes the raw discovery events, as the services get them and before the
+ * pipeline drops or folds any of them, to a compact trace (see TraceFormat) that a TraceReader
+ * and a TraceReplayer play back later, e.g. a dense venue in a regression test.
+ *
+ * Events are encoded into a buffer and only written out when it fills up, on flush() and on
+ * close(). Recording never throws into the callbacks: after an IOException the recorder
+ * stops and failed() tells. Thread safe, the services record from their own threads.
+ */
+public final class TraceRecorder implements Closeable, Flushable {
+
+    private static final Charset UTF_8       = Charset.forName("UTF-8");
+    private static final int     BUFFER_SIZE = 16 << 10;
+
+    private final OutputStream       out;
+    private final long               baseNanos;
+    private final TraceFormat.Devices devices = new TraceFormat.Devices();
+    private final byte[]             buffer   = new byte[BUFFER_SIZE];
+    private int                      position;
+    private long                     lastMicros;
+    private long                     events;
+    private long                     bytes;
+    private boolean                  closed;
+    private boolean                  failed;
+
+    /**
+     * @param baseNanos time of the first event, roughly (later ones are stored relative to it)
+     */
+    public TraceRecorder(OutputStream out, long baseNanos) throws IOException {
+        this.out        = out;
+        this.baseNanos  = baseNanos;
+        this.lastMicros = baseNanos / 1000;
+        System.arraycopy(TraceFormat.MAGIC, 0, buffer, 0, TraceFormat.MAGIC.length);
+        position = TraceFormat.MAGIC.length;
+        buffer[position++] = TraceFormat.VERSION;
+        for(int shift = 56; shift >= 0; shift -= 8) buffer[position++] = (byte) (baseNanos >>> shift);
+        out.write(buffer, 0, position);
+        bytes    = position;
+        position = 0;
+    }
+
+    /**
+     * Record into a new file, replacing any there is.
+     */
+    public static TraceRecorder create(File file, long baseNanos) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            return new TraceRecorder(out, baseNanos);
+        } catch(IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    public long baseNanos() {
+        return baseNanos;
+    }
+
+    /**
+     * Record a scan result.
+     * @param name name the result came with, null if none (BLE results look theirs up later)
+     */
+    public synchronized void result(Sighting.Source source, long mac, int rssi, long timeNanos, String name) {
+        if(closed) return;
+        int id = devices.id(mac);
+        int tag = TraceEvent.Kind.RESULT.ordinal() | source.ordinal() << TraceFormat.SOURCE_SHIFT;
+        if(id < 0) {
+            id = devices.add(mac);
+            tag |= TraceFormat.NEW_MAC;
+        }
+        byte[] encoded = null;
+        if(name != null) {
+            if(name.equals(devices.name(id))) {
+                tag |= TraceFormat.SAME_NAME;
+            } else {
+                tag |= TraceFormat.NAME;
+                encoded = name.getBytes(UTF_8);
+                if(encoded.length > TraceFormat.MAX_NAME) {
+                    encoded = Arrays.copyOf(encoded, TraceFormat.MAX_NAME);
+                }
+                devices.setName(id, name);
+            }
+        }
+        ensure(TraceFormat.MAX_FIXED_EVENT + (encoded != null ? encoded.length : 0));
+        buffer[position++] = (byte) tag;
+        writeTime(timeNanos);
+        if((tag & TraceFormat.NEW_MAC) != 0) {
+            for(int shift = 40; shift >= 0; shift -= 8) buffer[position++] = (byte) (mac >>> shift);
+        } else {
+            writeVarint(id);
+        }
+        buffer[position++] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, rssi));
+        if(encoded != null) {
+            writeVarint(encoded.length);
+            System.arraycopy(encoded, 0, buffer, position, encoded.length);
+            position += encoded.length;
+        }
+        events++;
+    }
+
+    /**
+     * Record the end of a scan window of source, where the service ticks its pipeline.
+     */
+    public synchronized void windowEnd(Sighting.Source source, long timeNanos) {
+        if(closed) return;
+        ensure(TraceFormat.MAX_FIXED_EVENT);
+        buffer[position++] = (byte) (TraceEvent.Kind.WINDOW_END.ordinal()
+                | source.ordinal() << TraceFormat.SOURCE_SHIFT);
+        writeTime(timeNanos);
+        events++;
+    }
+
+    /**
+     * Record a location fix of this device.
+     */
+    public synchronized void fix(long timeNanos, double latitude, double longitude, float accuracy) {
+        if(closed) return;
+        ensure(TraceFormat.MAX_FIXED_EVENT);
+        buffer[position++] = (byte) TraceEvent.Kind.FIX.ordinal();
+        writeTime(timeNanos);
+        writeInt((int) Math.round(latitude * TraceFormat.DEGREES_SCALE));
+        writeInt((int) Math.round(longitude * TraceFormat.DEGREES_SCALE));
+        int decimeters = Math.min(0xffff, Math.round(accuracy * TraceFormat.ACCURACY_SCALE));
+        buffer[position++] = (byte) (decimeters >>> 8);
+        buffer[position++] = (byte) decimeters;
+        events++;
+    }
+
+    /**
+     * Record an event read from another source, e.g. to copy or cut a trace.
+     */
+    public void write(TraceEvent event) {
+        switch(event.kind) {
+            case RESULT:
+                result(event.source, event.mac, event.rssi, event.timeNanos, event.name);
+                break;
+            case WINDOW_END:
+                windowEnd(event.source, event.timeNanos);
+                break;
+            default:
+                fix(event.timeNanos, event.latitude, event.longitude, event.accuracy);
+        }
+    }
+
+    public synchronized long events() {
+        return events;
+    }
+
+    /**
+     * @return size of the trace so far, header and buffered events included
+     */
+    public synchronized long bytes() {
+        return bytes + position;
+    }
+
+    /**
+     * @return true if writing failed and the recorder stopped
+     */
+    public synchronized boolean failed() {
+        return failed;
+    }
+
+    @Override
+    public synchronized void flush() {
+        if(closed) return;
+        drain();
+        if(closed) return;
+        try {
+            out.flush();
+        } catch(IOException e) {
+            fail();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if(closed) return;
+        drain();
+        if(closed) return;
+        closed = true;
+        try {
+            out.close();
+        } catch(IOException e) {
+            failed = true;
+        }
+    }
+
+    private void ensure(int length) {
+        if(position + length > buffer.length) drain();
+    }
+
+    private void drain() {
+        if(position == 0) return;
+        try {
+            out.write(buffer, 0, position);
+            bytes += position;
+        } catch(IOException e) {
+            fail();
+        }
+        position = 0;
+    }
+
+    private void fail() {
+        failed = true;
+        closed = true;
+        try {
+            out.close();
+        } catch(IOException ignored) {
+            // Already failed
+        }
+    }
+
+    private void writeTime(long timeNanos) {
+        long micros = timeNanos / 1000;
+        writeVarint(TraceFormat.zigzag(micros - lastMicros));
+        lastMicros = micros;
+    }
+
+    private void writeVarint(long value) {
+        while((value & ~0x7fL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        buffer[position++] = (byte) (value >>> 24);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) value;
+    }
+}
@@ -0,0 +1,200 @@
+package com.bah.iotsap.trace;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.location.LocationTrack;
+import com.bah.iotsap.pipeline.Pipeline;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TraceReplayer feeds a TraceSource, a recorded trace or a SyntheticTrace, into the pipelines the
+ * services would have fed: each result goes to the pipeline of its source, the end of a window
+ * ticks it, and fixes go to the LocationTrack the locate stage reads. Sightings keep the times of
+ * the trace, so what comes out of the pipeline does not depend on when the replay runs.
+ *
+ * At a speed (1 is real time, 10 ten times faster) events are paced to their trace times and
+ * handed over like the scan callbacks do, dropping whatever a backed up pipeline refuses. At
+ * MAX_SPEED they go in as fast as the pipeline takes them and nothing is dropped, so the same
+ * trace always gives the same output: that is the one for throughput and regression runs.
+ * Runs on the calling thread. Example:
+ *   Pipeline ble = new Pipeline("ble", 1024, new DedupeStage(...), ...);
+ *   ble.start();
+ *   TraceReplayer.Report report = new TraceReplayer(TraceReplayer.MAX_SPEED).route(Sighting.Source.BLE, ble)
+ *           .replay(TraceReader.open(file));
+ *   ble.stop();
+ */
+public final class TraceReplayer {
+
+    /** Replay as fast as the pipelines go, without dropping anything */
+    public static final double MAX_SPEED = 0;
+
+    /**
+     * Time the replay is paced by, a fake one in tests.
+     */
+    public interface Clock {
+        long nanoTime();
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    /** System.nanoTime() and a sleeping thread */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    };
+
+    /**
+     * What a replay did.
+     */
+    public static final class Report {
+        public final long events;
+        public final long results;
+        /** Results the pipelines refused (paced replays only) */
+        public final long dropped;
+        public final long windows;
+        public final long fixes;
+        /** Time between the first and the last event of the trace */
+        public final long traceNanos;
+        /** Time the replay took */
+        public final long elapsedNanos;
+
+        Report(long events, long results, long dropped, long windows, long fixes, long traceNanos,
+               long elapsedNanos) {
+            this.events       = events;
+            this.results      = results;
+            this.dropped      = dropped;
+            this.windows      = windows;
+            this.fixes        = fixes;
+            this.traceNanos   = traceNanos;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long resultsPerSecond() {
+            return elapsedNanos > 0 ? results * 1000000000L / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return events + " events (" + results + " results, " + dropped + " dropped, " + windows
+                    + " windows, " + fixes + " fixes), " + TimeUnit.NANOSECONDS.toMillis(traceNanos)
+                    + " ms of trace in " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms, "
+                    + resultsPerSecond() + " results/s";
+        }
+    }
+
+    private final double     speed;
+    private final Clock      clock;
+    private final Pipeline[] pipelines = new Pipeline[Sighting.Source.values().length];
+    private LocationTrack    track;
+
+    /**
+     * @param speed times real time, MAX_SPEED for no pacing
+     */
+    public TraceReplayer(double speed) {
+        this(speed, SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param speed times real time, MAX_SPEED for no pacing
+     * @param clock paces the replay and times it
+     */
+    public TraceReplayer(double speed, Clock clock) {
+        if(speed < 0) throw new IllegalArgumentException("Speed " + speed);
+        this.speed = speed;
+        this.clock = clock;
+    }
+
+    /**
+     * Send results and window ends of source to pipeline (a started one). Events of sources
+     * without a pipeline are skipped.
+     */
+    public TraceReplayer route(Sighting.Source source, Pipeline pipeline) {
+        pipelines[source.ordinal()] = pipeline;
+        return this;
+    }
+
+    /**
+     * Add the fixes to track.
+     */
+    public TraceReplayer locations(LocationTrack track) {
+        this.track = track;
+        return this;
+    }
+
+    /**
+     * Replay all of trace, then close it. The pipelines keep running: stop them to wait for
+     * what is still queued before reading their metrics.
+     */
+    public Report replay(TraceSource trace) throws IOException, InterruptedException {
+        TraceEvent event = new TraceEvent();
+        long events = 0, results = 0, dropped = 0, windows = 0, fixes = 0;
+        long firstNanos = 0, lastNanos = 0;
+        long start = clock.nanoTime();
+        try {
+            while(trace.next(event)) {
+                if(events++ == 0) firstNanos = lastNanos = event.timeNanos;
+                // Batched results come late, only ever wait for time moving forwards
+                if(event.timeNanos > lastNanos) {
+                    lastNanos = event.timeNanos;
+                    if(speed != MAX_SPEED) pace(start, lastNanos - firstNanos);
+                }
+                switch(event.kind) {
+                    case RESULT:
+                        results++;
+                        if(!submit(event)) dropped++;
+                        break;
+                    case WINDOW_END:
+                        windows++;
+                        Pipeline pipeline = pipelines[event.source.ordinal()];
+                        if(pipeline == null) break;
+                        if(speed == MAX_SPEED) {
+                            pipeline.tickBlocking(event.timeNanos);
+                        } else {
+                            pipeline.tick(event.timeNanos);
+                        }
+                        break;
+                    default:
+                        fixes++;
+                        if(track != null) track.add(event.timeNanos, event.latitude, event.longitude, event.accuracy);
+                }
+            }
+        } finally {
+            trace.close();
+        }
+        return new Report(events, results, dropped, windows, fixes, lastNanos - firstNanos,
+                clock.nanoTime() - start);
+    }
+
+    /**
+     * @return false if the result was dropped
+     */
+    private boolean submit(TraceEvent event) throws InterruptedException {
+        Pipeline pipeline = pipelines[event.source.ordinal()];
+        if(pipeline == null) return true;
+        if(speed == MAX_SPEED) {
+            Pipeline.Record record = pipeline.obtainBlocking();
+            record.sighting.set(event.mac, event.rssi, event.timeNanos, event.source, event.name);
+            pipeline.submitBlocking(record);
+            return true;
+        }
+        Pipeline.Record record = pipeline.obtain();
+        if(record == null) return false;
+        record.sighting.set(event.mac, event.rssi, event.timeNanos, event.source, event.name);
+        return pipeline.submit(record);
+    }
+
+    /**
+     * Wait until traceNanos of the trace have passed at our speed since start.
+     */
+    private void pace(long start, long traceNanos) throws InterruptedException {
+        long wait = start + (long) (traceNanos / speed) - clock.nanoTime();
+        if(wait > 0) clock.sleep(wait);
+    }
+}
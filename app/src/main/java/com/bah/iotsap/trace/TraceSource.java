@@ -0,0 +1,17 @@
+package com.bah.iotsap.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A stream of TraceEvents in time order: a recorded trace file (TraceReader) or a generated
+ * workload (SyntheticTrace). See TraceReplayer.
+ */
+public interface TraceSource extends Closeable {
+
+    /**
+     * Fill out with the next event.
+     * @return false at the end of the trace
+     */
+    boolean next(TraceEvent out) throws IOException;
+}
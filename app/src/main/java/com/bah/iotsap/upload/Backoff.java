@@ -0,0 +1,27 @@
+package com.bah.iotsap.upload;
+
+import java.util.Random;
+
+/**
+ * Backoff computes retry delays for uploads: exponential from BASE_BACKOFF up to MAX_BACKOFF,
+ * with "equal jitter" (half of the delay fixed, the other half random) so that a fleet of
+ * devices that reconnects together does not retry in lock step.
+ * This class cannot be instantiated.
+ */
+public final class Backoff {
+
+    public static final long BASE_BACKOFF = 5000L;
+    public static final long MAX_BACKOFF  = 30 * 60 * 1000L;
+
+    private Backoff() {}
+
+    /**
+     * @param failures consecutive failures so far, at least 1
+     * @return milliseconds to wait before the next attempt
+     */
+    public static long delayMillis(int failures, Random random) {
+        long delay = BASE_BACKOFF << Math.min(Math.max(failures, 1) - 1, 20);
+        delay = Math.min(MAX_BACKOFF, delay);
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+}
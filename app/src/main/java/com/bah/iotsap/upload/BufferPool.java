@@ -0,0 +1,46 @@
+package com.bah.iotsap.upload;
+
+/**
+ * BufferPool hands out large byte[] buffers for streaming files and takes them back, so that
+ * back to back uploads reuse the same few buffers instead of allocating 64 KB per request.
+ * At most maxPooled buffers are kept; extras are left to the garbage collector.
+ * Thread safe.
+ */
+public final class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final BufferPool shared = new BufferPool(DEFAULT_BUFFER_SIZE, 4);
+
+    private final int      bufferSize;
+    private final byte[][] pooled;
+    private int            count;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.pooled     = new byte[maxPooled][];
+    }
+
+    /**
+     * @return pool of DEFAULT_BUFFER_SIZE buffers shared by the upload code
+     */
+    public static BufferPool shared() {
+        return shared;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public synchronized byte[] acquire() {
+        if(count == 0) return new byte[bufferSize];
+        byte[] buffer = pooled[--count];
+        pooled[count] = null;
+        return buffer;
+    }
+
+    public synchronized void release(byte[] buffer) {
+        if(buffer == null || buffer.length != bufferSize || count == pooled.length) return;
+        pooled[count++] = buffer;
+    }
+}
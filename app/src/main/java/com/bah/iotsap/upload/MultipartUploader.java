@@ -0,0 +1,216 @@
+package com.bah.iotsap.upload;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * MultipartUploader POSTs (part of) a file to a server as multipart/form-data.
+ * The file is streamed straight from disk to the connection through a pooled 64 KB buffer.
+ * Without compression the request size is known up front and sent with a fixed Content-Length
+ * instead of chunked encoding. With gzip the file part is compressed on the fly (sent as
+ * "[name].gz", application/gzip) and chunked in buffer sized chunks.
+ * The connection is not disconnected after the response is read, so HttpURLConnection can keep
+ * it alive for the next upload to the same server.
+ * Thread safe, uploads share nothing but the BufferPool.
+ */
+public final class MultipartUploader {
+
+    private static final String  CRLF          = "\r\n";
+    private static final Charset UTF_8         = Charset.forName("UTF-8");
+    private static final int     MAX_RESPONSE  = 64 * 1024;
+    public  static final int     DEFAULT_CONNECT_TIMEOUT = 15000;
+    public  static final int     DEFAULT_READ_TIMEOUT    = 30000;
+
+    /**
+     * Status and body of the server's reply.
+     */
+    public static final class Response {
+        public final int    code;
+        public final String body;
+        /** Bytes of request body sent (after compression) */
+        public final long   bytesSent;
+
+        Response(int code, String body, long bytesSent) {
+            this.code      = code;
+            this.body      = body;
+            this.bytesSent = bytesSent;
+        }
+
+        public boolean isSuccessful() {
+            return code >= 200 && code < 300;
+        }
+    }
+
+    private final BufferPool pool;
+    private final boolean    gzip;
+    private final int        connectTimeout;
+    private final int        readTimeout;
+    private final Random     random = new Random();
+
+    public MultipartUploader(boolean gzip) {
+        this(BufferPool.shared(), gzip, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public MultipartUploader(BufferPool pool, boolean gzip, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.pool           = pool;
+        this.gzip           = gzip;
+        this.connectTimeout = connectTimeoutMillis;
+        this.readTimeout    = readTimeoutMillis;
+    }
+
+    public Response upload(URL url, File file) throws IOException {
+        return upload(url, file, 0, file.length(), file.getName(), null);
+    }
+
+    /**
+     * Upload length bytes of file starting at offset as the "file" part of a multipart request.
+     * @param fileName file name given to the server
+     * @param fields   extra form fields sent before the file, may be null
+     * @return the server's response, whatever its status
+     * @throws IOException if the file could not be read or the request failed
+     */
+    public Response upload(URL url, File file, long offset, long length, String fileName,
+                           Map<String, String> fields) throws IOException {
+        String boundary = "----iotsap" + Long.toHexString(random.nextLong());
+        byte[] head = head(boundary, fileName, fields);
+        byte[] tail = (CRLF + "--" + boundary + "--" + CRLF).getBytes(UTF_8);
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setDoInput(true);
+        conn.setDoOutput(true);
+        conn.setUseCaches(false);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+        if(gzip) {
+            conn.setChunkedStreamingMode(pool.bufferSize());
+        } else {
+            conn.setFixedLengthStreamingMode(head.length + length + tail.length);
+        }
+
+        byte[] buffer = pool.acquire();
+        try {
+            CountingOutputStream out = new CountingOutputStream(conn.getOutputStream());
+            try {
+                out.write(head);
+                if(gzip) {
+                    // finish() the gzip stream but keep the connection stream open
+                    GZIPOutputStream zip = new GZIPOutputStream(new UnclosableOutputStream(out), pool.bufferSize());
+                    copy(file, offset, length, zip, buffer);
+                    zip.finish();
+                } else {
+                    copy(file, offset, length, out, buffer);
+                }
+                out.write(tail);
+            } finally {
+                out.close();
+            }
+            int code = conn.getResponseCode();
+            return new Response(code, readBody(conn, code, buffer), out.count);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private byte[] head(String boundary, String fileName, Map<String, String> fields) {
+        StringBuilder head = new StringBuilder(256);
+        if(fields != null) {
+            for(Map.Entry<String, String> field : fields.entrySet()) {
+                head.append("--").append(boundary).append(CRLF)
+                    .append("Content-Disposition: form-data; name=\"").append(field.getKey()).append('"').append(CRLF)
+                    .append(CRLF)
+                    .append(field.getValue()).append(CRLF);
+            }
+        }
+        head.append("--").append(boundary).append(CRLF)
+            .append("Content-Disposition: form-data; name=\"file\"; filename=\"")
+            .append(gzip ? fileName + ".gz" : fileName).append('"').append(CRLF)
+            .append("Content-Type: ").append(gzip ? "application/gzip" : "application/octet-stream").append(CRLF)
+            .append(CRLF);
+        return head.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Copy length bytes of file starting at offset to out, a buffer at a time.
+     */
+    private static void copy(File file, long offset, long length, OutputStream out, byte[] buffer)
+            throws IOException {
+        try(RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(offset);
+            long remaining = length;
+            while(remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if(n < 0) throw new IOException(file + " is shorter than " + (offset + length) + " bytes");
+                out.write(buffer, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    /**
+     * Read (up to MAX_RESPONSE bytes of) the response body. Reading it to the end lets the
+     * connection be reused.
+     */
+    private static String readBody(HttpURLConnection conn, int code, byte[] buffer) throws IOException {
+        InputStream in = code >= 400 ? conn.getErrorStream() : conn.getInputStream();
+        if(in == null) return "";
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            int n;
+            while((n = in.read(buffer)) >= 0) {
+                if(body.size() < MAX_RESPONSE) body.write(buffer, 0, Math.min(n, MAX_RESPONSE - body.size()));
+            }
+            return new String(body.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static final class UnclosableOutputStream extends FilterOutputStream {
+        UnclosableOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
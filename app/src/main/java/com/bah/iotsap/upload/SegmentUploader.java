@@ -0,0 +1,93 @@
+package com.bah.iotsap.upload;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.storage.ColumnarEncoder;
+import com.bah.iotsap.storage.LogCursor;
+import com.bah.iotsap.storage.SegmentInfo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SegmentUploader sends sealed log segments to the collector endpoint with a MultipartUploader.
+ * Only the used part of the segment is sent, with its sequence range as form fields
+ * ("first_seq", "last_seq") so the collector can tell repeats apart.
+ * With a columnar directory the segment's records are re-encoded as a deflated ColumnarFormat
+ * batch there first (field "format": "columnar"), which is several times smaller than the segment.
+ */
+public final class SegmentUploader implements UploadQueue.Sender {
+
+    private final URL               endpoint;
+    private final MultipartUploader uploader;
+    private final File              columnarDir;
+    private int  lastCode;
+
+    public SegmentUploader(URL endpoint, boolean gzip) {
+        this(endpoint, gzip, null);
+    }
+
+    /**
+     * @param columnarDir scratch directory for columnar batches, null to send segments as they are
+     */
+    public SegmentUploader(URL endpoint, boolean gzip, File columnarDir) {
+        this.endpoint    = endpoint;
+        this.columnarDir = columnarDir;
+        // Columnar batches are deflated already
+        this.uploader    = new MultipartUploader(gzip && columnarDir == null);
+    }
+
+    /**
+     * @return HTTP status of the last upload
+     */
+    public int lastCode() {
+        return lastCode;
+    }
+
+    @Override
+    public boolean send(SegmentInfo segment) throws IOException {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("first_seq", Long.toString(segment.firstSeq));
+        fields.put("last_seq",  Long.toString(segment.lastSeq));
+        if(columnarDir == null) {
+            MultipartUploader.Response response = uploader.upload(endpoint, segment.file, 0, segment.length,
+                    segment.file.getName(), fields);
+            lastCode = response.code;
+            return response.isSuccessful();
+        }
+        fields.put("format", "columnar");
+        File batch = encode(segment);
+        try {
+            MultipartUploader.Response response = uploader.upload(endpoint, batch, 0, batch.length(),
+                    batch.getName(), fields);
+            lastCode = response.code;
+            return response.isSuccessful();
+        } finally {
+            batch.delete();
+        }
+    }
+
+    /**
+     * Write the segment's records as a deflated columnar batch into columnarDir.
+     */
+    private File encode(SegmentInfo segment) throws IOException {
+        // Time base zero at the epoch: the cursor and the encoder round trip wall clock millis
+        ColumnarEncoder encoder = new ColumnarEncoder(0);
+        Sighting sighting = new Sighting();
+        try(LogCursor cursor = new LogCursor(segment.file.getParentFile(), 0)) {
+            cursor.seekSeq(segment.firstSeq);
+            while(cursor.next(sighting) && cursor.seq() <= segment.lastSeq) encoder.add(sighting);
+        }
+        if(!columnarDir.isDirectory() && !columnarDir.mkdirs()) throw new IOException("Cannot create " + columnarDir);
+        String name = segment.file.getName();
+        File batch = new File(columnarDir, name.substring(0, name.lastIndexOf('.')) + ".sgc");
+        try(OutputStream out = new FileOutputStream(batch)) {
+            encoder.writeTo(out, true);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,214 @@
+package com.bah.iotsap.upload;
+
+import com.bah.iotsap.storage.LogCursor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * SyncClient uploads only the sightings the collector does not have yet.
+ * The collector keeps, per device, the highest sequence number it has committed. The client
+ * keeps a checkpoint of that number and POSTs the log frames after it, in batches of up to
+ * batchBytes, straight from the log (the frames carry their own CRC and sequence number):
+ *   GET  [endpoint]sync/[device]               -> {"committed": n}
+ *   POST [endpoint]sync/[device]?from=[n + 1]  -> {"committed": m}
+ * The collector commits every good frame after its committed offset that it received, even if
+ * the request broke off half way, and ignores frames it already has. So after an error the
+ * client asks for the committed offset and resumes from there instead of starting over.
+ * Failures back off like the UploadQueue (see Backoff).
+ * The checkpoint lives in a small file, so a restart does not send anything twice.
+ * Not thread safe; sync() blocks on the network, so call it from a worker thread.
+ */
+public final class SyncClient {
+
+    public static final int DEFAULT_BATCH_BYTES = 256 * 1024;
+
+    private static final Charset UTF_8   = Charset.forName("UTF-8");
+    // Committed offset not known, ask the collector
+    private static final long    UNKNOWN = -2;
+
+    private final URL    syncUrl;
+    private final File   logDirectory;
+    private final File   checkpointFile;
+    private final byte[] batch;
+    private final Random random;
+    private int          connectTimeout = MultipartUploader.DEFAULT_CONNECT_TIMEOUT;
+    private int          readTimeout    = MultipartUploader.DEFAULT_READ_TIMEOUT;
+
+    private long committed = UNKNOWN;
+    private int  failures;
+    private long nextAttemptMillis;
+    // Totals of this instance
+    private long requests;
+    private long bytesSent;
+    private long recordsSent;
+
+    /**
+     * @param endpoint       collector base URL, e.g. "http://host:8080/upload/"
+     * @param deviceId       name of this device's stream on the collector
+     * @param logDirectory   directory of the SightingLog to sync
+     * @param checkpointFile where the committed offset and backoff are kept
+     */
+    public SyncClient(URL endpoint, String deviceId, File logDirectory, File checkpointFile,
+                      int batchBytes, Random random) throws IOException {
+        this.syncUrl        = new URL(endpoint, "sync/" + deviceId);
+        this.logDirectory   = logDirectory;
+        this.checkpointFile = checkpointFile;
+        this.batch          = new byte[batchBytes];
+        this.random         = random;
+        if(checkpointFile.exists()) {
+            Properties state = UploadQueue.read(checkpointFile);
+            committed         = Long.parseLong(state.getProperty("committed", Long.toString(UNKNOWN)));
+            failures          = Integer.parseInt(state.getProperty("failures", "0"));
+            nextAttemptMillis = Long.parseLong(state.getProperty("nextAttemptMillis", "0"));
+        }
+    }
+
+    public SyncClient(URL endpoint, String deviceId, File logDirectory, File checkpointFile) throws IOException {
+        this(endpoint, deviceId, logDirectory, checkpointFile, DEFAULT_BATCH_BYTES, new Random());
+    }
+
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        this.connectTimeout = connectTimeoutMillis;
+        this.readTimeout    = readTimeoutMillis;
+    }
+
+    /**
+     * @return highest sequence number the collector is known to have committed, -1 if none,
+     *         -2 if it has to be asked first
+     */
+    public long committed() {
+        return committed;
+    }
+
+    public int failures() {
+        return failures;
+    }
+
+    public long requests() {
+        return requests;
+    }
+
+    public long bytesSent() {
+        return bytesSent;
+    }
+
+    public long recordsSent() {
+        return recordsSent;
+    }
+
+    /**
+     * Forget the backoff so the next sync() tries right away.
+     */
+    public void resetBackoff() throws IOException {
+        failures = 0;
+        nextAttemptMillis = 0;
+        save();
+    }
+
+    /**
+     * Send everything after the committed offset.
+     * @param nowMillis current wall clock time
+     * @return 0 when the collector has caught up, otherwise how long to wait before trying again
+     */
+    public long sync(long nowMillis) throws IOException {
+        if(nowMillis < nextAttemptMillis) return nextAttemptMillis - nowMillis;
+        try(LogCursor cursor = new LogCursor(logDirectory, 0)) {
+            if(committed == UNKNOWN) committed = fetchCommitted();
+            cursor.seekSeq(committed + 1);
+            while(true) {
+                long from = cursor.nextSeq();
+                int length = cursor.copyFrames(batch, 0, batch.length);
+                if(length == 0) break;
+                long last = cursor.seq();
+                long acked = post(from, length);
+                recordsSent += last - from + 1;
+                if(acked <= committed) throw new IOException("Collector did not commit past " + acked);
+                committed = acked;
+                save();
+                // Partial commit: continue right after what the collector has
+                if(acked < last) cursor.seekSeq(acked + 1);
+            }
+            failures = 0;
+            nextAttemptMillis = 0;
+            save();
+            return 0;
+        } catch(IOException e) {
+            // Whatever got through is committed on the other side, ask next time
+            committed = UNKNOWN;
+            ++failures;
+            nextAttemptMillis = nowMillis + Backoff.delayMillis(failures, random);
+            save();
+            return nextAttemptMillis - nowMillis;
+        }
+    }
+
+    private long fetchCommitted() throws IOException {
+        HttpURLConnection conn = open(syncUrl);
+        conn.setRequestMethod("GET");
+        return readCommitted(conn);
+    }
+
+    private long post(long from, int length) throws IOException {
+        HttpURLConnection conn = open(new URL(syncUrl + "?from=" + from));
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", "application/octet-stream");
+        conn.setFixedLengthStreamingMode(length);
+        try(OutputStream out = conn.getOutputStream()) {
+            out.write(batch, 0, length);
+        }
+        ++requests;
+        bytesSent += length;
+        return readCommitted(conn);
+    }
+
+    private HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+        conn.setUseCaches(false);
+        return conn;
+    }
+
+    /**
+     * Read {"committed": n} from a 200 response.
+     */
+    private static long readCommitted(HttpURLConnection conn) throws IOException {
+        int code = conn.getResponseCode();
+        if(code != HttpURLConnection.HTTP_OK) throw new IOException("Collector answered " + code);
+        InputStream in = conn.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[256];
+            int n;
+            while((n = in.read(buffer)) >= 0) body.write(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        try {
+            return new JSONObject(new String(body.toByteArray(), UTF_8)).getLong("committed");
+        } catch(JSONException e) {
+            throw new IOException("Bad collector response: " + e.getMessage());
+        }
+    }
+
+    private void save() throws IOException {
+        Properties state = new Properties();
+        state.setProperty("committed",         Long.toString(committed));
+        state.setProperty("failures",          Integer.toString(failures));
+        state.setProperty("nextAttemptMillis", Long.toString(nextAttemptMillis));
+        UploadQueue.write(checkpointFile, state);
+    }
+}
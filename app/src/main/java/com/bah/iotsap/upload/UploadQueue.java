@@ -0,0 +1,254 @@
+package com.bah.iotsap.upload;
+
+import com.bah.iotsap.storage.SegmentInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * UploadQueue is a durable queue of sealed log segments waiting to be uploaded.
+ * Every queued segment has a small job file in the queue directory, and the queue state (the
+ * highest acknowledged sequence number and the backoff) is kept in a state file, so nothing is
+ * lost when the process dies or the device is offline for hours.
+ * drain() uploads the jobs oldest first and stops at the first failure; the next attempt is
+ * then pushed back exponentially with jitter (see Backoff). resetBackoff() allows an immediate
+ * retry, e.g. when connectivity comes back. Segments at or below the acknowledged sequence
+ * number are never queued or sent again.
+ * Methods are synchronized; drain() blocks on the network, so call it from a worker thread.
+ */
+public final class UploadQueue {
+
+    /**
+     * Ships one segment.
+     */
+    public interface Sender {
+        /**
+         * @return true if the server acknowledged the segment
+         */
+        boolean send(SegmentInfo segment) throws IOException;
+    }
+
+    public static final long BASE_BACKOFF = Backoff.BASE_BACKOFF;
+    public static final long MAX_BACKOFF  = Backoff.MAX_BACKOFF;
+
+    private static final String STATE_FILE = "queue.state";
+    private static final String JOB_PREFIX = "job-";
+    private static final String JOB_SUFFIX = ".properties";
+
+    private final File                       directory;
+    private final Random                     random;
+    private final TreeMap<Long, SegmentInfo> jobs     = new TreeMap<>();
+    private final Map<Long, Integer>         attempts = new HashMap<>();
+    private long ackedSeq = -1;
+    private int  failures;
+    private long nextAttemptMillis;
+    private int  sent;
+
+    public UploadQueue(File directory) throws IOException {
+        this(directory, new Random());
+    }
+
+    public UploadQueue(File directory, Random random) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        this.directory = directory;
+        this.random    = random;
+        load();
+    }
+
+    /**
+     * @return highest sequence number the server has acknowledged, -1 if none
+     */
+    public synchronized long ackedSeq() {
+        return ackedSeq;
+    }
+
+    public synchronized int pending() {
+        return jobs.size();
+    }
+
+    /**
+     * @return consecutive failed attempts since the last success
+     */
+    public synchronized int failures() {
+        return failures;
+    }
+
+    /**
+     * @return wall clock time before which drain() will not try again
+     */
+    public synchronized long nextAttemptMillis() {
+        return nextAttemptMillis;
+    }
+
+    /**
+     * @return number of segments uploaded by this instance
+     */
+    public synchronized int sent() {
+        return sent;
+    }
+
+    /**
+     * Queue a sealed segment.
+     * @return false if it was already acknowledged or queued
+     */
+    public synchronized boolean enqueue(SegmentInfo segment) throws IOException {
+        if(segment.lastSeq <= ackedSeq || jobs.containsKey(segment.firstSeq)) return false;
+        Properties job = new Properties();
+        job.setProperty("file",     segment.file.getPath());
+        job.setProperty("firstSeq", Long.toString(segment.firstSeq));
+        job.setProperty("lastSeq",  Long.toString(segment.lastSeq));
+        job.setProperty("length",   Long.toString(segment.length));
+        write(jobFile(segment.firstSeq), job);
+        jobs.put(segment.firstSeq, segment);
+        return true;
+    }
+
+    /**
+     * Queue every sealed segment of a log directory that is neither acknowledged nor queued,
+     * covering segments sealed while nobody was listening (or before a crash).
+     * @return number of segments queued
+     */
+    public synchronized int enqueueSealed(File logDirectory) throws IOException {
+        int queued = 0;
+        for(SegmentInfo segment : SegmentInfo.listSealed(logDirectory)) {
+            if(enqueue(segment)) ++queued;
+        }
+        return queued;
+    }
+
+    /**
+     * Upload queued segments, oldest first, until the queue is empty or an upload fails.
+     * @param nowMillis current wall clock time
+     * @return 0 if the queue is empty, otherwise how long to wait before calling again
+     */
+    public synchronized long drain(Sender sender, long nowMillis) throws IOException {
+        if(nowMillis < nextAttemptMillis) return nextAttemptMillis - nowMillis;
+        List<SegmentInfo> queued = new ArrayList<>(jobs.values());
+        for(SegmentInfo segment : queued) {
+            if(segment.lastSeq <= ackedSeq || !segment.file.exists()) {
+                remove(segment);
+                continue;
+            }
+            boolean ok;
+            try {
+                ok = sender.send(segment);
+            } catch(IOException e) {
+                ok = false;
+            }
+            if(!ok) {
+                Integer tries = attempts.get(segment.firstSeq);
+                attempts.put(segment.firstSeq, tries == null ? 1 : tries + 1);
+                ++failures;
+                nextAttemptMillis = nowMillis + backoffMillis(failures);
+                saveState();
+                return nextAttemptMillis - nowMillis;
+            }
+            ackedSeq = Math.max(ackedSeq, segment.lastSeq);
+            failures = 0;
+            ++sent;
+            saveState();
+            remove(segment);
+        }
+        return 0;
+    }
+
+    /**
+     * Forget the backoff so the next drain() tries right away.
+     */
+    public synchronized void resetBackoff() throws IOException {
+        if(failures == 0 && nextAttemptMillis == 0) return;
+        failures = 0;
+        nextAttemptMillis = 0;
+        saveState();
+    }
+
+    /**
+     * @return failed attempts of a queued segment since the queue was opened
+     */
+    synchronized int attempts(long firstSeq) {
+        Integer tries = attempts.get(firstSeq);
+        return tries == null ? 0 : tries;
+    }
+
+    long backoffMillis(int failures) {
+        return Backoff.delayMillis(failures, random);
+    }
+
+    private void remove(SegmentInfo segment) throws IOException {
+        File file = jobFile(segment.firstSeq);
+        if(file.exists() && !file.delete()) throw new IOException("Could not delete " + file);
+        jobs.remove(segment.firstSeq);
+        attempts.remove(segment.firstSeq);
+    }
+
+    private File jobFile(long firstSeq) {
+        return new File(directory, JOB_PREFIX + String.format("%020d", firstSeq) + JOB_SUFFIX);
+    }
+
+    private void saveState() throws IOException {
+        Properties state = new Properties();
+        state.setProperty("ackedSeq",          Long.toString(ackedSeq));
+        state.setProperty("failures",          Integer.toString(failures));
+        state.setProperty("nextAttemptMillis", Long.toString(nextAttemptMillis));
+        write(new File(directory, STATE_FILE), state);
+    }
+
+    private void load() throws IOException {
+        File stateFile = new File(directory, STATE_FILE);
+        if(stateFile.exists()) {
+            Properties state = read(stateFile);
+            ackedSeq          = Long.parseLong(state.getProperty("ackedSeq", "-1"));
+            failures          = Integer.parseInt(state.getProperty("failures", "0"));
+            nextAttemptMillis = Long.parseLong(state.getProperty("nextAttemptMillis", "0"));
+        }
+        File[] files = directory.listFiles();
+        if(files == null) return;
+        for(File file : files) {
+            String name = file.getName();
+            if(!name.startsWith(JOB_PREFIX) || !name.endsWith(JOB_SUFFIX)) continue;
+            try {
+                Properties job = read(file);
+                SegmentInfo segment = new SegmentInfo(new File(job.getProperty("file")),
+                        Long.parseLong(job.getProperty("firstSeq")),
+                        Long.parseLong(job.getProperty("lastSeq")),
+                        Long.parseLong(job.getProperty("length")));
+                jobs.put(segment.firstSeq, segment);
+            } catch(RuntimeException e) {
+                // Half written job (the tmp + rename below makes this unlikely), enqueueSealed() redoes it
+                if(!file.delete()) throw new IOException("Could not delete " + file);
+            }
+        }
+    }
+
+    static Properties read(File file) throws IOException {
+        Properties properties = new Properties();
+        try(FileInputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    /**
+     * Write to a temporary file, sync it and rename it over the target, so a crash leaves either
+     * the old or the new version.
+     */
+    static void write(File file, Properties properties) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try(FileOutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, null);
+            out.getFD().sync();
+        }
+        if(!tmp.renameTo(file)) throw new IOException("Could not rename " + tmp + " to " + file);
+    }
+}
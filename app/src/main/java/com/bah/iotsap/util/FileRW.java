@@ -30,7 +30,12 @@ public final class FileRW {
         }
     }
 
-    //Write new object to file with fileName
+    /**
+     * Write new object to file with fileName.
+     * @deprecated opens, writes and closes the file for every record. Append sightings to the
+     *             memory-mapped com.bah.iotsap.storage.SightingLog (App.getSightingLog()) instead.
+     */
+    @Deprecated
     public static boolean write(Context context, String fileName, String object) {
         FileOutputStream fileOutputStream;
         String newLine = "\n";
@@ -48,7 +53,12 @@ public final class FileRW {
 
     }
 
-    //Read the file with fileName
+    /**
+     * Read the file with fileName.
+     * @deprecated loads the whole file into one String (quadratically, dropping newlines).
+     *             Page through stored sightings with SightingLog.cursor() instead.
+     */
+    @Deprecated
     public static String read(Context context, String filename) {
         String line, line1 = "";
         try{
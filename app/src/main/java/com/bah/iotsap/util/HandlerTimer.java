@@ -0,0 +1,34 @@
+package com.bah.iotsap.util;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.bah.iotsap.discovery.ScanScheduler;
+
+/**
+ * HandlerTimer runs ScanScheduler tasks on a Handler, using the monotonic
+ * SystemClock.elapsedRealtime() clock so schedules survive wall clock changes.
+ */
+public final class HandlerTimer implements ScanScheduler.Timer {
+
+    private final Handler handler;
+
+    public HandlerTimer(Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        handler.removeCallbacks(task);
+    }
+}
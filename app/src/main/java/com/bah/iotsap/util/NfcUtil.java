@@ -8,7 +8,10 @@ import android.nfc.NfcAdapter;
 import android.nfc.Tag;
 import android.nfc.tech.Ndef;
 import android.os.Parcelable;
-import android.util.Log;
+
+import com.bah.iotsap.App;
+import com.bah.iotsap.log.LogEvent;
+import com.bah.iotsap.log.RingLog;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -16,12 +19,36 @@ import java.util.ArrayList;
 /**
  * NfcUtil is a class that provides several static methods to make parsing and writing
  * from and to NFC tags easier.
+ * What it reads, and what goes wrong, goes to the App's RingLog.
  * This class cannot be instantiated.
  * TODO: Finish methods for parsing and returning NFC messages and Records
  */
 public final class NfcUtil {
 
     private static final String TAG = "NfcUtil";
+    private static final RingLog  LOG                 = App.getLog();
+    private static final LogEvent TAG_MESSAGES        = LOG.event(RingLog.DEBUG, TAG,
+            "getNdefMessages(Tag): {} messages");
+    private static final LogEvent TAG_FORMAT          = LOG.event(RingLog.WARN, TAG,
+            "getNdefMessages(Tag): Caught Format Exception");
+    private static final LogEvent TAG_IO              = LOG.event(RingLog.WARN, TAG,
+            "getNdefMessages(Tag): Caught IOException");
+    private static final LogEvent INTENT_MESSAGE      = LOG.event(RingLog.DEBUG, TAG,
+            "getNdefMessages(Intent): message {} of {}, {} records, {} bytes");
+    private static final LogEvent INTENT_MESSAGES_NPE = LOG.event(RingLog.WARN, TAG,
+            "getNdefMessages(Intent): Caught NullPointerException");
+    private static final LogEvent INTENT_MESSAGES_ERR = LOG.event(RingLog.WARN, TAG,
+            "getNdefMessages(Intent): Caught Exception");
+    private static final LogEvent TAG_RECORDS         = LOG.event(RingLog.DEBUG, TAG,
+            "getNdefRecords(Tag): {} records");
+    private static final LogEvent TAG_RECORDS_NPE     = LOG.event(RingLog.WARN, TAG,
+            "getNdefRecords(Tag): Caught NullPointerException");
+    private static final LogEvent TAG_RECORDS_ERR     = LOG.event(RingLog.WARN, TAG,
+            "getNdefRecords(Tag): Caught Exception");
+    private static final LogEvent INTENT_RECORDS_NPE  = LOG.event(RingLog.WARN, TAG,
+            "getNdefRecords(Intent): Caught NullPointerException");
+    private static final LogEvent INTENT_RECORDS_ERR  = LOG.event(RingLog.WARN, TAG,
+            "getNdefRecords(Intent): Caught Exception");
 
     // GET NdefMessage[] from a tag
     public static final NdefMessage[] getNdefMessages(Tag tag) {
@@ -29,11 +56,11 @@ public final class NfcUtil {
         Ndef ndef = Ndef.get(tag);
         try {
             messages = new NdefMessage[]{ndef.getNdefMessage()};
-            Log.i(TAG, "gettNdefMessages(Tag): message[] length = " + messages.length);
+            LOG.log(TAG_MESSAGES, messages.length);
         } catch(FormatException e) {
-            Log.i(TAG, "getNdefMessages(Tag): Caught Format Exception");
+            LOG.log(TAG_FORMAT);
         } catch(IOException e) {
-            Log.i(TAG, "getNdefMessages(Tag): Caught IOException");
+            LOG.log(TAG_IO);
         }
         return messages;
     }
@@ -48,14 +75,16 @@ public final class NfcUtil {
                 messages = new NdefMessage[rawMsgs.length];
                 for(int i = 0; i < rawMsgs.length; ++i) {
                     messages[i] = (NdefMessage) rawMsgs[i];
-                    Log.i(TAG, "getNdefMessages(Intent): msgs.length = " + messages.length);
-                    Log.i(TAG, "getNdefMessages(Intent): Msg" + i + ": " + messages[i].toString());
+                    if(LOG.isLoggable(INTENT_MESSAGE)) {
+                        LOG.log(INTENT_MESSAGE, i, messages.length, messages[i].getRecords().length,
+                                messages[i].getByteArrayLength());
+                    }
                 }
             }
         } catch(NullPointerException e) {
-            Log.i(TAG, "getNdefMessages(Intent): Caught NullPointerException");
+            LOG.log(INTENT_MESSAGES_NPE);
         } catch(Exception e) {
-            Log.i(TAG, "getNdefMessages(Intent): Caught Exception");
+            LOG.log(INTENT_MESSAGES_ERR);
         }
         return messages;
     }
@@ -67,11 +96,11 @@ public final class NfcUtil {
         try {
             Ndef ndef = Ndef.get(tag);
             records = ndef.getNdefMessage().getRecords();
-            Log.i(TAG, "getNdefRecords(Tag): records.length = " + records.length);
+            LOG.log(TAG_RECORDS, records.length);
         } catch(NullPointerException e) {
-            Log.i(TAG, "getNdefRecords(Tag): Caught NullPointerException");
+            LOG.log(TAG_RECORDS_NPE);
         }catch(Exception e) {
-            Log.i(TAG, "getNdefRecords(Tag): Caught Exception");
+            LOG.log(TAG_RECORDS_ERR);
         }
         return records;
     }
@@ -95,9 +124,9 @@ public final class NfcUtil {
                 records = recordList.toArray(records);
             }
         } catch(NullPointerException e) {
-            Log.i(TAG, "getNdefMessages(Intent): Caught NullPointerException");
+            LOG.log(INTENT_RECORDS_NPE);
         } catch(Exception e) {
-            Log.i(TAG, "getNdefMessages(Intent): Caught Exception");
+            LOG.log(INTENT_RECORDS_ERR);
         }
         return records;
     }
@@ -0,0 +1,25 @@
+package com.bah.iotsap.util;
+
+import android.content.SharedPreferences;
+
+/**
+ * PreferenceUtil reads numeric settings. EditTextPreference and ListPreference store their
+ * values as Strings, so they have to be parsed (and fall back to a default when they are not numbers).
+ * This class cannot be instantiated.
+ */
+public final class PreferenceUtil {
+
+    private PreferenceUtil() {}
+
+    public static long getLong(SharedPreferences preferences, String key, long defValue) {
+        try {
+            return Long.parseLong(preferences.getString(key, Long.toString(defValue)).trim());
+        } catch(NumberFormatException | ClassCastException e) {
+            return defValue;
+        }
+    }
+
+    public static int getInt(SharedPreferences preferences, String key, int defValue) {
+        return (int) getLong(preferences, key, defValue);
+    }
+}
@@ -0,0 +1,118 @@
+package com.bah.iotsap.cluster;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for ClusterGrid aggregates and the diffs ClusterLayer hands a map.
+ */
+public class ClusterLayerTest {
+
+    private static final long T = 1500000000000L;
+
+    @Test
+    public void everyLevelAggregatesEverySighting() throws Exception {
+        ClusterGrid grid = new ClusterGrid(12);
+        grid.add(38.8977, -77.0365, -50, T);
+        grid.add(38.8978, -77.0366, -70, T + 5000);
+        grid.add(40.7128, -74.0060, -90, T + 1000);
+        assertEquals(3, grid.sightings());
+        // Washington and New York share a cell when zoomed out, not when zoomed in
+        assertEquals(1, grid.cells(0));
+        assertEquals(2, grid.cells(12));
+
+        Map<Long, Cluster> drawn = draw(new ClusterLayer(grid).update(12, 38, -78, 39, -76), null);
+        assertEquals(1, drawn.size());
+        Cluster dc = drawn.values().iterator().next();
+        assertEquals(2, dc.count);
+        assertEquals(-60, dc.meanRssi);
+        assertEquals(-50, dc.maxRssi);
+        assertEquals(T + 5000, dc.lastMillis);
+        assertEquals(38.89775, dc.latitude, 1e-6);
+        assertEquals(-77.03655, dc.longitude, 1e-6);
+        assertTrue(dc.south <= 38.8977 && dc.north >= 38.8978);
+        assertTrue(dc.west <= -77.0366 && dc.east >= -77.0365);
+
+        Cluster world = new ClusterLayer(grid).update(0, -85, -180, 85, 180).added.get(0);
+        assertEquals(3, world.count);
+    }
+
+    @Test
+    public void updatesOnlySendWhatChanged() throws Exception {
+        ClusterGrid grid = new ClusterGrid();
+        Random random = new Random(1);
+        for(int i = 0; i < 5000; ++i) {
+            grid.add(38.85 + random.nextDouble() * 0.1, -77.10 + random.nextDouble() * 0.1, -60, T + i);
+        }
+        ClusterLayer layer = new ClusterLayer(grid);
+        ClusterDiff first = layer.update(13, 38.85, -77.10, 38.95, -77.00);
+        assertTrue(first.added.size() > 10);
+        assertEquals(0, first.removedCount());
+        Map<Long, Cluster> drawn = draw(first, null);
+
+        // Nothing happened: nothing to do
+        assertTrue(layer.update(13, 38.85, -77.10, 38.95, -77.00).isEmpty());
+
+        // A sighting lands in a drawn cell
+        grid.add(38.90, -77.05, -40, T + 9000);
+        ClusterDiff diff = layer.update(13, 38.85, -77.10, 38.95, -77.00);
+        assertEquals(0, diff.added.size());
+        assertEquals(1, diff.changed.size());
+        assertEquals(drawn.get(diff.changed.get(0).key).count + 1, diff.changed.get(0).count);
+        draw(diff, drawn);
+
+        // Panning a little only touches the edges
+        diff = layer.update(13, 38.86, -77.09, 38.96, -76.99);
+        assertTrue(diff.toString(), diff.removedCount() > 0 && diff.removedCount() < drawn.size() / 2);
+        assertTrue(diff.changed.isEmpty());
+        draw(diff, drawn);
+        assertEquals(layer.rendered(), drawn.size());
+
+        // A new zoom level replaces everything
+        diff = layer.update(14, 38.86, -77.09, 38.96, -76.99);
+        assertEquals(drawn.size(), diff.removedCount());
+        draw(diff, drawn);
+        assertEquals(diff.added.size(), drawn.size());
+
+        // Forgotten, e.g. after the map was cleared: everything is added again
+        layer.reset();
+        diff = layer.update(14, 38.86, -77.09, 38.96, -76.99);
+        assertEquals(drawn.size(), diff.added.size());
+        assertEquals(0, diff.removedCount());
+    }
+
+    @Test
+    public void coversTheAntimeridianAndCoarsensCrowdedViewports() throws Exception {
+        ClusterGrid grid = new ClusterGrid();
+        grid.add(-17.0, 179.99, -60, T);
+        grid.add(-17.0, -179.99, -60, T);
+        grid.add(-17.0, 170.0, -60, T);
+        ClusterDiff diff = new ClusterLayer(grid).update(10, -18, 179.5, -16, -179.5);
+        assertEquals(2, diff.added.size());
+
+        Random random = new Random(2);
+        for(int i = 0; i < 10000; ++i) grid.add(random.nextDouble() * 10, random.nextDouble() * 10, -60, T);
+        diff = new ClusterLayer(grid, 100).update(16, 0, 0, 10, 10);
+        assertTrue(diff.toString(), diff.added.size() <= 100);
+        assertTrue(diff.zoom < 16);
+        int total = 0;
+        for(Cluster cluster : diff.added) total += cluster.count;
+        assertEquals(10000, total);
+    }
+
+    /**
+     * Apply a diff to a map stand-in, checking that it only names what is / is not drawn.
+     */
+    private static Map<Long, Cluster> draw(ClusterDiff diff, Map<Long, Cluster> drawn) {
+        if(drawn == null) drawn = new HashMap<>();
+        for(int i = 0; i < diff.removedCount(); ++i) assertNotNull(drawn.remove(diff.removed(i)));
+        for(Cluster cluster : diff.added) assertNull(drawn.put(cluster.key, cluster));
+        for(Cluster cluster : diff.changed) assertNotNull(drawn.put(cluster.key, cluster));
+        return drawn;
+    }
+}
@@ -0,0 +1,134 @@
+package com.bah.iotsap.devices;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.storage.SightingLog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DeviceBackfill: paging history into a DeviceList newest first, splitting
+ * records between the log and the bus by sequence number.
+ */
+public class DeviceBackfillTest {
+
+    private static final long EPOCH = 1500000000000L;
+    private static final long MS    = 1000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Sighting s = new Sighting();
+
+    @Test
+    public void pagesHistoryNewestFirst() throws Exception {
+        // 200 devices, BLE and classic alternating, heard round robin 10 ms apart
+        SightingLog log = log(20000, 200);
+        DeviceList list = new DeviceList(EPOCH);
+        try(DeviceBackfill backfill = new DeviceBackfill(log, list, Sighting.Source.BLE, Long.MAX_VALUE)) {
+            assertEquals(30, backfill.loadPage(30, Integer.MAX_VALUE));
+            List<DeviceRow> rows = list.snapshot();
+            assertEquals(30, rows.size());
+            // Device 198 was heard last, then 196...
+            assertEquals(198, rows.get(0).mac);
+            assertEquals(140, rows.get(29).mac);
+            assertFalse(backfill.historyDone());
+
+            while(!backfill.historyDone()) backfill.loadPage(30, 1000);
+            assertEquals(20000, backfill.records());
+            rows = list.snapshot();
+            assertEquals(100, rows.size());
+            assertEquals(0, rows.get(99).mac);
+            for(DeviceRow row : rows) {
+                assertEquals(Sighting.Source.BLE, row.source);
+                assertEquals(100, row.count);
+                assertEquals(EPOCH + (19800 + row.mac) * 10, row.lastMillis);
+            }
+            assertEquals(0, backfill.loadPage(30, 1000));
+        }
+    }
+
+    @Test
+    public void everyRecordReachesTheListOnce() throws Exception {
+        SightingLog log = log(0, 10);
+        DeviceList list = new DeviceList(EPOCH);
+        // Followed the bus from record 3000 on, paused over 5000 to 7000, then followed it again
+        DeviceBackfill backfill = new DeviceBackfill(log, list, null, 3000);
+        for(int i = 0; i < 10000; ++i) {
+            log.append(sighting(i, 10));
+            if((i >= 3000 && i < 5000) || i >= 7000) list.add(s);
+        }
+        backfill.startGap(5000, 7000);
+        while(backfill.catchUp(100)) {}
+        // Read up to the end of the gap and no further
+        assertEquals(2000, backfill.records());
+        while(!backfill.historyDone()) backfill.loadPage(1, 100);
+        for(DeviceRow row : list.snapshot()) {
+            assertEquals(1000, row.count);
+            assertEquals(EPOCH + (9990 + row.mac) * 10, row.lastMillis);
+        }
+        assertEquals(10, list.size());
+        backfill.close();
+    }
+
+    @Test
+    public void batchedResultsSplitBySequenceNotTime() throws Exception {
+        // Batched scan results are logged and published well after they were stamped: here every
+        // record after the first 100 is as old as one of those
+        SightingLog log = log(100, 10);
+        DeviceList list = new DeviceList(EPOCH);
+        DeviceBackfill backfill = new DeviceBackfill(log, list, null, 100);
+        for(int i = 0; i < 300; ++i) {
+            log.append(sighting(i % 100, 10));
+            // Followed the bus from record 100 on, paused over 200 to 250
+            if(i < 100 || i >= 150) list.add(s);
+        }
+        backfill.startGap(200, 250);
+        while(backfill.catchUp(10)) {}
+        assertEquals(50, backfill.records());
+        while(!backfill.historyDone()) backfill.loadPage(10, 10);
+        assertEquals(150, backfill.records());
+        for(DeviceRow row : list.snapshot()) assertEquals(40, row.count);
+        assertEquals(10, list.size());
+        backfill.close();
+    }
+
+    @Test
+    public void historyStopsWhenTheListIsFull() throws Exception {
+        SightingLog log = log(1000, 100);
+        DeviceList list = new DeviceList(10, EPOCH, null);
+        // Live devices the history must not push out
+        list.add(new Sighting().set(1000, -40, 20000 * MS, Sighting.Source.BLE, null));
+        list.add(new Sighting().set(1001, -40, 20000 * MS, Sighting.Source.BT_CLASSIC, null));
+        try(DeviceBackfill backfill = new DeviceBackfill(log, list, null, 1000)) {
+            assertEquals(8, backfill.loadPage(100, 1000));
+            assertTrue(backfill.historyDone());
+        }
+        List<DeviceRow> rows = list.snapshot();
+        assertEquals(10, rows.size());
+        assertEquals(1001, rows.get(0).mac);
+        assertEquals(1000, rows.get(1).mac);
+        assertEquals(99, rows.get(2).mac);
+        assertEquals(0, list.evictions());
+    }
+
+    /**
+     * @return a log of count records of devices heard round robin 10 ms apart, BLE for even MACs
+     */
+    private SightingLog log(int count, int devices) throws Exception {
+        SightingLog log = new SightingLog(folder.newFolder(), EPOCH, 1 << 20, 1000, 1 << 20);
+        for(int i = 0; i < count; ++i) log.append(sighting(i, devices));
+        return log;
+    }
+
+    private Sighting sighting(int i, int devices) {
+        int mac = i % devices;
+        return s.set(mac, -50 - i % 40, i * 10 * MS, mac % 2 == 0 ? Sighting.Source.BLE : Sighting.Source.BT_CLASSIC,
+                null);
+    }
+}
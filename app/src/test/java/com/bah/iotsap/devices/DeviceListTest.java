@@ -0,0 +1,115 @@
+package com.bah.iotsap.devices;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for DeviceList rows.
+ */
+public class DeviceListTest {
+
+    private static final long MS = 1000000L;
+
+    private final Sighting sighting = new Sighting();
+
+    @Test
+    public void foldsSightingsIntoOneRowPerDeviceNewestFirst() throws Exception {
+        DeviceList list = new DeviceList(0);
+        list.add(sighting.set(1, -60, 1 * MS, Sighting.Source.BLE, "tag"));
+        list.add(sighting.set(2, -70, 2 * MS, Sighting.Source.BLE, null));
+        list.add(sighting.set(1, -50, 3 * MS, Sighting.Source.BLE, null));
+        List<DeviceRow> rows = list.snapshot();
+        assertEquals(2, rows.size());
+        assertEquals(2, rows.get(0).mac);
+        DeviceRow row = rows.get(1);
+        assertEquals(1, row.mac);
+        assertEquals(2, row.count);
+        assertEquals(-50, row.rssi);
+        assertEquals(3, row.lastMillis);
+        // The name sticks when later sightings have none
+        assertEquals("tag  00:00:00:00:00:01", row.title);
+        assertTrue(row.detail, row.detail.startsWith("-50 dBm"));
+        assertTrue(row.detail, row.detail.contains("avg -55"));
+        assertEquals("00:00:00:00:00:02", rows.get(0).title);
+    }
+
+    @Test
+    public void onlyChangedDevicesGetNewRows() throws Exception {
+        DeviceList list = new DeviceList(0);
+        for(int mac = 0; mac < 10; ++mac) list.add(sighting.set(mac, -60, mac * MS, Sighting.Source.BLE, null));
+        List<DeviceRow> first = list.snapshot();
+        assertFalse(list.changed());
+        assertSame(first, list.snapshot());
+
+        // However many sightings, one new row
+        for(int i = 0; i < 100; ++i) list.add(sighting.set(4, -60 - i % 10, (10 + i) * MS, Sighting.Source.BLE, null));
+        assertTrue(list.changed());
+        List<DeviceRow> second = list.snapshot();
+        for(int i = 0; i < 10; ++i) {
+            if(second.get(i).mac == 4) {
+                assertNotSame(first.get(i), second.get(i));
+                assertEquals(101, second.get(i).count);
+            } else {
+                assertSame(first.get(i), second.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void expiredDevicesStayUntilSeenAgain() throws Exception {
+        DeviceList list = new DeviceList(0);
+        list.add(sighting.set(1, -60, MS, Sighting.Source.BT_CLASSIC, null));
+        list.add(sighting.set(1, -60, 2 * MS, Sighting.Source.BT_CLASSIC, null, Sighting.Change.EXPIRED));
+        // Never listed, nothing to expire
+        list.add(sighting.set(2, -60, 2 * MS, Sighting.Source.BT_CLASSIC, null, Sighting.Change.EXPIRED));
+        List<DeviceRow> rows = list.snapshot();
+        assertEquals(1, rows.size());
+        assertTrue(rows.get(0).gone);
+        assertEquals(1, rows.get(0).count);
+        assertTrue(rows.get(0).detail.endsWith("gone"));
+
+        list.add(sighting.set(1, -65, 3 * MS, Sighting.Source.BT_CLASSIC, null));
+        assertFalse(list.snapshot().get(0).gone);
+    }
+
+    @Test
+    public void keepsAtMostMaxDevicesDroppingTheLeastRecentlySeen() throws Exception {
+        DeviceList list = new DeviceList(100, 0, null);
+        for(int mac = 0; mac < 150; ++mac) {
+            list.add(sighting.set(mac, -60, mac * MS, Sighting.Source.BLE, null));
+            // Device 0 keeps being seen
+            list.add(sighting.set(0, -60, mac * MS, Sighting.Source.BLE, null));
+        }
+        assertEquals(100, list.size());
+        assertEquals(50, list.evictions());
+        List<DeviceRow> rows = list.snapshot();
+        assertEquals(100, rows.size());
+        assertEquals(149, rows.get(0).mac);
+        assertEquals(51, rows.get(98).mac);
+        assertEquals(0, rows.get(99).mac);
+    }
+
+    @Test
+    public void historyReadBackwardsKeepsTheRingInOrder() throws Exception {
+        DeviceList list = new DeviceList(0);
+        // More than HISTORY records, newest first, then a live one
+        for(int i = 0; i < 20; ++i) {
+            assertTrue(list.addOlder(sighting.set(1, -41 - i, (100 - i) * MS, Sighting.Source.BLE, null))
+                    != DeviceList.FULL);
+        }
+        list.add(sighting.set(1, -40, 101 * MS, Sighting.Source.BLE, null));
+        DeviceRow row = list.snapshot().get(0);
+        assertEquals(21, row.count);
+        assertEquals(-40, row.rssi);
+        // The latest HISTORY values, -55 to -40, oldest first
+        assertTrue(row.detail, row.detail.contains("avg -47"));
+        String bars = row.detail.substring(row.detail.indexOf("dBm  ") + 5, row.detail.indexOf("  avg"));
+        assertEquals(DeviceList.HISTORY, bars.length());
+        for(int i = 1; i < bars.length(); ++i) assertTrue(bars, bars.charAt(i) >= bars.charAt(i - 1));
+    }
+}
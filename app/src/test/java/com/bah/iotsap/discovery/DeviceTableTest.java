@@ -0,0 +1,128 @@
+package com.bah.iotsap.discovery;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the primitive keyed DeviceTable.
+ */
+public class DeviceTableTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void reportsOnlyNewDevicesAndRssiMoves() throws Exception {
+        DeviceTable table = new DeviceTable(16, 60 * SECOND, 6, 0.25f);
+        assertEquals(Sighting.Change.NEW, table.update(1, -60, 0, "beacon"));
+        // Small jitter is absorbed by the EWMA
+        for(int i = 1; i <= 10; ++i) {
+            assertEquals(Sighting.Change.NONE, table.update(1, i % 2 == 0 ? -62 : -58, i * SECOND, null));
+        }
+        // A real move is reported once, then it is the new baseline
+        assertEquals(Sighting.Change.NONE, table.update(1, -75, 11 * SECOND, null));
+        assertEquals(Sighting.Change.RSSI, table.update(1, -75, 12 * SECOND, null));
+        assertEquals(Sighting.Change.NONE, table.update(1, -75, 13 * SECOND, null));
+
+        int e = table.find(1);
+        assertEquals(14, table.hits(e));
+        assertEquals(0, table.firstSeen(e));
+        assertEquals(13 * SECOND, table.lastSeen(e));
+        assertEquals(-75, table.minRssi(e));
+        assertEquals(-58, table.maxRssi(e));
+        assertEquals("beacon", table.name(e));
+    }
+
+    @Test
+    public void expiresAfterTtlAndEvictsLeastRecentlySeen() throws Exception {
+        final Map<Long, Boolean> removed = new HashMap<>();
+        DeviceTable table = new DeviceTable(3, 10 * SECOND, 6, 0.25f);
+        table.setListener(new DeviceTable.Listener() {
+            @Override
+            public void onRemoved(DeviceTable t, int entry, boolean evicted) {
+                removed.put(t.mac(entry), evicted);
+            }
+        });
+        table.update(1, -50, 0, null);
+        table.update(2, -50, SECOND, null);
+        table.update(3, -50, 2 * SECOND, null);
+        table.update(1, -50, 3 * SECOND, null);   // 2 is now least recently seen
+        table.update(4, -50, 4 * SECOND, null);   // full, evicts 2
+        assertEquals(Boolean.TRUE, removed.get(2L));
+        assertEquals(-1, table.find(2));
+        assertEquals(3, table.size());
+
+        // 3 was last seen at 2s, 1 at 3s and 4 at 4s
+        assertEquals(1, table.expire(12 * SECOND + 1));
+        assertEquals(Boolean.FALSE, removed.get(3L));
+        assertEquals(2, table.expire(100 * SECOND));
+        assertEquals(0, table.size());
+        assertEquals(1, table.evictions());
+        assertEquals(3, table.expirations());
+    }
+
+    @Test
+    public void matchesReferenceMapUnderRandomChurn() throws Exception {
+        Random random = new Random(42);
+        final int capacity = 1000;
+        DeviceTable table = new DeviceTable(capacity, Long.MAX_VALUE, 6, 0.25f);
+        LinkedHashMap<Long, Integer> reference = new LinkedHashMap<>(16, 0.75f, true);
+        for(int i = 0; i < 200000; ++i) {
+            long mac = random.nextInt(3000);
+            Sighting.Change change = table.update(mac, -60, i, null);
+            boolean isNew = !reference.containsKey(mac);
+            assertEquals(isNew, change == Sighting.Change.NEW);
+            reference.put(mac, i);
+            if(reference.size() > capacity) {
+                Long eldest = reference.keySet().iterator().next();
+                reference.remove(eldest);
+            }
+        }
+        assertEquals(reference.size(), table.size());
+        for(Long mac : reference.keySet()) assertTrue(table.find(mac) >= 0);
+    }
+
+    /**
+     * 100k distinct devices, each seen 10 times, in a table sized for them: all of them kept,
+     * and updates do not allocate.
+     */
+    @Test
+    public void holds100kDistinctDevicesWithoutAllocating() throws Exception {
+        final int devices = 100000;
+        DeviceTable table = new DeviceTable(131072);
+        long[] macs = new long[devices];
+        Random random = new Random(7);
+        for(int i = 0; i < devices; ++i) macs[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+
+        run(table, macs, 2);  // warm up
+        table.clear();
+
+        java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean threads = bean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) bean : null;
+        long tid    = Thread.currentThread().getId();
+        long before = threads != null ? threads.getThreadAllocatedBytes(tid) : 0;
+        int  events = run(table, macs, 10);
+        long after  = threads != null ? threads.getThreadAllocatedBytes(tid) : 0;
+
+        assertEquals(devices, table.size());
+        assertTrue(events >= devices);
+        if(threads != null) assertTrue(after - before < 4096);
+    }
+
+    private static int run(DeviceTable table, long[] macs, int rounds) {
+        int events = 0;
+        for(int round = 0; round < rounds; ++round) {
+            for(int i = 0; i < macs.length; ++i) {
+                int rssi = -40 - ((i + round * 7) & 31);
+                if(table.update(macs[i], rssi, round, null) != Sighting.Change.NONE) events++;
+            }
+        }
+        return events;
+    }
+}
@@ -0,0 +1,80 @@
+package com.bah.iotsap.discovery;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs a classic and an LE ScanScheduler against one RadioScheduler on a fake clock.
+ */
+public class RadioSchedulerTest {
+
+    private final ScanSchedulerTest.FakeTimer timer = new ScanSchedulerTest.FakeTimer();
+    private Sighting.Source onAir;
+    private long            lastStop = Long.MIN_VALUE / 2;
+
+    @Test
+    public void windowsNeverOverlapAndFollowWeights() throws Exception {
+        RadioScheduler radio = new RadioScheduler(500);
+        radio.register(Sighting.Source.BT_CLASSIC, 2);
+        radio.register(Sighting.Source.BLE, 1);
+
+        // Both sources want the radio all the time
+        ScanScheduler classic = new ScanScheduler(new Radio(Sighting.Source.BT_CLASSIC), timer,
+                new AdaptiveScanPolicy(5000, 5000, 5000, 0, 0, 0), radio, Sighting.Source.BT_CLASSIC);
+        ScanScheduler le = new ScanScheduler(new Radio(Sighting.Source.BLE), timer,
+                new AdaptiveScanPolicy(5000, 5000, 5000, 0, 0, 0), radio, Sighting.Source.BLE);
+        classic.start(0);
+        le.start(0);
+        timer.advance(60 * 60 * 1000);
+
+        double ratio = radio.airtime(Sighting.Source.BT_CLASSIC) / (double) radio.airtime(Sighting.Source.BLE);
+        assertEquals("airtime ratio " + ratio, 2.0, ratio, 0.2);
+        assertTrue(le.deferrals() > 0);
+        assertTrue(radio.summary().contains("BLE"));
+    }
+
+    @Test
+    public void singleSourceKeepsItsOwnCycle() throws Exception {
+        RadioScheduler radio = new RadioScheduler(500);
+        ScanScheduler le = new ScanScheduler(new Radio(Sighting.Source.BLE), timer,
+                new AdaptiveScanPolicy(5000, 5000, 5000, 5000, 5000, 5000), radio, Sighting.Source.BLE);
+        le.start(0);
+        timer.advance(100000);
+        // 5s on, 5s off, never deferred by the radio
+        assertEquals(10, radio.windows(Sighting.Source.BLE));
+        assertEquals(0, le.deferrals());
+    }
+
+    @Test
+    public void staleHolderIsReclaimed() throws Exception {
+        RadioScheduler radio = new RadioScheduler(500);
+        assertEquals(0, radio.acquire(Sighting.Source.BT_CLASSIC, 1000, 0));
+        // Classic never releases (service killed), LE gets in after the grace period
+        assertTrue(radio.acquire(Sighting.Source.BLE, 1000, 2000) > 0);
+        assertEquals(0, radio.acquire(Sighting.Source.BLE, 1000, 1000 + RadioScheduler.STALE_GRACE + 1));
+    }
+
+    private class Radio implements ScanScheduler.Scanner {
+        private final Sighting.Source source;
+
+        Radio(Sighting.Source source) {
+            this.source = source;
+        }
+
+        @Override
+        public boolean startScan() {
+            assertNull("overlapping windows", onAir);
+            assertTrue("guard not respected", timer.now() - lastStop >= 500);
+            onAir = source;
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            assertEquals(source, onAir);
+            onAir    = null;
+            lastStop = timer.now();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.bah.iotsap.discovery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives ScanScheduler and AdaptiveScanPolicy with a fake clock and a fake scanner.
+ */
+public class ScanSchedulerTest {
+
+    private FakeTimer     timer;
+    private FakeScanner   scanner;
+    private ScanScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        timer     = new FakeTimer();
+        scanner   = new FakeScanner();
+        scheduler = new ScanScheduler(scanner, timer, new AdaptiveScanPolicy(10000, 10000));
+    }
+
+    @Test
+    public void cyclesWindowsAndIdleIntervals() throws Exception {
+        scheduler.start(0);
+        timer.advance(0);
+        assertTrue(scanner.scanning);
+
+        // Steady yield keeps the 10s / 10s cycle
+        timer.advance(5000);
+        scheduler.onResult(true);
+        timer.advance(5000);
+        assertFalse(scanner.scanning);
+        assertEquals(1, scheduler.windows());
+        timer.advance(10000);
+        assertTrue(scanner.scanning);
+        assertEquals(2, scanner.starts);
+
+        scheduler.stop();
+        assertFalse(scanner.scanning);
+        timer.advance(60000);
+        assertEquals(2, scanner.starts);
+    }
+
+    @Test
+    public void highYieldLengthensWindows() throws Exception {
+        scheduler.start(0);
+        timer.advance(0);
+        for(int window = 0; window < 5; ++window) {
+            for(int i = 0; i < 20; ++i) scheduler.onResult(true);
+            timer.runUntilIdle(scanner);
+            timer.runUntilScanning(scanner);
+        }
+        assertTrue("window grew to " + scanner.lastWindow, scanner.lastWindow > 10000);
+        assertTrue("idle shrank to " + scanner.lastIdle, scanner.lastIdle < 10000);
+    }
+
+    @Test
+    public void lowYieldShortensWindows() throws Exception {
+        scheduler.start(0);
+        timer.advance(0);
+        for(int window = 0; window < 5; ++window) {
+            timer.runUntilIdle(scanner);
+            timer.runUntilScanning(scanner);
+        }
+        assertTrue("window shrank to " + scanner.lastWindow, scanner.lastWindow < 10000);
+        assertTrue("idle grew to " + scanner.lastIdle, scanner.lastIdle > 10000);
+    }
+
+    @Test
+    public void failuresBackOffExponentially() throws Exception {
+        scheduler.start(0);
+        timer.advance(0);
+        List<Long> retries = new ArrayList<>();
+        for(int i = 0; i < 4; ++i) {
+            scheduler.onScanFailed(ScanPolicy.SCAN_FAILED_INTERNAL_ERROR);
+            assertFalse(scanner.scanning);
+            long before = timer.now();
+            timer.runUntilScanning(scanner);
+            retries.add(timer.now() - before);
+        }
+        assertEquals(Long.valueOf(1000), retries.get(0));
+        assertEquals(Long.valueOf(2000), retries.get(1));
+        assertEquals(Long.valueOf(4000), retries.get(2));
+        assertEquals(Long.valueOf(8000), retries.get(3));
+
+        // Unsupported hardware gives up completely
+        scheduler.onScanFailed(ScanPolicy.SCAN_FAILED_FEATURE_UNSUPPORTED);
+        assertFalse(scheduler.isRunning());
+        timer.advance(600000);
+        assertFalse(scanner.scanning);
+    }
+
+    @Test
+    public void newPolicyTakesOverAfterCurrentWindow() throws Exception {
+        scheduler.start(0);
+        timer.advance(5000);
+        scheduler.setPolicy(new AdaptiveScanPolicy(4000, 2000));
+        assertTrue(scanner.scanning);
+
+        // The open window keeps its 10s, the new policy sizes everything after it
+        timer.runUntilIdle(scanner);
+        assertEquals(10000, scanner.lastWindow);
+        timer.runUntilScanning(scanner);
+        assertEquals(3000, scanner.lastIdle);
+        timer.runUntilIdle(scanner);
+        assertEquals(3000, scanner.lastWindow);
+    }
+
+    /**
+     * Single threaded fake of the Handler based timer.
+     */
+    static class FakeTimer implements ScanScheduler.Timer {
+        private final List<Runnable> tasks = new ArrayList<>();
+        private final List<Long>     times = new ArrayList<>();
+        private long now;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+            times.add(now + delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            for(int i = tasks.size() - 1; i >= 0; --i) {
+                if(tasks.get(i) == task) {
+                    tasks.remove(i);
+                    times.remove(i);
+                }
+            }
+        }
+
+        /** Run every task due within the next millis, in time order */
+        void advance(long millis) {
+            long until = now + millis;
+            while(runNext(until)) { }
+            now = until;
+        }
+
+        void runUntilIdle(FakeScanner scanner) {
+            while(scanner.scanning && runNext(Long.MAX_VALUE)) { }
+        }
+
+        void runUntilScanning(FakeScanner scanner) {
+            while(!scanner.scanning && runNext(Long.MAX_VALUE)) { }
+        }
+
+        private boolean runNext(long until) {
+            int next = -1;
+            for(int i = 0; i < times.size(); ++i) {
+                if(times.get(i) <= until && (next < 0 || times.get(i) < times.get(next))) next = i;
+            }
+            if(next < 0) return false;
+            now = times.remove(next);
+            tasks.remove(next).run();
+            return true;
+        }
+    }
+
+    class FakeScanner implements ScanScheduler.Scanner {
+        boolean scanning;
+        int     starts;
+        long    startedAt;
+        long    stoppedAt;
+        long    lastWindow;
+        long    lastIdle;
+
+        @Override
+        public boolean startScan() {
+            scanning = true;
+            starts++;
+            if(starts > 1) lastIdle = timer.now() - stoppedAt;
+            startedAt = timer.now();
+            return true;
+        }
+
+        @Override
+        public void stopScan() {
+            scanning   = false;
+            stoppedAt  = timer.now();
+            lastWindow = stoppedAt - startedAt;
+        }
+    }
+}
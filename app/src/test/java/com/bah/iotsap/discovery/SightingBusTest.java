@@ -0,0 +1,193 @@
+package com.bah.iotsap.discovery;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SightingBus backpressure policies, producers racing each other and the
+ * allocation free publish path, with MacAddress packing.
+ */
+public class SightingBusTest {
+
+    private final Sighting s = new Sighting();
+
+    @Test
+    public void macAddressRoundTrips() throws Exception {
+        long mac = MacAddress.pack("0a:1B:2c:3D:4e:5F");
+        assertEquals(0x0A1B2C3D4E5FL, mac);
+        assertEquals("0A:1B:2C:3D:4E:5F", MacAddress.toString(mac));
+        assertEquals(MacAddress.INVALID, MacAddress.pack("0A:1B:2C:3D:4E"));
+        assertEquals(MacAddress.INVALID, MacAddress.pack("0A:1B:2C:3D:4E:5G"));
+        assertEquals(MacAddress.INVALID, MacAddress.pack(null));
+    }
+
+    /**
+     * Recording a sighting (pack the MAC and publish into the bus) must not allocate once the
+     * bus has been created. Uses the HotSpot per thread allocation counter.
+     */
+    @Test
+    public void publishAllocatesNothingPerSighting() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if(!threads.isThreadAllocatedMemorySupported()) return;
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        SightingBus bus = new SightingBus(1024);
+        String[] macs = new String[64];
+        for(int i = 0; i < macs.length; ++i) macs[i] = String.format("AA:BB:CC:DD:EE:%02X", i);
+        int sightings = 200000;
+
+        // Warm up so the JIT does not count against us
+        record(bus, macs, sightings);
+
+        long tid    = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(tid);
+        record(bus, macs, sightings);
+        long after  = threads.getThreadAllocatedBytes(tid);
+
+        double bytesPerSighting = (after - before) / (double) sightings;
+        // The counter itself may allocate a few bytes, but nothing proportional to the work done
+        assertTrue("allocated " + bytesPerSighting + " bytes per sighting", bytesPerSighting < 0.01);
+    }
+
+    @Test
+    public void deliversInOrderAndSignalsOncePerPoll() throws Exception {
+        SightingBus bus = new SightingBus(16);
+        SightingBus.Subscription sub = bus.subscribe(SightingBus.Backpressure.DROP_OLDEST);
+        final AtomicInteger wakeups = new AtomicInteger();
+        sub.setListener(new SightingBus.Listener() {
+            @Override
+            public void onAvailable(SightingBus.Subscription subscription) {
+                wakeups.incrementAndGet();
+            }
+        });
+        for(int i = 0; i < 10; ++i) {
+            bus.publish(sighting(i, i));
+            bus.signal();
+        }
+        assertEquals(1, wakeups.get());
+
+        Recorder recorder = new Recorder();
+        assertEquals(10, sub.poll(recorder));
+        assertEquals("[0, 1, 2, 3, 4, 5, 6, 7, 8, 9]", recorder.macs());
+        assertEquals(0, sub.lag());
+        bus.publish(sighting(10, 10));
+        bus.signal();
+        assertEquals(2, wakeups.get());
+    }
+
+    @Test
+    public void dropOldestCountsLostRecords() throws Exception {
+        SightingBus bus = new SightingBus(8);
+        SightingBus.Subscription sub = bus.subscribe(SightingBus.Backpressure.DROP_OLDEST);
+        for(int i = 0; i < 20; ++i) bus.publish(sighting(i, i));
+        Recorder recorder = new Recorder();
+        assertEquals(8, sub.poll(recorder));
+        assertEquals("[12, 13, 14, 15, 16, 17, 18, 19]", recorder.macs());
+        assertEquals(12, sub.dropped());
+        assertEquals(8, sub.delivered());
+    }
+
+    @Test
+    public void coalesceKeepsNewestPerDevice() throws Exception {
+        SightingBus bus = new SightingBus(16);
+        SightingBus.Subscription sub = bus.subscribe(SightingBus.Backpressure.COALESCE);
+        // 12 records of 3 devices: more than half a ring behind
+        for(int i = 0; i < 12; ++i) bus.publish(sighting(i % 3, -40 - i));
+        Recorder recorder = new Recorder();
+        assertEquals(3, sub.poll(recorder));
+        assertEquals("[0, 1, 2]", recorder.macs());
+        assertEquals("[-49, -50, -51]", recorder.rssis());
+        assertEquals(9, sub.coalesced());
+        assertEquals(0, sub.dropped());
+
+        // Close behind: every record
+        for(int i = 0; i < 4; ++i) bus.publish(sighting(0, i));
+        assertEquals(4, sub.poll(new Recorder()));
+    }
+
+    @Test
+    public void blockingSubscriptionLosesNothing() throws Exception {
+        final SightingBus bus = new SightingBus(64);
+        final SightingBus.Subscription sub = bus.subscribe(SightingBus.Backpressure.BLOCK);
+        final int producers = 4;
+        final int perProducer = 50000;
+        Thread[] threads = new Thread[producers];
+        for(int p = 0; p < producers; ++p) {
+            final int producer = p;
+            threads[p] = new Thread() {
+                @Override
+                public void run() {
+                    Sighting s = new Sighting();
+                    for(int i = 0; i < perProducer; ++i) {
+                        bus.publish(s.set(producer, i, 0, Sighting.Source.BLE, null));
+                    }
+                }
+            };
+            threads[p].start();
+        }
+
+        // Each producer's records arrive in its order, none missing
+        final int[] next = new int[producers];
+        SightingBus.Consumer check = new SightingBus.Consumer() {
+            @Override
+            public void onSighting(long seq, Sighting sighting) {
+                assertEquals(next[(int) sighting.mac]++, sighting.rssi);
+            }
+        };
+        long received = 0;
+        while(received < producers * perProducer) received += sub.poll(check);
+        for(Thread t : threads) t.join();
+        for(int p = 0; p < producers; ++p) assertEquals(perProducer, next[p]);
+        assertEquals(0, sub.dropped());
+        assertEquals(0, bus.blockTimeouts());
+    }
+
+    @Test
+    public void blockingGivesUpOnAStalledConsumer() throws Exception {
+        SightingBus bus = new SightingBus(4, 1000000L);
+        SightingBus.Subscription sub = bus.subscribe(SightingBus.Backpressure.BLOCK);
+        for(int i = 0; i < 6; ++i) bus.publish(sighting(i, i));
+        assertEquals(2, bus.blockTimeouts());
+        assertEquals(4, sub.poll(new Recorder()));
+        assertEquals(2, sub.dropped());
+
+        sub.close();
+        for(int i = 0; i < 10; ++i) bus.publish(sighting(i, i));
+        assertEquals(2, bus.blockTimeouts());
+    }
+
+    private Sighting sighting(long mac, int rssi) {
+        return s.set(mac, rssi, 0, Sighting.Source.BLE, null);
+    }
+
+    private void record(SightingBus bus, String[] macs, int count) {
+        for(int i = 0; i < count; ++i) {
+            bus.publish(s.set(MacAddress.pack(macs[i & 63]), -60, i, Sighting.Source.BLE, macs[i & 63]));
+        }
+    }
+
+    private static final class Recorder implements SightingBus.Consumer {
+        final StringBuilder macs  = new StringBuilder();
+        final StringBuilder rssis = new StringBuilder();
+
+        @Override
+        public void onSighting(long seq, Sighting sighting) {
+            macs.append(macs.length() == 0 ? "" : ", ").append(sighting.mac);
+            rssis.append(rssis.length() == 0 ? "" : ", ").append(sighting.rssi);
+        }
+
+        String macs() {
+            return "[" + macs + "]";
+        }
+
+        String rssis() {
+            return "[" + rssis + "]";
+        }
+    }
+}
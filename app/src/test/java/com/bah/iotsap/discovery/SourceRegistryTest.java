@@ -0,0 +1,151 @@
+package com.bah.iotsap.discovery;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs SourceRegistry against fake sources that count what they are asked to do.
+ */
+public class SourceRegistryTest {
+
+    private SourceRegistry registry;
+    private FakeSource     ble;
+    private FakeSource     classic;
+
+    @Before
+    public void setUp() {
+        registry = new SourceRegistry();
+        ble      = new FakeSource(Sighting.Source.BLE, "pref_ble_scantime");
+        classic  = new FakeSource(Sighting.Source.BT_CLASSIC, "pref_bt_scantime");
+        registry.register(ble);
+        registry.register(classic);
+    }
+
+    @Test
+    public void startAndStopAreIdempotent() {
+        assertEquals(SourceRegistry.State.STOPPED, registry.state(Sighting.Source.BLE));
+        assertEquals(SourceRegistry.State.ABSENT, registry.state(Sighting.Source.NFC));
+        assertFalse(registry.isActive());
+
+        assertTrue(registry.start(Sighting.Source.BLE));
+        assertTrue(registry.start(Sighting.Source.BLE));
+        assertEquals(1, ble.starts);
+        assertTrue(registry.isRunning(Sighting.Source.BLE));
+        assertFalse(registry.isRunning(Sighting.Source.BT_CLASSIC));
+        assertTrue(registry.isActive());
+
+        registry.stop(Sighting.Source.BLE);
+        registry.stop(Sighting.Source.BLE);
+        assertEquals(1, ble.stops);
+        assertEquals(0, classic.stops);
+        assertFalse(registry.isActive());
+
+        // Nothing registered, nothing to start
+        assertFalse(registry.start(Sighting.Source.NFC));
+        registry.stop(Sighting.Source.NFC);
+        assertEquals(SourceRegistry.State.ABSENT, registry.state(Sighting.Source.NFC));
+    }
+
+    @Test
+    public void failedSourceIsRetried() {
+        classic.canStart = false;
+        assertFalse(registry.start(Sighting.Source.BT_CLASSIC));
+        assertEquals(SourceRegistry.State.FAILED, registry.state(Sighting.Source.BT_CLASSIC));
+        assertEquals(1, registry.failures(Sighting.Source.BT_CLASSIC));
+        assertFalse(registry.isActive());
+        // A failed source was never started, so it is not stopped either
+        registry.stop(Sighting.Source.BT_CLASSIC);
+        assertEquals(0, classic.stops);
+
+        classic.canStart = true;
+        assertTrue(registry.start(Sighting.Source.BT_CLASSIC));
+        assertEquals(SourceRegistry.State.RUNNING, registry.state(Sighting.Source.BT_CLASSIC));
+        assertEquals(1, registry.starts(Sighting.Source.BT_CLASSIC));
+    }
+
+    @Test
+    public void settingsGoToTheSourceTheyBelongTo() {
+        registry.start(Sighting.Source.BLE);
+        assertTrue(registry.reconfigure("pref_ble_scantime"));
+        assertTrue(registry.reconfigure("pref_bt_scantime"));
+        assertFalse(registry.reconfigure("pref_upload_url"));
+        assertEquals(1, ble.reconfigured);
+        assertEquals(1, classic.reconfigured);
+        // Reconfiguring never restarts anything
+        assertEquals(1, ble.starts);
+        assertEquals(0, ble.stops);
+    }
+
+    @Test
+    public void closeAllStopsAndForgetsSources() {
+        registry.start(Sighting.Source.BLE);
+        registry.closeAll();
+        assertEquals(1, ble.stops);
+        assertEquals(1, ble.closes);
+        assertEquals(0, classic.stops);
+        assertEquals(1, classic.closes);
+        assertEquals(SourceRegistry.State.ABSENT, registry.state(Sighting.Source.BLE));
+        assertFalse(registry.start(Sighting.Source.BLE));
+    }
+
+    @Test
+    public void replacingSourceClosesTheOldOne() {
+        FakeSource other = new FakeSource(Sighting.Source.BLE, "pref_ble_scantime");
+        registry.register(other);
+        assertEquals(1, ble.closes);
+        registry.start(Sighting.Source.BLE);
+        assertEquals(0, ble.starts);
+        assertEquals(1, other.starts);
+    }
+
+    static class FakeSource implements DiscoverySource {
+        final Sighting.Source source;
+        final String          key;
+        boolean canStart = true;
+        int starts;
+        int stops;
+        int closes;
+        int reconfigured;
+
+        FakeSource(Sighting.Source source, String key) {
+            this.source = source;
+            this.key    = key;
+        }
+
+        @Override
+        public Sighting.Source source() {
+            return source;
+        }
+
+        @Override
+        public boolean start() {
+            if(!canStart) return false;
+            starts++;
+            return true;
+        }
+
+        @Override
+        public void stop() {
+            stops++;
+        }
+
+        @Override
+        public boolean reconfigure(String key) {
+            if(!this.key.equals(key)) return false;
+            reconfigured++;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closes++;
+        }
+
+        @Override
+        public String summary() {
+            return starts + " starts";
+        }
+    }
+}
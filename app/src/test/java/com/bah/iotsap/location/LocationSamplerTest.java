@@ -0,0 +1,268 @@
+package com.bah.iotsap.location;
+
+import com.bah.iotsap.discovery.ScanScheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the LocationSampler and AdaptiveLocationPolicy through synthetic movement traces with a
+ * fake clock and a fake provider, and compares fixes and energy with the fixed 10 s high
+ * accuracy request the app used to make.
+ */
+public class LocationSamplerTest {
+
+    private static final long MINUTE = 60000;
+    private static final long HOUR   = 60 * MINUTE;
+
+    private final FakeTimer timer = new FakeTimer();
+
+    @Test
+    public void samplesHardOnlyWhileMoving() throws Exception {
+        // 20 min drive, then parked for 2 h
+        Trace trace = new Trace() {
+            @Override
+            public double east(long t) {
+                return Math.min(t, 20 * MINUTE) * 0.015; // 15 m/s
+            }
+        };
+        AdaptiveLocationPolicy policy = new AdaptiveLocationPolicy();
+        FakeProvider provider = new FakeProvider(trace, 1);
+        LocationSampler sampler = new LocationSampler(provider, timer, policy, new LocationTrack());
+        provider.sampler = sampler;
+        sampler.start();
+
+        timer.advance(15 * MINUTE);
+        assertEquals(AdaptiveLocationPolicy.State.MOVING, policy.state());
+        assertEquals(LocationPolicy.PRIORITY_HIGH_ACCURACY, sampler.settings().priority);
+        timer.advance(10 * MINUTE);
+        assertEquals(AdaptiveLocationPolicy.State.STATIONARY, policy.state());
+        assertEquals(LocationPolicy.PRIORITY_BALANCED_POWER_ACCURACY, sampler.settings().priority);
+        timer.advance(60 * MINUTE);
+        assertEquals(AdaptiveLocationPolicy.State.DORMANT, policy.state());
+
+        // Dormant: passive, apart from a probe fix every 15 min
+        long fixes = sampler.fixes();
+        timer.advance(60 * MINUTE);
+        assertTrue(sampler.fixes() - fixes <= 5);
+        assertTrue(sampler.millis(LocationPolicy.PRIORITY_NO_POWER) > 50 * MINUTE);
+        // Every change went to the same client
+        assertEquals(1, provider.clients);
+        sampler.stop();
+        assertFalse(provider.requesting);
+    }
+
+    @Test
+    public void newDevicesWakeUpADormantPolicy() throws Exception {
+        AdaptiveLocationPolicy policy = new AdaptiveLocationPolicy();
+        FakeProvider provider = new FakeProvider(new Trace(), 2);
+        LocationSampler sampler = new LocationSampler(provider, timer, policy, new LocationTrack());
+        provider.sampler = sampler;
+        sampler.start();
+        timer.advance(2 * HOUR);
+        assertEquals(AdaptiveLocationPolicy.State.DORMANT, policy.state());
+
+        // A trickle of new devices only keeps it from going dormant...
+        sampler.onNewDevices(1);
+        assertEquals(AdaptiveLocationPolicy.State.STATIONARY, policy.state());
+        // ...a burst means we are probably on the move
+        sampler.onNewDevices(10);
+        assertEquals(AdaptiveLocationPolicy.State.MOVING, policy.state());
+        assertEquals(LocationPolicy.PRIORITY_HIGH_ACCURACY, sampler.settings().priority);
+        timer.advance(3 * MINUTE);
+        assertEquals(AdaptiveLocationPolicy.State.STATIONARY, policy.state());
+    }
+
+    @Test
+    public void trackGetsEveryFix() throws Exception {
+        LocationTrack track = new LocationTrack();
+        FakeProvider provider = new FakeProvider(new Trace(), 3);
+        LocationSampler sampler = new LocationSampler(provider, timer, new AdaptiveLocationPolicy(), track);
+        provider.sampler = sampler;
+        sampler.start();
+        timer.advance(5 * MINUTE);
+        assertEquals(sampler.fixes(), track.snapshot().size());
+        assertTrue(sampler.fixes(LocationPolicy.PRIORITY_HIGH_ACCURACY) > 0);
+    }
+
+    /**
+     * A survey day of 8 h, driving to a site, walking it with discovery finding devices, two long
+     * stationary stretches (lunch, desk). Adaptive against fixed sampling.
+     */
+    @Test
+    public void surveyDayTakesLessEnergy() throws Exception {
+        Result fixed    = runDay(new FixedPolicy());
+        timer.now = 0;
+        timer.tasks.clear();
+        timer.times.clear();
+        Result adaptive = runDay(new AdaptiveLocationPolicy());
+        String results = "fixed " + fixed + "; adaptive " + adaptive;
+        // Walking the site needs high accuracy as much as before, the savings come from the rest
+        assertTrue(results, adaptive.joules * 2 < fixed.joules);
+        // Still fixes often enough where it matters: while walking the site
+        assertTrue(results, adaptive.walkingFixesPerHour >= 200);
+    }
+
+    private Result runDay(LocationPolicy policy) {
+        final long drive = HOUR;
+        final long walk  = 2 * HOUR;
+        Trace trace = new Trace() {
+            @Override
+            public double east(long t) {
+                if(t < drive) return t * 0.012;
+                if(t < drive + walk) return drive * 0.012 + (t - drive) * 0.0012;
+                return drive * 0.012 + walk * 0.0012;
+            }
+        };
+        FakeProvider provider = new FakeProvider(trace, 4);
+        LocationSampler sampler = new LocationSampler(provider, timer, policy, new LocationTrack());
+        provider.sampler = sampler;
+        sampler.start();
+        timer.advance(drive);
+        long before = sampler.fixes();
+        for(long t = 0; t < walk; t += MINUTE) {
+            timer.advance(MINUTE);
+            sampler.onNewDevices(3);
+        }
+        long walkingFixes = sampler.fixes() - before;
+        timer.advance(5 * HOUR);
+        Result result = new Result(sampler, walkingFixes * HOUR / walk);
+        sampler.stop();
+        return result;
+    }
+
+    private static final class Result {
+        final double fixesPerHour;
+        final double joules;
+        final long   walkingFixesPerHour;
+
+        Result(LocationSampler sampler, long walkingFixesPerHour) {
+            this.fixesPerHour        = sampler.fixesPerHour();
+            this.joules              = sampler.estimatedMillijoules() / 1000;
+            this.walkingFixesPerHour = walkingFixesPerHour;
+        }
+
+        @Override
+        public String toString() {
+            return Math.round(fixesPerHour) + " fixes/h (" + walkingFixesPerHour + "/h walking), ~"
+                    + Math.round(joules) + " J";
+        }
+    }
+
+    /**
+     * What the app did before: high accuracy every 10 s, always.
+     */
+    private static final class FixedPolicy implements LocationPolicy {
+        @Override public void reset(long nowMillis) {}
+        @Override public void onFix(long nowMillis, double latitude, double longitude, float accuracy) {}
+        @Override public void onNewDevices(long nowMillis, int count) {}
+
+        @Override
+        public Settings settings(long nowMillis) {
+            return new Settings(PRIORITY_HIGH_ACCURACY, 10000, 5000);
+        }
+    }
+
+    /**
+     * Position in meters east of the start over time; standing still unless overridden.
+     */
+    private static class Trace {
+        public double east(long t) {
+            return 0;
+        }
+    }
+
+    /**
+     * Delivers fixes of the trace at the requested interval, with noise in line with the
+     * priority's accuracy. Passive requests get nothing.
+     */
+    private final class FakeProvider implements LocationSampler.Client, Runnable {
+        final Trace  trace;
+        final Random random;
+        LocationSampler sampler;
+        LocationPolicy.Settings settings;
+        boolean requesting;
+        int     clients = 1;
+
+        FakeProvider(Trace trace, long seed) {
+            this.trace  = trace;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        public void request(LocationPolicy.Settings settings) {
+            this.settings = settings;
+            requesting = true;
+            timer.cancel(this);
+            if(settings.priority != LocationPolicy.PRIORITY_NO_POWER) timer.schedule(this, settings.intervalMillis);
+        }
+
+        @Override
+        public void remove() {
+            requesting = false;
+            timer.cancel(this);
+        }
+
+        @Override
+        public void run() {
+            float accuracy = settings.priority == LocationPolicy.PRIORITY_HIGH_ACCURACY ? 5f
+                    : settings.priority == LocationPolicy.PRIORITY_BALANCED_POWER_ACCURACY ? 40f : 500f;
+            double east  = trace.east(timer.now) + random.nextGaussian() * accuracy / 2;
+            double north = random.nextGaussian() * accuracy / 2;
+            LocationPolicy.Settings requested = settings;
+            sampler.onFix(timer.now * 1000000L, 38.9 + north / 111320, -77.0 + east / 86700, accuracy);
+            // The sampler may have replaced the request, which schedules its own fix
+            if(requested == settings) timer.schedule(this, settings.intervalMillis);
+        }
+    }
+
+    /**
+     * Single threaded fake of the Handler based timer.
+     */
+    static final class FakeTimer implements ScanScheduler.Timer {
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Long>     times = new ArrayList<>();
+        long now;
+
+        @Override
+        public long now() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+            times.add(now + delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            for(int i = tasks.size() - 1; i >= 0; --i) {
+                if(tasks.get(i) == task) {
+                    tasks.remove(i);
+                    times.remove(i);
+                }
+            }
+        }
+
+        /** Run every task due within the next millis, in time order */
+        void advance(long millis) {
+            long until = now + millis;
+            while(true) {
+                int next = -1;
+                for(int i = 0; i < times.size(); ++i) {
+                    if(times.get(i) <= until && (next < 0 || times.get(i) < times.get(next))) next = i;
+                }
+                if(next < 0) break;
+                now = times.remove(next);
+                tasks.remove(next).run();
+            }
+            now = until;
+        }
+    }
+}
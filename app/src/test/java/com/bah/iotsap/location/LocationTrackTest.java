@@ -0,0 +1,100 @@
+package com.bah.iotsap.location;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LocationTrack join of sightings to fixes.
+ */
+public class LocationTrackTest {
+
+    private static final long   SECOND = 1000000000L;
+    private static final double EPS    = 1e-9;
+
+    private final Sighting s = new Sighting();
+
+    @Test
+    public void interpolatesBetweenFixes() throws Exception {
+        LocationTrack track = new LocationTrack(16, 60 * SECOND, 10 * SECOND);
+        track.add(10 * SECOND, 38.0, -77.0, 10f);
+        track.add(20 * SECOND, 39.0, -76.0, 20f);
+
+        assertTrue(locate(track, 15 * SECOND));
+        assertEquals(38.5, s.latitude, EPS);
+        assertEquals(-76.5, s.longitude, EPS);
+        assertEquals(15f, s.accuracy, 1e-6f);
+
+        // Exactly on a fix
+        assertTrue(locate(track, 20 * SECOND));
+        assertEquals(39.0, s.latitude, EPS);
+    }
+
+    @Test
+    public void holdsTheNearestFixOnlyWithinMaxAge() throws Exception {
+        LocationTrack track = new LocationTrack(16, 60 * SECOND, 10 * SECOND);
+        assertFalse(locate(track, 0));
+        assertFalse(s.hasLocation());
+
+        track.add(100 * SECOND, 1.0, 2.0, 5f);
+        track.add(300 * SECOND, 3.0, 4.0, 5f);
+        // Before, after and inside a gap too wide to interpolate
+        assertTrue(locate(track, 95 * SECOND));
+        assertEquals(1.0, s.latitude, EPS);
+        assertTrue(locate(track, 305 * SECOND));
+        assertEquals(3.0, s.latitude, EPS);
+        assertTrue(locate(track, 108 * SECOND));
+        assertEquals(1.0, s.latitude, EPS);
+        assertTrue(locate(track, 292 * SECOND));
+        assertEquals(3.0, s.latitude, EPS);
+        assertFalse(locate(track, 200 * SECOND));
+        assertFalse(locate(track, 311 * SECOND));
+        assertFalse(locate(track, 89 * SECOND));
+    }
+
+    @Test
+    public void interpolatesAcrossTheAntimeridian() throws Exception {
+        LocationTrack track = new LocationTrack(16, 60 * SECOND, 10 * SECOND);
+        track.add(0, 0.0, 179.0, 5f);
+        track.add(4 * SECOND, 0.0, -179.0, 5f);
+        assertTrue(locate(track, SECOND));
+        assertEquals(179.5, s.longitude, EPS);
+        assertTrue(locate(track, 3 * SECOND));
+        assertEquals(-179.5, s.longitude, EPS);
+    }
+
+    @Test
+    public void keepsFixesOrderedAndBounded() throws Exception {
+        LocationTrack track = new LocationTrack(4, 60 * SECOND, 10 * SECOND);
+        LocationTrack.Snapshot empty = track.snapshot();
+        for(int i : new int[] { 5, 1, 3, 2, 4, 0 }) track.add(i * SECOND, i, i, 1f);
+        LocationTrack.Snapshot snapshot = track.snapshot();
+        // 0 arrived when the track was full and older than everything in it
+        assertEquals(4, snapshot.size());
+        for(int i = 0; i < 4; ++i) assertEquals((i + 2) * SECOND, snapshot.time(i));
+        // A fix at a known time replaces it
+        track.add(3 * SECOND, 30, 30, 1f);
+        assertEquals(30.0, track.snapshot().latitude(1), EPS);
+        // Published snapshots never change
+        assertEquals(3.0, snapshot.latitude(1), EPS);
+        assertEquals(0, empty.size());
+        track.add(0, Double.NaN, 0, 1f);
+        assertEquals(4, track.snapshot().size());
+    }
+
+    @Test
+    public void sightingSetClearsTheLocation() throws Exception {
+        s.set(1, -50, 0, Sighting.Source.BLE, null).setLocation(1, 2, 3);
+        Sighting copy = new Sighting().copyFrom(s);
+        assertEquals(2.0, copy.longitude, EPS);
+        s.set(1, -50, 0, Sighting.Source.BLE, null);
+        assertFalse(s.hasLocation());
+    }
+
+    private boolean locate(LocationTrack track, long time) {
+        s.clearLocation();
+        return track.snapshot().locate(time, s);
+    }
+}
@@ -0,0 +1,134 @@
+package com.bah.iotsap.location;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs PositionEstimator over synthetic survey traces (devices at known positions, an observer
+ * walking past them, RSSI from the path loss model plus shadowing, noisy fixes) and checks its
+ * accuracy, uncertainty, eviction and memory budget.
+ */
+public class PositionEstimatorTest {
+
+    private static final long   SECOND = 1000000000L;
+    private static final double LAT0   = 38.9;
+    private static final double LON0   = -77.0;
+    private static final double M_LAT  = 111195.08;
+    private static final double M_LON  = M_LAT * Math.cos(Math.toRadians(LAT0));
+
+    private final PositionEstimator.Estimate estimate = new PositionEstimator.Estimate();
+
+    @Test
+    public void locatesDevicesAlongASurveyWalk() throws Exception {
+        Random random = new Random(1);
+        int devices = 200;
+        double[] east = new double[devices], north = new double[devices];
+        for(int i = 0; i < devices; ++i) {
+            east[i]  = 20 + random.nextDouble() * 360;
+            north[i] = 20 + random.nextDouble() * 360;
+        }
+        PositionEstimator estimator = new PositionEstimator(1000);
+        // Lawnmower walk over 400 x 400 m, rows 40 m apart, a scan every second at 1.4 m/s
+        long t = 0;
+        for(int row = 0; row <= 10; ++row) {
+            for(double along = 0; along <= 400; along += 1.4) {
+                double x = row % 2 == 0 ? along : 400 - along, y = row * 40;
+                double fixX = x + random.nextGaussian() * 3, fixY = y + random.nextGaussian() * 3;
+                for(int i = 0; i < devices; ++i) {
+                    int rssi = rssi(random, Math.hypot(east[i] - x, north[i] - y));
+                    if(rssi < -90) continue;
+                    estimator.update(i, rssi, LAT0 + fixY / M_LAT, LON0 + fixX / M_LON, 5f, t);
+                }
+                t += SECOND;
+            }
+        }
+        double[] errors = new double[devices];
+        int withinRadius = 0, trilaterated = 0;
+        for(int i = 0; i < devices; ++i) {
+            assertTrue(estimator.estimate(i, estimate));
+            errors[i] = Math.hypot((estimate.longitude - LON0) * M_LON - east[i],
+                    (estimate.latitude - LAT0) * M_LAT - north[i]);
+            // The radius is meant to hold the device about 90% of the time at twice its size
+            if(errors[i] <= 2 * estimate.radiusMeters) withinRadius++;
+            if(estimate.trilaterated) trilaterated++;
+        }
+        Arrays.sort(errors);
+        // A few walked past only along one row, where the centroid of the row does as well
+        assertTrue(trilaterated >= devices * 9 / 10);
+        assertTrue(errors[devices / 2] < 10);
+        assertTrue(errors[devices * 9 / 10] < 25);
+        assertTrue(withinRadius >= devices * 85 / 100);
+    }
+
+    @Test
+    public void usesTheCentroidUntilRangesPinItDown() throws Exception {
+        PositionEstimator estimator = new PositionEstimator(16);
+        assertFalse(estimator.estimate(1, estimate));
+        // Heard equally well from two spots 20 m apart: halfway, not trilaterated
+        estimator.update(1, -75, LAT0, LON0, 5f, 0);
+        estimator.update(1, -75, LAT0, LON0 + 20 / M_LON, 5f, SECOND);
+        assertTrue(estimator.estimate(1, estimate));
+        assertFalse(estimate.trilaterated);
+        assertEquals(2, estimate.observations);
+        assertEquals(10, (estimate.longitude - LON0) * M_LON, 0.5);
+        assertEquals(0, (estimate.latitude - LAT0) * M_LAT, 0.5);
+        assertTrue(estimate.radiusMeters > 10);
+    }
+
+    @Test
+    public void followsADeviceThatMoved() throws Exception {
+        Random random = new Random(2);
+        PositionEstimator estimator = new PositionEstimator(16, PositionEstimator.DEFAULT_TX_POWER,
+                PositionEstimator.DEFAULT_PATH_LOSS, 600 * SECOND);
+        long t = 0;
+        // An hour around (0, 0), then an hour around (300, 0)
+        for(int phase = 0; phase < 2; ++phase) {
+            for(int i = 0; i < 3600; i += 5, t += 5 * SECOND) {
+                double angle = i / 100.0;
+                double x = phase * 300 + 30 * Math.cos(angle), y = 30 * Math.sin(angle);
+                int rssi = rssi(random, Math.hypot(x - phase * 300, y));
+                estimator.update(7, rssi, LAT0 + y / M_LAT, LON0 + x / M_LON, 5f, t);
+            }
+        }
+        assertTrue(estimator.estimate(7, estimate));
+        assertEquals(300, (estimate.longitude - LON0) * M_LON, 15);
+        assertEquals(0, (estimate.latitude - LAT0) * M_LAT, 15);
+    }
+
+    @Test
+    public void staysWithinCapacityEvictingTheLeastRecentlyHeard() throws Exception {
+        PositionEstimator estimator = new PositionEstimator(100);
+        for(int i = 0; i < 150; ++i) {
+            estimator.update(i, -60, LAT0, LON0, 5f, i * SECOND);
+            // Earlier devices heard again now and then
+            if(i % 10 == 0) estimator.update(0, -60, LAT0, LON0, 5f, i * SECOND);
+        }
+        assertEquals(100, estimator.size());
+        assertEquals(50, estimator.evictions());
+        int tracked = 0;
+        for(int i = 0; i < 150; ++i) if(estimator.estimate(i, estimate)) tracked++;
+        assertEquals(100, tracked);
+        // The table still finds every device it holds, the newest and the one kept alive included
+        for(int i = 120; i < 150; ++i) assertTrue(estimator.estimate(i, estimate));
+        assertTrue(estimator.estimate(0, estimate));
+        assertEquals(16, estimate.observations);
+    }
+
+    @Test
+    public void aHundredThousandDevicesFitIn16Mb() throws Exception {
+        assertTrue(PositionEstimator.capacityFor(16 << 20) >= 100000);
+    }
+
+    /**
+     * RSSI at distance d by the path loss model, with 4 dB of shadowing.
+     */
+    private static int rssi(Random random, double d) {
+        return (int) Math.round(PositionEstimator.DEFAULT_TX_POWER
+                - 10 * PositionEstimator.DEFAULT_PATH_LOSS * Math.log10(Math.max(0.5, d))
+                + random.nextGaussian() * 4);
+    }
+}
@@ -0,0 +1,154 @@
+package com.bah.iotsap.log;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that RingLog decodes its entries, keeps only the latest once it wraps, skips entries
+ * below its level, loses nothing to concurrent writers and does not allocate while logging.
+ */
+public class RingLogTest {
+
+    @Test
+    public void decodesArgumentsInOrder() {
+        RingLog log = new RingLog(16, RingLog.DEBUG);
+        LogEvent window = log.event(RingLog.INFO, "BleSource", "stopScan(): {} results, {} dropped");
+        LogEvent seen   = log.event(RingLog.WARN, "Dedupe", "{mac} seen, flags {x}");
+        assertEquals(2, window.args());
+        log.log(window, 42, 3);
+        log.log(seen, 0x0011223344AAL, 255);
+
+        String[] lines = dump(log);
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].endsWith(" I BleSource: stopScan(): 42 results, 3 dropped"));
+        assertTrue(lines[1], lines[1].endsWith(" W Dedupe: 00:11:22:33:44:AA seen, flags 0xff"));
+    }
+
+    @Test
+    public void keepsTheLatestEntriesOnceFull() {
+        RingLog log = new RingLog(8, RingLog.DEBUG);
+        LogEvent event = log.event(RingLog.INFO, "Test", "entry {}");
+        for(int i = 0; i < 20; ++i) log.log(event, i);
+        assertEquals(20, log.written());
+
+        String[] lines = dump(log);
+        assertEquals(8, lines.length);
+        for(int i = 0; i < 8; ++i) assertTrue(lines[i], lines[i].endsWith("entry " + (12 + i)));
+
+        StringBuilder out = new StringBuilder();
+        log.dump(out, 3);
+        String[] latest = out.toString().split("\n");
+        assertEquals(3, latest.length);
+        assertTrue(latest[0], latest[0].endsWith("entry 17"));
+    }
+
+    @Test
+    public void skipsEntriesBelowTheLevel() {
+        RingLog log = new RingLog(8, RingLog.INFO);
+        LogEvent batch  = log.event(RingLog.DEBUG, "Test", "batch {}");
+        LogEvent window = log.event(RingLog.INFO, "Test", "window {}");
+        assertFalse(log.isLoggable(batch));
+        assertTrue(log.isLoggable(window));
+        log.log(batch, 1);
+        log.log(window, 2);
+        assertEquals(1, log.written());
+
+        log.setLevel(RingLog.DEBUG);
+        log.log(batch, 3);
+        String[] lines = dump(log);
+        assertEquals(2, lines.length);
+        assertTrue(lines[1], lines[1].endsWith(" D Test: batch 3"));
+    }
+
+    @Test
+    public void rejectsBadFormatsAndCapacities() {
+        RingLog log = new RingLog(8, RingLog.DEBUG);
+        try {
+            log.event(RingLog.INFO, "Test", "{} {} {} {} {}");
+            fail("Five arguments");
+        } catch(IllegalArgumentException expected) { }
+        try {
+            log.event(RingLog.INFO, "Test", "{seconds}");
+            fail("Unknown placeholder");
+        } catch(IllegalArgumentException expected) { }
+        try {
+            new RingLog(100, RingLog.DEBUG);
+            fail("Not a power of two");
+        } catch(IllegalArgumentException expected) { }
+    }
+
+    @Test
+    public void concurrentWritersLoseNothing() throws Exception {
+        final RingLog log = new RingLog(1 << 16, RingLog.DEBUG);
+        final LogEvent event = log.event(RingLog.INFO, "Test", "writer {} entry {}");
+        final int threads = 8;
+        final int entries = 4096;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for(int t = 0; t < threads; ++t) {
+            final int writer = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < entries; ++i) log.log(event, writer, i);
+                }
+            });
+            writers[t].start();
+        }
+        start.countDown();
+        for(Thread writer : writers) writer.join();
+
+        String[] lines = dump(log);
+        assertEquals(threads * entries, lines.length);
+        Set<String> seen = new HashSet<>();
+        for(String line : lines) seen.add(line.substring(line.indexOf("writer ")));
+        assertEquals(threads * entries, seen.size());
+    }
+
+    @Test
+    public void loggingDoesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        RingLog log = new RingLog(1024, RingLog.INFO);
+        LogEvent window = log.event(RingLog.INFO, "Test", "{} {} {} {}");
+        LogEvent batch  = log.event(RingLog.DEBUG, "Test", "{}");
+        write(log, window, batch);
+
+        long id = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(id);
+        for(int round = 0; round < 100; ++round) write(log, window, batch);
+        long allocated = allocations.getThreadAllocatedBytes(id) - before;
+        // Slack for the measurement itself, not for anything per entry
+        assertTrue(allocated + " bytes allocated", allocated < 4096);
+    }
+
+    private static void write(RingLog log, LogEvent window, LogEvent batch) {
+        for(int i = 0; i < 4096; ++i) {
+            log.log(window, i, i + 1, i + 2, i + 3);
+            log.log(batch, i);
+        }
+    }
+
+    private static String[] dump(RingLog log) {
+        StringBuilder out = new StringBuilder();
+        log.dump(out);
+        return out.toString().split("\n");
+    }
+}
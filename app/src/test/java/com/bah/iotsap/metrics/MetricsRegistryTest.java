@@ -0,0 +1,145 @@
+package com.bah.iotsap.metrics;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the bucket math and percentiles of Histogram, the striped Counter under contention,
+ * the registry's naming and dump, and that recording does not allocate.
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void bucketsCoverEveryValueInOrder() {
+        assertEquals(0, Histogram.bucket(0));
+        assertEquals(3, Histogram.bucket(3));
+        assertEquals(Histogram.BUCKETS - 1, Histogram.bucket(Long.MAX_VALUE));
+        for(int i = 0; i < Histogram.BUCKETS; ++i) {
+            long low = Histogram.lowerBound(i);
+            assertEquals("lower bound of " + i, i, Histogram.bucket(low));
+            if(i > 0) assertEquals("below " + i, i - 1, Histogram.bucket(low - 1));
+        }
+        // A bucket is at most a quarter of its lower bound wide
+        for(int i = 4; i + 1 < Histogram.BUCKETS; ++i) {
+            long low = Histogram.lowerBound(i);
+            assertTrue(Histogram.lowerBound(i + 1) - low <= low / 4);
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinABucket() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Histogram histogram = registry.histogram("latency");
+        // 1..100000 ns, uniform
+        for(int i = 1; i <= 100000; ++i) histogram.record(i);
+        assertEquals(100000, histogram.count());
+        assertEquals(100000, histogram.max());
+        assertEquals(50000, histogram.mean());
+        assertNear(50000, histogram.percentile(0.5));
+        assertNear(90000, histogram.percentile(0.9));
+        assertNear(99000, histogram.percentile(0.99));
+        assertEquals(100000, histogram.percentile(1.0));
+        assertEquals(0, registry.histogram("empty").percentile(0.5));
+    }
+
+    @Test
+    public void stripedCounterAddsUpAcrossThreads() throws Exception {
+        final Counter counter = new MetricsRegistry().counter("results");
+        final int threads = 8;
+        final int adds = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; ++t) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < adds; ++i) counter.inc();
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for(Thread worker : workers) worker.join();
+        assertEquals(threads * adds, counter.sum());
+    }
+
+    @Test
+    public void registryNamesAndDumpsMetrics() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter results = registry.counter("ble.results");
+        assertSame(results, registry.counter("ble.results"));
+        results.add(42);
+        registry.histogram("storage.latency").record(1500);
+        registry.gauge("ble.queue", new Gauge() {
+            @Override
+            public long value() {
+                return 7;
+            }
+        });
+        try {
+            registry.histogram("ble.results");
+            fail("A counter is not a histogram");
+        } catch(IllegalArgumentException expected) { }
+
+        StringBuilder out = new StringBuilder();
+        registry.dump(out);
+        String[] lines = out.toString().split("\n");
+        assertEquals(3, lines.length);
+        // Name order
+        assertTrue(lines[0], lines[0].startsWith("ble.queue: 7"));
+        assertTrue(lines[1], lines[1].startsWith("ble.results: 42 ("));
+        assertTrue(lines[2], lines[2].startsWith("storage.latency: n 1, mean 1.5 us"));
+
+        // Rates are since the previous dump
+        out.setLength(0);
+        registry.dump(out);
+        assertTrue(out.toString(), out.toString().contains("ble.results: 42 (0.0/s)"));
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter counter = registry.counter("results");
+        Histogram histogram = registry.histogram("latency");
+        long[] values = new long[4096];
+        Random random = new Random(42);
+        for(int i = 0; i < values.length; ++i) values[i] = random.nextInt(10000000);
+        record(counter, histogram, values);
+
+        long id = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(id);
+        for(int round = 0; round < 100; ++round) record(counter, histogram, values);
+        long allocated = allocations.getThreadAllocatedBytes(id) - before;
+        // Slack for the measurement itself, not for anything per record
+        assertTrue(allocated + " bytes allocated", allocated < 4096);
+    }
+
+    private static void record(Counter counter, Histogram histogram, long[] values) {
+        for(long value : values) {
+            counter.inc();
+            histogram.record(value);
+        }
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected about " + expected + ", was " + actual, Math.abs(actual - expected) <= expected / 8);
+    }
+}
@@ -0,0 +1,206 @@
+package com.bah.iotsap.pipeline;
+
+import com.bah.iotsap.discovery.DeviceTable;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.discovery.SightingBus;
+import com.bah.iotsap.location.LocationTrack;
+import com.bah.iotsap.location.PositionEstimator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the staged Pipeline: ordering, ticks, drops under backpressure and the dedupe,
+ * estimate and publish stages.
+ */
+public class PipelineTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void recordsAndTicksKeepTheirOrderThroughEveryStage() throws Exception {
+        Collector first = new Collector("first", null);
+        Collector last  = new Collector("last", null);
+        Pipeline pipeline = new Pipeline("test", 16, first, last);
+        pipeline.start();
+        submit(pipeline, 1, -50, 0, null);
+        submit(pipeline, 2, -50, 0, null);
+        pipeline.tick(7);
+        submit(pipeline, 3, -50, 0, null);
+        pipeline.stop();
+
+        assertEquals("[1, 2, tick 7, 3]", first.events.toString());
+        assertEquals("[1, 2, tick 7, 3]", last.events.toString());
+        assertEquals(3, pipeline.submitted());
+        assertEquals(0, pipeline.dropped());
+        StageMetrics[] metrics = pipeline.metrics();
+        assertEquals("first", metrics[0].name());
+        assertEquals(4, metrics[0].processed());
+        assertEquals(4, metrics[1].passed());
+        assertEquals(3, pipeline.endToEnd().processed());
+    }
+
+    @Test
+    public void dedupePassesOnlyChangesAndExpiresOnTick() throws Exception {
+        DedupeStage dedupe = new DedupeStage(new DeviceTable(16, 10 * SECOND, 6, 0.25f),
+                Sighting.Source.BLE, new DedupeStage.NameLookup() {
+                    @Override
+                    public String name(Object attachment) {
+                        return "dev" + attachment;
+                    }
+                });
+        Collector out = new Collector("out", null);
+        Pipeline pipeline = new Pipeline("test", 64, dedupe, out);
+        pipeline.start();
+        for(int i = 0; i < 10; ++i) {
+            submit(pipeline, 1, -60, i * SECOND, 1);
+            submit(pipeline, 2, -70, i * SECOND, 2);
+        }
+        // Device 2 moves far enough to be reported, then 1 goes quiet and expires
+        submit(pipeline, 2, -90, 10 * SECOND, 2);
+        submit(pipeline, 2, -90, 11 * SECOND, 2);
+        pipeline.tick(20 * SECOND);
+        pipeline.stop();
+
+        assertEquals("[1 NEW dev1, 2 NEW dev2, 2 RSSI dev2, 1 EXPIRED dev1, tick 20000000000]",
+                out.events.toString());
+        assertEquals(2, dedupe.takeNewDevices());
+        assertEquals(0, dedupe.takeNewDevices());
+        StageMetrics metrics = pipeline.metrics()[0];
+        // The tick counts as processed and passed on too
+        assertEquals(23, metrics.processed());
+        assertEquals(4, metrics.passed());
+        assertEquals(1, metrics.emitted());
+    }
+
+    @Test
+    public void estimateSeesEveryResultDedupeHoldsBack() throws Exception {
+        // Walk a 10 m circle around a device heard at the same strength all the way round
+        double lat0 = 38.9, lon0 = -77.0, mLat = 111195.08, mLon = mLat * Math.cos(Math.toRadians(lat0));
+        int rssi = (int) Math.round(PositionEstimator.DEFAULT_TX_POWER
+                - 10 * PositionEstimator.DEFAULT_PATH_LOSS * Math.log10(10));
+        LocationTrack track = new LocationTrack();
+        for(int i = 0; i < 40; ++i) {
+            double angle = 2 * Math.PI * i / 40;
+            track.add(i * SECOND, lat0 + 10 * Math.sin(angle) / mLat, lon0 + 10 * Math.cos(angle) / mLon, 5f);
+        }
+        PositionEstimator estimator = new PositionEstimator(16);
+        EstimateStage estimate = new EstimateStage(track, estimator);
+        DedupeStage dedupe = new DedupeStage(new DeviceTable(16, 10 * SECOND, 6, 0.25f),
+                Sighting.Source.BLE, null);
+        Collector out = new Collector("out", null);
+        Pipeline pipeline = new Pipeline("test", 64, estimate, dedupe, new LocationStage(track), out);
+        pipeline.start();
+        for(int i = 0; i < 40; ++i) submit(pipeline, 1, rssi, i * SECOND, null);
+        pipeline.stop();
+
+        assertEquals(1, out.events.size());
+        assertEquals(40, estimate.updates());
+        PositionEstimator.Estimate result = new PositionEstimator.Estimate();
+        assertTrue(estimator.estimate(1, result));
+        assertEquals(40, result.observations);
+        assertEquals(0, (result.latitude - lat0) * mLat, 2);
+        assertEquals(0, (result.longitude - lon0) * mLon, 2);
+    }
+
+    @Test
+    public void publishSignalsOncePerBatch() throws Exception {
+        SightingBus bus = new SightingBus(64);
+        SightingBus.Subscription sub = bus.subscribe(SightingBus.Backpressure.DROP_OLDEST);
+        final int[] wakeups = { 0 };
+        sub.setListener(new SightingBus.Listener() {
+            @Override
+            public void onAvailable(SightingBus.Subscription subscription) {
+                wakeups[0]++;
+            }
+        });
+        CountDownLatch gate = new CountDownLatch(1);
+        PublishStage publish = new PublishStage(bus, 5);
+        Pipeline pipeline = new Pipeline("test", 16, new Collector("gate", gate), publish);
+        pipeline.start();
+        // Queued up behind the gate, so the publish stage gets them in one run
+        for(int i = 0; i < 3; ++i) submit(pipeline, i, -50, 0, null);
+        gate.countDown();
+        while(bus.published() < 3) Thread.sleep(1);
+        Thread.sleep(20);
+        // Fewer than minBatch: only the tick signals
+        assertEquals(0, publish.signals());
+        pipeline.tick(0);
+        pipeline.stop();
+        assertEquals(1, publish.signals());
+        assertEquals(1, wakeups[0]);
+        assertEquals(3, bus.published());
+    }
+
+    @Test
+    public void submitDropsInsteadOfBlockingWhenBackedUp() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        Collector stalled = new Collector("stalled", gate);
+        Collector last    = new Collector("last", null);
+        Pipeline pipeline = new Pipeline("test", 4, stalled, last);
+        pipeline.start();
+        int accepted = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < 100; ++i) {
+            if(submit(pipeline, i, -50, 0, null)) accepted++;
+        }
+        long elapsed = System.nanoTime() - start;
+        // The tick does not fit either; the first stage runs it right after its current record
+        pipeline.tick(99);
+        assertTrue("submit() blocked for " + elapsed / 1000000 + " ms", elapsed < SECOND);
+        assertTrue(accepted <= 5);
+        assertEquals(100 - accepted, pipeline.dropped());
+
+        gate.countDown();
+        pipeline.stop();
+        assertEquals(accepted + 1, last.events.size());
+        assertEquals("tick 99", last.events.get(1));
+        assertEquals(accepted, pipeline.endToEnd().processed());
+    }
+
+    private static boolean submit(Pipeline pipeline, long mac, int rssi, long time, Object attachment) {
+        Pipeline.Record record = pipeline.obtain();
+        if(record == null) return false;
+        record.sighting.set(mac, rssi, time, Sighting.Source.BLE, null);
+        record.attachment = attachment;
+        return pipeline.submit(record);
+    }
+
+    /**
+     * Passes everything on and writes down what it saw, optionally waiting for a latch first.
+     */
+    private static final class Collector extends Pipeline.Stage {
+        final List<String>   events = new ArrayList<>();
+        final CountDownLatch gate;
+
+        Collector(String name, CountDownLatch gate) {
+            super(name);
+            this.gate = gate;
+        }
+
+        @Override
+        protected boolean process(Pipeline.Record r, Pipeline.Emitter out) {
+            if(gate != null) {
+                try {
+                    gate.await();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            Sighting s = r.sighting;
+            events.add(s.change == Sighting.Change.NONE ? String.valueOf(s.mac)
+                    : s.mac + " " + s.change + " " + s.name);
+            return true;
+        }
+
+        @Override
+        protected void onTick(long nowNanos, Pipeline.Emitter out) {
+            events.add("tick " + nowNanos);
+        }
+    }
+}
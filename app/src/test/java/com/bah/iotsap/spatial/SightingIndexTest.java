@@ -0,0 +1,255 @@
+package com.bah.iotsap.spatial;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.storage.LogCursor;
+import com.bah.iotsap.storage.SightingLog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SightingIndex against a brute force scan, its persistence and catching up with a
+ * SightingLog.
+ */
+public class SightingIndexTest {
+
+    private static final long EPOCH  = 1500000000000L;
+    private static final long SECOND = 1000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void queriesMatchABruteForceScan() throws Exception {
+        // A small delta, so the points end up spread over many runs and merges
+        SightingIndex index = new SightingIndex(256);
+        List<double[]> points = randomPoints(new Random(1), 20000);
+        for(int i = 0; i < points.size(); ++i) {
+            double[] p = points.get(i);
+            index.add(i, p[0], p[1], (long) p[2], (int) p[3]);
+        }
+        assertEquals(points.size(), index.size());
+        assertEquals(points.size(), index.devices());
+        assertTrue(index.toString(), index.runs() <= 16);
+
+        Random random = new Random(2);
+        int nonEmpty = 0;
+        for(int q = 0; q < 300; ++q) {
+            double south = -10 + random.nextDouble() * 20;
+            double north = south + random.nextDouble() * 10;
+            // Every third box crosses the antimeridian
+            double west = q % 3 == 0 ? 170 + random.nextDouble() * 10 : -180 + random.nextDouble() * 360;
+            double east = q % 3 == 0 ? -180 + random.nextDouble() * 10 : Math.min(180, west + random.nextDouble() * 20);
+            long from = EPOCH + random.nextInt(3600) * 1000L;
+            long to   = from + random.nextInt(3600) * 1000L;
+            List<String> expected = new ArrayList<>();
+            for(int i = 0; i < points.size(); ++i) {
+                double[] p = points.get(i);
+                boolean lon = west <= east ? p[1] >= west && p[1] <= east : p[1] >= west || p[1] <= east;
+                if(p[0] >= south && p[0] <= north && lon && p[2] >= from && p[2] <= to) {
+                    expected.add(i + "@" + (long) p[2] + "/" + (int) p[3]);
+                }
+            }
+            List<String> actual = query(index, south, west, north, east, from, to);
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertEquals("query " + q, expected, actual);
+            if(!expected.isEmpty()) nonEmpty++;
+        }
+        assertTrue(nonEmpty > 100);
+    }
+
+    @Test
+    public void positionsSurviveToTheCentimeter() throws Exception {
+        SightingIndex index = new SightingIndex(4);
+        index.add(7, 38.8977123, -77.0365456, EPOCH, -60);
+        index.add(8, -33.8567844, 151.2152967, EPOCH + 1500, -70);
+        final List<double[]> seen = new ArrayList<>();
+        SightingIndex.Visitor visitor = new SightingIndex.Visitor() {
+            @Override
+            public boolean visit(long mac, double latitude, double longitude, long timeMillis, int rssi) {
+                seen.add(new double[] { mac, latitude, longitude, timeMillis, rssi });
+                return true;
+            }
+        };
+        assertEquals(1, index.query(38, -78, 39, -77, EPOCH, EPOCH, visitor));
+        assertArrayEquals(new double[] { 7, 38.8977123, -77.0365456, EPOCH, -60 }, seen.get(0), 1e-7);
+        // Times are kept to the second
+        assertEquals(1, index.query(-34, 151, -33, 152, EPOCH + 1000, EPOCH + 1000, visitor));
+        assertEquals(EPOCH + 1000, seen.get(1)[3], 0);
+        assertEquals(0, index.query(-34, 151, -33, 152, EPOCH + 2000, EPOCH + 9000, visitor));
+    }
+
+    @Test
+    public void visitorEndsTheQuery() throws Exception {
+        SightingIndex index = new SightingIndex(16);
+        for(int i = 0; i < 100; ++i) index.add(i, 1 + i * 1e-3, 1 + i * 1e-3, EPOCH, -50);
+        final int[] calls = { 0 };
+        int visited = index.query(0, 0, 2, 2, EPOCH, EPOCH, new SightingIndex.Visitor() {
+            @Override
+            public boolean visit(long mac, double latitude, double longitude, long timeMillis, int rssi) {
+                return ++calls[0] < 10;
+            }
+        });
+        assertEquals(10, visited);
+        assertEquals(10, calls[0]);
+    }
+
+    @Test
+    public void savesLoadsAndRejectsDamagedFiles() throws Exception {
+        SightingIndex index = new SightingIndex(1000);
+        List<double[]> points = randomPoints(new Random(3), 5000);
+        for(int i = 0; i < points.size(); ++i) {
+            double[] p = points.get(i);
+            // Few devices, many points each
+            index.add(i % 37, p[0], p[1], (long) p[2], (int) p[3]);
+        }
+        File file = new File(folder.getRoot(), "index.sgi");
+        assertEquals(5000, index.save(file));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        SightingIndex loaded = new SightingIndex();
+        assertEquals(5000, loaded.load(file));
+        assertEquals(5000, loaded.size());
+        assertEquals(37, loaded.devices());
+        assertEquals(1, loaded.runs());
+        assertEquals(query(index, -10, -180, 10, 180, EPOCH, EPOCH + 7200000),
+                sorted(query(loaded, -10, -180, 10, 180, EPOCH, EPOCH + 7200000)));
+
+        // Flip a byte in the middle: rejected, and what was loaded stays
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() / 2);
+            int b = raf.read();
+            raf.seek(raf.length() / 2);
+            raf.write(b ^ 0x10);
+        }
+        assertLoadFails(loaded, file);
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 100);
+        }
+        assertLoadFails(loaded, file);
+        assertEquals(5000, loaded.size());
+    }
+
+    @Test
+    public void catchesUpWithTheLogAcrossRestarts() throws Exception {
+        File dir = folder.newFolder("log");
+        SightingLog log = new SightingLog(dir, EPOCH, 4096, 1000, 1 << 20);
+        Sighting s = new Sighting();
+        for(int i = 0; i < 1000; ++i) log.append(sighting(s, i));
+        log.flush();
+
+        SightingIndex index = new SightingIndex(64);
+        LogCursor cursor = log.cursor();
+        assertEquals(300, index.catchUp(cursor, 300));
+        assertEquals(299, index.throughSeq());
+        assertEquals(700, index.catchUp(cursor, 5000));
+        assertEquals(0, index.catchUp(cursor, 5000));
+        assertEquals(999, index.throughSeq());
+        // Every other record is located
+        assertEquals(500, index.size());
+        assertEquals(1, query(index, 38, -78, 39, -77, EPOCH + 10000, EPOCH + 10000).size());
+
+        File file = new File(folder.getRoot(), "index.sgi");
+        index.save(file);
+        for(int i = 1000; i < 1100; ++i) log.append(sighting(s, i));
+        log.flush();
+
+        // After a restart: load what was saved, then only read what came since, with a new cursor
+        SightingIndex restarted = new SightingIndex(64);
+        restarted.load(file);
+        assertEquals(999, restarted.throughSeq());
+        try(LogCursor fresh = log.cursor()) {
+            assertEquals(100, restarted.catchUp(fresh, 5000));
+        }
+        assertEquals(1099, restarted.throughSeq());
+        assertEquals(550, restarted.size());
+        // The old cursor is where the index left it
+        assertEquals(100, index.catchUp(cursor, 5000));
+        assertEquals(550, index.size());
+        cursor.close();
+        log.close();
+    }
+
+    @Test
+    public void skipsExpiriesLiveAndFromTheLog() throws Exception {
+        Sighting s = new Sighting();
+        SightingIndex index = new SightingIndex(64);
+        assertTrue(index.add(sighting(s, 0), EPOCH));
+        s.set(0xA0B0C0000000L, -60, 2 * SECOND, Sighting.Source.BLE, null, Sighting.Change.EXPIRED);
+        assertFalse(index.add(s.setLocation(38.8977, -77.0365, 5f), EPOCH + 2000));
+        assertEquals(1, index.size());
+
+        File dir = folder.newFolder("log");
+        SightingLog log = new SightingLog(dir, EPOCH, 4096, 1000, 1 << 20);
+        log.append(sighting(s, 0));
+        log.append(sighting(s, 2).set(s.mac, s.rssi, s.timestampNanos, s.source, null,
+                Sighting.Change.EXPIRED).setLocation(38.8977, -77.0365, 5f));
+        log.append(sighting(s, 4));
+        log.flush();
+        SightingIndex fromLog = new SightingIndex(64);
+        try(LogCursor cursor = log.cursor()) {
+            assertEquals(3, fromLog.catchUp(cursor, 100));
+        }
+        assertEquals(2, fromLog.throughSeq());
+        assertEquals(2, fromLog.size());
+        log.close();
+    }
+
+    private static List<double[]> randomPoints(Random random, int count) {
+        List<double[]> points = new ArrayList<>();
+        for(int i = 0; i < count; ++i) {
+            // Around the equator on both sides of the antimeridian, and anywhere
+            double lat = random.nextInt(4) == 0 ? -90 + random.nextDouble() * 180 : -10 + random.nextDouble() * 20;
+            double lon = -180 + random.nextDouble() * 360;
+            if(random.nextBoolean()) lon = lon / 36 + (lon < 0 ? -175 : 175);
+            points.add(new double[] { lat, lon, EPOCH + random.nextInt(7200) * 1000L, -30 - random.nextInt(70) });
+        }
+        return points;
+    }
+
+    private static List<String> query(SightingIndex index, double south, double west, double north,
+                                      double east, long from, long to) {
+        final List<String> found = new ArrayList<>();
+        int visited = index.query(south, west, north, east, from, to, new SightingIndex.Visitor() {
+            @Override
+            public boolean visit(long mac, double latitude, double longitude, long timeMillis, int rssi) {
+                found.add(mac + "@" + timeMillis + "/" + rssi);
+                return true;
+            }
+        });
+        assertEquals(found.size(), visited);
+        return sorted(found);
+    }
+
+    private static List<String> sorted(List<String> list) {
+        Collections.sort(list);
+        return list;
+    }
+
+    private static void assertLoadFails(SightingIndex index, File file) {
+        try {
+            index.load(file);
+            fail("Loaded a damaged index");
+        } catch(IOException expected) {
+            // expected
+        }
+    }
+
+    private static Sighting sighting(Sighting s, int i) {
+        s.set(0xA0B0C0000000L + i % 40, -40 - i % 50, i * SECOND, Sighting.Source.BLE, null);
+        if(i % 2 == 0) s.setLocation(38.8977 + i * 1e-5, -77.0365 - i * 1e-5, 5f);
+        return s;
+    }
+}
@@ -0,0 +1,125 @@
+package com.bah.iotsap.storage;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.discovery.SightingFormat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trip fuzzing of ColumnarEncoder / ColumnarDecoder, corrupt input, and the size of a
+ * batch next to the JSON lines it replaces.
+ */
+public class ColumnarCodecTest {
+
+    private static final long     EPOCH  = 1500000000000L;
+    private static final String[] NAMES  = { null, "", "Fitbit Charge 2", "Tile", "JBL Flip 4",
+            "\u00dcn\u00efc\u00f6d\u00e9 \u2603", "\ud83d\ude00 emoji", "name with\nnewline" };
+
+    @Test
+    public void fuzzRoundTrip() throws Exception {
+        Random random = new Random(11);
+        ColumnarEncoder encoder = new ColumnarEncoder(EPOCH);
+        ColumnarDecoder decoder = new ColumnarDecoder(EPOCH);
+        Sighting out = new Sighting();
+        for(int round = 0; round < 300; ++round) {
+            int count = random.nextInt(round % 10 == 0 ? 5000 : 200);
+            Sighting[] batch = randomBatch(random, count);
+            encoder.reset();
+            for(Sighting s : batch) encoder.add(s);
+            boolean deflate = random.nextBoolean();
+            byte[] bytes = encoder.toByteArray(deflate);
+
+            assertEquals(count, decoder.read(bytes));
+            for(int i = 0; i < count; ++i) {
+                assertEquals("round " + round + " row " + i, batch[i].toString(), decoder.get(i, out).toString());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsCorruptBatches() throws Exception {
+        Random random = new Random(3);
+        ColumnarEncoder encoder = new ColumnarEncoder(EPOCH);
+        for(Sighting s : randomBatch(random, 300)) encoder.add(s);
+        ColumnarDecoder decoder = new ColumnarDecoder(EPOCH);
+        Sighting out = new Sighting();
+        for(boolean deflate : new boolean[] { false, true }) {
+            byte[] good = encoder.toByteArray(deflate);
+            for(int round = 0; round < 2000; ++round) {
+                byte[] bad = good.clone();
+                int length = bad.length;
+                if(round % 4 == 0) {
+                    length = random.nextInt(bad.length);
+                } else {
+                    for(int flips = 1 + random.nextInt(3); flips > 0; --flips) {
+                        bad[random.nextInt(bad.length)] ^= 1 << random.nextInt(8);
+                    }
+                }
+                // Either an IOException, or a batch that decodes in full
+                try {
+                    int count = decoder.read(bad, 0, length);
+                    for(int i = 0; i < count; ++i) decoder.get(i, out);
+                } catch(IOException expected) {
+                    assertEquals(0, decoder.count());
+                }
+            }
+        }
+    }
+
+    /**
+     * A morning of scanning: 200 devices, about 60% with names, seen every 100-1000 ms.
+     */
+    @Test
+    public void smallerThanJsonLines() throws Exception {
+        Random random = new Random(7);
+        SightingFormat format = new SightingFormat(EPOCH);
+        ColumnarEncoder encoder = new ColumnarEncoder(EPOCH);
+        Sighting s = new Sighting();
+        long json = 0;
+        long time = 0;
+        for(int i = 0; i < 20000; ++i) {
+            int device = random.nextInt(200);
+            time += 100000000L + random.nextInt(900) * 1000000L;
+            s.set(0x5C313E000000L + device * 7919L, -45 - random.nextInt(50), time,
+                    device % 7 == 0 ? Sighting.Source.BT_CLASSIC : Sighting.Source.BLE,
+                    device % 5 < 3 ? "device-" + device : null,
+                    random.nextInt(10) == 0 ? Sighting.Change.NEW : Sighting.Change.NONE);
+            json += format.toJson(s).getBytes(Charset.forName("UTF-8")).length + 1;
+            encoder.add(s);
+        }
+        long raw      = encoder.toByteArray(false).length;
+        long deflated = encoder.toByteArray(true).length;
+        assertTrue("raw only " + json / raw + "x", raw * 5 <= json);
+        assertTrue("deflated only " + json / deflated + "x", deflated * 10 <= json);
+    }
+
+    private static Sighting[] randomBatch(Random random, int count) {
+        int devices = 1 + random.nextInt(count / 2 + 1);
+        long time = random.nextLong() >> 20;
+        Sighting[] batch = new Sighting[count];
+        for(int i = 0; i < count; ++i) {
+            int device = random.nextInt(devices);
+            // Mostly forward in time, sometimes back (another boot, clock change)
+            time += random.nextInt(20) == 0 ? -random.nextInt(1 << 30) : random.nextInt(5000);
+            int rssi = random.nextInt(50) == 0 ? random.nextInt() : -128 + random.nextInt(150);
+            Sighting.Source source = random.nextInt(30) == 0 ? null
+                    : Sighting.Source.of(random.nextInt(Sighting.Source.values().length));
+            batch[i] = new Sighting().set(random.nextInt(100) == 0 ? random.nextLong() & 0xFFFFFFFFFFFFL
+                            : 0xA0B0C0000000L + device * 31L, rssi, time * 1000000L, source,
+                    NAMES[(device + (random.nextInt(20) == 0 ? 1 : 0)) % NAMES.length],
+                    Sighting.Change.values()[random.nextInt(Sighting.Change.values().length)]);
+            // Values a batch stores exactly: 1e-7 degrees, decimeters
+            if(i % 3 == 0) {
+                batch[i].setLocation((random.nextInt(1800000001) - 900000000) / 1e7,
+                        (random.nextInt() % 1800000000) / 1e7, (1 + random.nextInt(65535)) / 10f);
+            }
+        }
+        return batch;
+    }
+}
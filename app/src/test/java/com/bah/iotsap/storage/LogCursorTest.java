@@ -0,0 +1,123 @@
+package com.bah.iotsap.storage;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for LogCursor: both directions across segments, seeking and tailing a live log.
+ */
+public class LogCursorTest {
+
+    private static final long EPOCH   = 1500000000000L;
+    private static final int  RECORDS = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SightingLog log;
+    private final Sighting s = new Sighting();
+
+    @Before
+    public void setUp() throws Exception {
+        // Small segments so that the records span many of them
+        log = new SightingLog(folder.newFolder("log"), EPOCH, 8192, 1000, 1 << 20);
+        for(int i = 0; i < RECORDS; ++i) log.append(sighting(s, i));
+        assertTrue(LogFormat.listSegments(log.directory()).length > 50);
+    }
+
+    @Test
+    public void readsForwardsAndBackwards() throws Exception {
+        try(LogCursor cursor = log.cursor()) {
+            for(int i = 0; i < RECORDS; ++i) {
+                assertTrue(cursor.next(s));
+                assertEquals(i, cursor.seq());
+                assertEquals(mac(i), s.mac);
+                assertEquals(EPOCH + i * 10L, cursor.timeMillis());
+                assertEquals(i * 10000000L, s.timestampNanos);
+            }
+            assertFalse(cursor.next(s));
+            for(int i = RECORDS - 1; i >= 0; --i) {
+                assertTrue(cursor.previous(s));
+                assertEquals(i, cursor.seq());
+                assertEquals(mac(i), s.mac);
+            }
+            assertFalse(cursor.previous(s));
+        }
+    }
+
+    @Test
+    public void readsLatestFromEnd() throws Exception {
+        try(LogCursor cursor = log.cursor()) {
+            cursor.seekEnd();
+            assertEquals(RECORDS, cursor.nextSeq());
+            for(int i = RECORDS - 1; i >= RECORDS - 50; --i) {
+                assertTrue(cursor.previous(s));
+                assertEquals(i, cursor.seq());
+                assertEquals(i % 3 == 0 ? "dev-" + i : null, s.name);
+            }
+        }
+    }
+
+    @Test
+    public void seeksBySeqAndTime() throws Exception {
+        try(LogCursor cursor = log.cursor()) {
+            long[] targets = {0, 1, 63, 64, 65, 4321, RECORDS - 1};
+            for(long target : targets) {
+                cursor.seekSeq(target);
+                assertTrue(cursor.next(s));
+                assertEquals(target, cursor.seq());
+
+                cursor.seekTime(EPOCH + target * 10 - 5);
+                assertTrue(cursor.next(s));
+                assertEquals(target, cursor.seq());
+            }
+            cursor.seekTime(EPOCH + RECORDS * 10L);
+            assertFalse(cursor.next(s));
+            cursor.seekTime(0);
+            assertTrue(cursor.next(s));
+            assertEquals(0, cursor.seq());
+        }
+    }
+
+    @Test
+    public void followsTheWriter() throws Exception {
+        try(LogCursor cursor = log.cursor()) {
+            cursor.seekEnd();
+            assertFalse(cursor.next(s));
+            // Enough to roll into new segments
+            for(int i = RECORDS; i < RECORDS + 500; ++i) log.append(sighting(s, i));
+            for(int i = RECORDS; i < RECORDS + 500; ++i) {
+                assertTrue(cursor.next(s));
+                assertEquals(i, cursor.seq());
+            }
+            assertFalse(cursor.next(s));
+        }
+    }
+
+    @Test
+    public void emptyLog() throws Exception {
+        File dir = folder.newFolder("empty");
+        try(LogCursor cursor = new LogCursor(dir, EPOCH)) {
+            assertFalse(cursor.next(s));
+            cursor.seekEnd();
+            assertFalse(cursor.previous(s));
+        }
+    }
+
+    private static long mac(int i) {
+        return 0xA0B0C0000000L + i;
+    }
+
+    private static Sighting sighting(Sighting s, int i) {
+        return s.set(mac(i), -40 - i % 50, i * 10000000L, Sighting.Source.BLE,
+                i % 3 == 0 ? "dev-" + i : null, Sighting.Change.NEW);
+    }
+}
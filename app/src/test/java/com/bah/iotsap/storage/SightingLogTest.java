@@ -0,0 +1,127 @@
+package com.bah.iotsap.storage;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests and crash recovery for SightingLog.
+ */
+public class SightingLogTest {
+
+    private static final long EPOCH = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rollsSegmentsAndContinuesAfterReopen() throws Exception {
+        File dir = folder.newFolder("log");
+        SightingLog log = new SightingLog(dir, EPOCH, 4096, 1000, 1 << 20);
+        final List<SegmentInfo> sealed = new ArrayList<>();
+        log.setListener(new SightingLog.Listener() {
+            @Override
+            public void onSegmentSealed(SegmentInfo segment) {
+                sealed.add(segment);
+            }
+        });
+        Sighting s = new Sighting();
+        for(int i = 0; i < 1000; ++i) {
+            assertEquals(i, log.append(sighting(s, i)));
+        }
+        log.close();
+        assertTrue(LogFormat.listSegments(dir).length > 1);
+        // Every segment but the active one was sealed, back to back
+        assertEquals(LogFormat.listSegments(dir).length - 1, sealed.size());
+        assertEquals(sealed.toString(), SegmentInfo.listSealed(dir).toString());
+        for(int i = 1; i < sealed.size(); ++i) assertEquals(sealed.get(i - 1).lastSeq + 1, sealed.get(i).firstSeq);
+
+        log = new SightingLog(dir, EPOCH, 4096, 1000, 1 << 20);
+        assertEquals(1000, log.nextSeq());
+        assertEquals(0, log.recoveredBytes());
+        assertEquals(1000, log.append(sighting(s, 1000)));
+        log.close();
+        assertRecords(dir, 1001);
+    }
+
+    @Test
+    public void recoversFromTornTail() throws Exception {
+        File dir = folder.newFolder("log");
+        // Never closed and never forced: the process "dies" with the mapping as it is
+        SightingLog log = new SightingLog(dir, EPOCH, 1 << 16, 60000, 1 << 20);
+        Sighting s = new Sighting();
+        for(int i = 0; i < 100; ++i) log.append(sighting(s, i));
+
+        // Tear the last frame in half
+        File[] segments = LogFormat.listSegments(dir);
+        try(RandomAccessFile raf = new RandomAccessFile(segments[segments.length - 1], "rw")) {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            int offset = LogFormat.HEADER_SIZE;
+            for(int i = 0; i < 99; ++i) offset += buffer.getInt(offset) + LogFormat.FRAME_OVERHEAD;
+            buffer.put(offset + 20, (byte) 0x5A);
+            buffer.putInt(offset + buffer.getInt(offset) + 8, 0);
+        }
+
+        SightingLog recovered = new SightingLog(dir, EPOCH, 1 << 16, 60000, 1 << 20);
+        assertEquals(99, recovered.nextSeq());
+        assertTrue(recovered.recoveredBytes() > 0);
+        assertEquals(99, recovered.append(sighting(s, 99)));
+        recovered.close();
+        assertRecords(dir, 100);
+    }
+
+    @Test
+    public void groupCommitsByBytes() throws Exception {
+        SightingLog log = new SightingLog(folder.newFolder("log"), EPOCH, 1 << 20, 60000, 4096);
+        Sighting s = new Sighting();
+        for(int i = 0; i < 1000; ++i) log.append(sighting(s, i));
+        // ~60 bytes per frame: one force per ~68 records, not one per record
+        assertTrue(log.flushes() > 5 && log.flushes() < 30);
+        log.close();
+    }
+
+    private static Sighting sighting(Sighting s, int i) {
+        s.set(0xA0B0C0000000L + i, -40 - i % 50, i * 1000000L, Sighting.Source.BLE,
+                i % 3 == 0 ? "dev-" + i : null, Sighting.Change.NEW);
+        // Values the log stores exactly: 1e-7 degrees, decimeters
+        if(i % 4 == 0) s.setLocation((388977000 + i * 100) / 1e7, (-770365000 - i * 100) / 1e7, (i % 50) / 2f);
+        return s;
+    }
+
+    /**
+     * Walk every segment and check that records 0..count-1 are there in order.
+     */
+    private static void assertRecords(File dir, int count) throws IOException {
+        LogFormat format = new LogFormat();
+        Sighting expected = new Sighting();
+        Sighting actual = new Sighting();
+        long seq = 0;
+        for(File file : LogFormat.listSegments(dir)) {
+            try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                int offset = LogFormat.HEADER_SIZE;
+                int size;
+                while((size = format.checkFrame(buffer, offset, seq)) > 0) {
+                    format.readFrame(buffer, offset, EPOCH, actual);
+                    sighting(expected, (int) seq);
+                    assertEquals(expected.toString(), actual.toString());
+                    offset += size;
+                    ++seq;
+                }
+            }
+        }
+        assertEquals(count, seq);
+    }
+}
@@ -0,0 +1,127 @@
+package com.bah.iotsap.trace;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the trace format: TraceRecorder and TraceReader round trips, traces cut short
+ * and the size of an event.
+ */
+public class TraceRecorderTest {
+
+    private static final long BASE = 5000000000L;
+    private static final long MS   = 1000000L;
+
+    @Test
+    public void readsBackWhatWasRecorded() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(bytes, BASE);
+        recorder.result(Sighting.Source.BLE, 0x0123456789abL, -67, BASE + 10 * MS, null);
+        recorder.result(Sighting.Source.BT_CLASSIC, 0xfedcba987654L, -80, BASE + 20 * MS, "Headset");
+        recorder.fix(BASE + 25 * MS, 38.8977123, -77.0365456, 4.5f);
+        // A batched result from before the previous event, and a repeated name
+        recorder.result(Sighting.Source.BLE, 0x0123456789abL, -300, BASE + 5 * MS, null);
+        recorder.result(Sighting.Source.BT_CLASSIC, 0xfedcba987654L, 10, BASE + 30 * MS, "Headset");
+        recorder.windowEnd(Sighting.Source.BLE, BASE + 40 * MS);
+        recorder.result(Sighting.Source.BT_CLASSIC, 0xfedcba987654L, -81, BASE + 50 * MS, "Renamed \u00e9");
+        recorder.close();
+        assertEquals(7, recorder.events());
+        assertEquals(bytes.size(), recorder.bytes());
+
+        TraceReader reader = new TraceReader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(BASE, reader.baseNanos());
+        TraceEvent e = new TraceEvent();
+        assertTrue(reader.next(e));
+        assertEquals("5010000000 BLE 01:23:45:67:89:AB -67", e.toString());
+        assertTrue(reader.next(e));
+        assertEquals("5020000000 BT_CLASSIC FE:DC:BA:98:76:54 -80 Headset", e.toString());
+        assertTrue(reader.next(e));
+        assertEquals(TraceEvent.Kind.FIX, e.kind);
+        assertEquals(BASE + 25 * MS, e.timeNanos);
+        assertEquals(38.8977123, e.latitude, 1e-7);
+        assertEquals(-77.0365456, e.longitude, 1e-7);
+        assertEquals(4.5f, e.accuracy, 0.05f);
+        assertTrue(reader.next(e));
+        // RSSI is kept to a byte
+        assertEquals("5005000000 BLE 01:23:45:67:89:AB -128", e.toString());
+        assertTrue(reader.next(e));
+        assertEquals("5030000000 BT_CLASSIC FE:DC:BA:98:76:54 10 Headset", e.toString());
+        assertTrue(reader.next(e));
+        assertEquals("5040000000 BLE window end", e.toString());
+        assertTrue(reader.next(e));
+        assertEquals("Renamed \u00e9", e.name);
+        assertFalse(reader.next(e));
+        assertFalse(reader.truncated());
+        assertEquals(2, reader.devices());
+        reader.close();
+    }
+
+    @Test
+    public void copiesOfASyntheticTraceAreCompact() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(bytes, 0);
+        SyntheticTrace synthetic = new SyntheticTrace(7).devices(300).durationSeconds(60);
+        TraceEvent e = new TraceEvent();
+        while(synthetic.next(e)) recorder.write(e);
+        recorder.close();
+        double perEvent = (double) bytes.size() / recorder.events();
+        assertTrue(perEvent + " bytes per event", perEvent < 7);
+
+        // Replayed event for event, to the microsecond
+        synthetic = new SyntheticTrace(7).devices(300).durationSeconds(60);
+        TraceReader reader = new TraceReader(new ByteArrayInputStream(bytes.toByteArray()));
+        TraceEvent expected = new TraceEvent();
+        while(synthetic.next(expected)) {
+            assertTrue(reader.next(e));
+            assertEquals(expected.kind, e.kind);
+            assertEquals(expected.timeNanos / 1000, e.timeNanos / 1000);
+            if(expected.kind == TraceEvent.Kind.RESULT) {
+                assertEquals(expected.source, e.source);
+                assertEquals(expected.mac, e.mac);
+                assertEquals(expected.rssi, e.rssi);
+                assertEquals(expected.name, e.name);
+            }
+        }
+        assertFalse(reader.next(e));
+        assertEquals(recorder.events(), reader.events());
+    }
+
+    @Test
+    public void aTraceCutShortEndsAtItsLastWholeEvent() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(bytes, BASE);
+        for(int i = 0; i < 100; ++i) {
+            recorder.result(Sighting.Source.BT_CLASSIC, i, -50, BASE + i * MS, "Device " + i);
+        }
+        recorder.close();
+        byte[] cut = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 3);
+
+        TraceReader reader = new TraceReader(new ByteArrayInputStream(cut));
+        TraceEvent e = new TraceEvent();
+        int events = 0;
+        while(reader.next(e)) assertEquals("Device " + events++, e.name);
+        assertEquals(99, events);
+        assertTrue(reader.truncated());
+    }
+
+    @Test
+    public void refusesWhatIsNotATrace() {
+        byte[][] bad = {new byte[0], "SCTR".getBytes(), "SCTX\u0001abcdefgh".getBytes(), "SCTR\u0002abcdefgh".getBytes()};
+        for(byte[] bytes : bad) {
+            try {
+                new TraceReader(new ByteArrayInputStream(bytes));
+                fail("Read " + new String(bytes));
+            } catch(IOException expected) {
+                // Refused
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.bah.iotsap.trace;
+
+import com.bah.iotsap.discovery.DeviceTable;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.location.LocationTrack;
+import com.bah.iotsap.pipeline.DedupeStage;
+import com.bah.iotsap.pipeline.LocationStage;
+import com.bah.iotsap.pipeline.Pipeline;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for SyntheticTrace and TraceReplayer: generated venues are reproducible, a flat out
+ * replay gives the same pipeline output every time and paced replays keep time.
+ */
+public class TraceReplayerTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void syntheticTracesAreReproducibleAndInTimeOrder() throws Exception {
+        SyntheticTrace a = new SyntheticTrace(3).devices(200).durationSeconds(30);
+        SyntheticTrace b = new SyntheticTrace(3).devices(200).durationSeconds(30);
+        TraceEvent ea = new TraceEvent(), eb = new TraceEvent();
+        long last = 0;
+        int fixes = 0, windows = 0;
+        while(a.next(ea)) {
+            assertTrue(b.next(eb));
+            assertEquals(ea.toString(), eb.toString());
+            assertTrue(ea.timeNanos >= last);
+            last = ea.timeNanos;
+            if(ea.kind == TraceEvent.Kind.FIX) fixes++;
+            if(ea.kind == TraceEvent.Kind.WINDOW_END) windows++;
+            if(ea.kind == TraceEvent.Kind.RESULT) {
+                assertTrue(ea.rssi >= -100 && ea.rssi < -20);
+                assertEquals(ea.source == Sighting.Source.BT_CLASSIC, ea.name != null);
+            }
+        }
+        assertFalse(b.next(eb));
+        // A fix a second, both scanners close a window every 10 s
+        assertEquals(31, fixes);
+        assertEquals(6, windows);
+        // Half the advertisements are out of range or lost
+        assertTrue(a.results() > 200 * 10);
+
+        SyntheticTrace other = new SyntheticTrace(4).devices(200).durationSeconds(30);
+        other.next(eb);
+        while(other.next(eb) && eb.kind != TraceEvent.Kind.RESULT) {}
+        a = new SyntheticTrace(3).devices(200).durationSeconds(30);
+        while(a.next(ea) && ea.kind != TraceEvent.Kind.RESULT) {}
+        assertNotEquals(ea.mac, eb.mac);
+    }
+
+    @Test
+    public void flatOutReplaysGiveTheSameOutput() throws Exception {
+        // Recorded first, so the replays also go through the trace format
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceRecorder recorder = new TraceRecorder(bytes, 0);
+        SyntheticTrace venue = new SyntheticTrace(11).devices(1000).durationSeconds(60);
+        TraceEvent e = new TraceEvent();
+        while(venue.next(e)) recorder.write(e);
+        recorder.close();
+
+        long first = 0;
+        for(int run = 0; run < 3; ++run) {
+            // Queues far smaller than the trace, so the replay has to wait for the stages
+            Digest ble = new Digest(), classic = new Digest();
+            Pipeline blePipeline = pipeline(ble, 8, null);
+            Pipeline classicPipeline = pipeline(classic, 8, null);
+            TraceReplayer.Report report = new TraceReplayer(TraceReplayer.MAX_SPEED)
+                    .route(Sighting.Source.BLE, blePipeline)
+                    .route(Sighting.Source.BT_CLASSIC, classicPipeline)
+                    .replay(new TraceReader(new ByteArrayInputStream(bytes.toByteArray())));
+            blePipeline.stop();
+            classicPipeline.stop();
+
+            assertEquals(recorder.events(), report.events);
+            assertEquals(0, report.dropped);
+            assertEquals(venue.results(), blePipeline.submitted() + classicPipeline.submitted());
+            assertEquals(0, blePipeline.dropped());
+            long digest = ble.digest * 31 + classic.digest;
+            if(run == 0) first = digest;
+            assertEquals(first, digest);
+            assertTrue(ble.news > 0 && ble.expired > 0);
+        }
+    }
+
+    @Test
+    public void pacedReplaysKeepTime() throws Exception {
+        SyntheticTrace venue = new SyntheticTrace(5).devices(50).durationSeconds(5);
+        Digest out = new Digest();
+        LocationTrack track = new LocationTrack();
+        Pipeline pipeline = pipeline(out, Pipeline.DEFAULT_QUEUE_CAPACITY, track);
+        FakeClock clock = new FakeClock();
+        TraceReplayer.Report report = new TraceReplayer(10, clock).route(Sighting.Source.BLE, pipeline)
+                .locations(track).replay(venue);
+        pipeline.stop();
+
+        // 5 s of trace at 10x, waited for a step at a time
+        assertEquals(5 * SECOND, report.traceNanos);
+        assertEquals(report.traceNanos / 10, report.elapsedNanos);
+        assertTrue(clock.sleeps > 5);
+        assertEquals(6, report.fixes);
+        assertEquals(6, track.snapshot().size());
+        assertEquals(0, report.dropped);
+        assertTrue(out.located > 0);
+    }
+
+    private static Pipeline pipeline(Digest out, int queueCapacity, LocationTrack track) {
+        DedupeStage dedupe = new DedupeStage(new DeviceTable(8192, 10 * SECOND, 6, 0.25f),
+                Sighting.Source.BLE, null);
+        Pipeline pipeline = track != null
+                ? new Pipeline("replay", queueCapacity, dedupe, new LocationStage(track), out)
+                : new Pipeline("replay", queueCapacity, dedupe, out);
+        pipeline.start();
+        return pipeline;
+    }
+
+    /**
+     * Only moves when the replay sleeps.
+     */
+    private static final class FakeClock implements TraceReplayer.Clock {
+
+        long now  = 1000 * SECOND;
+        int  sleeps;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void sleep(long nanos) {
+            assertTrue(nanos > 0);
+            now += nanos;
+            sleeps++;
+        }
+    }
+
+    /**
+     * Folds everything that comes out of the pipeline, in order, into one number.
+     */
+    private static final class Digest extends Pipeline.Stage {
+
+        long digest;
+        int  news;
+        int  expired;
+        int  located;
+
+        Digest() {
+            super("digest");
+        }
+
+        @Override
+        protected boolean process(Pipeline.Record record, Pipeline.Emitter out) {
+            Sighting s = record.sighting;
+            digest = digest * 31 + s.mac;
+            digest = digest * 31 + s.rssi;
+            digest = digest * 31 + s.timestampNanos;
+            digest = digest * 31 + s.change.ordinal();
+            if(s.change == Sighting.Change.NEW) news++;
+            if(s.change == Sighting.Change.EXPIRED) expired++;
+            if(s.hasLocation()) located++;
+            return true;
+        }
+
+        @Override
+        protected void onTick(long nowNanos, Pipeline.Emitter out) {
+            digest = digest * 31 + nowNanos;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.bah.iotsap.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests MultipartUploader against a local stand-in server. How fast it is against the byte at a
+ * time copy HttpService used to do is CopyBenchmark's job.
+ */
+public class MultipartUploaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private URL        url;
+    // What the stand-in server received last, kept only when asked to
+    private volatile boolean keepBody;
+    private volatile byte[]  lastBody;
+    private volatile String  lastContentType;
+    private volatile long    received;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                ByteArrayOutputStream body = keepBody ? new ByteArrayOutputStream() : null;
+                byte[] buffer = new byte[64 * 1024];
+                long total = 0;
+                int n;
+                while((n = in.read(buffer)) >= 0) {
+                    total += n;
+                    if(body != null) body.write(buffer, 0, n);
+                }
+                received        = total;
+                lastBody        = body == null ? null : body.toByteArray();
+                lastContentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                byte[] reply = ("{\"received\":" + total + "}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, reply.length);
+                exchange.getResponseBody().write(reply);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload/");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void sendsFileRangeAsMultipart() throws Exception {
+        keepBody = true;
+        File file = randomFile("segment.log", 200000);
+        byte[] content = Arrays.copyOfRange(readAll(file), 1000, 151000);
+
+        MultipartUploader.Response response = new MultipartUploader(false).upload(url, file, 1000, 150000,
+                "segment.log", Collections.singletonMap("device", "unit-7"));
+        assertTrue(response.isSuccessful());
+        assertEquals("{\"received\":" + received + "}", response.body);
+        assertEquals(received, response.bytesSent);
+
+        String boundary = lastContentType.substring(lastContentType.indexOf("boundary=") + 9);
+        String text = new String(lastBody, "ISO-8859-1");
+        assertTrue(text.startsWith("--" + boundary + "\r\n"));
+        assertTrue(text.contains("name=\"device\"\r\n\r\nunit-7\r\n"));
+        assertTrue(text.contains("filename=\"segment.log\""));
+        assertTrue(text.endsWith("\r\n--" + boundary + "--\r\n"));
+        int start = text.indexOf("\r\n\r\n", text.indexOf("filename=")) + 4;
+        assertArrayEquals(content, Arrays.copyOfRange(lastBody, start, start + content.length));
+    }
+
+    @Test
+    public void gzipsFilePartOnTheFly() throws Exception {
+        keepBody = true;
+        File file = folder.newFile("text.log");
+        byte[] content = new byte[300000];
+        for(int i = 0; i < content.length; ++i) content[i] = (byte) ('a' + i % 7);
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(content);
+        }
+
+        MultipartUploader.Response response = new MultipartUploader(true).upload(url, file);
+        assertTrue(response.isSuccessful());
+        assertTrue(response.bytesSent < content.length / 10);
+
+        String text = new String(lastBody, "ISO-8859-1");
+        assertTrue(text.contains("filename=\"text.log.gz\""));
+        int start = text.indexOf("\r\n\r\n", text.indexOf("filename=")) + 4;
+        int end = text.lastIndexOf("\r\n--");
+        GZIPInputStream zip = new GZIPInputStream(new ByteArrayInputStream(lastBody, start, end - start));
+        ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while((n = zip.read(buffer)) >= 0) unzipped.write(buffer, 0, n);
+        assertArrayEquals(content, unzipped.toByteArray());
+    }
+
+    @Test
+    public void returnsErrorStatus() throws Exception {
+        File file = randomFile("segment.log", 1000);
+        URL missing = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/nothing-here");
+        MultipartUploader.Response response = new MultipartUploader(false).upload(missing, file);
+        assertEquals(404, response.code);
+        assertFalse(response.isSuccessful());
+    }
+
+    private File randomFile(String name, int size) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        byte[] chunk = new byte[1 << 20];
+        new Random(size).nextBytes(chunk);
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            for(int written = 0; written < size; written += chunk.length) {
+                raf.write(chunk, 0, Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.readFully(content);
+        }
+        return content;
+    }
+}
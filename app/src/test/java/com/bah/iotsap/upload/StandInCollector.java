@@ -0,0 +1,105 @@
+package com.bah.iotsap.upload;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * StandInCollector is a local stand-in for the collector's delta sync endpoint (see SyncClient),
+ * so sync can be tested end to end without a network. It checks every frame on its own (CRC,
+ * trailing length), commits frames past the device's committed offset and counts repeats.
+ * dropAfterBytes makes the next POST break off after that many body bytes, like a lost link.
+ */
+final class StandInCollector {
+
+    private final HttpServer        server;
+    private final Map<String, Long> committed = new HashMap<>();
+    volatile int  dropAfterBytes = -1;
+    volatile long framesCommitted;
+    volatile long framesRepeated;
+    volatile long bytesReceived;
+
+    StandInCollector() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload/sync/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String path = exchange.getRequestURI().getPath();
+                String device = path.substring(path.lastIndexOf('/') + 1);
+                if("POST".equals(exchange.getRequestMethod())) {
+                    int limit = dropAfterBytes;
+                    dropAfterBytes = -1;
+                    byte[] body = read(exchange.getRequestBody(), limit);
+                    bytesReceived += body.length;
+                    commit(device, body);
+                    if(limit >= 0) {
+                        // Lost link: no response at all
+                        exchange.close();
+                        return;
+                    }
+                }
+                byte[] reply = ("{\"committed\":" + committed(device) + "}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, reply.length);
+                exchange.getResponseBody().write(reply);
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    URL endpoint() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload/");
+    }
+
+    synchronized long committed(String device) {
+        Long seq = committed.get(device);
+        return seq == null ? -1 : seq;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    private synchronized void commit(String device, byte[] body) {
+        ByteBuffer frames = ByteBuffer.wrap(body);
+        CRC32 crc = new CRC32();
+        long last = committed(device);
+        while(frames.remaining() >= 12) {
+            int start  = frames.position();
+            int length = frames.getInt(start);
+            if(length <= 8 || start + 12 + length > body.length) break;
+            crc.reset();
+            crc.update(body, start + 8, length);
+            if((int) crc.getValue() != frames.getInt(start + 4) || frames.getInt(start + 8 + length) != length) break;
+            long seq = frames.getLong(start + 8);
+            if(seq <= last) {
+                ++framesRepeated;
+            } else {
+                last = seq;
+                ++framesCommitted;
+            }
+            frames.position(start + 12 + length);
+        }
+        committed.put(device, last);
+    }
+
+    private static byte[] read(InputStream in, int limit) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while((limit < 0 || body.size() < limit) && (n = in.read(buffer)) >= 0) {
+            body.write(buffer, 0, limit < 0 ? n : Math.min(n, limit - body.size()));
+        }
+        return body.toByteArray();
+    }
+}
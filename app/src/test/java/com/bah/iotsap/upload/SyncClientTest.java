@@ -0,0 +1,122 @@
+package com.bah.iotsap.upload;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.storage.SightingLog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * End to end tests of delta sync against the StandInCollector.
+ */
+public class SyncClientTest {
+
+    private static final String DEVICE = "unit-7";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInCollector collector;
+    private SightingLog      log;
+    private File             checkpoint;
+    private final Sighting   s = new Sighting();
+
+    @Before
+    public void setUp() throws Exception {
+        collector  = new StandInCollector();
+        log        = new SightingLog(folder.newFolder("log"), 1500000000000L, 64 * 1024, 1000, 1 << 20);
+        checkpoint = new File(folder.getRoot(), "sync.checkpoint");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        log.close();
+        collector.stop();
+    }
+
+    @Test
+    public void sendsOnlyNewRecords() throws Exception {
+        append(0, 5000);
+        SyncClient client = client();
+        assertEquals(0, client.sync(0));
+        assertEquals(4999, collector.committed(DEVICE));
+        assertEquals(5000, collector.framesCommitted);
+        long initial = client.bytesSent();
+
+        // A few minutes later: only the new records go out, not whole files
+        append(5000, 100);
+        assertEquals(0, client.sync(0));
+        assertEquals(5099, collector.committed(DEVICE));
+        long delta = client.bytesSent() - initial;
+        assertTrue("sent " + delta, delta < 100 * 64);
+        assertEquals(0, collector.framesRepeated);
+
+        // Nothing new, nothing sent
+        long requests = client.requests();
+        assertEquals(0, client.sync(0));
+        assertEquals(requests, client.requests());
+    }
+
+    @Test
+    public void resumesInterruptedUploadFromCommittedOffset() throws Exception {
+        append(0, 20000);
+        SyncClient client = client();
+        collector.dropAfterBytes = 100000;
+        long wait = client.sync(0);
+        assertTrue(wait > 0);
+        long partial = collector.committed(DEVICE);
+        assertTrue(partial > 0 && partial < 19999);
+
+        assertEquals(0, client.sync(wait));
+        assertEquals(19999, collector.committed(DEVICE));
+        assertEquals(20000, collector.framesCommitted);
+        // Resumed where the collector was, nothing it had was sent again
+        assertEquals(0, collector.framesRepeated);
+    }
+
+    @Test
+    public void checkpointSurvivesRestart() throws Exception {
+        append(0, 1000);
+        assertEquals(0, client().sync(0));
+
+        append(1000, 10);
+        SyncClient restarted = client();
+        assertEquals(999, restarted.committed());
+        assertEquals(0, restarted.sync(0));
+        assertEquals(1, restarted.requests());
+        assertEquals(10, restarted.recordsSent());
+        assertEquals(1009, collector.committed(DEVICE));
+    }
+
+    @Test
+    public void backsOffWhileCollectorIsDown() throws Exception {
+        append(0, 10);
+        collector.stop();
+        SyncClient client = client();
+        client.setTimeouts(500, 500);
+        long wait = client.sync(0);
+        assertTrue(wait >= Backoff.BASE_BACKOFF / 2);
+        assertEquals(wait - 1, client.sync(1));
+        assertEquals(1, client.failures());
+    }
+
+    private SyncClient client() throws Exception {
+        return new SyncClient(collector.endpoint(), DEVICE, log.directory(), checkpoint,
+                32 * 1024, new Random(5));
+    }
+
+    private void append(int from, int count) throws Exception {
+        for(int i = from; i < from + count; ++i) {
+            log.append(s.set(0xA0B0C0000000L + i % 300, -50 - i % 30, i * 1000000L, Sighting.Source.BLE,
+                    null, Sighting.Change.RSSI));
+        }
+    }
+}
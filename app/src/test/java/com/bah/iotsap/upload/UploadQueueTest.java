@@ -0,0 +1,134 @@
+package com.bah.iotsap.upload;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.storage.SegmentInfo;
+import com.bah.iotsap.storage.SightingLog;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for UploadQueue: persistence across restarts, backoff, and no repeats.
+ */
+public class UploadQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records the segments it is given, failing while offline.
+     */
+    private static final class FakeSender implements UploadQueue.Sender {
+        final List<Long> sent = new ArrayList<>();
+        boolean online = true;
+
+        @Override
+        public boolean send(SegmentInfo segment) throws IOException {
+            if(!online) throw new IOException("offline");
+            sent.add(segment.firstSeq);
+            return true;
+        }
+    }
+
+    @Test
+    public void queuesSealedSegmentsAndSurvivesRestart() throws Exception {
+        File logDir = writeLog(2000);
+        File queueDir = folder.newFolder("queue");
+        UploadQueue queue = new UploadQueue(queueDir, new Random(1));
+        int sealed = SegmentInfo.listSealed(logDir).size();
+        assertTrue(sealed > 5);
+        assertEquals(sealed, queue.enqueueSealed(logDir));
+        assertEquals(0, queue.enqueueSealed(logDir));
+
+        // Offline: the first upload fails and nothing is lost
+        FakeSender sender = new FakeSender();
+        sender.online = false;
+        long wait = queue.drain(sender, 1000);
+        assertTrue(wait > 0);
+        assertEquals(1, queue.failures());
+
+        // "Process restart": the queue comes back from disk, still backing off
+        queue = new UploadQueue(queueDir, new Random(1));
+        assertEquals(sealed, queue.pending());
+        assertEquals(wait, queue.drain(sender, 1000));
+
+        sender.online = true;
+        assertEquals(0, queue.drain(sender, 1000 + wait));
+        assertEquals(sealed, sender.sent.size());
+        assertEquals(0, queue.pending());
+        for(int i = 1; i < sender.sent.size(); ++i) assertTrue(sender.sent.get(i) > sender.sent.get(i - 1));
+
+        // Acknowledged segments are never queued again, even after a restart
+        queue = new UploadQueue(queueDir, new Random(1));
+        assertEquals(0, queue.enqueueSealed(logDir));
+        assertEquals(SegmentInfo.listSealed(logDir).get(sealed - 1).lastSeq, queue.ackedSeq());
+    }
+
+    @Test
+    public void backsOffExponentiallyWithJitter() throws Exception {
+        UploadQueue queue = new UploadQueue(folder.newFolder("queue"), new Random(7));
+        for(int failures = 1; failures < 20; ++failures) {
+            long delay = Math.min(UploadQueue.MAX_BACKOFF, UploadQueue.BASE_BACKOFF << (failures - 1));
+            long backoff = queue.backoffMillis(failures);
+            assertTrue(backoff >= delay / 2 && backoff <= delay);
+        }
+        // Jitter: not every client waits the same
+        long first = queue.backoffMillis(5);
+        boolean differs = false;
+        for(int i = 0; i < 10; ++i) differs |= queue.backoffMillis(5) != first;
+        assertTrue(differs);
+    }
+
+    @Test
+    public void resetBackoffRetriesRightAway() throws Exception {
+        File logDir = writeLog(500);
+        UploadQueue queue = new UploadQueue(folder.newFolder("queue"), new Random(3));
+        queue.enqueueSealed(logDir);
+        FakeSender sender = new FakeSender();
+        sender.online = false;
+        long now = 0;
+        for(int i = 0; i < 4; ++i) now += queue.drain(sender, now);
+        assertEquals(4, queue.failures());
+        assertTrue(queue.drain(sender, now) > 0);
+
+        // Connectivity is back
+        sender.online = true;
+        queue.resetBackoff();
+        assertEquals(0, queue.drain(sender, now));
+        assertEquals(0, queue.failures());
+    }
+
+    @Test
+    public void dropsJobsOfDeletedSegments() throws Exception {
+        File logDir = writeLog(500);
+        UploadQueue queue = new UploadQueue(folder.newFolder("queue"), new Random(3));
+        queue.enqueueSealed(logDir);
+        List<SegmentInfo> sealed = SegmentInfo.listSealed(logDir);
+        assertTrue(sealed.get(0).file.delete());
+
+        FakeSender sender = new FakeSender();
+        assertEquals(0, queue.drain(sender, 0));
+        assertEquals(sealed.size() - 1, sender.sent.size());
+        assertFalse(sender.sent.contains(sealed.get(0).firstSeq));
+    }
+
+    private File writeLog(int records) throws IOException {
+        File dir = folder.newFolder("log");
+        SightingLog log = new SightingLog(dir, 1500000000000L, 8192, 1000, 1 << 20);
+        Sighting s = new Sighting();
+        for(int i = 0; i < records; ++i) {
+            log.append(s.set(i, -50, i * 1000000L, Sighting.Source.BLE, null, Sighting.Change.NEW));
+        }
+        log.close();
+        return dir;
+    }
+}
@@ -0,0 +1,114 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.cluster.Cluster;
+import com.bah.iotsap.cluster.ClusterDiff;
+import com.bah.iotsap.cluster.ClusterGrid;
+import com.bah.iotsap.cluster.ClusterLayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to add a sighting to a ClusterGrid, and of a frame of panning at street level across a
+ * shift of 500k sightings along survey walks: ClusterLayer.update() and applying its diff to a
+ * map stand-in, with sightings streaming in meanwhile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClusterBenchmark {
+
+    private static final int  SIGHTINGS = 500000;
+    private static final int  ZOOM      = 15;
+    private static final long T         = Fixtures.EPOCH_OFFSET_MILLIS;
+
+    private double[]           lats;
+    private double[]           lons;
+    private ClusterGrid        filling;
+    private ClusterGrid        grid;
+    private ClusterLayer       layer;
+    private Map<Long, Cluster> drawn;
+    private double             width;
+    private double             height;
+    private double             centerLat;
+    private double             centerLon;
+    private int                next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(3);
+        lats = new double[SIGHTINGS];
+        lons = new double[SIGHTINGS];
+        double lat = 38.90, lon = -77.04;
+        for(int i = 0; i < SIGHTINGS; ++i) {
+            if(i % 20000 == 0) {
+                lat = 38.90 + random.nextGaussian() * 0.02;
+                lon = -77.04 + random.nextGaussian() * 0.02;
+            }
+            lat += random.nextGaussian() * 2e-5;
+            lon += random.nextGaussian() * 2e-5;
+            lats[i] = lat;
+            lons[i] = lon;
+        }
+        // A 1080 x 1920 phone screen at that zoom
+        width  = 360.0 * 1080 / (512 << ZOOM);
+        height = width * 1920 / 1080 * Math.cos(Math.toRadians(38.9));
+    }
+
+    /**
+     * Every iteration starts from the same grid and screen, and an empty grid to fill.
+     */
+    @Setup(Level.Iteration)
+    public void reset() {
+        filling = new ClusterGrid();
+        grid    = new ClusterGrid();
+        for(int i = 0; i < SIGHTINGS; ++i) grid.add(lats[i], lons[i], -40 - (i & 63), T + i * 50L);
+        layer     = new ClusterLayer(grid);
+        drawn     = new HashMap<>();
+        centerLat = 38.88;
+        centerLon = -77.06;
+        next      = 0;
+    }
+
+    @Benchmark
+    public long fill() {
+        int i = next++ % SIGHTINGS;
+        filling.add(lats[i], lons[i], -40 - (i & 63), T + i * 50L);
+        return filling.sightings();
+    }
+
+    @Benchmark
+    public int pan() {
+        int f = next++;
+        // Pan a twentieth of the screen per frame, in a loop around the city
+        double angle = 2 * Math.PI * f / 400;
+        centerLat += Math.sin(angle) * height / 20;
+        centerLon += Math.cos(angle) * width / 20;
+        if(f % 10 == 0) {
+            for(int i = 0; i < 10; ++i) grid.add(centerLat, centerLon, -55, T + SIGHTINGS * 50L + f);
+        }
+        ClusterDiff diff = layer.update(ZOOM, centerLat - height / 2, centerLon - width / 2,
+                centerLat + height / 2, centerLon + width / 2);
+        for(int i = 0; i < diff.removedCount(); ++i) drawn.remove(diff.removed(i));
+        for(Cluster cluster : diff.added) drawn.put(cluster.key, cluster);
+        for(Cluster cluster : diff.changed) drawn.put(cluster.key, cluster);
+        return drawn.size();
+    }
+}
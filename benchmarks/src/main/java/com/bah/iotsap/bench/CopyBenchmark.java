@@ -0,0 +1,118 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.upload.MultipartUploader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to send a file: the byte at a time copy of HttpService.copyFile(), which the uploads used
+ * to do, against a buffer at a time copy into the same sink, and against a whole
+ * MultipartUploader request to a collector on the loopback interface.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+
+    /** Size of the file */
+    @Param({"65536", "1048576"})
+    public int bytes;
+
+    private File              dir;
+    private File              file;
+    private byte[]            buffer;
+    private HttpServer        server;
+    private URL               url;
+    private MultipartUploader uploader;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir  = Fixtures.tempDirectory("copy");
+        file = new File(dir, "segment.log");
+        byte[] content = new byte[bytes];
+        new Random(42).nextBytes(content);
+        try(OutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+        buffer = new byte[64 << 10];
+
+        // Reads the request and answers, like the collector
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/upload/", new HttpHandler() {
+            private final byte[] buffer = new byte[64 << 10];
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while(in.read(buffer) >= 0) {}
+                exchange.sendResponseHeaders(200, 2);
+                exchange.getResponseBody().write("{}".getBytes("UTF-8"));
+                exchange.close();
+            }
+        });
+        server.start();
+        url      = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/upload/");
+        uploader = new MultipartUploader(false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public long byteAtATime() throws IOException {
+        Fixtures.Sink sink = new Fixtures.Sink();
+        try(InputStream in = new FileInputStream(file)) {
+            int data;
+            while((data = in.read()) != -1) sink.write(data);
+        }
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public long bufferAtATime() throws IOException {
+        Fixtures.Sink sink = new Fixtures.Sink();
+        try(InputStream in = new FileInputStream(file)) {
+            int n;
+            while((n = in.read(buffer)) >= 0) sink.write(buffer, 0, n);
+        }
+        return sink.bytes;
+    }
+
+    @Benchmark
+    public int multipartUpload() throws IOException {
+        MultipartUploader.Response response = uploader.upload(url, file);
+        if(!response.isSuccessful()) throw new IOException("Upload failed: " + response.code);
+        return response.code;
+    }
+}
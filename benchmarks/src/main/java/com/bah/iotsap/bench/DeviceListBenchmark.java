@@ -0,0 +1,105 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.devices.DeviceBackfill;
+import com.bah.iotsap.devices.DeviceList;
+import com.bah.iotsap.devices.DeviceRow;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.storage.SightingLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of what the devices page does: folding a sighting into the DeviceList of 2000 devices, a
+ * few of them heard far more often than the rest, taking the snapshot drawn every frame, and
+ * loading the first page of history from a SightingLog of a million records.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeviceListBenchmark {
+
+    private static final int  DEVICES = 2000;
+    private static final int  RECORDS = 1000000;
+    private static final long MS      = 1000000L;
+
+    private final Sighting sighting = new Sighting();
+
+    private Sighting[]  stream;
+    private DeviceList  list;
+    private File        dir;
+    private SightingLog log;
+    private int         next;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        long[] macs = new long[DEVICES];
+        for(int i = 0; i < DEVICES; ++i) macs[i] = 0xA0B0C0000000L + random.nextInt(1 << 24);
+        stream = new Sighting[1 << 16];
+        for(int i = 0; i < stream.length; ++i) {
+            // A few devices are heard far more often than the rest
+            int device = random.nextInt(4) == 0 ? random.nextInt(DEVICES) : random.nextInt(50);
+            stream[i] = new Sighting().set(macs[device], -50 - random.nextInt(45), i * 50000L,
+                    Sighting.Source.BLE, null);
+        }
+        list = new DeviceList(Fixtures.EPOCH_OFFSET_MILLIS);
+        for(int i = 0; i < DEVICES; ++i) list.add(sighting.set(macs[i], -60, 0, Sighting.Source.BLE, null));
+
+        // Fewer devices than the list holds, so a page reads on until it has its rows
+        dir = Fixtures.tempDirectory("backfill");
+        log = new SightingLog(dir, Fixtures.EPOCH_OFFSET_MILLIS);
+        for(int i = 0; i < RECORDS; ++i) {
+            int mac = i % 1500;
+            log.append(sighting.set(mac, -50 - i % 40, i * 10 * MS,
+                    mac % 2 == 0 ? Sighting.Source.BLE : Sighting.Source.BT_CLASSIC, null));
+        }
+        log.flush();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public int add() {
+        list.add(stream[next++ & (stream.length - 1)]);
+        return list.size();
+    }
+
+    @Benchmark
+    public List<DeviceRow> snapshot() {
+        // A frame's worth of sightings at 20000 a second, so every snapshot has changes to take
+        for(int i = 0; i < 320; ++i) list.add(stream[next++ & (stream.length - 1)]);
+        return list.snapshot();
+    }
+
+    @Benchmark
+    public List<DeviceRow> backfillFirstPage() throws IOException {
+        DeviceList rows = new DeviceList(Fixtures.EPOCH_OFFSET_MILLIS);
+        try(DeviceBackfill backfill = new DeviceBackfill(log, rows, Sighting.Source.BLE, Long.MAX_VALUE)) {
+            backfill.loadPage(DeviceBackfill.DEFAULT_PAGE_ROWS, DeviceBackfill.DEFAULT_PAGE_RECORDS);
+            return rows.snapshot();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.discovery.DeviceTable;
+import com.bah.iotsap.discovery.MacAddress;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.discovery.SightingBus;
+import com.bah.iotsap.discovery.SightingFormat;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per sighting of the scan callback's path: packing the MAC and publishing into a
+ * SightingBus nobody reads, a DeviceTable update with 100k distinct devices in it, and handing a sighting to
+ * a subscriber through the SightingBus against the JSON broadcast it replaces (SightingFormat
+ * JSON in an extras map, queued, parsed back with JSONObject). LocalBroadcastManager needs a
+ * Looper, so the broadcast stand-in only gets cheaper than the real thing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DiscoveryBenchmark {
+
+    private static final int DEVICES = 100000;
+
+    private final Sighting sighting = new Sighting();
+    private final Sighting.Source source = Sighting.Source.BLE;
+
+    private String[]                   names;
+    private long[]                     macs;
+    private DeviceTable                table;
+    private SightingBus                bus;
+    private SightingBus                unread;
+    private SightingBus.Subscription   subscription;
+    private SightingBus.Consumer       consumer;
+    private SightingFormat             format;
+    private Queue<Map<String, Object>> intents;
+    private int                        next;
+    private long                       received;
+
+    @Setup
+    public void setUp() {
+        names = new String[64];
+        for(int i = 0; i < names.length; ++i) names[i] = String.format("AA:BB:CC:DD:EE:%02X", i);
+        unread = new SightingBus(1024);
+
+        Random random = new Random(7);
+        macs = new long[DEVICES];
+        for(int i = 0; i < DEVICES; ++i) macs[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+        table = new DeviceTable(131072);
+        for(int i = 0; i < DEVICES; ++i) table.update(macs[i], -60, 0, null);
+
+        bus          = new SightingBus(1024);
+        subscription = bus.subscribe(SightingBus.Backpressure.BLOCK);
+        consumer     = new SightingBus.Consumer() {
+            @Override
+            public void onSighting(long seq, Sighting sighting) {
+                received += sighting.mac;
+            }
+        };
+        format  = new SightingFormat(Fixtures.EPOCH_OFFSET_MILLIS);
+        intents = new ArrayDeque<>();
+    }
+
+    @Benchmark
+    public long packAndPublish() {
+        String mac = names[next++ & 63];
+        return unread.publish(sighting.set(MacAddress.pack(mac), -60, next, source, mac));
+    }
+
+    @Benchmark
+    public Sighting.Change tableUpdate() {
+        int i = next++ % DEVICES;
+        return table.update(macs[i], -40 - (next & 31), next, null);
+    }
+
+    @Benchmark
+    public long busPublishAndPoll() {
+        int i = next++;
+        bus.publish(sighting.set(0xA0B0C0000000L + (i & 255), -60, i, source, "dev"));
+        subscription.poll(consumer);
+        return received;
+    }
+
+    @Benchmark
+    public String jsonBroadcast() throws JSONException {
+        int i = next++;
+        Map<String, Object> intent = new HashMap<>();
+        intent.put("action", "RECEIVE_JSON");
+        sighting.set(0xA0B0C0000000L + (i & 255), -60, i * 1000000L, source, "dev");
+        intent.put("json", format.toJson(sighting));
+        intents.add(intent);
+
+        Map<String, Object> delivered = intents.remove();
+        if(!"RECEIVE_JSON".equals(delivered.get("action"))) return null;
+        return new JSONObject((String) delivered.get("json")).getString("mac");
+    }
+}
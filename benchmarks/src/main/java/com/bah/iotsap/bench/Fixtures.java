@@ -0,0 +1,72 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.discovery.Sighting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Test data shared by the benchmarks: sightings that look like a scan's, and scratch files.
+ */
+final class Fixtures {
+
+    /** Wall clock time of the monotonic time base zero of the sightings */
+    static final long EPOCH_OFFSET_MILLIS = 1500000000000L;
+
+    private Fixtures() {}
+
+    /**
+     * @return count sightings of a few hundred devices 10 ms apart, a third of them named and
+     *         half of them located, always the same ones
+     */
+    static Sighting[] sightings(int count) {
+        Random random = new Random(42);
+        long[] macs = new long[500];
+        for(int i = 0; i < macs.length; ++i) macs[i] = random.nextLong() & 0xffffffffffffL;
+        Sighting[] sightings = new Sighting[count];
+        for(int i = 0; i < count; ++i) {
+            int device = random.nextInt(macs.length);
+            Sighting s = new Sighting().set(macs[device], -40 - random.nextInt(60), i * 10000000L,
+                    device % 5 == 0 ? Sighting.Source.BT_CLASSIC : Sighting.Source.BLE,
+                    device % 3 == 0 ? "Device " + device : null, Sighting.Change.values()[random.nextInt(3)]);
+            if(i % 2 == 0) {
+                s.setLocation(38.8977 + random.nextGaussian() * 1e-3, -77.0365 + random.nextGaussian() * 1e-3,
+                        3 + random.nextInt(20));
+            }
+            sightings[i] = s;
+        }
+        return sightings;
+    }
+
+    static File tempDirectory(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if(!dir.delete() || !dir.mkdir()) throw new IOException("Could not create " + dir);
+        return dir;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) for(File child : children) delete(child);
+        file.delete();
+    }
+
+    /**
+     * Swallows and counts what is written to it.
+     */
+    static final class Sink extends OutputStream {
+
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+}
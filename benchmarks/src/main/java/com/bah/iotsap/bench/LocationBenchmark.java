@@ -0,0 +1,95 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.location.LocationTrack;
+import com.bah.iotsap.location.PositionEstimator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to tag a sighting with its place from a full LocationTrack of fixes taken every 5 seconds,
+ * and of a PositionEstimator update and estimate with 100k devices in a 16 MB budget.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LocationBenchmark {
+
+    private static final long   SECOND  = 1000000000L;
+    private static final int    DEVICES = 100000;
+    private static final double LAT0    = 38.9;
+    private static final double LON0    = -77.0;
+
+    private final Sighting                   sighting = new Sighting();
+    private final PositionEstimator.Estimate estimate = new PositionEstimator.Estimate();
+
+    private LocationTrack     track;
+    private long[]            times;
+    private PositionEstimator estimator;
+    private long[]            macs;
+    private int[]             rssis;
+    private double[]          offsets;
+    private int               next;
+
+    @Setup
+    public void setUp() {
+        track = new LocationTrack();
+        for(int i = 0; i < LocationTrack.DEFAULT_CAPACITY; ++i) {
+            track.add(i * 5 * SECOND, LAT0 + i * 1e-4, LON0 - i * 1e-4, 8f);
+        }
+        long span = LocationTrack.DEFAULT_CAPACITY * 5 * SECOND;
+        Random random = new Random(5);
+        times = new long[1 << 16];
+        for(int i = 0; i < times.length; ++i) times[i] = (long) (random.nextDouble() * span);
+
+        estimator = new PositionEstimator(PositionEstimator.capacityFor(16 << 20));
+        macs = new long[DEVICES];
+        for(int i = 0; i < DEVICES; ++i) macs[i] = 0xA0B0C0000000L + random.nextInt(1 << 24);
+        rssis   = new int[1 << 12];
+        offsets = new double[1 << 12];
+        for(int i = 0; i < rssis.length; ++i) {
+            rssis[i]   = -50 - random.nextInt(45);
+            offsets[i] = random.nextGaussian() * 1e-3;
+        }
+        for(int i = 0; i < DEVICES; ++i) update(i);
+    }
+
+    @Benchmark
+    public boolean locate() {
+        return track.snapshot().locate(times[next++ & (times.length - 1)], sighting);
+    }
+
+    @Benchmark
+    public void estimatorUpdate() {
+        update(next++);
+    }
+
+    @Benchmark
+    public boolean estimatorEstimate() {
+        return estimator.estimate(macs[next++ % DEVICES], estimate);
+    }
+
+    /**
+     * An update spread over all of the devices, from fixes around one spot.
+     */
+    private void update(int i) {
+        int r = i & (rssis.length - 1);
+        estimator.update(macs[(int) ((i * 2654435761L) % DEVICES)], rssis[r], LAT0 + offsets[r],
+                LON0 + offsets[(r + 1) & (rssis.length - 1)], 5f, i * 1000L);
+    }
+}
@@ -0,0 +1,74 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.discovery.DeviceTable;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.pipeline.DedupeStage;
+import com.bah.iotsap.pipeline.Pipeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per scan result pushed through dedupe and two more stages, the way the scan callbacks
+ * do. The producer waits for a free record whenever the pipeline is full, so this is the rate
+ * the stages sustain rather than the cost of a lone submit().
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    private Pipeline pipeline;
+    private int      next;
+
+    @Setup(Level.Iteration)
+    public void start() {
+        DedupeStage dedupe = new DedupeStage(new DeviceTable(1024), Sighting.Source.BLE, null);
+        pipeline = new Pipeline("bench", Pipeline.DEFAULT_QUEUE_CAPACITY, dedupe, new Pass("persist"),
+                new Pass("publish"));
+        pipeline.start();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stop() throws InterruptedException {
+        pipeline.stop();
+    }
+
+    @Benchmark
+    public boolean submit() throws InterruptedException {
+        int i = next++;
+        Pipeline.Record record = pipeline.obtainBlocking();
+        record.sighting.set(0xA0B0C0000000L + (i & 511), -60 - (i & 15), i, Sighting.Source.BLE, null);
+        return pipeline.submit(record);
+    }
+
+    /**
+     * Passes everything on.
+     */
+    private static final class Pass extends Pipeline.Stage {
+
+        Pass(String name) {
+            super(name);
+        }
+
+        @Override
+        protected boolean process(Pipeline.Record record, Pipeline.Emitter out) {
+            return true;
+        }
+    }
+}
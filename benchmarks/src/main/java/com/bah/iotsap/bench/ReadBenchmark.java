@@ -0,0 +1,116 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.discovery.SightingFormat;
+import com.bah.iotsap.storage.LogCursor;
+import com.bah.iotsap.storage.SightingLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to read back a file of sightings, at several sizes: FileRW.read (String concatenation,
+ * quadratic in the file size) against one StringBuilder, and against walking the same records
+ * with a LogCursor, what the device list and the uploads do now.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+
+    /** Sightings in the file */
+    @Param({"100", "1000", "10000"})
+    public int records;
+
+    private File        dir;
+    private File        file;
+    private SightingLog log;
+    private Sighting    scratch;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir  = Fixtures.tempDirectory("read");
+        file = new File(dir, "sightings.json");
+        log  = new SightingLog(new File(dir, "log"), Fixtures.EPOCH_OFFSET_MILLIS);
+        SightingFormat format = new SightingFormat(Fixtures.EPOCH_OFFSET_MILLIS);
+        try(OutputStream out = new FileOutputStream(file)) {
+            for(Sighting sighting : Fixtures.sightings(records)) {
+                out.write(format.toJson(sighting).getBytes("UTF-8"));
+                out.write('\n');
+                log.append(sighting);
+            }
+        }
+        log.flush();
+        scratch = new Sighting();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public String legacyRead() {
+        return legacyRead(file);
+    }
+
+    @Benchmark
+    public String builderRead() throws IOException {
+        StringBuilder out = new StringBuilder((int) file.length());
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            String line;
+            while((line = reader.readLine()) != null) out.append(line);
+        }
+        return out.toString();
+    }
+
+    @Benchmark
+    public long logCursor() throws IOException {
+        long sum = 0;
+        try(LogCursor cursor = log.cursor()) {
+            while(cursor.next(scratch)) sum += scratch.rssi;
+        }
+        return sum;
+    }
+
+    /**
+     * FileRW.read() on a File instead of a private file of a Context.
+     */
+    private static String legacyRead(File file) {
+        String line, line1 = "";
+        try {
+            InputStream inputStream = new FileInputStream(file);
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
+            while((line = bufferedReader.readLine()) != null)
+                line1 += line;
+            bufferedReader.close();
+        } catch(IOException e) {
+            // FileRW returns what it has
+        }
+        return line1;
+    }
+}
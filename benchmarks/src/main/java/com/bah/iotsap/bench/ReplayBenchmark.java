@@ -0,0 +1,55 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.discovery.DeviceTable;
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.location.LocationTrack;
+import com.bah.iotsap.pipeline.DedupeStage;
+import com.bah.iotsap.pipeline.LocationStage;
+import com.bah.iotsap.pipeline.Pipeline;
+import com.bah.iotsap.trace.SyntheticTrace;
+import com.bah.iotsap.trace.TraceReplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to replay two minutes of a 5000 device venue, half of them walking, through the dedupe
+ * and locate stages flat out.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayBenchmark {
+
+    private static final long SECOND = 1000000000L;
+
+    @Benchmark
+    public long denseVenue() throws IOException, InterruptedException {
+        SyntheticTrace venue = new SyntheticTrace(1).devices(5000).mobileFraction(0.5).durationSeconds(120);
+        LocationTrack track = new LocationTrack();
+        Pipeline pipeline = new Pipeline("replay", Pipeline.DEFAULT_QUEUE_CAPACITY,
+                new DedupeStage(new DeviceTable(8192, 10 * SECOND, 6, 0.25f), Sighting.Source.BLE, null),
+                new LocationStage(track));
+        pipeline.start();
+        TraceReplayer.Report report = new TraceReplayer(TraceReplayer.MAX_SPEED)
+                .route(Sighting.Source.BLE, pipeline)
+                .route(Sighting.Source.BT_CLASSIC, pipeline)
+                .locations(track)
+                .replay(venue);
+        pipeline.stop();
+        return report.results;
+    }
+}
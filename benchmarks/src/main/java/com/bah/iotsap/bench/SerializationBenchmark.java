@@ -0,0 +1,76 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.discovery.SightingFormat;
+import com.bah.iotsap.storage.ColumnarEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to serialize a sighting: a JSON line through JSONObject (SightingFormat, what the app
+ * exports and what the services used to broadcast) against a row of a ColumnarEncoder batch,
+ * plain and deflated as it is uploaded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    private static final int BATCH = 1024;
+
+    private Sighting[]            sightings;
+    private SightingFormat        format;
+    private ColumnarEncoder       encoder;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() {
+        sightings = Fixtures.sightings(BATCH);
+        format    = new SightingFormat(Fixtures.EPOCH_OFFSET_MILLIS);
+        encoder   = new ColumnarEncoder(Fixtures.EPOCH_OFFSET_MILLIS);
+        out       = new ByteArrayOutputStream(64 << 10);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void jsonObject(Blackhole blackhole) {
+        for(Sighting sighting : sightings) blackhole.consume(format.toJson(sighting));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int columnar() throws IOException {
+        return encode(false);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int columnarDeflated() throws IOException {
+        return encode(true);
+    }
+
+    private int encode(boolean deflate) throws IOException {
+        encoder.reset();
+        for(Sighting sighting : sightings) encoder.add(sighting);
+        out.reset();
+        return encoder.writeTo(out, deflate);
+    }
+}
@@ -0,0 +1,117 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.spatial.SightingIndex;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a SightingIndex insert, and of map viewports of a few blocks to a few kilometers over
+ * the last day and over everything, in two million points walked around a few cities.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpatialBenchmark {
+
+    private static final int  POINTS  = 2000000;
+    private static final int  QUERIES = 4096;
+    private static final long DAY     = 86400000L;
+
+    private long[]        macs;
+    private double[]      lats;
+    private double[]      lons;
+    private long[]        times;
+    private double[][]    viewports;
+    private SightingIndex index;
+    private SightingIndex filling;
+    private int           next;
+    private long          visited;
+
+    private final SightingIndex.Visitor visitor = new SightingIndex.Visitor() {
+        @Override
+        public boolean visit(long mac, double latitude, double longitude, long timeMillis, int rssi) {
+            visited++;
+            return true;
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        double[][] cities = { { 38.90, -77.04 }, { 40.71, -74.00 }, { 51.51, -0.13 }, { 35.68, 139.69 } };
+        Random random = new Random(4);
+        macs  = new long[POINTS];
+        lats  = new double[POINTS];
+        lons  = new double[POINTS];
+        times = new long[POINTS];
+        double lat = 0, lon = 0;
+        for(int i = 0; i < POINTS; ++i) {
+            if(i % 5000 == 0) {
+                double[] city = cities[random.nextInt(cities.length)];
+                lat = city[0] + random.nextGaussian() * 0.05;
+                lon = city[1] + random.nextGaussian() * 0.05;
+            }
+            // A survey walk: a step every sighting, a device pool per neighborhood
+            lat += random.nextGaussian() * 1e-5;
+            lon += random.nextGaussian() * 1e-5;
+            lats[i]  = lat;
+            lons[i]  = lon;
+            macs[i]  = 0xA0B0C0000000L + (i / 5000) * 200 + random.nextInt(200);
+            times[i] = Fixtures.EPOCH_OFFSET_MILLIS + i * 250L; // about six days
+        }
+        index = new SightingIndex();
+        for(int i = 0; i < POINTS; ++i) index.add(macs[i], lats[i], lons[i], times[i], -60);
+
+        viewports = new double[QUERIES][];
+        for(int q = 0; q < QUERIES; ++q) {
+            int i = random.nextInt(POINTS);
+            double half = 0.002 * Math.pow(10, random.nextDouble()); // 200 m to 2 km
+            viewports[q] = new double[] { lats[i] - half, lons[i] - half, lats[i] + half, lons[i] + half };
+        }
+    }
+
+    /**
+     * Every iteration fills an empty index again, so it does not grow without end.
+     */
+    @Setup(Level.Iteration)
+    public void empty() {
+        filling = new SightingIndex();
+    }
+
+    @Benchmark
+    public long insert() {
+        int i = next++ % POINTS;
+        filling.add(macs[i], lats[i], lons[i], times[i], -60);
+        return filling.size();
+    }
+
+    @Benchmark
+    public long queryAllTime() {
+        double[] v = viewports[next++ & (QUERIES - 1)];
+        index.query(v[0], v[1], v[2], v[3], 0, Long.MAX_VALUE, visitor);
+        return visited;
+    }
+
+    @Benchmark
+    public long queryLastDay() {
+        double[] v = viewports[next++ & (QUERIES - 1)];
+        long end = times[POINTS - 1];
+        index.query(v[0], v[1], v[2], v[3], end - DAY, end, visitor);
+        return visited;
+    }
+}
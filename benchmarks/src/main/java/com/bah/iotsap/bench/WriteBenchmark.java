@@ -0,0 +1,127 @@
+package com.bah.iotsap.bench;
+
+import com.bah.iotsap.discovery.Sighting;
+import com.bah.iotsap.discovery.SightingFormat;
+import com.bah.iotsap.storage.SightingLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to store one sighting: FileRW.write (open the file, append a JSON line, close it again,
+ * for every record) against the same lines through one buffered stream flushed every BATCH
+ * records, and against SightingLog.append(), what the persist stage does now, one record or a
+ * batch at a time.
+ * FileRW needs a Context, so legacyWrite() does what it does on a plain File.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriteBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int     BATCH = 64;
+
+    private Sighting[]   sightings;
+    private String[]     lines;
+    private File         dir;
+    private File         file;
+    private OutputStream batched;
+    private SightingLog  log;
+    private int          next;
+
+    @Setup
+    public void setUp() {
+        sightings = Fixtures.sightings(4096);
+        SightingFormat format = new SightingFormat(Fixtures.EPOCH_OFFSET_MILLIS);
+        lines = new String[sightings.length];
+        for(int i = 0; i < sightings.length; ++i) lines[i] = format.toJson(sightings[i]);
+    }
+
+    /**
+     * Every iteration starts with empty files, so they do not fill the disk.
+     */
+    @Setup(Level.Iteration)
+    public void open() throws IOException {
+        dir     = Fixtures.tempDirectory("write");
+        file    = new File(dir, "sightings.json");
+        batched = new BufferedOutputStream(new FileOutputStream(new File(dir, "batched.json"), true), 64 << 10);
+        log     = new SightingLog(new File(dir, "log"), Fixtures.EPOCH_OFFSET_MILLIS);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+        batched.close();
+        log.close();
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public boolean legacyWrite() {
+        return legacyWrite(file, lines[next++ & (lines.length - 1)]);
+    }
+
+    @Benchmark
+    public void batchedWrite() throws IOException {
+        int i = next++ & (lines.length - 1);
+        batched.write(lines[i].getBytes(UTF_8));
+        batched.write('\n');
+        if(i % BATCH == BATCH - 1) batched.flush();
+    }
+
+    @Benchmark
+    public long sightingLog() throws IOException {
+        long seq = log.append(sightings[next++ & (sightings.length - 1)]);
+        log.flushIfDue();
+        return seq;
+    }
+
+    /**
+     * SightingLog.append() of a whole batch, what the persist stage does with a full queue.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long sightingLogBatch() throws IOException {
+        int off = (next++ * BATCH) & (sightings.length - 1);
+        long seq = log.append(sightings, off, BATCH);
+        log.flushIfDue();
+        return seq;
+    }
+
+    /**
+     * FileRW.write() on a File instead of a private file of a Context.
+     */
+    private static boolean legacyWrite(File file, String object) {
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(file, true);
+            fileOutputStream.write(object.getBytes());
+            fileOutputStream.write("\n".getBytes());
+            fileOutputStream.close();
+            return true;
+        } catch(IOException e) {
+            return false;
+        }
+    }
+}